@@ -31,6 +31,8 @@ import org.openjdk.jmh.annotations.TearDown;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 
 @BenchmarkMode(Mode.SampleTime)
@@ -39,6 +41,7 @@ import java.util.concurrent.TimeUnit;
 public class ProfilerBenchmark extends AbstractMockApmServerBenchmark {
 
     private SamplingProfiler samplingProfiler;
+    private Path activationEvents;
 
     public ProfilerBenchmark() {
         super(true);
@@ -50,9 +53,10 @@ public class ProfilerBenchmark extends AbstractMockApmServerBenchmark {
 
     @Setup
     public void setUp() throws Exception {
+        activationEvents = Paths.get(getClass().getClassLoader().getResource("apm-activation-events.bin").toURI());
         samplingProfiler = new SamplingProfiler(tracer,
             new SystemNanoClock(),
-            new File(getClass().getClassLoader().getResource("apm-activation-events.bin").toURI()),
+            null,
             new File(getClass().getClassLoader().getResource("apm-traces.jfr").toURI()));
     }
 
@@ -63,7 +67,7 @@ public class ProfilerBenchmark extends AbstractMockApmServerBenchmark {
 
     @Benchmark
     public void processTraces() throws IOException {
-        samplingProfiler.skipToEndOfActivationEventsFile();
+        samplingProfiler.copyActivationEventsFrom(activationEvents);
         samplingProfiler.processTraces();
         samplingProfiler.clearProfiledThreads();
     }
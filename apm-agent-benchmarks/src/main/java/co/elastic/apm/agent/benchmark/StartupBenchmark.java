@@ -0,0 +1,216 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the contribution of the agent to the cold start of a JVM, for example of a serverless function.
+ * <p>
+ * Every invocation starts a new JVM that runs {@link Application} and measures the time until it exits.
+ * The {@code mode} parameter determines how the JVM is started:
+ * </p>
+ * <ul>
+ *     <li>{@code none}: without the agent, which is the baseline</li>
+ *     <li>{@code agent}: with the agent attached via {@code -javaagent}</li>
+ *     <li>
+ *         {@code agent-cds}: with the agent and a dynamic class data sharing (AppCDS) archive (requires Java 13+).
+ *         The archive is created by a training run with {@code -XX:ArchiveClassesAtExit} during the setup
+ *         and contains the classes the JVM could archive that have been loaded during that run.
+ *         Which of the agent's classes end up in the archive has not been verified,
+ *         as most of them are defined from byte arrays by the agent's own class loaders.
+ *     </li>
+ * </ul>
+ * <p>
+ * The agent jar is taken from the {@code elastic.apm.benchmark.agent_jar} system property
+ * or from {@code elastic-apm-agent/target} after running {@code mvn package} on the project.
+ * Run via {@code java -jar apm-agent-benchmarks/target/benchmarks.jar StartupBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final String AGENT_JAR_PROPERTY = "elastic.apm.benchmark.agent_jar";
+
+    @Param({"none", "agent", "agent-cds"})
+    public String mode;
+
+    private List<String> command;
+    private File tempDir;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(StartupBenchmark.class.getSimpleName())
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("startup-benchmark").toFile();
+        List<String> jvmArgs = new ArrayList<>();
+        if (!mode.equals("none")) {
+            jvmArgs.addAll(getAgentArgs(findAgentJar()));
+        }
+        if (mode.equals("agent-cds")) {
+            if (getJavaVersion() < 13) {
+                throw new IllegalStateException("Dynamic class data sharing archives require Java 13+");
+            }
+            File archive = new File(tempDir, "agent.jsa");
+            // training run
+            List<String> trainingArgs = new ArrayList<>(jvmArgs);
+            trainingArgs.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+            run(createCommand(trainingArgs));
+            if (!archive.isFile()) {
+                throw new IllegalStateException("The training run did not create " + archive);
+            }
+            jvmArgs.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        }
+        command = createCommand(jvmArgs);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public int startJvm() throws Exception {
+        return run(command);
+    }
+
+    private List<String> getAgentArgs(File agentJar) {
+        return Arrays.asList(
+            "-javaagent:" + agentJar.getAbsolutePath(),
+            "-Delastic.apm.service_name=startup-benchmark",
+            // avoid network calls that would make the results depend on the environment
+            "-Delastic.apm.disable_send=true",
+            "-Delastic.apm.central_config=false",
+            "-Delastic.apm.cloud_provider=NONE",
+            "-Delastic.apm.log_level=WARN"
+        );
+    }
+
+    private List<String> createCommand(List<String> jvmArgs) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+        command.add("-Xshare:auto");
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Application.class.getName());
+        return Collections.unmodifiableList(command);
+    }
+
+    private int run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(tempDir, "output.log"))
+            .start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("JVM exited with " + exitCode + ", see " + new File(tempDir, "output.log"));
+        }
+        return exitCode;
+    }
+
+    private static File findAgentJar() throws FileNotFoundException {
+        String agentJar = System.getProperty(AGENT_JAR_PROPERTY);
+        if (agentJar != null) {
+            return new File(agentJar);
+        }
+        for (File dir : Arrays.asList(new File("elastic-apm-agent/target"), new File("../elastic-apm-agent/target"))) {
+            File[] jars = dir.listFiles();
+            if (jars == null) {
+                continue;
+            }
+            for (File jar : jars) {
+                String name = jar.getName();
+                if (name.startsWith("elastic-apm-agent-") && name.endsWith(".jar")
+                    && !name.endsWith("-sources.jar") && !name.endsWith("-javadoc.jar") && !name.startsWith("original-")) {
+                    return jar;
+                }
+            }
+        }
+        throw new FileNotFoundException("Agent jar not found, build it via mvn package or set -D" + AGENT_JAR_PROPERTY);
+    }
+
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        return Integer.parseInt(version);
+    }
+
+    /**
+     * A minimal application that loads a few common classes, to mimic a short-lived job.
+     */
+    public static class Application {
+        public static void main(String[] args) throws Exception {
+            StringBuilder sb = new StringBuilder();
+            for (String s : Arrays.asList("a", "b", "c")) {
+                sb.append(s.toUpperCase());
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            thread.start();
+            thread.join();
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.concurrent;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the overhead of propagating the active context to tasks that are executed by the instrumented
+ * {@link ForkJoinPool} and {@link ExecutorService}.
+ * <p>
+ * The fork-join workload sums up an array with a {@link RecursiveTask} that forks about 2000 tasks per invocation.
+ * The contexts of forked tasks and of {@link Runnable} classes are kept in the context map of the java-concurrent plugin,
+ * while lambdas are wrapped by the agent and hold their context in a field of the wrapper.
+ * With {@code traced=false}, tasks are executed without an active transaction, which shows the overhead of the instrumentation itself.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContextPropagationBenchmark extends AbstractBenchmark {
+
+    private static final int NUMBERS = 1 << 20;
+    private static final int THRESHOLD = 1 << 10;
+    private static final int EXECUTOR_TASKS = 1000;
+    private static final int PARALLELISM = 4;
+
+    @Param({"true", "false"})
+    public boolean traced;
+
+    private ElasticApmTracer tracer;
+    private ForkJoinPool forkJoinPool;
+    private ExecutorService executor;
+    private long[] numbers;
+    private final AtomicLong counter = new AtomicLong();
+
+    public static void main(String[] args) throws RunnerException {
+        run(ContextPropagationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("enable_instrumentations", "concurrent")
+                    .add("disable_send", "true")
+                    .add("metrics_interval", "0ms"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        ElasticApmAgent.initInstrumentation(tracer, ByteBuddyAgent.install());
+        forkJoinPool = new ForkJoinPool(PARALLELISM);
+        executor = Executors.newFixedThreadPool(PARALLELISM);
+        numbers = new long[NUMBERS];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        forkJoinPool.shutdown();
+        executor.shutdown();
+        ElasticApmAgent.reset();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public long forkJoinSum() {
+        Transaction transaction = startTransaction();
+        try {
+            return forkJoinPool.invoke(new SumTask(numbers, 0, numbers.length));
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public long executorLambdas() throws Exception {
+        Transaction transaction = startTransaction();
+        try {
+            List<Future<?>> futures = new ArrayList<>(EXECUTOR_TASKS);
+            for (int i = 0; i < EXECUTOR_TASKS; i++) {
+                futures.add(executor.submit(() -> counter.incrementAndGet()));
+            }
+            return await(futures);
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public long executorRunnables() throws Exception {
+        Transaction transaction = startTransaction();
+        try {
+            List<Future<?>> futures = new ArrayList<>(EXECUTOR_TASKS);
+            for (int i = 0; i < EXECUTOR_TASKS; i++) {
+                futures.add(executor.submit(new IncrementTask(counter)));
+            }
+            return await(futures);
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Nullable
+    private Transaction startTransaction() {
+        if (!traced) {
+            return null;
+        }
+        return tracer.startRootTransaction(null).withName("benchmark").activate();
+    }
+
+    private static void endTransaction(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            transaction.deactivate().end();
+        }
+    }
+
+    private long await(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return counter.get();
+    }
+
+    private static class SumTask extends RecursiveTask<Long> {
+
+        private final long[] numbers;
+        private final int from;
+        private final int to;
+
+        private SumTask(long[] numbers, int from, int to) {
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= THRESHOLD) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += numbers[i];
+                }
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            SumTask left = new SumTask(numbers, from, middle);
+            left.fork();
+            long right = new SumTask(numbers, middle, to).compute();
+            return left.join() + right;
+        }
+    }
+
+    private static class IncrementTask implements Runnable {
+
+        private final AtomicLong counter;
+
+        private IncrementTask(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public void run() {
+            counter.incrementAndGet();
+        }
+    }
+}
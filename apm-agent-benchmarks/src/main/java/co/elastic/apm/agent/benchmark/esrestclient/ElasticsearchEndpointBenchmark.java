@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.esrestclient;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.esrestclient.ElasticsearchEndpointDefinition;
+import co.elastic.apm.agent.esrestclient.ElasticsearchEndpointMap;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Span;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the path parts of one URL path for each route of each endpoint in the {@link ElasticsearchEndpointMap}.
+ * The {@link #regex()} benchmark mirrors the previous implementation which matched each route's regex one after another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ElasticsearchEndpointBenchmark extends AbstractBenchmark {
+
+    private static final Pattern PATH_PART_PATTERN = Pattern.compile("\\{([^}]+)}");
+
+    private ElasticApmTracer tracer;
+    private Span span;
+    private ElasticsearchEndpointDefinition[] endpoints;
+    private String[] urlPaths;
+    private List<List<Pattern>> endpointPatterns;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ElasticsearchEndpointBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().buildAndStart();
+        span = new Span(tracer);
+        List<ElasticsearchEndpointDefinition> endpoints = new ArrayList<>();
+        List<String> urlPaths = new ArrayList<>();
+        endpointPatterns = new ArrayList<>();
+        for (ElasticsearchEndpointDefinition endpoint : ElasticsearchEndpointMap.getAllEndpoints()) {
+            List<Pattern> patterns = new ArrayList<>();
+            for (ElasticsearchEndpointDefinition.Route route : endpoint.getRoutes()) {
+                if (route.hasParameters()) {
+                    patterns.add(Pattern.compile("^" + PATH_PART_PATTERN.matcher(route.getName()).replaceAll("([^/]+)") + "$"));
+                }
+            }
+            for (ElasticsearchEndpointDefinition.Route route : endpoint.getRoutes()) {
+                endpoints.add(endpoint);
+                urlPaths.add(PATH_PART_PATTERN.matcher(route.getName()).replaceAll("my-$1"));
+                endpointPatterns.add(patterns);
+            }
+        }
+        this.endpoints = endpoints.toArray(new ElasticsearchEndpointDefinition[0]);
+        this.urlPaths = urlPaths.toArray(new String[0]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public Span trie() {
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i].addPathPartAttributes(urlPaths[i], span);
+        }
+        return span;
+    }
+
+    @Benchmark
+    public int regex() {
+        int groups = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            for (Pattern pattern : endpointPatterns.get(i)) {
+                Matcher matcher = pattern.matcher(urlPaths[i]);
+                if (matcher.find()) {
+                    groups += matcher.groupCount();
+                    for (int group = 1; group <= matcher.groupCount(); group++) {
+                        span.withOtelAttribute("db.elasticsearch.path_parts", matcher.group(group));
+                    }
+                    break;
+                }
+            }
+        }
+        return groups;
+    }
+}
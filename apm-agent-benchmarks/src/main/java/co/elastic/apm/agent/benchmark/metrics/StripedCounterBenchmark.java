@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.metrics;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.metrics.StripedCounter;
+import co.elastic.apm.agent.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of contended updates to a single counter or timer,
+ * like concurrent updates of the breakdown metrics of transactions with the same name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+public class StripedCounterBenchmark extends AbstractBenchmark {
+
+    private final AtomicLong atomicLong = new AtomicLong();
+    private final StripedCounter stripedCounter = new StripedCounter();
+    private final AtomicLong atomicTotalTime = new AtomicLong();
+    private final AtomicLong atomicCount = new AtomicLong();
+    private final Timer timer = new Timer();
+
+    public static void main(String[] args) throws RunnerException {
+        run(StripedCounterBenchmark.class);
+    }
+
+    @Benchmark
+    public long atomicLongCounter() {
+        return atomicLong.addAndGet(1);
+    }
+
+    @Benchmark
+    public void stripedCounter() {
+        stripedCounter.increment();
+    }
+
+    /**
+     * The previous implementation of {@link Timer#update(long)}
+     */
+    @Benchmark
+    public void atomicLongTimer() {
+        atomicTotalTime.addAndGet(42);
+        atomicCount.addAndGet(1);
+    }
+
+    @Benchmark
+    public void stripedTimer() {
+        timer.update(42);
+    }
+}
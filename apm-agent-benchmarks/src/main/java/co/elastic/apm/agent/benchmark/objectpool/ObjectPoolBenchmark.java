@@ -23,13 +23,17 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
+import org.jctools.queues.MpscArrayQueue;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
@@ -37,9 +41,15 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.runner.RunnerException;
 
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Besides creating and recycling objects on the same thread,
+ * the {@code *Handoff} benchmarks model the lifecycle of transactions and spans in the agent:
+ * application threads create objects and hand them over to the reporter thread which recycles them.
+ */
 @BenchmarkMode(Mode.SampleTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class ObjectPoolBenchmark extends AbstractBenchmark {
@@ -50,6 +60,9 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> magazineObjectPool;
+    private Queue<Transaction> jctoolsAtomicQueueHandoff;
+    private Queue<Transaction> magazineHandoff;
 
     public static void main(String[] args) throws RunnerException {
         run(ObjectPoolBenchmark.class);
@@ -63,6 +76,10 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        magazineObjectPool = MagazineObjectPool.ofRecyclable(256, MagazineObjectPool.DEFAULT_MAGAZINE_SIZE, () -> new Transaction(tracer));
+        // models the ring buffer between the application threads and the reporter
+        jctoolsAtomicQueueHandoff = new MpscArrayQueue<>(1024);
+        magazineHandoff = new MpscArrayQueue<>(1024);
     }
 
     @TearDown
@@ -116,4 +133,57 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testMagazineObjectPool() {
+        Transaction transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueHandoff")
+    @GroupThreads(7)
+    public Transaction testJctoolsAtomicQueueHandoffApplication() {
+        return createAndHandOff(jctoolsAtomicQueueObjectPool, jctoolsAtomicQueueHandoff);
+    }
+
+    @Benchmark
+    @Group("jctoolsAtomicQueueHandoff")
+    @GroupThreads(1)
+    public Transaction testJctoolsAtomicQueueHandoffReporter() {
+        return pollAndRecycle(jctoolsAtomicQueueObjectPool, jctoolsAtomicQueueHandoff);
+    }
+
+    @Benchmark
+    @Group("magazineHandoff")
+    @GroupThreads(7)
+    public Transaction testMagazineHandoffApplication() {
+        return createAndHandOff(magazineObjectPool, magazineHandoff);
+    }
+
+    @Benchmark
+    @Group("magazineHandoff")
+    @GroupThreads(1)
+    public Transaction testMagazineHandoffReporter() {
+        return pollAndRecycle(magazineObjectPool, magazineHandoff);
+    }
+
+    private static Transaction createAndHandOff(ObjectPool<Transaction> pool, Queue<Transaction> handoff) {
+        Transaction transaction = pool.createInstance();
+        if (!handoff.offer(transaction)) {
+            // the reporter can't keep up, the agent would discard the event in this case
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
+    private static Transaction pollAndRecycle(ObjectPool<Transaction> pool, Queue<Transaction> handoff) {
+        Transaction transaction = handoff.poll();
+        if (transaction != null) {
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
 }
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.sql;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.sdk.internal.db.signature.SignatureParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the signature cache of the {@link SignatureParser} with a skewed distribution of queries,
+ * where few queries are executed frequently and a long tail of queries is executed rarely.
+ * The number of distinct queries exceeds the capacity of the cache to exercise admission and eviction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SignatureCacheBenchmark extends AbstractBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"100", "100000"})
+    public int distinctQueries;
+
+    private SignatureParser signatureParser;
+    private String[] queries;
+    private String[] statements;
+
+    public static void main(String[] args) throws RunnerException {
+        run(SignatureCacheBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        signatureParser = new SignatureParser();
+        queries = new String[SAMPLES];
+        statements = new String[SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            // approximates a zipfian distribution
+            int table = (int) Math.pow(distinctQueries, random.nextDouble()) - 1;
+            queries[i] = "SELECT t.id, t.name, t.created_at, o.amount FROM table" + table + " t JOIN orders o ON o.table_id = t.id WHERE t.id = ?";
+            statements[i] = "SELECT t.id, t.name, t.created_at, o.amount FROM table" + table + " t JOIN orders o ON o.table_id = t.id WHERE t.id = " + random.nextInt();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final StringBuilder signature = new StringBuilder();
+        private int index;
+    }
+
+    @Benchmark
+    public StringBuilder preparedStatement(ThreadState state) {
+        state.signature.setLength(0);
+        signatureParser.querySignature(queries[state.index++ & (SAMPLES - 1)], state.signature, true);
+        return state.signature;
+    }
+
+    @Benchmark
+    public StringBuilder statement(ThreadState state) {
+        state.signature.setLength(0);
+        signatureParser.querySignature(statements[state.index++ & (SAMPLES - 1)], state.signature, false);
+        return state.signature;
+    }
+}
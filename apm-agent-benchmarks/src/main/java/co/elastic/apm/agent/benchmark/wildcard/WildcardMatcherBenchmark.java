@@ -0,0 +1,98 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.wildcard;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares matching a list of {@link WildcardMatcher}s one after another with matching a compiled {@link WildcardMatcherList}.
+ * The patterns are a mix of the default {@code transaction_ignore_urls} and {@code sanitize_field_names} patterns,
+ * padded with generated prefix, suffix and infix patterns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WildcardMatcherBenchmark extends AbstractBenchmark {
+
+    private static final List<String> DEFAULT_PATTERNS = Arrays.asList(
+        "/VAADIN/*", "/heartbeat*", "/favicon.ico", "*.js", "*.css", "*.jpg", "*.jpeg", "*.png", "*.gif", "*.webp", "*.svg", "*.woff", "*.woff2",
+        "password", "passwd", "pwd", "secret", "*key", "*token*", "*session*", "*credit*", "*card*", "*auth*", "set-cookie", "*principal*"
+    );
+
+    @Param({"25", "100", "500"})
+    public int patterns;
+
+    @Param({"/api/v1/orders/42/items", "/static/app.js", "x-request-id"})
+    public String input;
+
+    private List<WildcardMatcher> matchers;
+    private List<WildcardMatcher> compiled;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WildcardMatcherBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        matchers = new ArrayList<>();
+        for (String pattern : DEFAULT_PATTERNS) {
+            matchers.add(WildcardMatcher.valueOf(pattern));
+        }
+        for (int i = 0; matchers.size() < patterns; i++) {
+            switch (i % 3) {
+                case 0:
+                    matchers.add(WildcardMatcher.valueOf("/internal/service" + i + "/*"));
+                    break;
+                case 1:
+                    matchers.add(WildcardMatcher.valueOf("*.ext" + i));
+                    break;
+                default:
+                    matchers.add(WildcardMatcher.valueOf("*secret" + i + "*"));
+                    break;
+            }
+        }
+        compiled = WildcardMatcherList.compile(matchers);
+    }
+
+    @Benchmark
+    public WildcardMatcher linearScan() {
+        return WildcardMatcher.anyMatch(matchers, input);
+    }
+
+    @Benchmark
+    public WildcardMatcher compiled() {
+        return WildcardMatcher.anyMatch(compiled, input);
+    }
+}
@@ -111,7 +111,8 @@ Click on a key to get more information.
 // This file is auto generated. Please make your changes in *Configuration.java (for example CoreConfiguration.java) and execute ConfigurationExporter
 [float]
 [[config-${option.key?replace("[^a-z]", "-", "r")}]]
-==== `${option.key}`${option.tags?has_content?then(" (${option.tags?join(' ')})", '')}
+<#assign displayedTags = []><#list option.tags as tag><#if tag != "affects_instrumentation"><#assign displayedTags = displayedTags + [tag]></#if></#list>
+==== `${option.key}`${displayedTags?has_content?then(" (${displayedTags?join(' ')})", '')}
 
 <#if option.tags?seq_contains("experimental")>
 NOTE: This feature is currently experimental, which means it is disabled by default and it is not guaranteed to be backwards compatible in future releases.
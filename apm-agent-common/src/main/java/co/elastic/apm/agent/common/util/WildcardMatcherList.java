@@ -0,0 +1,386 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+
+/**
+ * An immutable list of {@link WildcardMatcher}s which is compiled into a set of automata,
+ * so that {@link WildcardMatcher#anyMatch(List, CharSequence, CharSequence)} does not have to try each matcher one after another.
+ * <ul>
+ *     <li>Exact matchers like {@code /favicon.ico} and prefix matchers like {@code /static/*} are looked up in a trie</li>
+ *     <li>Suffix matchers like {@code *.js} are looked up in a trie of the reversed patterns</li>
+ *     <li>Infix matchers like {@code *token*} are matched by an Aho-Corasick automaton in a single pass over the input</li>
+ *     <li>Matchers with wildcards in the middle like {@code /foo/*&#47;bar} are matched one after another</li>
+ * </ul>
+ * <p>
+ * Matching is allocation free and has the same semantics as iterating over the matchers:
+ * the first matcher in list order which matches the input is returned.
+ * The automata are built once when the list is {@linkplain #compile(List) compiled},
+ * which is typically when a configuration value changes.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public final class WildcardMatcherList extends AbstractList<WildcardMatcher> implements RandomAccess {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+    private static final WildcardMatcherList EMPTY = new WildcardMatcherList(Collections.<WildcardMatcher>emptyList());
+
+    private final WildcardMatcher[] matchers;
+    @Nullable
+    private final Automaton ignoreCaseAutomaton;
+    @Nullable
+    private final Automaton caseSensitiveAutomaton;
+    /**
+     * Indices of the matchers which can't be compiled into an automaton, in ascending order
+     */
+    private final int[] uncompiled;
+
+    private WildcardMatcherList(List<WildcardMatcher> matchers) {
+        this.matchers = matchers.toArray(new WildcardMatcher[0]);
+        Automaton.Builder ignoreCase = new Automaton.Builder(true);
+        Automaton.Builder caseSensitive = new Automaton.Builder(false);
+        List<Integer> uncompiled = new ArrayList<>();
+        for (int i = 0; i < this.matchers.length; i++) {
+            WildcardMatcher matcher = this.matchers[i];
+            if (matcher instanceof WildcardMatcher.SimpleWildcardMatcher) {
+                WildcardMatcher.SimpleWildcardMatcher simpleMatcher = (WildcardMatcher.SimpleWildcardMatcher) matcher;
+                (simpleMatcher.isIgnoreCase() ? ignoreCase : caseSensitive).add(simpleMatcher, i);
+            } else {
+                uncompiled.add(i);
+            }
+        }
+        this.ignoreCaseAutomaton = ignoreCase.build();
+        this.caseSensitiveAutomaton = caseSensitive.build();
+        this.uncompiled = new int[uncompiled.size()];
+        for (int i = 0; i < this.uncompiled.length; i++) {
+            this.uncompiled[i] = uncompiled.get(i);
+        }
+    }
+
+    /**
+     * Compiles the provided matchers.
+     *
+     * @param matchers the matchers to compile
+     * @return an immutable list containing the same matchers in the same order
+     */
+    public static WildcardMatcherList compile(List<WildcardMatcher> matchers) {
+        if (matchers instanceof WildcardMatcherList) {
+            return (WildcardMatcherList) matchers;
+        }
+        if (matchers.isEmpty()) {
+            return EMPTY;
+        }
+        return new WildcardMatcherList(matchers);
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence, CharSequence) matching} the provided partitioned string.
+     *
+     * @param firstPart  The first part of the string to match against.
+     * @param secondPart The second part of the string to match against.
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        int match = NO_MATCH;
+        if (ignoreCaseAutomaton != null) {
+            match = ignoreCaseAutomaton.match(firstPart, secondPart, match);
+        }
+        if (caseSensitiveAutomaton != null) {
+            match = caseSensitiveAutomaton.match(firstPart, secondPart, match);
+        }
+        for (int i = 0; i < uncompiled.length && uncompiled[i] < match; i++) {
+            if (matchers[uncompiled[i]].matches(firstPart, secondPart)) {
+                match = uncompiled[i];
+            }
+        }
+        return match == NO_MATCH ? null : matchers[match];
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers[index];
+    }
+
+    @Override
+    public int size() {
+        return matchers.length;
+    }
+
+    /**
+     * Matches all {@link WildcardMatcher.SimpleWildcardMatcher}s which share the same case sensitivity.
+     */
+    private static final class Automaton {
+
+        private final boolean ignoreCase;
+        @Nullable
+        private final Trie prefixes;
+        @Nullable
+        private final Trie suffixes;
+        @Nullable
+        private final Trie infixes;
+
+        private Automaton(boolean ignoreCase, @Nullable Trie prefixes, @Nullable Trie suffixes, @Nullable Trie infixes) {
+            this.ignoreCase = ignoreCase;
+            this.prefixes = prefixes;
+            this.suffixes = suffixes;
+            this.infixes = infixes;
+        }
+
+        /**
+         * @return the lower one of {@code match} and the index of the first matching pattern
+         */
+        int match(CharSequence firstPart, CharSequence secondPart, int match) {
+            int firstPartLength = firstPart.length();
+            int length = firstPartLength + secondPart.length();
+            if (prefixes != null && prefixes.minIndex < match) {
+                int node = 0;
+                for (int i = 0; i < length && node >= 0; i++) {
+                    node = prefixes.child(node, charAt(i, firstPart, secondPart, firstPartLength));
+                    if (node >= 0) {
+                        match = Math.min(match, prefixes.matches[node]);
+                    }
+                }
+                if (node >= 0) {
+                    match = Math.min(match, prefixes.exactMatches[node]);
+                }
+            }
+            if (suffixes != null && suffixes.minIndex < match) {
+                int node = 0;
+                for (int i = length - 1; i >= 0 && node >= 0; i--) {
+                    node = suffixes.child(node, charAt(i, firstPart, secondPart, firstPartLength));
+                    if (node >= 0) {
+                        match = Math.min(match, suffixes.matches[node]);
+                    }
+                }
+            }
+            if (infixes != null && infixes.minIndex < match) {
+                int node = 0;
+                for (int i = 0; i < length && infixes.minIndex < match; i++) {
+                    char c = charAt(i, firstPart, secondPart, firstPartLength);
+                    int next = infixes.child(node, c);
+                    while (next < 0 && node != 0) {
+                        node = infixes.failures[node];
+                        next = infixes.child(node, c);
+                    }
+                    node = next < 0 ? 0 : next;
+                    match = Math.min(match, infixes.matches[node]);
+                }
+            }
+            return match;
+        }
+
+        private char charAt(int i, CharSequence firstPart, CharSequence secondPart, int firstPartLength) {
+            char c = WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength);
+            return ignoreCase ? Character.toLowerCase(c) : c;
+        }
+
+        private static final class Builder {
+            private final boolean ignoreCase;
+            private final Trie.Builder prefixes = new Trie.Builder();
+            private final Trie.Builder suffixes = new Trie.Builder();
+            private final Trie.Builder infixes = new Trie.Builder();
+
+            private Builder(boolean ignoreCase) {
+                this.ignoreCase = ignoreCase;
+            }
+
+            void add(WildcardMatcher.SimpleWildcardMatcher matcher, int index) {
+                String pattern = ignoreCase ? toLowerCase(matcher.getMatcher()) : matcher.getMatcher();
+                if (matcher.isWildcardAtBeginning() && matcher.isWildcardAtEnd()) {
+                    infixes.add(pattern, index, false);
+                } else if (matcher.isWildcardAtEnd()) {
+                    prefixes.add(pattern, index, false);
+                } else if (matcher.isWildcardAtBeginning()) {
+                    suffixes.add(new StringBuilder(pattern).reverse().toString(), index, false);
+                } else {
+                    prefixes.add(pattern, index, true);
+                }
+            }
+
+            /**
+             * Lower cases char by char to be consistent with {@link WildcardMatcher#indexOfIgnoreCase}
+             */
+            private static String toLowerCase(String s) {
+                char[] chars = s.toCharArray();
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = Character.toLowerCase(chars[i]);
+                }
+                return new String(chars);
+            }
+
+            @Nullable
+            Automaton build() {
+                if (prefixes.isEmpty() && suffixes.isEmpty() && infixes.isEmpty()) {
+                    return null;
+                }
+                return new Automaton(ignoreCase, prefixes.build(false), suffixes.build(false), infixes.build(true));
+            }
+        }
+    }
+
+    /**
+     * A trie with sorted edges, flattened into arrays.
+     * The root node has the id {@code 0}.
+     */
+    private static final class Trie {
+
+        private final char[][] labels;
+        private final int[][] children;
+        /**
+         * The lowest index of a pattern ending in a node.
+         * For an Aho-Corasick automaton, this includes the patterns ending in the nodes reachable via the failure links.
+         */
+        private final int[] matches;
+        /**
+         * The lowest index of an exact pattern ending in a node, which only matches if the whole input has been consumed
+         */
+        private final int[] exactMatches;
+        @Nullable
+        private final int[] failures;
+        private final int minIndex;
+
+        private Trie(int size, boolean withFailures, int minIndex) {
+            this.labels = new char[size][];
+            this.children = new int[size][];
+            this.matches = new int[size];
+            this.exactMatches = new int[size];
+            this.failures = withFailures ? new int[size] : null;
+            this.minIndex = minIndex;
+        }
+
+        /**
+         * @return the id of the child node, or a negative value if there's no edge with that label
+         */
+        int child(int node, char c) {
+            int i = Arrays.binarySearch(labels[node], c);
+            return i < 0 ? -1 : children[node][i];
+        }
+
+        private static final class Builder {
+            private final Node root = new Node();
+            private int size = 1;
+            private int minIndex = NO_MATCH;
+
+            void add(String pattern, int index, boolean exact) {
+                Node node = root;
+                for (int i = 0; i < pattern.length(); i++) {
+                    Node child = node.children.get(pattern.charAt(i));
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(pattern.charAt(i), child);
+                        size++;
+                    }
+                    node = child;
+                }
+                if (exact) {
+                    node.exactMatch = Math.min(node.exactMatch, index);
+                } else {
+                    node.match = Math.min(node.match, index);
+                }
+                minIndex = Math.min(minIndex, index);
+            }
+
+            boolean isEmpty() {
+                return minIndex == NO_MATCH;
+            }
+
+            @Nullable
+            Trie build(boolean withFailures) {
+                if (isEmpty()) {
+                    return null;
+                }
+                Trie trie = new Trie(size, withFailures, minIndex);
+                // breadth first, so that failure links always point to nodes which are already completed
+                Queue<Node> queue = new ArrayDeque<>();
+                root.id = 0;
+                root.failure = root;
+                queue.add(root);
+                int nextId = 1;
+                while (!queue.isEmpty()) {
+                    Node node = queue.remove();
+                    char[] labels = new char[node.children.size()];
+                    int[] children = new int[node.children.size()];
+                    int i = 0;
+                    for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                        Node child = entry.getValue();
+                        child.id = nextId++;
+                        if (withFailures) {
+                            child.failure = getFailure(node, entry.getKey());
+                            child.match = Math.min(child.match, child.failure.match);
+                        }
+                        labels[i] = entry.getKey();
+                        children[i] = child.id;
+                        queue.add(child);
+                        i++;
+                    }
+                    trie.labels[node.id] = labels;
+                    trie.children[node.id] = children;
+                    trie.matches[node.id] = node.match;
+                    trie.exactMatches[node.id] = node.exactMatch;
+                    if (trie.failures != null) {
+                        trie.failures[node.id] = node.failure.id;
+                    }
+                }
+                return trie;
+            }
+
+            private Node getFailure(Node parent, char c) {
+                if (parent == root) {
+                    return root;
+                }
+                Node node = parent.failure;
+                while (true) {
+                    Node next = node.children.get(c);
+                    if (next != null) {
+                        return next;
+                    }
+                    if (node == root) {
+                        return root;
+                    }
+                    node = node.failure;
+                }
+            }
+        }
+
+        private static final class Node {
+            private final TreeMap<Character, Node> children = new TreeMap<>();
+            private int match = NO_MATCH;
+            private int exactMatch = NO_MATCH;
+            private int id;
+            @Nullable
+            private Node failure;
+        }
+    }
+}
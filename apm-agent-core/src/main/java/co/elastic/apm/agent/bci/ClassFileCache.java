@@ -0,0 +1,549 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.utility.JavaModule;
+import net.bytebuddy.utility.StreamDrainer;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of the class files the type pool reads from jars while matching types,
+ * for example to resolve the super types and interfaces of a type.
+ * <p>
+ * The cache does not store parsed {@link net.bytebuddy.pool.TypePool.Resolution}s,
+ * as the type pool also describes the types that are transformed and a partial description could alter the generated code.
+ * Instead, it stores the class files so that the next start does not have to open, inflate and read them from the jars again.
+ * The cache file is memory-mapped on startup and parsing the class files is still done by the type pool,
+ * whose resolutions are held in memory by the {@link co.elastic.apm.agent.bci.bytebuddy.LruTypePoolCache}.
+ * </p>
+ * <p>
+ * Class files are grouped by the jar they have been located in.
+ * Like in the {@link InstrumentationIndex}, a jar is identified by a checksum of its central directory,
+ * which covers the CRC-32 checksums of all class files in it.
+ * That way, the class files of a jar are invalidated as soon as any class in it changes.
+ * Class files located in directories or in jars that can't be checksummed are never cached.
+ * </p>
+ * <p>
+ * Only class files that are read or recorded during the current run are persisted again,
+ * which drops the class files of jars that are not used anymore.
+ * The class files recorded in the current run are not held in memory, but are appended to a temporary file until they are persisted.
+ * Class files served from the previous run's cache are only marked as retained and copied over from the old file when persisting.
+ * </p>
+ * <p>
+ * The class loader always locates the resource first, which determines the jar to look up the class file for.
+ * That way, the class loader's resolution order is respected and only reading the class file from the jar is saved.
+ * </p>
+ */
+public final class ClassFileCache implements AgentBuilder.LocationStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClassFileCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0xEA9CF11E;
+    private static final int VERSION = 1;
+    /**
+     * Limits the size of the cache file so that the offsets of the class files fit into an int
+     */
+    static final long MAX_SIZE = 64 * 1024 * 1024;
+    /**
+     * Marks locations which can't be cached
+     */
+    private static final String NOT_CACHEABLE = "";
+
+    private final File file;
+    private final AgentBuilder.LocationStrategy delegate;
+    /**
+     * The class files persisted by a previous run: code source key -> class name -> offset and length in {@link #previousClassFiles}
+     */
+    private final Map<String, Map<String, Long>> previousEntries;
+    @Nullable
+    private final ByteBuffer previousClassFiles;
+    /**
+     * The class files that have been read or recorded in this run and which will be {@linkplain #persist() persisted}:
+     * code source key -> class name -> offset and length in {@link #classFiles}
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> entries = new ConcurrentHashMap<>();
+    /**
+     * The class files of a previous run that have been read in this run and which will be {@linkplain #persist() persisted}:
+     * code source key -> class name -> offset and length in {@link #previousClassFiles}
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> retainedEntries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> codeSourceKeysByLocation = new ConcurrentHashMap<>();
+    /**
+     * The temporary file the class files of this run are appended to, guarded by {@code this}
+     */
+    @Nullable
+    private FileChannel classFiles;
+    @Nullable
+    private File classFilesFile;
+    private boolean classFilesClosed;
+    /**
+     * The size of the temporary file, guarded by {@code this}
+     */
+    private long classFilesSize;
+    /**
+     * The size of the class files that will be persisted, guarded by {@code this}
+     */
+    private long size;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ClassFileCache(File file, AgentBuilder.LocationStrategy delegate,
+                           Map<String, Map<String, Long>> previousEntries, @Nullable ByteBuffer previousClassFiles) {
+        this.file = file;
+        this.delegate = delegate;
+        this.previousEntries = previousEntries;
+        this.previousClassFiles = previousClassFiles;
+    }
+
+    /**
+     * Loads the cache from the provided file.
+     * Returns an empty cache if the file does not exist or can't be read.
+     *
+     * @param file     the file to read the cache from and to {@linkplain #persist() persist} it to
+     * @param delegate the location strategy to locate class files that are not cached
+     */
+    public static ClassFileCache load(File file, AgentBuilder.LocationStrategy delegate) {
+        Map<String, Map<String, Long>> previousEntries = Collections.emptyMap();
+        ByteBuffer previousClassFiles = null;
+        if (file.isFile()) {
+            try {
+                previousClassFiles = map(file);
+                previousEntries = readEntries(previousClassFiles);
+            } catch (Exception e) {
+                logger.warn("Failed to read class file cache {}: {}", file, e.getMessage());
+                previousClassFiles = null;
+                previousEntries = Collections.emptyMap();
+            }
+        }
+        return new ClassFileCache(file, delegate, previousEntries, previousClassFiles);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() > MAX_SIZE) {
+                throw new IOException("Class file cache exceeds the maximum size");
+            }
+            // the mapping stays valid after the channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads the index of the class files without copying the class files themselves.
+     * The layout of the file is {@code magic version (key count (name length bytes)*)*},
+     * where strings are written as their UTF-8 length followed by the bytes.
+     */
+    private static Map<String, Map<String, Long>> readEntries(ByteBuffer buffer) throws IOException {
+        ByteBuffer input = buffer.duplicate();
+        if (input.remaining() < 8 || input.getInt() != MAGIC || input.getInt() != VERSION) {
+            throw new IOException("Unsupported class file cache format");
+        }
+        Map<String, Map<String, Long>> entries = new HashMap<>();
+        while (input.hasRemaining()) {
+            String codeSourceKey = readString(input);
+            int count = input.getInt();
+            Map<String, Long> classFiles = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String className = readString(input);
+                int length = input.getInt();
+                if (length < 0 || length > input.remaining()) {
+                    throw new IOException("Malformed class file cache");
+                }
+                classFiles.put(className, (long) input.position() << 32 | length);
+                input.position(input.position() + length);
+            }
+            entries.put(codeSourceKey, classFiles);
+        }
+        return entries;
+    }
+
+    private static String readString(ByteBuffer input) throws IOException {
+        int length = input.getInt();
+        if (length < 0 || length > input.remaining()) {
+            throw new IOException("Malformed class file cache");
+        }
+        byte[] bytes = new byte[length];
+        input.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public ClassFileLocator classFileLocator(@Nullable ClassLoader classLoader, @Nullable JavaModule module) {
+        ClassFileLocator classFileLocator = delegate.classFileLocator(classLoader, module);
+        if (classLoader == null) {
+            // the bootstrap class loader is not backed by jars we can checksum
+            return classFileLocator;
+        }
+        return new CachingClassFileLocator(this, classLoader, classFileLocator);
+    }
+
+    /**
+     * Returns the cached class file of the provided type.
+     *
+     * @param codeSourceKey the key of the jar the class file is located in, see {@link #getCodeSourceKey(URL)}
+     * @param className     the name of the type
+     * @return the class file, or {@code null} if it's not cached
+     */
+    @Nullable
+    byte[] get(String codeSourceKey, String className) {
+        ConcurrentMap<String, Long> current = entries.get(codeSourceKey);
+        Long location = current != null ? current.get(className) : null;
+        byte[] classFile = location != null ? readClassFile(location) : null;
+        if (classFile == null) {
+            Map<String, Long> previous = previousEntries.get(codeSourceKey);
+            location = previous != null ? previous.get(className) : null;
+            if (location != null && previousClassFiles != null) {
+                classFile = readPrevious(previousClassFiles, location);
+                // carry the class file over to the next run without writing it to the temporary file
+                retain(codeSourceKey, className, location);
+            }
+        }
+        if (classFile != null) {
+            hits.incrementAndGet();
+        }
+        return classFile;
+    }
+
+    private static byte[] readPrevious(ByteBuffer previousClassFiles, long location) {
+        ByteBuffer input = previousClassFiles.duplicate();
+        input.position((int) (location >>> 32));
+        byte[] classFile = new byte[(int) (location & 0xFFFFFFFFL)];
+        input.get(classFile);
+        return classFile;
+    }
+
+    private void retain(String codeSourceKey, String className, long location) {
+        ConcurrentMap<String, Long> retained = getOrCreate(retainedEntries, codeSourceKey);
+        if (retained.containsKey(className)) {
+            return;
+        }
+        long length = location & 0xFFFFFFFFL;
+        synchronized (this) {
+            if (retained.containsKey(className) || size + length > MAX_SIZE) {
+                return;
+            }
+            retained.put(className, location);
+            size += length;
+        }
+    }
+
+    private static ConcurrentMap<String, Long> getOrCreate(ConcurrentMap<String, ConcurrentMap<String, Long>> entries, String codeSourceKey) {
+        ConcurrentMap<String, Long> classFiles = entries.get(codeSourceKey);
+        if (classFiles == null) {
+            entries.putIfAbsent(codeSourceKey, new ConcurrentHashMap<String, Long>());
+            classFiles = entries.get(codeSourceKey);
+        }
+        return classFiles;
+    }
+
+    @Nullable
+    private synchronized byte[] readClassFile(long location) {
+        if (classFiles == null) {
+            return null;
+        }
+        try {
+            return read(classFiles, location);
+        } catch (IOException e) {
+            logger.debug("Failed to read from the class file cache: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long location) throws IOException {
+        long position = location >>> 32;
+        ByteBuffer classFile = ByteBuffer.allocate((int) (location & 0xFFFFFFFFL));
+        while (classFile.hasRemaining()) {
+            if (channel.read(classFile, position + classFile.position()) < 0) {
+                throw new IOException("Unexpected end of the class file cache");
+            }
+        }
+        return classFile.array();
+    }
+
+    /**
+     * Records a class file that has been located in the jar identified by the provided key
+     * by appending it to a temporary file.
+     */
+    void record(String codeSourceKey, String className, byte[] classFile) {
+        ConcurrentMap<String, Long> current = getOrCreate(entries, codeSourceKey);
+        if (current.containsKey(className)) {
+            return;
+        }
+        synchronized (this) {
+            if (current.containsKey(className) || size + classFile.length > MAX_SIZE) {
+                return;
+            }
+            FileChannel channel = getClassFilesChannel();
+            if (channel == null) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(classFile);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, classFilesSize + buffer.position());
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to write to the class file cache: {}", e.getMessage());
+                closeClassFiles();
+                return;
+            }
+            current.put(className, classFilesSize << 32 | classFile.length);
+            classFilesSize += classFile.length;
+            size += classFile.length;
+        }
+    }
+
+    /**
+     * Must be called while holding the lock of the cache.
+     */
+    @Nullable
+    private FileChannel getClassFilesChannel() {
+        if (classFiles == null && !classFilesClosed) {
+            try {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (parent != null && !parent.exists()) {
+                    parent.mkdirs();
+                }
+                classFilesFile = File.createTempFile(file.getName(), ".classes", parent);
+                classFilesFile.deleteOnExit();
+                classFiles = new RandomAccessFile(classFilesFile, "rw").getChannel();
+            } catch (IOException e) {
+                logger.debug("Can't create a temporary file for the class file cache: {}", e.getMessage());
+                closeClassFiles();
+            }
+        }
+        return classFiles;
+    }
+
+    /**
+     * Must be called while holding the lock of the cache.
+     */
+    private void closeClassFiles() {
+        classFilesClosed = true;
+        if (classFiles != null) {
+            try {
+                classFiles.close();
+            } catch (IOException ignore) {
+            }
+            classFiles = null;
+        }
+        if (classFilesFile != null) {
+            classFilesFile.delete();
+            classFilesFile = null;
+        }
+    }
+
+    /**
+     * Returns a key that identifies the content of the jar a class file resource is located in.
+     * Supports resources in plain jars ({@code jar:file:/app.jar!/Foo.class})
+     * and nested jars ({@code jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/Foo.class}).
+     *
+     * @return the key, or {@code null} if the resource can't be cached
+     */
+    @Nullable
+    String getCodeSourceKey(URL resource) {
+        String location = resource.toString();
+        int entrySeparator = location.lastIndexOf("!/");
+        if (!location.startsWith("jar:") || entrySeparator < 0) {
+            return null;
+        }
+        return getCodeSourceKey(location.substring(0, entrySeparator));
+    }
+
+    /**
+     * Returns a key that identifies the content of a jar.
+     *
+     * @param location the location of the jar, for example {@code file:/app.jar} or {@code jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/}
+     * @return the key, or {@code null} if the jar can't be cached
+     */
+    @Nullable
+    String getCodeSourceKey(String location) {
+        if (location.endsWith("!/")) {
+            location = location.substring(0, location.length() - 2);
+        }
+        String key = codeSourceKeysByLocation.get(location);
+        if (key == null) {
+            key = InstrumentationIndex.computeCodeSourceKey(location);
+            if (key == null) {
+                key = NOT_CACHEABLE;
+            }
+            codeSourceKeysByLocation.putIfAbsent(location, key);
+        }
+        return !key.equals(NOT_CACHEABLE) ? key : null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the class files of this run to the file the cache has been {@linkplain #load loaded} from.
+     * The class files recorded in this run are read from the temporary file,
+     * while the ones retained from the previous run are copied from the previous cache file.
+     * The file is replaced atomically so that concurrently starting JVMs never read a partially written cache.
+     * Afterwards, the temporary file is deleted and no further class files are recorded.
+     */
+    public synchronized void persist() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                FileChannel channel = classFiles;
+                ByteBuffer previous = previousClassFiles;
+                Set<String> codeSourceKeys = new HashSet<>(entries.keySet());
+                codeSourceKeys.addAll(retainedEntries.keySet());
+                for (String codeSourceKey : codeSourceKeys) {
+                    Map<String, Long> recorded = getLocations(entries, codeSourceKey, channel != null);
+                    Map<String, Long> retained = getLocations(retainedEntries, codeSourceKey, previous != null);
+                    writeString(output, codeSourceKey);
+                    output.writeInt(recorded.size() + retained.size());
+                    for (Map.Entry<String, Long> classFile : recorded.entrySet()) {
+                        writeString(output, classFile.getKey());
+                        output.writeInt((int) (classFile.getValue() & 0xFFFFFFFFL));
+                        output.write(read(channel, classFile.getValue()));
+                    }
+                    for (Map.Entry<String, Long> classFile : retained.entrySet()) {
+                        writeString(output, classFile.getKey());
+                        output.writeInt((int) (classFile.getValue() & 0xFFFFFFFFL));
+                        output.write(readPrevious(previous, classFile.getValue()));
+                    }
+                }
+            } finally {
+                output.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                // Windows does not support replacing files via rename
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Can't replace " + file);
+                }
+            }
+        } finally {
+            tempFile.delete();
+            closeClassFiles();
+        }
+    }
+
+    private static Map<String, Long> getLocations(Map<String, ConcurrentMap<String, Long>> entries, String codeSourceKey, boolean readable) {
+        Map<String, Long> locations = entries.get(codeSourceKey);
+        return readable && locations != null ? new HashMap<>(locations) : Collections.<String, Long>emptyMap();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Serves class files from the cache and records the ones that are not cached yet.
+     * Holds the class loader weakly, as the type pool that uses this locator may be cached.
+     */
+    private static class CachingClassFileLocator implements ClassFileLocator {
+
+        private final ClassFileCache cache;
+        private final WeakReference<ClassLoader> classLoader;
+        private final ClassFileLocator delegate;
+
+        private CachingClassFileLocator(ClassFileCache cache, ClassLoader classLoader, ClassFileLocator delegate) {
+            this.cache = cache;
+            this.classLoader = new WeakReference<>(classLoader);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Resolution locate(String name) throws IOException {
+            ClassLoader classLoader = this.classLoader.get();
+            if (classLoader == null) {
+                return delegate.locate(name);
+            }
+            URL resource = classLoader.getResource(name.replace('.', '/') + CLASS_FILE_EXTENSION);
+            if (resource == null) {
+                return new Resolution.Illegal(name);
+            }
+            String codeSourceKey = cache.getCodeSourceKey(resource);
+            if (codeSourceKey != null) {
+                byte[] classFile = cache.get(codeSourceKey, name);
+                if (classFile != null) {
+                    return new Resolution.Explicit(classFile);
+                }
+                cache.misses.incrementAndGet();
+            }
+            byte[] classFile;
+            try {
+                // reads the resource that has already been located instead of letting the delegate look it up again
+                InputStream inputStream = resource.openStream();
+                try {
+                    classFile = StreamDrainer.DEFAULT.drain(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                return delegate.locate(name);
+            }
+            if (codeSourceKey != null) {
+                cache.record(codeSourceKey, name, classFile);
+            }
+            return new Resolution.Explicit(classFile);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
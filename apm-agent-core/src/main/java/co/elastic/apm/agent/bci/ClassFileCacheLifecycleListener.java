@@ -0,0 +1,46 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Persists the {@link ClassFileCache} when the agent stops so that the next start can benefit from it.
+ */
+public class ClassFileCacheLifecycleListener extends AbstractLifecycleListener {
+    private static final Logger logger = LoggerFactory.getLogger(ClassFileCacheLifecycleListener.class);
+
+    @Override
+    public void stop() {
+        ClassFileCache classFileCache = ElasticApmAgent.getClassFileCache();
+        if (classFileCache == null) {
+            return;
+        }
+        logger.debug("Served {} class files from the class file cache, {} misses", classFileCache.getHits(), classFileCache.getMisses());
+        try {
+            classFileCache.persist();
+        } catch (IOException e) {
+            logger.warn("Failed to persist the class file cache: {}", e.getMessage());
+        }
+    }
+}
@@ -29,6 +29,7 @@ import co.elastic.apm.agent.bci.bytebuddy.MinimumClassFileVersionValidator;
 import co.elastic.apm.agent.bci.bytebuddy.NonInstrumented;
 import co.elastic.apm.agent.bci.bytebuddy.PatchBytecodeVersionTo51Transformer;
 import co.elastic.apm.agent.bci.bytebuddy.RootPackageCustomLocator;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatcherIndex;
 import co.elastic.apm.agent.sdk.bytebuddy.SimpleMethodSignatureOffsetMappingFactory;
 import co.elastic.apm.agent.bci.classloading.ExternalPluginClassLoader;
 import co.elastic.apm.agent.bci.modules.ModuleOpener;
@@ -49,6 +50,7 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.tracemethods.TraceMethodInstrumentation;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -123,6 +125,15 @@ public class ElasticApmAgent {
 
     private static final InstrumentationStats instrumentationStats = new InstrumentationStats();
 
+    @Nullable
+    private static InstrumentationIndex instrumentationIndex;
+
+    @Nullable
+    private static ClassFileCache classFileCache;
+
+    @Nullable
+    private static RetransformationScheduler retransformationScheduler;
+
     @Nullable
     private static Instrumentation instrumentation;
     @Nullable
@@ -287,8 +298,22 @@ public class ElasticApmAgent {
             logger.warn("Instrumentation has already been initialized");
             return;
         }
+        String instrumentationIndexFile = coreConfig.getInstrumentationIndexFile();
+        if (instrumentationIndexFile != null) {
+            instrumentationIndex = InstrumentationIndex.load(new File(instrumentationIndexFile),
+                InstrumentationIndex.fingerprint(VersionUtils.getAgentVersion(), tracer.getConfigurationRegistry()));
+        }
+        if (!premain) {
+            retransformationScheduler = new RetransformationScheduler(coreConfig.getRetransformationBatchDuration().getMillis(),
+                coreConfig.getRetransformationPriorityInstrumentations());
+            retransformationScheduler.registerMetrics(tracer.getMetricRegistry());
+        }
+        String typePoolCacheFile = coreConfig.getTypePoolCacheFile();
+        if (typePoolCacheFile != null) {
+            classFileCache = ClassFileCache.load(new File(typePoolCacheFile), AgentBuilder.LocationStrategy.ForClassLoader.WEAK);
+        }
         // POOL_ONLY because we don't want to cause eager linking on startup as the class path may not be complete yet
-        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain);
+        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain, instrumentationIndex);
 
         // Warmup Byte Buddy and agent's invokedynamic linkage paths on the attaching thread before installing it
         if (tracer.getConfig(CoreConfiguration.class).shouldWarmupByteBuddy()) {
@@ -342,14 +367,16 @@ public class ElasticApmAgent {
     static synchronized void doReInitInstrumentation(Iterable<ElasticApmInstrumentation> instrumentations) {
         Logger logger = getLogger();
         logger.info("Re initializing instrumentation");
-        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false);
+        // the index is only valid for the configuration at startup
+        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, null);
 
         resettableClassFileTransformer = agentBuilder.patchOn(instrumentation, resettableClassFileTransformer);
     }
 
     private static AgentBuilder initAgentBuilder(ElasticApmTracer tracer, Instrumentation instrumentation,
                                                  Iterable<ElasticApmInstrumentation> instrumentations, Logger logger,
-                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain) {
+                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain,
+                                                 @Nullable InstrumentationIndex instrumentationIndex) {
         final CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
         ElasticApmAgent.instrumentation = instrumentation;
         final ByteBuddy byteBuddy = new ByteBuddy()
@@ -358,12 +385,24 @@ public class ElasticApmAgent {
         AgentBuilder agentBuilder = getAgentBuilder(
             byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled()
         );
+        // the index identifies instrumentations by their class name
+        // which is ambiguous for instrumentations with multiple instances, like the ones for trace_methods
+        Set<String> instrumentationNames = new HashSet<>();
+        Set<String> ambiguousInstrumentationNames = new HashSet<>();
+        for (ElasticApmInstrumentation advice : instrumentations) {
+            if (!instrumentationNames.add(advice.getClass().getName())) {
+                ambiguousInstrumentationNames.add(advice.getClass().getName());
+            }
+        }
+        TypeMatcherIndex typeMatcherIndex = coreConfiguration.isTypeMatcherIndexEnabled() ? new TypeMatcherIndex() : null;
         int numberOfAdvices = 0;
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
                 instrumentationStats.addInstrumentation(advice);
                 try {
-                    agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher());
+                    agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher(),
+                        ambiguousInstrumentationNames.contains(advice.getClass().getName()) ? null : instrumentationIndex,
+                        typeMatcherIndex);
                     numberOfAdvices++;
                 } catch (Exception e) {
                     logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
@@ -375,6 +414,12 @@ public class ElasticApmAgent {
             }
         }
         logger.debug("Applied {} advices", numberOfAdvices);
+        if (typeMatcherIndex != null) {
+            typeMatcherIndex.compile();
+            logger.debug("Indexed the type matchers of {} out of {} instrumentations by name",
+                typeMatcherIndex.getIndexedMatchers(), typeMatcherIndex.getRegisteredMatchers());
+        }
+        instrumentationStats.setTypeMatcherIndex(typeMatcherIndex);
         return agentBuilder;
     }
 
@@ -387,7 +432,9 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher,
+                                            @Nullable final InstrumentationIndex instrumentationIndex,
+                                            @Nullable final TypeMatcherIndex typeMatcherIndex) {
         final Logger logger = getLogger();
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfiguration.class).isClassLoadingMatchingPreFilter();
@@ -396,23 +443,44 @@ public class ElasticApmAgent {
         final ElementMatcher<? super NamedElement> typeMatcherPreFilter = instrumentation.getTypeMatcherPreFilter();
         final ElementMatcher.Junction<ProtectionDomain> versionPostFilter = instrumentation.getProtectionDomainPostFilter();
         final ElementMatcher<? super MethodDescription> methodMatcher = new ElementMatcher.Junction.Conjunction<>(instrumentation.getMethodMatcher(), not(isAbstract()));
+        final String instrumentationName = instrumentation.getClass().getName();
+        final int typeMatcherIndexId = typeMatcherIndex != null
+            ? typeMatcherIndex.register(typeMatcher, typeMatchingWithNamePreFilter ? typeMatcherPreFilter : null)
+            : -1;
         final AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher() {
             @Override
             public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                if (typeMatcherIndex != null && !typeMatcherIndex.isCandidate(typeDescription, typeMatcherIndexId)) {
+                    return false;
+                }
                 if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
                     return false;
                 }
                 if (typeMatchingWithNamePreFilter && !typeMatcherPreFilter.matches(typeDescription)) {
                     return false;
                 }
+                String codeSourceKey = instrumentationIndex != null ? instrumentationIndex.getCodeSourceKey(protectionDomain) : null;
+                if (codeSourceKey != null && instrumentationIndex.isKnownMismatch(codeSourceKey, instrumentationName, typeDescription.getName())) {
+                    return false;
+                }
                 boolean typeMatches;
                 try {
                     typeMatches = typeMatcher.matches(typeDescription) && versionPostFilter.matches(protectionDomain);
+                    if (!typeMatches && codeSourceKey != null) {
+                        String hierarchyDependencies = instrumentationIndex.getHierarchyDependencies(typeDescription, classLoader, codeSourceKey);
+                        if (hierarchyDependencies != null) {
+                            instrumentationIndex.recordMismatch(codeSourceKey, instrumentationName, typeDescription.getName(), hierarchyDependencies);
+                        }
+                    }
                 } catch (Exception ignored) {
                     // could be because of a missing type
                     typeMatches = false;
                 }
                 if (typeMatches) {
+                    RetransformationScheduler retransformationScheduler = ElasticApmAgent.retransformationScheduler;
+                    if (classBeingRedefined != null && retransformationScheduler != null) {
+                        retransformationScheduler.onMatch(classBeingRedefined, instrumentation.getInstrumentationGroupNames());
+                    }
                     logger.debug("Type match for instrumentation {}: {} matches {}",
                         instrumentation.getClass().getSimpleName(), typeMatcher, typeDescription);
                     try {
@@ -431,6 +499,13 @@ public class ElasticApmAgent {
         AgentBuilder.RawMatcher statsCollectingMatcher = new AgentBuilder.RawMatcher() {
             @Override
             public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                if (typeMatcherIndex != null) {
+                    // measures the time to compute the candidates separately so that it's not attributed to the first instrumentation
+                    long start = System.nanoTime();
+                    if (typeMatcherIndex.prepare(typeDescription)) {
+                        instrumentationStats.getOrCreateTimer(TypeMatcherIndex.class).addTypeMatchingDuration(System.nanoTime() - start);
+                    }
+                }
                 long start = System.nanoTime();
                 try {
                     return matcher.matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain);
@@ -620,6 +695,16 @@ public class ElasticApmAgent {
         return instrumentationStats;
     }
 
+    @Nullable
+    public static InstrumentationIndex getInstrumentationIndex() {
+        return instrumentationIndex;
+    }
+
+    @Nullable
+    public static ClassFileCache getClassFileCache() {
+        return classFileCache;
+    }
+
     // may help to debug classloading problems
     private static void logClassLoaderHierarchy(@Nullable ClassLoader classLoader, Logger logger, ElasticApmInstrumentation advice) {
         logger.trace("Advice {} is loaded by {}", advice.getClass().getName(), PrivilegedActionUtils.getClassLoader(advice.getClass()));
@@ -673,15 +758,27 @@ public class ElasticApmAgent {
         }
         dynamicClassFileTransformers.clear();
         instrumentation = null;
+        instrumentationIndex = null;
+        classFileCache = null;
+        retransformationScheduler = null;
         IndyPluginClassLoaderFactory.clear();
         adviceClassName2instrumentationClassLoader.clear();
         pluginPackages2pluginClassLoaderCustomizations.clear();
     }
 
+    private static RedefinitionStrategy.BatchAllocator getRetransformationBatchAllocator() {
+        RetransformationScheduler retransformationScheduler = ElasticApmAgent.retransformationScheduler;
+        // the scheduler adapts the batch size and pauses itself
+        return retransformationScheduler != null ? retransformationScheduler : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100);
+    }
+
     private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfiguration coreConfiguration, final Logger logger,
                                                 final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
                                                 final boolean useTypePoolCache) {
-        AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
+        AgentBuilder.LocationStrategy classLoaderLocationStrategy = classFileCache != null
+            ? classFileCache
+            : AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
+        AgentBuilder.LocationStrategy locationStrategy = classLoaderLocationStrategy;
         if (agentJarFile != null) {
             try {
                 locationStrategy = new AgentBuilder.LocationStrategy.Compound(
@@ -692,7 +789,7 @@ public class ElasticApmAgent {
                     // the application class loader may cache the fact that a resource like AbstractSpan.class can't be resolved
                     // and also refuse to load the class
                     new AgentBuilder.LocationStrategy.Simple(ClassFileLocator.ForJarFile.of(agentJarFile)),
-                    AgentBuilder.LocationStrategy.ForClassLoader.WEAK,
+                    classLoaderLocationStrategy,
                     new AgentBuilder.LocationStrategy.Simple(new RootPackageCustomLocator("java.", ClassFileLocator.ForClassLoader.ofBootLoader()))
                 );
             } catch (IOException e) {
@@ -701,9 +798,9 @@ public class ElasticApmAgent {
         }
         return new AgentBuilder.Default(byteBuddy)
             .with(RedefinitionStrategy.RETRANSFORMATION)
-            // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
-            .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100))
-            .with(premain ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
+            // when runtime attaching, retransform classes in batches and pause in-between as retransformation causes a stop-the-world pause
+            .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : getRetransformationBatchAllocator())
+            .with(premain || retransformationScheduler != null ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
             .with(new RedefinitionStrategy.Listener.Adapter() {
                 @Override
                 public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable, List<Class<?>> types) {
@@ -839,7 +936,7 @@ public class ElasticApmAgent {
                 PrivilegedActionUtils.getClassLoader(instrumentationClass));
             ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
             if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()), null, null);
             }
         }
         dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
@@ -0,0 +1,569 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import co.elastic.apm.agent.tracer.configuration.CoreConfiguration;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of the types which did not match an instrumentation's type matcher during a previous start of the agent.
+ * <p>
+ * Types are grouped by the jar they have been loaded from.
+ * A jar is identified by a checksum of its central directory, which covers the names and CRC-32 checksums of all entries.
+ * That way, the entries of a jar are invalidated as soon as any class in it changes, for example after a deploy.
+ * As type matchers may also inspect super classes and interfaces, each entry also records the locations and checksums of the other jars
+ * the type hierarchy has been resolved from, and is only considered if none of these jars have changed.
+ * Types whose hierarchy contains types loaded from directories or from jars that can't be checksummed are never part of the index.
+ * </p>
+ * <p>
+ * The index is only consulted after the cheap class loader and name pre-filters have passed,
+ * so that a hash lookup can avoid resolving the type hierarchy via the type pool.
+ * Types that matched, or for which matching failed, are never recorded, so those are always fully matched.
+ * The whole index is discarded if the agent version, the Java version, or the configuration that affects type matching
+ * differs from the one that created it.
+ * </p>
+ * <p>
+ * Only entries which are consulted or recorded during the current run are persisted again,
+ * which drops the entries of jars that are not used anymore.
+ * </p>
+ */
+public final class InstrumentationIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentationIndex.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HEADER = "elastic-apm-instrumentation-index 2 ";
+    private static final String SOURCE_PREFIX = "source ";
+    private static final String INSTRUMENTATION_PREFIX = "instrumentation ";
+    /**
+     * Marks locations which can't be part of the index
+     */
+    private static final String NOT_INDEXABLE = "";
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    /**
+     * Marks types whose class file is not loaded from a jar in {@link #jarLocationsByTypeName}.
+     * Can't be confused with a location, as URLs don't contain unencoded spaces.
+     */
+    private static final String NOT_A_JAR = " ";
+    private final File file;
+    private final String fingerprint;
+    /**
+     * The mismatches recorded in a previous run: code source key -> instrumentation -> type name -> hierarchy dependencies
+     */
+    private final Map<String, Map<String, Map<String, String>>> previousMismatches;
+    /**
+     * The mismatches that have been consulted or recorded in this run and which will be {@linkplain #persist() persisted}
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> mismatches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> codeSourceKeysByLocation = new ConcurrentHashMap<>();
+    /**
+     * The {@linkplain #getJarLocation jar locations} of the super types that have been resolved by {@link #getHierarchyDependencies}:
+     * class loader -> type name -> location
+     */
+    private final WeakMap<ClassLoader, ConcurrentMap<String, String>> jarLocationsByClassLoader = WeakConcurrent.buildMap();
+    /**
+     * The {@linkplain #getJarLocation jar locations} of the super types which are resolved via the bootstrap class loader
+     */
+    private final ConcurrentMap<String, String> jarLocationsByTypeName = new ConcurrentHashMap<>();
+    private final AtomicLong skippedTypeMatches = new AtomicLong();
+
+    private InstrumentationIndex(File file, String fingerprint, Map<String, Map<String, Map<String, String>>> previousMismatches) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.previousMismatches = previousMismatches;
+    }
+
+    /**
+     * Creates a fingerprint of the agent version, the Java version, and the options that affect type matching at startup.
+     * These are the options tagged with {@link CoreConfiguration#AFFECTS_INSTRUMENTATION_TAG}.
+     * Other options, such as {@code service_node_name}, don't invalidate the index.
+     * The Java version is part of the fingerprint as the hierarchy dependencies of an entry don't cover types provided by the JDK.
+     */
+    public static String fingerprint(String agentVersion, ConfigurationRegistry configurationRegistry) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(System.getProperty("java.version")).getBytes(UTF_8));
+            digest.update((byte) '\n');
+            // sorted so that the fingerprint does not depend on the order in which the option providers are loaded
+            Map<String, ConfigurationOption<?>> optionsByKey = new TreeMap<>(configurationRegistry.getConfigurationOptionsByKey());
+            for (ConfigurationOption<?> option : optionsByKey.values()) {
+                if (!option.getTags().contains(CoreConfiguration.AFFECTS_INSTRUMENTATION_TAG)) {
+                    continue;
+                }
+                digest.update(option.getKey().getBytes(UTF_8));
+                digest.update((byte) '=');
+                digest.update(String.valueOf(option.getValueAsString()).getBytes(UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder fingerprint = new StringBuilder(agentVersion).append(' ');
+            for (byte b : digest.digest()) {
+                fingerprint.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the index from the provided file.
+     * Returns an empty index if the file does not exist, can't be read, or has been created with a different fingerprint.
+     *
+     * @param file        the file to read the index from and to {@linkplain #persist() persist} it to
+     * @param fingerprint identifies the agent version and configuration
+     */
+    public static InstrumentationIndex load(File file, String fingerprint) {
+        Map<String, Map<String, Map<String, String>>> previousMismatches = Collections.emptyMap();
+        if (file.isFile()) {
+            try {
+                previousMismatches = read(file, fingerprint);
+            } catch (IOException e) {
+                logger.warn("Failed to read instrumentation index {}: {}", file, e.getMessage());
+            }
+        }
+        return new InstrumentationIndex(file, fingerprint, previousMismatches);
+    }
+
+    private static Map<String, Map<String, Map<String, String>>> read(File file, String fingerprint) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String header = reader.readLine();
+            if (!(HEADER + fingerprint).equals(header)) {
+                logger.debug("Ignoring instrumentation index {} as it has been created by a different agent version or configuration", file);
+                return Collections.emptyMap();
+            }
+            Map<String, Map<String, Map<String, String>>> result = new HashMap<>();
+            Map<String, Map<String, String>> instrumentations = null;
+            Map<String, String> typeNames = null;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(SOURCE_PREFIX)) {
+                    instrumentations = new HashMap<>();
+                    typeNames = null;
+                    result.put(line.substring(SOURCE_PREFIX.length()), instrumentations);
+                } else if (line.startsWith(INSTRUMENTATION_PREFIX)) {
+                    if (instrumentations == null) {
+                        throw new IOException("Malformed instrumentation index");
+                    }
+                    typeNames = new HashMap<>();
+                    instrumentations.put(line.substring(INSTRUMENTATION_PREFIX.length()), typeNames);
+                } else if (!line.isEmpty()) {
+                    if (typeNames == null) {
+                        throw new IOException("Malformed instrumentation index");
+                    }
+                    // <type name>[ <location> <key>]*
+                    int separator = line.indexOf(' ');
+                    if (separator < 0) {
+                        typeNames.put(line, "");
+                    } else {
+                        typeNames.put(line.substring(0, separator), line.substring(separator + 1));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns a key that identifies the content of the jar the protection domain's code source points to.
+     *
+     * @return the key, or {@code null} if the code source can't be part of the index
+     */
+    @Nullable
+    public String getCodeSourceKey(@Nullable ProtectionDomain protectionDomain) {
+        CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location == null) {
+            return null;
+        }
+        return getKey(location.toString());
+    }
+
+    @Nullable
+    private String getKey(String location) {
+        String key = codeSourceKeysByLocation.get(location);
+        if (key == null) {
+            key = computeCodeSourceKey(location);
+            if (key == null) {
+                key = NOT_INDEXABLE;
+            }
+            codeSourceKeysByLocation.putIfAbsent(location, key);
+        }
+        return !key.equals(NOT_INDEXABLE) ? key : null;
+    }
+
+    /**
+     * Resolves the super classes and interfaces of a type which did not match, and returns the locations and keys of the jars they have been loaded from.
+     * Types of the JDK and types from the same jar as the type itself are omitted.
+     *
+     * @param typeDescription the type which did not match
+     * @param classLoader     the class loader which loads the type
+     * @param codeSourceKey   the key of the jar the type is loaded from
+     * @return the space-separated locations and keys of the jars, or {@code null} if the hierarchy can't be part of the index
+     */
+    @Nullable
+    public String getHierarchyDependencies(TypeDescription typeDescription, @Nullable ClassLoader classLoader, String codeSourceKey) {
+        Map<String, String> dependencies = new TreeMap<>();
+        Set<String> visited = new HashSet<>();
+        Queue<TypeDefinition> queue = new ArrayDeque<>();
+        queue.add(typeDescription);
+        try {
+            for (TypeDefinition type = queue.poll(); type != null; type = queue.poll()) {
+                List<TypeDefinition> superTypes = new ArrayList<TypeDefinition>(type.getInterfaces());
+                TypeDefinition superClass = type.getSuperClass();
+                if (superClass != null) {
+                    superTypes.add(superClass);
+                }
+                for (TypeDefinition superType : superTypes) {
+                    String name = superType.asErasure().getName();
+                    if (name.startsWith("java.") || !visited.add(name)) {
+                        continue;
+                    }
+                    String location = getCachedJarLocation(name, classLoader);
+                    if (location == null) {
+                        return null;
+                    }
+                    if (!location.isEmpty()) {
+                        String key = getKey(location);
+                        if (key == null) {
+                            return null;
+                        }
+                        if (!key.equals(codeSourceKey)) {
+                            dependencies.put(location, key);
+                        }
+                    }
+                    queue.add(superType.asErasure());
+                }
+            }
+        } catch (Exception e) {
+            // could be because of a missing type
+            return null;
+        }
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(dependency.getKey()).append(' ').append(dependency.getValue());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Memoizes {@link #getJarLocation} per class loader and type name,
+     * as the same super types are resolved for many of the types that don't match.
+     */
+    @Nullable
+    private String getCachedJarLocation(String typeName, @Nullable ClassLoader classLoader) {
+        ConcurrentMap<String, String> jarLocations;
+        if (classLoader == null) {
+            jarLocations = jarLocationsByTypeName;
+        } else {
+            jarLocations = jarLocationsByClassLoader.get(classLoader);
+            if (jarLocations == null) {
+                jarLocationsByClassLoader.putIfAbsent(classLoader, new ConcurrentHashMap<String, String>());
+                jarLocations = jarLocationsByClassLoader.get(classLoader);
+            }
+        }
+        String location = jarLocations.get(typeName);
+        if (location == null) {
+            location = getJarLocation(typeName, classLoader);
+            if (location == null) {
+                location = NOT_A_JAR;
+            }
+            jarLocations.putIfAbsent(typeName, location);
+        }
+        return !location.equals(NOT_A_JAR) ? location : null;
+    }
+
+    /**
+     * Returns the location of the jar that provides the class file in the same format as the location of its code source.
+     *
+     * @return the location, an empty string for classes of the JDK, or {@code null} if the class is not loaded from a jar
+     */
+    @Nullable
+    static String getJarLocation(String typeName, @Nullable ClassLoader classLoader) {
+        String resource = typeName.replace('.', '/') + ".class";
+        URL url = classLoader != null ? classLoader.getResource(resource) : ClassLoader.getSystemResource(resource);
+        if (url == null) {
+            return null;
+        }
+        if ("jrt".equals(url.getProtocol())) {
+            return "";
+        }
+        if (!"jar".equals(url.getProtocol())) {
+            return null;
+        }
+        String location = url.toString();
+        location = location.substring(0, location.lastIndexOf("!/") + 2);
+        if (location.indexOf("!/") == location.length() - 2) {
+            // a plain jar, whose code source location is file:/app.jar
+            return location.substring("jar:".length(), location.length() - 2);
+        }
+        // a nested jar, whose code source location is jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/
+        return location;
+    }
+
+    /**
+     * Supports plain jar locations ({@code file:/app.jar}) and nested jars ({@code jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/}).
+     * The checksum of nested jars is derived from the outermost jar, as its central directory covers the nested jar's CRC-32.
+     *
+     * @return the key, or {@code null} if the location is not a jar that can be checksummed
+     */
+    @Nullable
+    static String computeCodeSourceKey(String location) {
+        if (location.startsWith("jar:")) {
+            location = location.substring("jar:".length());
+        }
+        String nestedPath = "";
+        int separator = location.indexOf("!/");
+        if (separator >= 0) {
+            nestedPath = location.substring(separator);
+            location = location.substring(0, separator);
+        }
+        if (!location.startsWith("file:")) {
+            return null;
+        }
+        try {
+            File jar = new File(new URI(location));
+            if (!jar.isFile()) {
+                return null;
+            }
+            String checksum = centralDirectoryChecksum(jar);
+            return checksum != null ? checksum + nestedPath : null;
+        } catch (Exception e) {
+            logger.debug("Can't compute the checksum of {}: {}", location, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Computes a CRC-32 of the central directory of a zip file without reading its entries.
+     * The central directory is located relative to the end of central directory record,
+     * which also works for executable jars that are prefixed with a launch script.
+     *
+     * @return the checksum and size of the central directory, or {@code null} if the file is not a supported zip file
+     */
+    @Nullable
+    static String centralDirectoryChecksum(File file) throws IOException {
+        RandomAccessFile zip = new RandomAccessFile(file, "r");
+        try {
+            long length = zip.length();
+            // the end of central directory record may be followed by a comment of up to 64k
+            int tailLength = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+            byte[] tail = new byte[tailLength];
+            zip.seek(length - tailLength);
+            zip.readFully(tail);
+            for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+                if (readInt(tail, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    long centralDirectorySize = readInt(tail, i + 12) & 0xFFFFFFFFL;
+                    long centralDirectoryStart = length - tailLength + i - centralDirectorySize;
+                    if (centralDirectoryStart < 0 || centralDirectorySize == 0) {
+                        return null;
+                    }
+                    return checksum(zip, centralDirectoryStart, centralDirectorySize);
+                }
+            }
+            return null;
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Nullable
+    private static String checksum(RandomAccessFile zip, long start, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        zip.seek(start);
+        for (long remaining = size; remaining > 0; ) {
+            int read = zip.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                return null;
+            }
+            if (remaining == size && (read < 4 || readInt(buffer, 0) != CENTRAL_DIRECTORY_SIGNATURE)) {
+                // zip64 or otherwise unsupported layout
+                return null;
+            }
+            crc.update(buffer, 0, read);
+            remaining -= read;
+        }
+        return Long.toHexString(crc.getValue()) + '-' + Long.toHexString(size);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        // zip files are little endian
+        return (bytes[offset] & 0xFF)
+            | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16
+            | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Returns {@code true} if the type did not match the instrumentation during a previous run.
+     *
+     * @param codeSourceKey   the key of the jar the type is loaded from, see {@link #getCodeSourceKey(ProtectionDomain)}
+     * @param instrumentation the instrumentation's class name
+     * @param typeName        the name of the type to match
+     */
+    public boolean isKnownMismatch(String codeSourceKey, String instrumentation, String typeName) {
+        Map<String, Map<String, String>> instrumentations = previousMismatches.get(codeSourceKey);
+        if (instrumentations == null) {
+            return false;
+        }
+        Map<String, String> typeNames = instrumentations.get(instrumentation);
+        String hierarchyDependencies = typeNames != null ? typeNames.get(typeName) : null;
+        if (hierarchyDependencies == null || !isUnchanged(hierarchyDependencies)) {
+            return false;
+        }
+        // carry the entry over to the next run
+        recordMismatch(codeSourceKey, instrumentation, typeName, hierarchyDependencies);
+        skippedTypeMatches.incrementAndGet();
+        return true;
+    }
+
+    private boolean isUnchanged(String hierarchyDependencies) {
+        if (hierarchyDependencies.isEmpty()) {
+            return true;
+        }
+        String[] locationsAndKeys = hierarchyDependencies.split(" ");
+        for (int i = 0; i + 1 < locationsAndKeys.length; i += 2) {
+            if (!locationsAndKeys[i + 1].equals(getKey(locationsAndKeys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that the type has been fully matched against the instrumentation and did not match.
+     *
+     * @param hierarchyDependencies the jars the type hierarchy has been resolved from, see {@link #getHierarchyDependencies}
+     */
+    public void recordMismatch(String codeSourceKey, String instrumentation, String typeName, String hierarchyDependencies) {
+        ConcurrentMap<String, ConcurrentMap<String, String>> instrumentations = mismatches.get(codeSourceKey);
+        if (instrumentations == null) {
+            mismatches.putIfAbsent(codeSourceKey, new ConcurrentHashMap<String, ConcurrentMap<String, String>>());
+            instrumentations = mismatches.get(codeSourceKey);
+        }
+        ConcurrentMap<String, String> typeNames = instrumentations.get(instrumentation);
+        if (typeNames == null) {
+            instrumentations.putIfAbsent(instrumentation, new ConcurrentHashMap<String, String>());
+            typeNames = instrumentations.get(instrumentation);
+        }
+        typeNames.put(typeName, hierarchyDependencies);
+    }
+
+    /**
+     * @return the number of type matches that have been avoided by consulting the index
+     */
+    public long getSkippedTypeMatches() {
+        return skippedTypeMatches.get();
+    }
+
+    /**
+     * Writes the mismatches of this run to the file the index has been {@linkplain #load loaded} from.
+     * The file is replaced atomically so that concurrently starting JVMs never read a partially written index.
+     */
+    public void persist() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8));
+            try {
+                writer.write(HEADER);
+                writer.write(fingerprint);
+                writer.write('\n');
+                for (Map.Entry<String, ConcurrentMap<String, ConcurrentMap<String, String>>> source : mismatches.entrySet()) {
+                    writer.write(SOURCE_PREFIX);
+                    writer.write(source.getKey());
+                    writer.write('\n');
+                    for (Map.Entry<String, ConcurrentMap<String, String>> instrumentation : source.getValue().entrySet()) {
+                        writer.write(INSTRUMENTATION_PREFIX);
+                        writer.write(instrumentation.getKey());
+                        writer.write('\n');
+                        for (Map.Entry<String, String> typeName : instrumentation.getValue().entrySet()) {
+                            writer.write(typeName.getKey());
+                            if (!typeName.getValue().isEmpty()) {
+                                writer.write(' ');
+                                writer.write(typeName.getValue());
+                            }
+                            writer.write('\n');
+                        }
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                // Windows does not support replacing files via rename
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Can't replace " + file);
+                }
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
@@ -19,8 +19,10 @@
 package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatcherIndex;
 import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -42,11 +44,15 @@ public final class InstrumentationStats {
 
     private boolean measureMatching = false;
 
+    @Nullable
+    private TypeMatcherIndex typeMatcherIndex;
+
     void reset() {
         allInstrumentations.clear();
         usedInstrumentations.clear();
         matcherTimers.clear();
         measureMatching = false;
+        typeMatcherIndex = null;
     }
 
     void addInstrumentation(ElasticApmInstrumentation instrumentation) {
@@ -117,7 +123,7 @@ public final class InstrumentationStats {
         return sorted;
     }
 
-    MatcherTimer getOrCreateTimer(Class<? extends ElasticApmInstrumentation> adviceClass) {
+    MatcherTimer getOrCreateTimer(Class<?> adviceClass) {
         final String name = adviceClass.getName();
         MatcherTimer timer = matcherTimers.get(name);
         if (timer == null) {
@@ -140,6 +146,15 @@ public final class InstrumentationStats {
         return matcherTimers.values();
     }
 
+    void setTypeMatcherIndex(@Nullable TypeMatcherIndex typeMatcherIndex) {
+        this.typeMatcherIndex = typeMatcherIndex;
+    }
+
+    @Nullable
+    TypeMatcherIndex getTypeMatcherIndex() {
+        return typeMatcherIndex;
+    }
+
     public void setMeasureMatching(boolean measureMatching) {
         this.measureMatching = measureMatching;
     }
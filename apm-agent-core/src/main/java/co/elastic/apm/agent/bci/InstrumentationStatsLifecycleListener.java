@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatcherIndex;
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -46,8 +47,17 @@ public class InstrumentationStatsLifecycleListener extends AbstractLifecycleList
             Collections.sort(matcherTimers);
             StringBuilder sb = new StringBuilder()
                 .append("Total time spent matching: ").append(String.format("%,d", instrumentationStats.getTotalMatcherTime())).append("ns")
-                .append('\n')
-                .append(MatcherTimer.getTableHeader())
+                .append('\n');
+            TypeMatcherIndex typeMatcherIndex = instrumentationStats.getTypeMatcherIndex();
+            if (typeMatcherIndex != null) {
+                sb.append("Type matcher index: ")
+                    .append(typeMatcherIndex.getIndexedMatchers()).append(" of ").append(typeMatcherIndex.getRegisteredMatchers())
+                    .append(" instrumentations indexed, ")
+                    .append(String.format("%,d", typeMatcherIndex.getSkippedTypeMatches())).append(" type matches skipped for ")
+                    .append(String.format("%,d", typeMatcherIndex.getLookups())).append(" types")
+                    .append('\n');
+            }
+            sb.append(MatcherTimer.getTableHeader())
                 .append('\n');
             for (MatcherTimer matcherTimer : matcherTimers) {
                 sb.append(matcherTimer.toString()).append('\n');
@@ -0,0 +1,230 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakSet;
+import net.bytebuddy.agent.builder.AgentBuilder.RedefinitionStrategy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the retransformation of already loaded classes when the agent is attached at runtime.
+ * <p>
+ * Retransforming classes causes a stop-the-world pause, so the classes are retransformed in batches.
+ * The size of the batches adapts to the measured duration of the previous batch, so that each batch takes about the target duration,
+ * and the agent pauses for as long as the previous batch took before starting the next one.
+ * This limits retransformation to roughly half of the wall clock time, regardless of how expensive the classes are to transform.
+ * </p>
+ * <p>
+ * Classes that are matched by instrumentations of the priority instrumentation groups, such as servlets or JDBC drivers,
+ * are retransformed first so that the most valuable data is captured as soon as possible.
+ * </p>
+ */
+class RetransformationScheduler implements RedefinitionStrategy.BatchAllocator {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetransformationScheduler.class);
+    static final int INITIAL_BATCH_SIZE = 100;
+    static final int MAX_BATCH_SIZE = 1000;
+    private static final String CLASSES_METRIC = "agent.retransformation.classes.count";
+    private static final String PENDING_METRIC = "agent.retransformation.pending.count";
+    private static final String BATCHES_METRIC = "agent.retransformation.batches.count";
+    private static final String BATCH_DURATION_METRIC = "agent.retransformation.batch.duration.max.ms";
+
+    private final long targetBatchDurationNs;
+    private final Set<String> priorityInstrumentationGroups;
+    private final WeakSet<Class<?>> prioritizedClasses = WeakConcurrent.buildSet();
+    private final AtomicLong scheduledClasses = new AtomicLong();
+    private final AtomicLong retransformedClasses = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatchDurationNs = new AtomicLong();
+
+    RetransformationScheduler(long targetBatchDurationMs, Collection<String> priorityInstrumentationGroups) {
+        this.targetBatchDurationNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetBatchDurationMs));
+        this.priorityInstrumentationGroups = new HashSet<>(priorityInstrumentationGroups);
+    }
+
+    /**
+     * Records that an already loaded class is matched by an instrumentation, before it's scheduled for retransformation.
+     */
+    void onMatch(Class<?> classBeingRedefined, Collection<String> instrumentationGroupNames) {
+        for (String instrumentationGroupName : instrumentationGroupNames) {
+            if (priorityInstrumentationGroups.contains(instrumentationGroupName)) {
+                prioritizedClasses.add(classBeingRedefined);
+                return;
+            }
+        }
+    }
+
+    void registerMetrics(MetricRegistry metricRegistry) {
+        metricRegistry.add(CLASSES_METRIC, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return retransformedClasses.get();
+            }
+        });
+        metricRegistry.add(PENDING_METRIC, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return scheduledClasses.get() - retransformedClasses.get();
+            }
+        });
+        metricRegistry.add(BATCHES_METRIC, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return batches.get();
+            }
+        });
+        metricRegistry.add(BATCH_DURATION_METRIC, Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return maxBatchDurationNs.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            }
+        });
+    }
+
+    @Override
+    public Iterable<? extends List<Class<?>>> batch(List<Class<?>> types) {
+        final List<Class<?>> prioritized = new ArrayList<>(types.size());
+        List<Class<?>> others = new ArrayList<>(types.size());
+        for (Class<?> type : types) {
+            if (prioritizedClasses.contains(type)) {
+                prioritized.add(type);
+            } else {
+                others.add(type);
+            }
+        }
+        logger.debug("Scheduling the retransformation of {} classes, {} of which are prioritized", types.size(), prioritized.size());
+        prioritized.addAll(others);
+        scheduledClasses.addAndGet(prioritized.size());
+        return new Iterable<List<Class<?>>>() {
+            @Override
+            public Iterator<List<Class<?>>> iterator() {
+                return new Batches(prioritized);
+            }
+        };
+    }
+
+    long getScheduledClasses() {
+        return scheduledClasses.get();
+    }
+
+    long getRetransformedClasses() {
+        return retransformedClasses.get();
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Computes the size of the next batch based on the duration of the previous one.
+     * To avoid oscillating batch sizes, the size grows by at most a factor of two per batch.
+     */
+    static int nextBatchSize(int batchSize, long batchDurationNs, long targetBatchDurationNs) {
+        double nextBatchSize = batchSize * ((double) targetBatchDurationNs / Math.max(1, batchDurationNs));
+        return (int) Math.max(1, Math.min(Math.min(nextBatchSize, batchSize * 2L), MAX_BATCH_SIZE));
+    }
+
+    /**
+     * The batches are computed lazily as Byte Buddy retransforms each batch before requesting the next one.
+     * This makes it possible to measure the duration of a batch and to pause between batches.
+     */
+    private class Batches implements Iterator<List<Class<?>>> {
+
+        private final List<Class<?>> types;
+        private int position = 0;
+        private int batchSize = INITIAL_BATCH_SIZE;
+        private int currentBatchSize = 0;
+        private long batchStartNs = 0;
+
+        private Batches(List<Class<?>> types) {
+            this.types = types;
+        }
+
+        @Override
+        public boolean hasNext() {
+            onBatchComplete();
+            return position < types.size();
+        }
+
+        @Override
+        public List<Class<?>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int end = Math.min(position + batchSize, types.size());
+            List<Class<?>> batch = types.subList(position, end);
+            currentBatchSize = batch.size();
+            position = end;
+            batchStartNs = System.nanoTime();
+            return batch;
+        }
+
+        private void onBatchComplete() {
+            if (batchStartNs == 0) {
+                return;
+            }
+            long batchDurationNs = System.nanoTime() - batchStartNs;
+            batchStartNs = 0;
+            retransformedClasses.addAndGet(currentBatchSize);
+            batches.incrementAndGet();
+            updateMax(batchDurationNs);
+            batchSize = nextBatchSize(currentBatchSize, batchDurationNs, targetBatchDurationNs);
+            logger.debug("Retransformed {} classes in {}ms, {} classes pending",
+                currentBatchSize, TimeUnit.NANOSECONDS.toMillis(batchDurationNs), types.size() - position);
+            if (position < types.size()) {
+                pause(batchDurationNs);
+            }
+        }
+
+        private void pause(long durationNs) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(durationNs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void updateMax(long batchDurationNs) {
+            long max = maxBatchDurationNs.get();
+            while (batchDurationNs > max && !maxBatchDurationNs.compareAndSet(max, batchDurationNs)) {
+                max = maxBatchDurationNs.get();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+import net.bytebuddy.matcher.StringSetMatcher;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Combines the name-based type matchers of all instrumentations into a single index,
+ * so that a type only needs to be matched against the instrumentations that could possibly apply to it.
+ * <p>
+ * Without the index, every type that is loaded is checked against the matchers of every instrumentation, one after the other.
+ * The index is built by decomposing the type matchers and name pre-filters of the instrumentations into
+ * exact names, prefixes, suffixes and infixes.
+ * Exact names are looked up in a hash map and the other patterns are matched in a single pass over the type name
+ * with an Aho-Corasick automaton.
+ * Instrumentations whose matchers can't be decomposed, for example {@code hasSuperType(...)} without a name pre-filter,
+ * are always considered to be a candidate.
+ * Therefore, the index never rejects a type that would have been matched by an instrumentation.
+ * </p>
+ * <p>
+ * The candidates are computed for the first instrumentation that matches a given type and are cached in a thread local,
+ * as all instrumentations are matched against the same type on the same thread, one after the other.
+ * </p>
+ */
+public class TypeMatcherIndex {
+
+    @Nullable
+    private static final Field NAME_MATCHER_MATCHER = getField(NameMatcher.class, "matcher");
+    @Nullable
+    private static final Field STRING_MATCHER_VALUE = getField(StringMatcher.class, "value");
+    @Nullable
+    private static final Field STRING_MATCHER_MODE = getField(StringMatcher.class, "mode");
+    @Nullable
+    private static final Field STRING_SET_MATCHER_VALUES = getField(StringSetMatcher.class, "values");
+    @Nullable
+    private static final Field CONJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Conjunction.class, "matchers");
+    @Nullable
+    private static final Field DISJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Disjunction.class, "matchers");
+
+    /**
+     * The name conditions by the id of the registered matcher, {@code null} if the matcher can't be indexed
+     */
+    private final List<List<NameCondition>> conditionsById = new ArrayList<>();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong skippedTypeMatches = new AtomicLong();
+    private final ThreadLocal<Candidates> candidates = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates();
+        }
+    };
+    @Nullable
+    private volatile Compiled compiled;
+
+    /**
+     * Registers the matchers of an instrumentation.
+     * Until {@link #compile()} is called, every type is considered a candidate for the returned id.
+     *
+     * @param typeMatcher   the type matcher of the instrumentation
+     * @param namePreFilter the name pre-filter of the instrumentation, {@code null} if name pre-filtering is disabled
+     * @return the id to use for {@link #isCandidate(TypeDescription, int)}
+     */
+    public synchronized int register(ElementMatcher<?> typeMatcher, @Nullable ElementMatcher<?> namePreFilter) {
+        List<NameCondition> conditions = getNameConditions(typeMatcher);
+        if (conditions == null && namePreFilter != null) {
+            conditions = getNameConditions(namePreFilter);
+        }
+        conditionsById.add(conditions);
+        compiled = null;
+        return conditionsById.size() - 1;
+    }
+
+    /**
+     * Builds the index out of all registered matchers.
+     */
+    public synchronized void compile() {
+        compiled = new Compiled(conditionsById);
+    }
+
+    /**
+     * Returns whether the type matcher registered with the provided id could match the provided type.
+     * If this method returns {@code false}, the type matcher is guaranteed to not match the type.
+     *
+     * @param typeDescription the type that is about to be matched
+     * @param id              the id returned by {@link #register(ElementMatcher, ElementMatcher)}
+     * @return whether the type matcher needs to be evaluated
+     */
+    public boolean isCandidate(TypeDescription typeDescription, int id) {
+        Compiled compiled = this.compiled;
+        if (compiled == null) {
+            return true;
+        }
+        return getCandidates(compiled, typeDescription.getActualName()).get(id);
+    }
+
+    /**
+     * Computes the candidates for the provided type, unless they have already been computed on the current thread.
+     * This makes it possible to measure the time spent in the index separately from the time spent in the type matchers.
+     *
+     * @param typeDescription the type that is about to be matched
+     * @return {@code true} if the candidates have been computed, {@code false} if they were already cached
+     */
+    public boolean prepare(TypeDescription typeDescription) {
+        Compiled compiled = this.compiled;
+        if (compiled == null) {
+            return false;
+        }
+        Candidates candidates = this.candidates.get();
+        String typeName = typeDescription.getActualName();
+        if (candidates.isFor(compiled, typeName)) {
+            return false;
+        }
+        candidates.compute(compiled, typeName);
+        return true;
+    }
+
+    private BitSet getCandidates(Compiled compiled, String typeName) {
+        Candidates candidates = this.candidates.get();
+        if (!candidates.isFor(compiled, typeName)) {
+            candidates.compute(compiled, typeName);
+        }
+        return candidates.ids;
+    }
+
+    /**
+     * @return the number of registered matchers that could be decomposed into name conditions
+     */
+    public synchronized int getIndexedMatchers() {
+        int indexed = 0;
+        for (List<NameCondition> conditions : conditionsById) {
+            if (conditions != null) {
+                indexed++;
+            }
+        }
+        return indexed;
+    }
+
+    public synchronized int getRegisteredMatchers() {
+        return conditionsById.size();
+    }
+
+    /**
+     * @return the number of types the candidates have been computed for
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return the number of type matchers that have not been evaluated because the type was not a candidate
+     */
+    public long getSkippedTypeMatches() {
+        return skippedTypeMatches.get();
+    }
+
+    /**
+     * Decomposes a matcher into a list of name conditions, one of which is matched by every type the matcher matches.
+     *
+     * @param matcher the matcher to decompose
+     * @return the name conditions, or {@code null} if the matcher can't be decomposed
+     */
+    @Nullable
+    static List<NameCondition> getNameConditions(ElementMatcher<?> matcher) {
+        if (matcher instanceof NameMatcher) {
+            Object stringMatcher = getFieldValue(NAME_MATCHER_MATCHER, matcher);
+            if (stringMatcher instanceof StringMatcher) {
+                Object value = getFieldValue(STRING_MATCHER_VALUE, stringMatcher);
+                Object mode = getFieldValue(STRING_MATCHER_MODE, stringMatcher);
+                if (value instanceof String && mode instanceof StringMatcher.Mode && isIndexable((String) value, (StringMatcher.Mode) mode)) {
+                    return Collections.singletonList(new NameCondition((String) value, (StringMatcher.Mode) mode));
+                }
+            } else if (stringMatcher instanceof StringSetMatcher) {
+                Object values = getFieldValue(STRING_SET_MATCHER_VALUES, stringMatcher);
+                if (values instanceof Collection) {
+                    List<NameCondition> conditions = new ArrayList<>();
+                    for (Object value : (Collection<?>) values) {
+                        conditions.add(new NameCondition((String) value, StringMatcher.Mode.EQUALS_FULLY));
+                    }
+                    return conditions;
+                }
+            }
+        } else if (matcher instanceof ElementMatcher.Junction.Disjunction) {
+            // any of the alternatives may match, so we need to index all of them
+            List<NameCondition> conditions = new ArrayList<>();
+            for (ElementMatcher<?> alternative : getMatchers(DISJUNCTION_MATCHERS, matcher)) {
+                List<NameCondition> alternativeConditions = getNameConditions(alternative);
+                if (alternativeConditions == null) {
+                    return null;
+                }
+                conditions.addAll(alternativeConditions);
+            }
+            return conditions.isEmpty() ? null : conditions;
+        } else if (matcher instanceof ElementMatcher.Junction.Conjunction) {
+            // all parts have to match, so it's sufficient to index the most selective one
+            List<NameCondition> mostSelective = null;
+            for (ElementMatcher<?> part : getMatchers(CONJUNCTION_MATCHERS, matcher)) {
+                List<NameCondition> partConditions = getNameConditions(part);
+                if (partConditions != null && (mostSelective == null || isMoreSelective(partConditions, mostSelective))) {
+                    mostSelective = partConditions;
+                }
+            }
+            return mostSelective;
+        }
+        return null;
+    }
+
+    private static boolean isIndexable(String value, StringMatcher.Mode mode) {
+        switch (mode) {
+            case EQUALS_FULLY:
+                return true;
+            case STARTS_WITH:
+            case ENDS_WITH:
+            case CONTAINS:
+                return !value.isEmpty();
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMoreSelective(List<NameCondition> conditions, List<NameCondition> other) {
+        boolean exactMatchesOnly = isExactMatchesOnly(conditions);
+        if (exactMatchesOnly != isExactMatchesOnly(other)) {
+            return exactMatchesOnly;
+        }
+        return conditions.size() < other.size();
+    }
+
+    private static boolean isExactMatchesOnly(List<NameCondition> conditions) {
+        for (NameCondition condition : conditions) {
+            if (condition.mode != StringMatcher.Mode.EQUALS_FULLY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<ElementMatcher<?>> getMatchers(@Nullable Field field, ElementMatcher<?> junction) {
+        Object matchers = getFieldValue(field, junction);
+        if (matchers instanceof List) {
+            List<ElementMatcher<?>> result = new ArrayList<>();
+            for (Object matcher : (List<?>) matchers) {
+                result.add((ElementMatcher<?>) matcher);
+            }
+            return result;
+        }
+        return Collections.emptyList();
+    }
+
+    @Nullable
+    private static Field getField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            // the matchers of this type can't be indexed and are always considered a candidate
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Object getFieldValue(@Nullable Field field, Object target) {
+        if (field == null) {
+            return null;
+        }
+        try {
+            return field.get(target);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static final class NameCondition {
+        private final String value;
+        private final StringMatcher.Mode mode;
+
+        NameCondition(String value, StringMatcher.Mode mode) {
+            this.value = value;
+            this.mode = mode;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        StringMatcher.Mode getMode() {
+            return mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof NameCondition)) {
+                return false;
+            }
+            NameCondition that = (NameCondition) o;
+            return value.equals(that.value) && mode == that.mode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * value.hashCode() + mode.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mode + "(" + value + ")";
+        }
+    }
+
+    /**
+     * The candidates of the last type that has been looked up on a thread.
+     * The candidates only depend on the name of the type, so it's safe to reuse them for types with the same name
+     * that are loaded by different class loaders.
+     */
+    private final class Candidates {
+        private final BitSet ids = new BitSet();
+        @Nullable
+        private Compiled compiled;
+        @Nullable
+        private String typeName;
+
+        boolean isFor(Compiled compiled, String typeName) {
+            return this.compiled == compiled && typeName.equals(this.typeName);
+        }
+
+        void compute(Compiled compiled, String typeName) {
+            compiled.getCandidates(typeName, ids);
+            this.compiled = compiled;
+            this.typeName = typeName;
+            lookups.incrementAndGet();
+            skippedTypeMatches.addAndGet(compiled.size - ids.cardinality());
+        }
+    }
+
+    private static final class Compiled {
+
+        private final int size;
+        private final BitSet notIndexed = new BitSet();
+        private final Map<String, BitSet> exactNames = new HashMap<>();
+        // the prefix, suffix and infix patterns
+        private final String[] patterns;
+        private final StringMatcher.Mode[] patternModes;
+        private final BitSet[] patternIds;
+        // the Aho-Corasick automaton, with sorted transitions per state
+        private final char[][] transitionChars;
+        private final int[][] transitionTargets;
+        private final int[] failures;
+        private final int[][] outputs;
+
+        private Compiled(List<List<NameCondition>> conditionsById) {
+            size = conditionsById.size();
+            Map<NameCondition, BitSet> patternConditions = new LinkedHashMap<>();
+            for (int id = 0; id < conditionsById.size(); id++) {
+                List<NameCondition> conditions = conditionsById.get(id);
+                if (conditions == null) {
+                    notIndexed.set(id);
+                    continue;
+                }
+                for (NameCondition condition : conditions) {
+                    if (condition.mode == StringMatcher.Mode.EQUALS_FULLY) {
+                        getOrCreate(exactNames, condition.value).set(id);
+                    } else {
+                        getOrCreate(patternConditions, condition).set(id);
+                    }
+                }
+            }
+            patterns = new String[patternConditions.size()];
+            patternModes = new StringMatcher.Mode[patternConditions.size()];
+            patternIds = new BitSet[patternConditions.size()];
+            int i = 0;
+            for (Map.Entry<NameCondition, BitSet> entry : patternConditions.entrySet()) {
+                patterns[i] = entry.getKey().value;
+                patternModes[i] = entry.getKey().mode;
+                patternIds[i] = entry.getValue();
+                i++;
+            }
+
+            List<Node> nodes = buildTrie(patterns);
+            transitionChars = new char[nodes.size()][];
+            transitionTargets = new int[nodes.size()][];
+            failures = new int[nodes.size()];
+            outputs = new int[nodes.size()][];
+            for (Node node : nodes) {
+                char[] chars = new char[node.children.size()];
+                int[] targets = new int[node.children.size()];
+                int j = 0;
+                for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+                    chars[j] = child.getKey();
+                    targets[j] = child.getValue().index;
+                    j++;
+                }
+                transitionChars[node.index] = chars;
+                transitionTargets[node.index] = targets;
+                failures[node.index] = node.failure != null ? node.failure.index : 0;
+                int[] nodeOutputs = new int[node.outputs.size()];
+                for (int k = 0; k < nodeOutputs.length; k++) {
+                    nodeOutputs[k] = node.outputs.get(k);
+                }
+                outputs[node.index] = nodeOutputs;
+            }
+        }
+
+        private static <K> BitSet getOrCreate(Map<K, BitSet> map, K key) {
+            BitSet ids = map.get(key);
+            if (ids == null) {
+                ids = new BitSet();
+                map.put(key, ids);
+            }
+            return ids;
+        }
+
+        /**
+         * Builds a trie of all patterns and computes the failure links in breadth-first order.
+         * The outputs of a node include the outputs of its failure node,
+         * so that all patterns ending at a given position are found without following the failure links.
+         */
+        private static List<Node> buildTrie(String[] patterns) {
+            List<Node> nodes = new ArrayList<>();
+            Node root = new Node(0);
+            nodes.add(root);
+            for (int i = 0; i < patterns.length; i++) {
+                Node node = root;
+                String pattern = patterns[i];
+                for (int j = 0; j < pattern.length(); j++) {
+                    Character c = pattern.charAt(j);
+                    Node child = node.children.get(c);
+                    if (child == null) {
+                        child = new Node(nodes.size());
+                        nodes.add(child);
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                node.outputs.add(i);
+            }
+            List<Node> queue = new ArrayList<>();
+            for (Node child : root.children.values()) {
+                child.failure = root;
+                queue.add(child);
+            }
+            for (int i = 0; i < queue.size(); i++) {
+                Node node = queue.get(i);
+                for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    Node child = entry.getValue();
+                    Node failure = node.failure;
+                    while (failure != null && !failure.children.containsKey(entry.getKey())) {
+                        failure = failure.failure;
+                    }
+                    child.failure = failure != null ? failure.children.get(entry.getKey()) : root;
+                    child.outputs.addAll(child.failure.outputs);
+                    queue.add(child);
+                }
+            }
+            return nodes;
+        }
+
+        void getCandidates(String typeName, BitSet result) {
+            result.clear();
+            result.or(notIndexed);
+            BitSet exact = exactNames.get(typeName);
+            if (exact != null) {
+                result.or(exact);
+            }
+            if (patterns.length == 0) {
+                return;
+            }
+            int state = 0;
+            int length = typeName.length();
+            for (int i = 0; i < length; i++) {
+                char c = typeName.charAt(i);
+                int next = getTransition(state, c);
+                while (next < 0 && state != 0) {
+                    state = failures[state];
+                    next = getTransition(state, c);
+                }
+                state = next < 0 ? 0 : next;
+                for (int pattern : outputs[state]) {
+                    if (matchesPosition(pattern, i, length)) {
+                        result.or(patternIds[pattern]);
+                    }
+                }
+            }
+        }
+
+        private int getTransition(int state, char c) {
+            char[] chars = transitionChars[state];
+            int low = 0;
+            int high = chars.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (chars[mid] < c) {
+                    low = mid + 1;
+                } else if (chars[mid] > c) {
+                    high = mid - 1;
+                } else {
+                    return transitionTargets[state][mid];
+                }
+            }
+            return -1;
+        }
+
+        private boolean matchesPosition(int pattern, int end, int length) {
+            switch (patternModes[pattern]) {
+                case STARTS_WITH:
+                    return end + 1 == patterns[pattern].length();
+                case ENDS_WITH:
+                    return end + 1 == length;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private static final class Node {
+        private final int index;
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private final List<Integer> outputs = new ArrayList<>();
+        @Nullable
+        private Node failure;
+
+        private Node(int index) {
+            this.index = index;
+        }
+    }
+}
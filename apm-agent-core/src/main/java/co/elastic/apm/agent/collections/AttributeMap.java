@@ -0,0 +1,356 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact map for the labels and attributes of transactions and spans, which typically only have a handful of entries.
+ * <p>
+ * The entries are stored in parallel arrays in insertion order, with an open-addressed hash table of entry positions to look up keys.
+ * {@code long}, {@code double} and {@code boolean} values are stored in a primitive array, without boxing them.
+ * Other values are stored as objects.
+ * Compared to a {@link java.util.HashMap}, adding an entry does not allocate and clearing the map retains the arrays,
+ * so that they can be reused when the owning object is recycled.
+ * </p>
+ * <p>
+ * Serializers should iterate over the entries by their position via {@link #size()}, {@link #getKey(int)}, {@link #getValueType(int)}
+ * and the typed value getters to avoid boxing.
+ * The {@link Map} methods are provided for convenience and box primitive values.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class AttributeMap extends AbstractMap<String, Object> {
+
+    public static final byte TYPE_OBJECT = 0;
+    public static final byte TYPE_LONG = 1;
+    public static final byte TYPE_DOUBLE = 2;
+    public static final byte TYPE_BOOLEAN = 3;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private String[] keys;
+    private byte[] types;
+    private long[] primitiveValues;
+    private Object[] objectValues;
+    /**
+     * Open-addressed hash table that contains the position of an entry + 1, or 0 for empty slots.
+     * The length is a power of two and at least twice the capacity of the entry arrays.
+     */
+    private int[] index;
+    private int size;
+    @Nullable
+    private EntrySet entrySet;
+
+    public AttributeMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public AttributeMap(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        types = new byte[capacity];
+        primitiveValues = new long[capacity];
+        objectValues = new Object[capacity];
+        index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    }
+
+    public void putLong(String key, long value) {
+        int position = prepareEntry(key);
+        types[position] = TYPE_LONG;
+        primitiveValues[position] = value;
+        objectValues[position] = null;
+    }
+
+    public void putDouble(String key, double value) {
+        int position = prepareEntry(key);
+        types[position] = TYPE_DOUBLE;
+        primitiveValues[position] = Double.doubleToRawLongBits(value);
+        objectValues[position] = null;
+    }
+
+    public void putBoolean(String key, boolean value) {
+        int position = prepareEntry(key);
+        types[position] = TYPE_BOOLEAN;
+        primitiveValues[position] = value ? 1 : 0;
+        objectValues[position] = null;
+    }
+
+    /**
+     * Adds an entry, unboxing {@link Long}, {@link Double} and {@link Boolean} values.
+     *
+     * @return always {@code null}, to avoid boxing the previous value
+     */
+    @Nullable
+    @Override
+    public Object put(String key, Object value) {
+        if (value instanceof Long) {
+            putLong(key, (Long) value);
+        } else if (value instanceof Double) {
+            putDouble(key, (Double) value);
+        } else if (value instanceof Boolean) {
+            putBoolean(key, (Boolean) value);
+        } else {
+            int position = prepareEntry(key);
+            types[position] = TYPE_OBJECT;
+            primitiveValues[position] = 0;
+            objectValues[position] = value;
+        }
+        return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        if (map instanceof AttributeMap) {
+            AttributeMap other = (AttributeMap) map;
+            for (int i = 0; i < other.size; i++) {
+                int position = prepareEntry(other.keys[i]);
+                types[position] = other.types[i];
+                primitiveValues[position] = other.primitiveValues[i];
+                objectValues[position] = other.objectValues[i];
+            }
+        } else {
+            super.putAll(map);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Object get(Object key) {
+        int position = indexOf(key);
+        return position >= 0 ? getValue(position) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Nullable
+    @Override
+    public Object remove(Object key) {
+        int position = indexOf(key);
+        if (position < 0) {
+            return null;
+        }
+        Object value = getValue(position);
+        int moved = size - position - 1;
+        System.arraycopy(keys, position + 1, keys, position, moved);
+        System.arraycopy(types, position + 1, types, position, moved);
+        System.arraycopy(primitiveValues, position + 1, primitiveValues, position, moved);
+        System.arraycopy(objectValues, position + 1, objectValues, position, moved);
+        size--;
+        keys[size] = null;
+        objectValues[size] = null;
+        rebuildIndex();
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries but retains the arrays.
+     */
+    @Override
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(objectValues, 0, size, null);
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+
+    public String getKey(int position) {
+        return keys[position];
+    }
+
+    /**
+     * @return one of {@link #TYPE_OBJECT}, {@link #TYPE_LONG}, {@link #TYPE_DOUBLE} or {@link #TYPE_BOOLEAN}
+     */
+    public byte getValueType(int position) {
+        return types[position];
+    }
+
+    public long getLongValue(int position) {
+        return primitiveValues[position];
+    }
+
+    public double getDoubleValue(int position) {
+        return Double.longBitsToDouble(primitiveValues[position]);
+    }
+
+    public boolean getBooleanValue(int position) {
+        return primitiveValues[position] != 0;
+    }
+
+    @Nullable
+    public Object getObjectValue(int position) {
+        return objectValues[position];
+    }
+
+    /**
+     * @return the value at the given position, primitive values are boxed
+     */
+    @Nullable
+    public Object getValue(int position) {
+        switch (types[position]) {
+            case TYPE_LONG:
+                return getLongValue(position);
+            case TYPE_DOUBLE:
+                return getDoubleValue(position);
+            case TYPE_BOOLEAN:
+                return getBooleanValue(position);
+            default:
+                return objectValues[position];
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private int indexOf(@Nullable Object key) {
+        if (key == null || size == 0) {
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int position = index[slot] - 1;
+            if (position < 0) {
+                return -1;
+            }
+            if (keys[position].equals(key)) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the entry for the given key, adding a new entry if the key is not present yet.
+     */
+    private int prepareEntry(String key) {
+        int mask = index.length - 1;
+        int slot = hash(key) & mask;
+        for (int position = index[slot] - 1; position >= 0; position = index[slot] - 1) {
+            if (keys[position].equals(key)) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == keys.length) {
+            grow();
+            return prepareEntry(key);
+        }
+        int position = size++;
+        keys[position] = key;
+        index[slot] = position + 1;
+        return position;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        byte[] oldTypes = types;
+        long[] oldPrimitiveValues = primitiveValues;
+        Object[] oldObjectValues = objectValues;
+        allocate(oldKeys.length * 2);
+        System.arraycopy(oldKeys, 0, keys, 0, size);
+        System.arraycopy(oldTypes, 0, types, 0, size);
+        System.arraycopy(oldPrimitiveValues, 0, primitiveValues, 0, size);
+        System.arraycopy(oldObjectValues, 0, objectValues, 0, size);
+        rebuildIndex();
+    }
+
+    private void rebuildIndex() {
+        Arrays.fill(index, 0);
+        int mask = index.length - 1;
+        for (int position = 0; position < size; position++) {
+            int slot = hash(keys[position]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = position + 1;
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private class EntrySet extends AbstractSet<Entry<String, Object>> {
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            return new Iterator<Entry<String, Object>>() {
+                private int position = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return position < size;
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[position], getValue(position));
+                    position++;
+                    return entry;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -49,4 +49,9 @@ public class WeakReferenceCountedMap<K, V extends ReferenceCounted> implements R
     public V remove(K key) {
         return map.remove(key);
     }
+
+    @Override
+    public boolean isEmpty() {
+        return map.approximateSize() == 0;
+    }
 }
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.ElasticApmAgent;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherList;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.matcher.MethodMatcher;
 import co.elastic.apm.agent.matcher.MethodMatcherValueConverter;
@@ -30,6 +31,7 @@ import co.elastic.apm.agent.tracer.configuration.RegexValidator;
 import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
@@ -95,7 +97,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "\n" +
             "NOTE: Changing this value at runtime can slow down the application temporarily.")
         .dynamic(true)
-        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]")
+        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]", AFFECTS_INSTRUMENTATION_TAG)
         .buildWithDefault(true);
 
     private final ConfigurationOption<String> serviceName = ConfigurationOption.stringOption()
@@ -239,6 +241,70 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Integer> sampleTargetThroughput = ConfigurationOption.integerOption()
+        .key("transaction_sample_target_throughput")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental", "performance")
+        .description("When set to a positive value, the agent adapts the sample rate to the throughput of the service, " +
+            "so that about this many transactions per second and transaction name are sampled.\n\n" +
+            "As the sampling decision is made when a transaction starts, before its name is known, " +
+            "a single sample rate applies to all transactions. " +
+            "It is recomputed every few seconds from the throughput and the number of distinct transaction names, " +
+            "and never exceeds <<config-transaction-sample-rate, `transaction_sample_rate`>>. " +
+            "The effective sample rate is propagated to downstream services, " +
+            "so that the APM Server can still extrapolate the throughput.\n\n" +
+            "A value of `0` disables adaptive sampling.")
+        .dynamic(true)
+        .addValidator(isInRange(0, Integer.MAX_VALUE))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental", "performance")
+        .description("When enabled, the agent decides whether to keep a trace that has been started by this service when its transaction ends, " +
+            "rather than when it starts. " +
+            "The spans of such traces are buffered until then. " +
+            "A trace is kept if an error has been captured within it or its outcome is `failure`, " +
+            "if the transaction is slower than the <<config-tail-sampling-duration-percentile, `tail_sampling_duration_percentile`>>, " +
+            "or otherwise with the probability of <<config-tail-sampling-fallback-rate, `tail_sampling_fallback_rate`>>.\n\n" +
+            "Tail sampling only applies to transactions that have been sampled by <<config-transaction-sample-rate, `transaction_sample_rate`>>, " +
+            "which usually should be set to `1.0` when tail sampling is enabled. " +
+            "Traces that are continued from an upstream service are not affected, as their sampling decision has already been made. " +
+            "Like transactions that are not sampled by `transaction_sample_rate`, dropped transactions are still reported " +
+            "to pre-8.0 APM Servers, but without context information and spans.")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> tailSamplingMaxBufferedSpans = ConfigurationOption.integerOption()
+        .key("tail_sampling_max_buffered_spans")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental", "performance")
+        .description("The maximum number of spans that are buffered across all traces while waiting for the tail sampling decision.\n\n" +
+            "When the limit is reached, the trace whose span doesn't fit in anymore is decided on immediately, " +
+            "based on <<config-tail-sampling-fallback-rate, `tail_sampling_fallback_rate`>>, which frees its buffered spans.")
+        .addValidator(isInRange(0, Integer.MAX_VALUE))
+        .buildWithDefault(2000);
+
+    private final ConfigurationOption<Double> tailSamplingDurationPercentile = ConfigurationOption.builder(RoundedDoubleConverter.withDefaultPrecision(), Double.class)
+        .key("tail_sampling_duration_percentile")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental")
+        .description("Traces whose transaction takes at least as long as this percentile of the durations of the transactions " +
+            "that have been started by this service within the previous 30 seconds are kept by tail sampling.\n\n" +
+            "A value of `0` disables this criterion.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 100d))
+        .buildWithDefault(99.0);
+
+    private final ConfigurationOption<Double> tailSamplingFallbackRate = ConfigurationOption.builder(RoundedDoubleConverter.withDefaultPrecision(), Double.class)
+        .key("tail_sampling_fallback_rate")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental")
+        .description("The probability to keep a trace that doesn't match any other tail sampling criteria, between 0.0 and 1.0.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 1d))
+        .buildWithDefault(0.1);
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -268,7 +334,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .buildWithDefault(DEFAULT_LONG_FIELD_MAX_LENGTH);
 
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -296,7 +362,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherList.compile(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -310,7 +376,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             WildcardMatcher.valueOf("*principal*"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> enabledInstrumentations = ConfigurationOption.stringsOption()
         .key("enable_instrumentations")
@@ -322,7 +388,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "\n" +
             "NOTE: Changing this value at runtime can slow down the application temporarily.")
         .dynamic(true)
-        .tags("added[1.28.0]")
+        .tags("added[1.28.0]", AFFECTS_INSTRUMENTATION_TAG)
         .buildWithDefault(Collections.<String>emptyList());
 
     private final ConfigurationOption<Collection<String>> disabledInstrumentations = ConfigurationOption.builder(new AbstractValueConverter<Collection<String>>() {
@@ -353,7 +419,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "\n" +
             "NOTE: Changing this value at runtime can slow down the application temporarily.")
         .dynamic(true)
-        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]")
+        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]", AFFECTS_INSTRUMENTATION_TAG)
         .buildWithDefault(Collections.<String>emptyList());
 
     private final ConfigurationOption<Boolean> enableExperimentalInstrumentations = ConfigurationOption.booleanOption()
@@ -365,11 +431,11 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "\n" +
             "Setting to `true` will enable instrumentations in the `experimental` group.")
         .dynamic(true)
-        .tags("added[1.25.0]")
+        .tags("added[1.25.0]", AFFECTS_INSTRUMENTATION_TAG)
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> unnestExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("unnest_exceptions")
         .configurationCategory(CORE_CATEGORY)
         .description("When reporting exceptions,\n" +
@@ -382,7 +448,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .buildWithDefault(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception")));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_exceptions")
         .tags("added[1.11.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -506,6 +572,71 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "is available somewhere in the classpath where it never gets loaded unless this matching is applied.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> typeMatcherIndex = ConfigurationOption.booleanOption()
+        .key("enable_type_matcher_index")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "internal")
+        .description("When enabled, the name-based type matchers of all instrumentations are combined into a single index.\n" +
+            "Each loaded type is then only matched against the instrumentations whose names could match,\n" +
+            "instead of evaluating the matchers of every instrumentation one after the other.")
+        .dynamic(false)
+        .buildWithDefault(true);
+
+    private final ConfigurationOption<TimeDuration> retransformationBatchDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("retransformation_batch_duration")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "internal")
+        .description("When the agent is attached at runtime, the already loaded classes are retransformed in batches.\n" +
+            "The size of the batches is adjusted so that retransforming a batch takes about this long.\n" +
+            "After each batch, the agent pauses for as long as the batch took, to limit the impact on the application.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<Collection<String>> retransformationPriorityInstrumentations = ConfigurationOption.stringsOption()
+        .key("retransformation_priority_instrumentations")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "internal")
+        .description("When the agent is attached at runtime, the already loaded classes that are matched by instrumentations\n" +
+            "of these instrumentation groups are retransformed first.")
+        .dynamic(false)
+        .buildWithDefault(Arrays.asList("servlet-api", "jdbc", "http-client"));
+
+    private final ConfigurationOption<ObjectPoolType> objectPoolType = ConfigurationOption.enumOption(ObjectPoolType.class)
+        .key("object_pool_type")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "internal")
+        .description("The implementation of the pools for transactions, spans, errors and span links.\n" +
+            "\n" +
+            "- `queue`: All threads share a single bounded queue.\n" +
+            "- `magazine`: Each thread keeps recycled objects in thread-local magazines and only exchanges full or empty magazines\n" +
+            "  with a shared depot. This avoids contention on the shared queue when many threads create spans concurrently.")
+        .dynamic(false)
+        .buildWithDefault(ObjectPoolType.QUEUE);
+
+    private final ConfigurationOption<String> instrumentationIndexFile = ConfigurationOption.stringOption()
+        .key("instrumentation_index_file")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental")
+        .description("When set, the agent records which types did not match an instrumentation in the provided file, \n" +
+            "grouped by a checksum of the jar they are loaded from.\n" +
+            "On the next start, such types are rejected without resolving their type hierarchy, which speeds up startup.\n" +
+            "Entries are invalidated when the jar or the jars of its super types change, \n" +
+            "or when the agent version, the Java version or the configuration that affects which types are instrumented changes.")
+        .dynamic(false)
+        .buildWithDefault("");
+
+    private final ConfigurationOption<String> typePoolCacheFile = ConfigurationOption.stringOption()
+        .key("type_pool_cache_file")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.45.0]", "experimental")
+        .description("When set, the agent stores the class files it reads from jars to match types, \n" +
+            "for example to resolve super types and interfaces, in the provided file.\n" +
+            "On the next start, the file is memory-mapped and the class files are served from it\n" +
+            "instead of being read from the jars again, which speeds up startup.\n" +
+            "Entries are invalidated when the jar they have been read from changes.")
+        .dynamic(false)
+        .buildWithDefault("");
+
     private final ConfigurationOption<Boolean> contextPropagationOnly = ConfigurationOption.booleanOption()
         .key("context_propagation_only")
         .configurationCategory(CORE_CATEGORY)
@@ -520,7 +651,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
     private final ConfigurationOption<List<WildcardMatcher>> classesExcludedFromInstrumentation = ConfigurationOption
         .builder(new ValueConverter<List<WildcardMatcher>>() {
 
-            private final ValueConverter<List<WildcardMatcher>> delegate = new ListValueConverter<>(new WildcardMatcherValueConverter());
+            private final ValueConverter<List<WildcardMatcher>> delegate = new WildcardMatcherListValueConverter();
 
             @Override
             public List<WildcardMatcher> convert(String s) {
@@ -547,6 +678,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
 
         }, List.class)
         .key("classes_excluded_from_instrumentation")
+        .tags(AFFECTS_INSTRUMENTATION_TAG)
         .configurationCategory(CORE_CATEGORY)
         .description("Use to exclude specific classes from being instrumented. In order to exclude entire packages, \n" +
             "use wildcards, as in: `com.project.exclude.*`" +
@@ -556,10 +688,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
     private final ConfigurationOption<List<WildcardMatcher>> defaultClassesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation_default")
         .configurationCategory(CORE_CATEGORY)
-        .tags("internal")
+        .tags("internal", AFFECTS_INSTRUMENTATION_TAG)
         .description("\n" +
             "\n" +
             WildcardMatcher.DOCUMENTATION)
@@ -575,7 +707,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         ));
 
     private final ConfigurationOption<List<WildcardMatcher>> methodsExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("methods_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -653,7 +785,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
             "\n" +
             "NOTE: Changing this value at runtime can slow down the application temporarily.")
         .dynamic(true)
-        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]")
+        .tags("added[1.0.0,Changing this value at runtime is possible since version 1.15.0]", AFFECTS_INSTRUMENTATION_TAG)
         .buildWithDefault(Collections.<MethodMatcher>emptyList());
 
     private final ConfigurationOption<TimeDuration> traceMethodsDurationThreshold = TimeDurationValueConverter.durationOption("ms")
@@ -713,7 +845,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .key("plugins_dir")
         .tags("added[1.18.0]")
         .configurationCategory(CORE_CATEGORY)
-        .tags("experimental")
+        .tags("experimental", AFFECTS_INSTRUMENTATION_TAG)
         .description("A folder that contains external agent plugins.\n" +
             "\n" +
             "Use the `apm-agent-plugin-sdk` and the `apm-agent-api` artifacts to create a jar and place it into the plugins folder.\n" +
@@ -801,7 +933,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         .key("enable_public_api_annotation_inheritance")
         .tags("added[1.25.0]")
         .configurationCategory(CORE_CATEGORY)
-        .tags("performance")
+        .tags("performance", AFFECTS_INSTRUMENTATION_TAG)
         .description("A boolean specifying if the agent should search the class hierarchy for public api annotations (`@CaptureTransaction`, `@CaptureSpan`, `@Traced` and from 1.45.0 `@WithSpan`" +
             ").\n " +
             "When set to `false`, a method is instrumented if it is annotated with a public api annotation.\n  " +
@@ -919,6 +1051,26 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return sampleRate;
     }
 
+    public ConfigurationOption<Integer> getSampleTargetThroughput() {
+        return sampleTargetThroughput;
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public int getTailSamplingMaxBufferedSpans() {
+        return tailSamplingMaxBufferedSpans.get();
+    }
+
+    public ConfigurationOption<Double> getTailSamplingDurationPercentile() {
+        return tailSamplingDurationPercentile;
+    }
+
+    public ConfigurationOption<Double> getTailSamplingFallbackRate() {
+        return tailSamplingFallbackRate;
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -1004,6 +1156,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return warmupByteBuddy.get();
     }
 
+    @Nullable
+    public String getInstrumentationIndexFile() {
+        String file = instrumentationIndexFile.get();
+        return file != null && !file.trim().isEmpty() ? file.trim() : null;
+    }
+
+    @Nullable
+    public String getTypePoolCacheFile() {
+        String file = typePoolCacheFile.get();
+        return file != null && !file.trim().isEmpty() ? file.trim() : null;
+    }
+
     @Nullable
     public String getBytecodeDumpPath() {
         return bytecodeDumpPath.get();
@@ -1017,6 +1181,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return classLoadingMatchingPreFilter.get();
     }
 
+    public TimeDuration getRetransformationBatchDuration() {
+        return retransformationBatchDuration.get();
+    }
+
+    public Collection<String> getRetransformationPriorityInstrumentations() {
+        return retransformationPriorityInstrumentations.get();
+    }
+
+    public boolean isTypeMatcherIndexEnabled() {
+        return typeMatcherIndex.get();
+    }
+
     public List<WildcardMatcher> getClassesExcludedFromInstrumentation() {
         return classesExcludedFromInstrumentation.get();
     }
@@ -1163,6 +1339,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         return contextPropagationOnly.get();
     }
 
+    public ObjectPoolType getObjectPoolType() {
+        return objectPoolType.get();
+    }
+
     public enum CloudProvider {
         AUTO,
         AWS,
@@ -1182,4 +1362,14 @@ public class CoreConfiguration extends ConfigurationOptionProvider implements co
         }
     }
 
+    public enum ObjectPoolType {
+        QUEUE,
+        MAGAZINE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
 }
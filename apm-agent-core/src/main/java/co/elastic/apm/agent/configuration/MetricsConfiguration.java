@@ -101,6 +101,18 @@ public class MetricsConfiguration extends ConfigurationOptionProvider implements
         .dynamic(false)
         .buildWithDefault(false);
 
+    private final ConfigurationOption<Boolean> durationHistogramMetricsEnabled = ConfigurationOption.booleanOption()
+        .key("duration_histogram_metrics")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("Enables histograms of transaction durations (`transaction.duration.histogram`) and,\n" +
+            "if breakdown metrics are enabled, histograms of the self time of span types per transaction (`span.self_time.histogram`).\n" +
+            "\n" +
+            "In contrast to the sum and count of `span.self_time`, histograms allow to calculate percentiles.\n" +
+            "All transactions are recorded, regardless of whether they are sampled.")
+        .tags("added[1.45.0]", "experimental")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     @Override
     public boolean isDedotCustomMetrics() {
         return dedotCustomMetrics.get();
@@ -118,6 +130,10 @@ public class MetricsConfiguration extends ConfigurationOptionProvider implements
         return overheadMetricsEnabled.get();
     }
 
+    public boolean isDurationHistogramMetricsEnabled() {
+        return durationHistogramMetricsEnabled.get();
+    }
+
     @Override
     public List<Double> getCustomMetricsHistogramBoundaries() {
         return customMetricsHistogramBoundaries.get();
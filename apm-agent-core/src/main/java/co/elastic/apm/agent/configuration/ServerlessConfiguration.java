@@ -34,7 +34,7 @@ public class ServerlessConfiguration extends ConfigurationOptionProvider impleme
 
     private final ConfigurationOption<String> awsLambdaHandler = ConfigurationOption.stringOption()
         .key("aws_lambda_handler")
-        .tags("added[1.28.0]")
+        .tags("added[1.28.0]", CoreConfiguration.AFFECTS_INSTRUMENTATION_TAG)
         .configurationCategory(SERVERLESS_CATEGORY)
         .description("This config option must be used when running the agent in an AWS Lambda context. \n" +
             "This config value allows to specify the fully qualified name of the class handling the lambda function. \n" +
@@ -34,8 +34,10 @@ import co.elastic.apm.agent.impl.baggage.Baggage;
 import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataFuture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceCapturer;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.ElasticContext;
@@ -108,6 +110,7 @@ public class ElasticApmTracer implements Tracer {
 
     private final ConfigurationRegistry configurationRegistry;
     private final StacktraceConfiguration stacktraceConfiguration;
+    private final StackTraceCapturer stackTraceCapturer;
     private final ApmServerClient apmServerClient;
     private final List<LifecycleListener> lifecycleListeners = new CopyOnWriteArrayList<>();
     private final ObjectPool<Transaction> transactionPool;
@@ -204,6 +207,7 @@ public class ElasticApmTracer implements Tracer {
         this.configurationRegistry = configurationRegistry;
         this.reporter = reporter;
         this.stacktraceConfiguration = configurationRegistry.getConfig(StacktraceConfiguration.class);
+        this.stackTraceCapturer = StackTraceCapturer.create(stacktraceConfiguration);
         this.apmServerClient = apmServerClient;
         this.ephemeralId = ephemeralId;
         this.metaDataFuture = metaDataFuture;
@@ -231,11 +235,17 @@ public class ElasticApmTracer implements Tracer {
         // span links pool allows for 10X the maximum allowed span links per span
         spanLinkPool = poolFactory.createSpanLinkPool(AbstractSpan.MAX_ALLOWED_SPAN_LINKS * 10, this);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
+        sampler = createSampler(coreConfiguration.getSampleRate().get(), coreConfiguration.getSampleTargetThroughput().get());
         coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+                sampler = createSampler(newValue, coreConfiguration.getSampleTargetThroughput().get());
+            }
+        });
+        coreConfiguration.getSampleTargetThroughput().addChangeListener(new ConfigurationOption.ChangeListener<Integer>() {
+            @Override
+            public void onChange(ConfigurationOption<?> configurationOption, Integer oldValue, Integer newValue) {
+                sampler = createSampler(coreConfiguration.getSampleRate().get(), newValue);
             }
         });
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
@@ -252,6 +262,13 @@ public class ElasticApmTracer implements Tracer {
         assert assertionsEnabled = true;
     }
 
+    private static Sampler createSampler(double sampleRate, int sampleTargetThroughput) {
+        if (sampleTargetThroughput > 0) {
+            return AdaptiveSampler.of(sampleTargetThroughput, sampleRate);
+        }
+        return ProbabilitySampler.of(sampleRate);
+    }
+
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
@@ -466,6 +483,10 @@ public class ElasticApmTracer implements Tracer {
             AbstractSpan<?> parent = parentContext.getSpan();
             if (parent != null) {
                 error.asChildOf(parent);
+                Transaction parentTransaction = parent.getParentTransaction();
+                if (parentTransaction != null) {
+                    parentTransaction.getTailSamplingBuffer().onErrorCaptured();
+                }
                 // don't discard spans leading up to an error, otherwise they'd point to an invalid parent
                 parent.setNonDiscardable();
             } else {
@@ -509,6 +530,10 @@ public class ElasticApmTracer implements Tracer {
                     new RuntimeException("this exception is just used to record where the transaction has been ended from"));
             }
         }
+        Sampler sampler = this.sampler;
+        if (sampler instanceof AdaptiveSampler && transaction.getTraceContext().isRoot()) {
+            ((AdaptiveSampler) sampler).onRootTransactionEnd(transaction.getNameForSerialization());
+        }
         if (!transaction.isNoop() &&
             (transaction.isSampled() || apmServerClient.supportsKeepingUnsampledTransaction())) {
             // we do report non-sampled transactions (without the context)
@@ -577,7 +602,7 @@ public class ElasticApmTracer implements Tracer {
         long spanStackTraceMinDurationMs = stacktraceConfiguration.getSpanStackTraceMinDurationMs();
         if (spanStackTraceMinDurationMs >= 0 && span.isSampled() && span.getStackFrames() == null) {
             if (span.getDurationMs() >= spanStackTraceMinDurationMs) {
-                span.withStacktrace(new Throwable());
+                stackTraceCapturer.captureStackTrace(span);
             }
         }
         reporter.report(span);
@@ -629,6 +654,7 @@ public class ElasticApmTracer implements Tracer {
         try {
             configurationRegistry.close();
             reporter.close();
+            apmServerClient.close();
         } catch (Exception e) {
             logger.warn("Suppressed exception while calling stop()", e);
         }
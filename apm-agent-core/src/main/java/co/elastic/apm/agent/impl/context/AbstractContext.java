@@ -18,12 +18,10 @@
  */
 package co.elastic.apm.agent.impl.context;
 
+import co.elastic.apm.agent.collections.AttributeMap;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
 import javax.annotation.Nullable;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AbstractContext implements Recyclable, co.elastic.apm.agent.tracer.AbstractContext {
 
@@ -35,37 +33,53 @@ public abstract class AbstractContext implements Recyclable, co.elastic.apm.agen
      * <p>
      * See also https://github.com/elastic/ecs#-base-fields
      * </p>
+     * <p>
+     * Labels may be added from multiple threads, so all accesses, except for serializing the ended event, are synchronized on the map.
+     * </p>
      */
-    private final Map<String, Object> labels = new ConcurrentHashMap<>();
+    private final AttributeMap labels = new AttributeMap();
 
     /**
      * An object containing contextual data for Messages (incoming in case of transactions or outgoing in case of spans)
      */
     private final Message message = new Message();
 
-    public Iterator<? extends Map.Entry<String, ?>> getLabelIterator() {
-        return labels.entrySet().iterator();
+    /**
+     * @return the labels, to be used for serialization once the event has ended
+     */
+    public AttributeMap getLabels() {
+        return labels;
     }
 
     public void addLabel(String key, String value) {
-        labels.put(key, value);
+        synchronized (labels) {
+            labels.put(key, value);
+        }
     }
 
     public void addLabel(String key, Number value) {
-        labels.put(key, value);
+        synchronized (labels) {
+            labels.put(key, value);
+        }
     }
 
     public void addLabel(String key, boolean value) {
-        labels.put(key, value);
+        synchronized (labels) {
+            labels.putBoolean(key, value);
+        }
     }
 
     @Nullable
     public Object getLabel(String key) {
-        return labels.get(key);
+        synchronized (labels) {
+            return labels.get(key);
+        }
     }
 
     public void clearLabels() {
-        labels.clear();
+        synchronized (labels) {
+            labels.clear();
+        }
     }
 
     public boolean hasLabels() {
@@ -79,7 +93,7 @@ public abstract class AbstractContext implements Recyclable, co.elastic.apm.agen
 
     @Override
     public void resetState() {
-        labels.clear();
+        clearLabels();
         message.resetState();
     }
 
@@ -88,7 +102,11 @@ public abstract class AbstractContext implements Recyclable, co.elastic.apm.agen
     }
 
     public void copyFrom(AbstractContext other) {
-        labels.putAll(other.labels);
+        synchronized (other.labels) {
+            synchronized (labels) {
+                labels.putAll(other.labels);
+            }
+        }
         message.copyFrom(other.message);
     }
 }
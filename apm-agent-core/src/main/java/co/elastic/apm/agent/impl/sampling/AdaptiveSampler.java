@@ -0,0 +1,226 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This implementation of {@link Sampler} adapts the sample rate to the throughput of the service,
+ * so that about {@code targetThroughput} transactions per second and transaction name are sampled.
+ * <p>
+ * The sampling decision is made when a transaction starts, before its name is known.
+ * Therefore, a single sample rate applies to all transactions.
+ * The sampler counts how many root transactions started and how many distinct transaction names ended during each interval.
+ * After each interval, it sets the sample rate so that about {@code targetThroughput} times the number of distinct names are sampled per second.
+ * The sample rate never exceeds {@code maxSampleRate}, which is the configured {@code transaction_sample_rate}.
+ * </p>
+ * <p>
+ * Just like for the {@link ProbabilitySampler}, the effective sample rate is propagated via the {@code tracestate} header,
+ * so that downstream services and the APM Server can extrapolate the throughput.
+ * The rate is rounded to the same precision as {@code transaction_sample_rate}, so that the propagated rate matches the decision.
+ * It's never lower than {@link #MIN_SAMPLE_RATE}, unless {@code maxSampleRate} is.
+ * </p>
+ */
+public class AdaptiveSampler implements Sampler {
+
+    /**
+     * The maximum number of distinct transaction names per interval, additional names are not counted
+     */
+    static final int MAX_TRANSACTION_NAMES = 1000;
+    static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    /**
+     * The smallest positive rate that can be represented with the precision of {@code transaction_sample_rate}
+     */
+    static final double MIN_SAMPLE_RATE = 1 / Math.pow(10, RoundedDoubleConverter.DEFAULT_PRECISION);
+
+    private final double targetThroughput;
+    private final double maxSampleRate;
+    private final long intervalNanos;
+    private final AtomicLong startedTransactions = new AtomicLong();
+    private final AtomicLong nextRecomputeNanos;
+    private volatile long intervalStartNanos;
+    private volatile NameTable names = new NameTable();
+    private volatile Rate rate;
+
+    public static Sampler of(double targetThroughput, double maxSampleRate) {
+        if (maxSampleRate == 0) {
+            return ConstantSampler.of(false);
+        }
+        return new AdaptiveSampler(targetThroughput, maxSampleRate, DEFAULT_INTERVAL_NANOS, System.nanoTime());
+    }
+
+    AdaptiveSampler(double targetThroughput, double maxSampleRate, long intervalNanos, long nowNanos) {
+        this.targetThroughput = targetThroughput;
+        this.maxSampleRate = maxSampleRate;
+        this.intervalNanos = intervalNanos;
+        this.intervalStartNanos = nowNanos;
+        this.nextRecomputeNanos = new AtomicLong(nowNanos + intervalNanos);
+        this.rate = new Rate(maxSampleRate, -1);
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        return isSampled(traceId, System.nanoTime());
+    }
+
+    boolean isSampled(Id traceId, long nowNanos) {
+        startedTransactions.incrementAndGet();
+        long nextRecompute = nextRecomputeNanos.get();
+        if (nowNanos - nextRecompute >= 0 && nextRecomputeNanos.compareAndSet(nextRecompute, nowNanos + intervalNanos)) {
+            recompute(nowNanos);
+        }
+        return rate.isSampled(traceId);
+    }
+
+    /**
+     * Records the name of an ended root transaction.
+     *
+     * @param transactionName the name of the transaction, the characters are hashed to avoid allocating a {@link String}
+     */
+    public void onRootTransactionEnd(CharSequence transactionName) {
+        names.add(transactionName);
+    }
+
+    private void recompute(long nowNanos) {
+        double elapsedSeconds = Math.max(1, nowNanos - intervalStartNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        intervalStartNanos = nowNanos;
+        int distinctNames = names.getDistinctNames();
+        names = new NameTable();
+        double throughput = startedTransactions.getAndSet(0) / elapsedSeconds;
+        Rate previous = rate;
+        double smoothedThroughput = previous.smoothedThroughput < 0 ? throughput : (previous.smoothedThroughput + throughput) / 2;
+        double newRate = computeSampleRate(targetThroughput * Math.max(1, distinctNames), smoothedThroughput, maxSampleRate);
+        rate = newRate != previous.sampleRate ? new Rate(newRate, smoothedThroughput) : new Rate(previous, smoothedThroughput);
+    }
+
+    static double computeSampleRate(double targetThroughput, double throughput, double maxSampleRate) {
+        if (throughput <= targetThroughput) {
+            return maxSampleRate;
+        }
+        // at a very high throughput, the rate must not round to 0, which would stop sampling and propagate a rate of 0
+        double sampleRate = Math.max(MIN_SAMPLE_RATE, RoundedDoubleConverter.withDefaultPrecision().round(targetThroughput / throughput));
+        return Math.min(maxSampleRate, sampleRate);
+    }
+
+    @Override
+    public double getSampleRate() {
+        return rate.sampleRate;
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return rate.traceStateHeader;
+    }
+
+    /**
+     * An immutable sample rate, so that the bounds and the header are always consistent with each other.
+     * It also holds the smoothed throughput the rate has been computed from,
+     * so that the next recomputation, which may happen on another thread, sees it via the volatile {@link #rate} field.
+     */
+    private static class Rate {
+        private final double sampleRate;
+        private final long lowerBound;
+        private final long higherBound;
+        private final String traceStateHeader;
+        /**
+         * The smoothed number of root transactions per second, or a negative value before the first interval ended
+         */
+        private final double smoothedThroughput;
+
+        private Rate(double sampleRate, double smoothedThroughput) {
+            this.sampleRate = sampleRate;
+            this.higherBound = (long) (Long.MAX_VALUE * sampleRate);
+            this.lowerBound = -higherBound;
+            this.traceStateHeader = TraceState.getHeaderValue(sampleRate);
+            this.smoothedThroughput = smoothedThroughput;
+        }
+
+        private Rate(Rate rate, double smoothedThroughput) {
+            this.sampleRate = rate.sampleRate;
+            this.higherBound = rate.higherBound;
+            this.lowerBound = rate.lowerBound;
+            this.traceStateHeader = rate.traceStateHeader;
+            this.smoothedThroughput = smoothedThroughput;
+        }
+
+        private boolean isSampled(Id traceId) {
+            if (sampleRate == 1) {
+                return true;
+            }
+            // see ProbabilitySampler
+            final long leastSignificantBits = traceId.getLeastSignificantBits();
+            return leastSignificantBits > lowerBound && leastSignificantBits < higherBound;
+        }
+    }
+
+    /**
+     * A bounded, lock-free set of the hashes of transaction names, which counts the number of distinct names.
+     */
+    static class NameTable {
+        private static final int CAPACITY = Integer.highestOneBit(MAX_TRANSACTION_NAMES * 2 - 1) << 1;
+
+        private final AtomicLongArray hashes = new AtomicLongArray(CAPACITY);
+        private final AtomicInteger distinctNames = new AtomicInteger();
+
+        void add(CharSequence name) {
+            long hash = hash(name);
+            int mask = CAPACITY - 1;
+            for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+                long current = hashes.get(slot);
+                if (current == hash) {
+                    return;
+                }
+                if (current == 0) {
+                    if (distinctNames.get() >= MAX_TRANSACTION_NAMES) {
+                        return;
+                    }
+                    if (hashes.compareAndSet(slot, 0, hash)) {
+                        distinctNames.incrementAndGet();
+                        return;
+                    }
+                    // another thread claimed the slot, re-check it
+                    slot = (slot - 1) & mask;
+                }
+            }
+        }
+
+        int getDistinctNames() {
+            return distinctNames.get();
+        }
+
+        /**
+         * 64 bit FNV-1a hash, 0 is reserved for empty slots
+         */
+        private static long hash(CharSequence name) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                hash ^= name.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash == 0 ? 1 : hash;
+        }
+    }
+}
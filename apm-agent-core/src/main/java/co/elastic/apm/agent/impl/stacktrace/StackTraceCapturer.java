@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.common.JvmRuntimeInfo;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Captures the stack trace of a {@link Span} when it ends.
+ * <p>
+ * On Java 9+, the stack is walked lazily with a {@code java.lang.StackWalker}, which skips the agent's frames and excluded frames,
+ * and stops after {@link StacktraceConfiguration#getStackTraceLimit()} frames.
+ * Only the frames that are going to be serialized are materialized and stored in the span.
+ * On Java 7 and 8, a {@link Throwable} is created which captures the full stack.
+ * </p>
+ */
+public abstract class StackTraceCapturer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackTraceCapturer.class);
+
+    /**
+     * Frames of classes in these packages are not included in stack traces
+     */
+    public static final List<String> EXCLUDED_FRAME_PREFIXES = Arrays.asList("java.lang.reflect.", "com.sun.", "sun.", "jdk.internal.");
+
+    /**
+     * The top-most frames of classes in this package are not included in stack traces
+     */
+    public static final String AGENT_FRAME_PREFIX = "co.elastic.apm";
+
+    private static final String STACK_WALKER_IMPL_NAME = "co.elastic.apm.agent.impl.stacktrace.StackWalkerStackTraceCapturer";
+
+    public static StackTraceCapturer create(StacktraceConfiguration stacktraceConfiguration) {
+        if (JvmRuntimeInfo.ofCurrentVM().getMajorVersion() >= 9) {
+            try {
+                return (StackTraceCapturer) Class.forName(STACK_WALKER_IMPL_NAME)
+                    .getDeclaredConstructor(StacktraceConfiguration.class)
+                    .newInstance(stacktraceConfiguration);
+            } catch (Exception e) {
+                logger.warn("Failed to initialize StackWalker based stack trace capturing, falling back to Throwable based capturing", e);
+            }
+        }
+        return new ThrowableStackTraceCapturer();
+    }
+
+    /**
+     * Captures the current stack trace and stores it in the provided span.
+     *
+     * @param span the span to capture the stack trace for
+     */
+    public abstract void captureStackTrace(Span span);
+
+    public static boolean isExcluded(String className) {
+        for (int i = 0, size = EXCLUDED_FRAME_PREFIXES.size(); i < size; i++) {
+            if (className.startsWith(EXCLUDED_FRAME_PREFIXES.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class ThrowableStackTraceCapturer extends StackTraceCapturer {
+
+        @Override
+        public void captureStackTrace(Span span) {
+            // the agent frames, excluded frames and the limit are applied during serialization
+            span.withStacktrace(new Throwable());
+        }
+    }
+}
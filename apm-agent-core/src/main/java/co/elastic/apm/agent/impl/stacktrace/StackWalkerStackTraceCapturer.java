@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Walks the stack with a {@link StackWalker}, only materializing the frames that are going to be serialized.
+ * Not loaded on Java 7 and 8.
+ */
+@IgnoreJRERequirement
+@SuppressWarnings("unused") //initialized via reflection
+class StackWalkerStackTraceCapturer extends StackTraceCapturer {
+
+    private static final StackTraceElement[] EMPTY = new StackTraceElement[0];
+
+    private final StacktraceConfiguration stacktraceConfiguration;
+    private final StackWalker stackWalker;
+
+    StackWalkerStackTraceCapturer(StacktraceConfiguration stacktraceConfiguration) {
+        this.stacktraceConfiguration = stacktraceConfiguration;
+        this.stackWalker = StackWalker.getInstance();
+    }
+
+    @Override
+    public void captureStackTrace(Span span) {
+        int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
+        if (stackTraceLimit == 0) {
+            return;
+        }
+        span.withStackTraceElements(stackWalker.walk(new FrameCollector(stackTraceLimit < 0 ? Integer.MAX_VALUE : stackTraceLimit)));
+    }
+
+    /**
+     * Applies the same rules as the serialization of {@link Throwable} based stack traces while walking the stack
+     */
+    @IgnoreJRERequirement
+    private static class FrameCollector implements Function<Stream<StackWalker.StackFrame>, StackTraceElement[]> {
+
+        private final int limit;
+
+        private FrameCollector(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public StackTraceElement[] apply(Stream<StackWalker.StackFrame> frames) {
+            List<StackTraceElement> collected = null;
+            boolean topMostAgentFramesSkipped = false;
+            for (Iterator<StackWalker.StackFrame> iterator = frames.iterator(); iterator.hasNext(); ) {
+                StackWalker.StackFrame frame = iterator.next();
+                String className = frame.getClassName();
+                // only skip the top most agent frames
+                if (!topMostAgentFramesSkipped && className.startsWith(AGENT_FRAME_PREFIX)) {
+                    continue;
+                }
+                topMostAgentFramesSkipped = true;
+                // file name is a required field
+                if (frame.getFileName() == null || isExcluded(className)) {
+                    continue;
+                }
+                if (collected == null) {
+                    collected = new ArrayList<>(Math.min(limit, 64));
+                }
+                collected.add(frame.toStackTraceElement());
+                if (collected.size() >= limit) {
+                    break;
+                }
+            }
+            return collected != null ? collected.toArray(EMPTY) : EMPTY;
+        }
+    }
+}
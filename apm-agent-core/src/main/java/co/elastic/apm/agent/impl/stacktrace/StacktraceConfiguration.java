@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.impl.stacktrace;
 
+import co.elastic.apm.agent.tracer.configuration.CoreConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
@@ -32,6 +33,7 @@ public class StacktraceConfiguration extends ConfigurationOptionProvider impleme
     public static final String APPLICATION_PACKAGES = "application_packages";
     private final ConfigurationOption<Collection<String>> applicationPackages = ConfigurationOption.stringsOption()
         .key(APPLICATION_PACKAGES)
+        .tags(CoreConfiguration.AFFECTS_INSTRUMENTATION_TAG)
         .configurationCategory(STACKTRACE_CATEGORY)
         .description("Used to determine whether a stack trace frame is an 'in-app frame' or a 'library frame'.\n" +
             "This allows the APM app to collapse the stack frames of library code,\n" +
@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.impl.transaction;
 
+import co.elastic.apm.agent.collections.AttributeMap;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
@@ -33,9 +34,7 @@ import co.elastic.apm.agent.tracer.dispatch.HeaderGetter;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -122,7 +121,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> extends AbstractRe
     @Nullable
     private OTelSpanKind otelKind = null;
 
-    private final Map<String, Object> otelAttributes = new HashMap<>();
+    private final AttributeMap otelAttributes = new AttributeMap();
 
     @Override
     public T requestDiscarding() {
@@ -728,10 +727,25 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> extends AbstractRe
         return otelKind;
     }
 
-    public Map<String, Object> getOtelAttributes() {
+    public AttributeMap getOtelAttributes() {
         return otelAttributes;
     }
 
+    public T withOtelLongAttribute(String key, long value) {
+        otelAttributes.putLong(key, value);
+        return thiz();
+    }
+
+    public T withOtelDoubleAttribute(String key, double value) {
+        otelAttributes.putDouble(key, value);
+        return thiz();
+    }
+
+    public T withOtelBooleanAttribute(String key, boolean value) {
+        otelAttributes.putBoolean(key, value);
+        return thiz();
+    }
+
     @Override
     public T withOtelAttribute(String key, @Nullable Object value) {
         if (value != null) {
@@ -65,6 +65,11 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
     private final Composite composite = new Composite();
     @Nullable
     private Throwable stacktrace;
+    /**
+     * The already filtered and limited frames captured by a {@link co.elastic.apm.agent.impl.stacktrace.StackTraceCapturer}
+     */
+    @Nullable
+    private StackTraceElement[] stackTraceElements;
     @Nullable
     private AbstractSpan<?> parent;
     @Nullable
@@ -203,6 +208,11 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         return stacktrace;
     }
 
+    @Nullable
+    public StackTraceElement[] getStackTraceElements() {
+        return stackTraceElements;
+    }
+
     @Override
     @Nullable
     public String getSubtype() {
@@ -465,6 +475,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         context.resetState();
         composite.resetState();
         stacktrace = null;
+        stackTraceElements = null;
         subtype = null;
         action = null;
         parent = null;
@@ -486,6 +497,11 @@ public class Span extends AbstractSpan<Span> implements Recyclable, co.elastic.a
         return this;
     }
 
+    public Span withStackTraceElements(StackTraceElement[] stackTraceElements) {
+        this.stackTraceElements = stackTraceElements;
+        return this;
+    }
+
     @Override
     public void incrementReferences() {
         if (transaction != null) {
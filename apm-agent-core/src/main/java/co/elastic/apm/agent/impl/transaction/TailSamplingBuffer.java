@@ -0,0 +1,145 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import javax.annotation.Nullable;
+
+/**
+ * Holds the spans of a locally rooted transaction until the {@code TailSamplingReporter} has decided whether to keep the trace.
+ * <p>
+ * There's one buffer per pooled {@link Transaction}, which is reset when the transaction is recycled.
+ * The global limit on the number of buffered spans is enforced by the reporter,
+ * which keeps all non-empty buffers in a list ordered by the time their first span has been buffered, so that it can evict the oldest one.
+ * All methods except {@link #onErrorCaptured()} must be called while holding the lock of the buffer.
+ * The list pointers are guarded by the lock of the reporter's list instead.
+ * </p>
+ */
+public class TailSamplingBuffer implements Recyclable {
+
+    public static final int UNDECIDED = 0;
+    public static final int KEEP = 1;
+    public static final int DROP = 2;
+
+    private static final Span[] EMPTY = new Span[0];
+    /**
+     * Larger arrays are released when the transaction is recycled,
+     * so that pooled transactions don't retain the memory of exceptionally large traces.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64;
+
+    private volatile boolean errorCaptured;
+    private int decision = UNDECIDED;
+    private Span[] spans = EMPTY;
+    private int size;
+
+    /**
+     * The transaction this buffer belongs to, while the buffer is linked into the list of the reporter
+     */
+    @Nullable
+    private Transaction owner;
+    @Nullable
+    private TailSamplingBuffer previous;
+    @Nullable
+    private TailSamplingBuffer next;
+
+    /**
+     * Called when an error has been captured within the transaction or one of its spans.
+     */
+    public void onErrorCaptured() {
+        errorCaptured = true;
+    }
+
+    public boolean isErrorCaptured() {
+        return errorCaptured;
+    }
+
+    public int getDecision() {
+        return decision;
+    }
+
+    public void setDecision(int decision) {
+        this.decision = decision;
+    }
+
+    public void add(Span span) {
+        if (size == spans.length) {
+            Span[] grown = new Span[Math.max(8, spans.length * 2)];
+            System.arraycopy(spans, 0, grown, 0, size);
+            spans = grown;
+        }
+        spans[size++] = span;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Span get(int index) {
+        return spans[index];
+    }
+
+    /**
+     * Removes all spans from the buffer without changing the decision.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            spans[i] = null;
+        }
+        size = 0;
+    }
+
+    @Nullable
+    public Transaction getOwner() {
+        return owner;
+    }
+
+    public void setOwner(@Nullable Transaction owner) {
+        this.owner = owner;
+    }
+
+    @Nullable
+    public TailSamplingBuffer getPrevious() {
+        return previous;
+    }
+
+    public void setPrevious(@Nullable TailSamplingBuffer previous) {
+        this.previous = previous;
+    }
+
+    @Nullable
+    public TailSamplingBuffer getNext() {
+        return next;
+    }
+
+    public void setNext(@Nullable TailSamplingBuffer next) {
+        this.next = next;
+    }
+
+    @Override
+    public synchronized void resetState() {
+        clear();
+        if (spans.length > MAX_RETAINED_CAPACITY) {
+            spans = EMPTY;
+        }
+        decision = UNDECIDED;
+        errorCaptured = false;
+    }
+}
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.MetricsConfiguration;
 import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.Baggage;
@@ -75,6 +76,7 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final CoreConfiguration coreConfig;
     private final SpanConfiguration spanConfig;
+    private final MetricsConfiguration metricsConfig;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -90,6 +92,10 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
 
     private int maxSpans;
 
+    private boolean collectDurationHistogram;
+
+    private boolean collectSelfTimeHistogram;
+
     private boolean spanCompressionEnabled;
 
     private long spanCompressionExactMatchMaxDurationUs;
@@ -113,6 +119,12 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
 
     private final AtomicBoolean wasActivated = new AtomicBoolean();
 
+    /**
+     * Holds the spans of this transaction until the tail sampling decision has been made,
+     * see {@code TailSamplingReporter}.
+     */
+    private final TailSamplingBuffer tailSamplingBuffer = new TailSamplingBuffer();
+
     @Override
     public Transaction getParentTransaction() {
         return this;
@@ -122,6 +134,7 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         super(tracer);
         coreConfig = tracer.getConfig(CoreConfiguration.class);
         spanConfig = tracer.getConfig(SpanConfiguration.class);
+        metricsConfig = tracer.getConfig(MetricsConfiguration.class);
     }
 
     public <T> Transaction startRoot(long epochMicros, Sampler sampler, Baggage baggage) {
@@ -171,6 +184,10 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         spanCompressionEnabled = spanConfig.isSpanCompressionEnabled();
         spanCompressionExactMatchMaxDurationUs = spanConfig.getSpanCompressionExactMatchMaxDuration().getMicros();
         spanCompressionSameKindMaxDurationUs = spanConfig.getSpanCompressionSameKindMaxDuration().getMicros();
+        boolean histogramsEnabled = metricsConfig.isDurationHistogramMetricsEnabled();
+        MetricRegistry metricRegistry = tracer.getMetricRegistry();
+        collectDurationHistogram = histogramsEnabled && !metricRegistry.isDisabled("transaction.duration.histogram");
+        collectSelfTimeHistogram = histogramsEnabled && collectBreakdownMetrics && !metricRegistry.isDisabled("span.self_time.histogram");
 
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
@@ -289,6 +306,22 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         return spanCount;
     }
 
+    /**
+     * Turns this transaction into a non-sampled one after it has ended, for example when it has been dropped by tail sampling.
+     * Like other non-sampled transactions, it's then reported without context information, labels and span details.
+     */
+    public void convertToUnsampled() {
+        getTraceContext().setRecorded(false);
+        context.resetState();
+        getOtelAttributes().clear();
+        spanCount.resetState();
+        droppedSpanStats.resetState();
+    }
+
+    public TailSamplingBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
     public void captureDroppedSpan(Span span) {
         if (span.isSampled()) {
             spanCount.getDropped().incrementAndGet();
@@ -330,6 +363,8 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         droppedSpanStats.resetState();
         noop = false;
         maxSpans = 0;
+        collectDurationHistogram = false;
+        collectSelfTimeHistogram = false;
         spanCompressionEnabled = false;
         spanCompressionExactMatchMaxDurationUs = 0L;
         spanCompressionSameKindMaxDurationUs = 0L;
@@ -337,6 +372,7 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
         frameworkVersion = null;
         faas.resetState();
         wasActivated.set(false);
+        tailSamplingBuffer.resetState();
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
     }
 
@@ -508,6 +544,9 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
             final MetricRegistry metricRegistry = tracer.getMetricRegistry();
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
+                if (collectDurationHistogram) {
+                    metricRegistry.updateHistogram("transaction.duration.histogram", labelsMutable, getDuration());
+                }
                 if (collectBreakdownMetrics) {
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
                     for (int i = 0; i < types.size(); i++) {
@@ -523,6 +562,9 @@ public class Transaction extends AbstractSpan<Transaction> implements co.elastic
                                 }
                                 labelsMutable.spanType(spanType).spanSubType(subtype);
                                 metricRegistry.updateTimer("span.self_time", labelsMutable, timer.getTotalTimeUs(), timer.getCount());
+                                if (collectSelfTimeHistogram) {
+                                    metricRegistry.updateHistogram("span.self_time.histogram", labelsMutable, timer.getTotalTimeUs());
+                                }
                                 timer.resetState();
                             }
                         }
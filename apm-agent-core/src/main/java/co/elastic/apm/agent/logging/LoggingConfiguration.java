@@ -24,7 +24,7 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.configuration.ByteValue;
 import co.elastic.apm.agent.tracer.configuration.ByteValueConverter;
 import co.elastic.apm.agent.tracer.configuration.LogEcsReformatting;
-import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.LoggerContext;
@@ -38,7 +38,6 @@ import org.apache.logging.log4j.spi.LoggerContextFactory;
 import org.apache.logging.log4j.status.StatusLogger;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.MapValueConverter;
 import org.stagemonitor.configuration.converter.StringValueConverter;
 import org.stagemonitor.configuration.source.ConfigurationSource;
@@ -199,7 +198,7 @@ public class LoggingConfiguration extends ConfigurationOptionProvider implements
         .buildWithDefault(Collections.<String, String>emptyMap());
 
     private final ConfigurationOption<List<WildcardMatcher>> logEcsFormatterAllowList = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("log_ecs_formatter_allow_list")
         .configurationCategory(LOGGING_CATEGORY)
         .description("Only formatters that match an item on this list will be automatically reformatted to ECS when \n" +
@@ -0,0 +1,148 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with log-linear buckets, similar to an HDR histogram, which allows to calculate percentiles of durations.
+ * <p>
+ * Values smaller than {@link #SUB_BUCKET_COUNT} are tracked exactly.
+ * Larger values are grouped by their power of two, each of which is divided into {@link #SUB_BUCKET_COUNT} linear sub-buckets.
+ * That means the relative error of a value is at most {@code 1 / SUB_BUCKET_COUNT}.
+ * Values larger than {@code 2^}{@link #MAX_EXPONENT} are counted in the last bucket.
+ * </p>
+ * <p>
+ * All buckets are allocated up-front so that recording a value does not allocate memory.
+ * Recording is thread safe and lock-free.
+ * Like the {@link Timer}, histograms are reset after each report.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * 2^36 microseconds are about 19 hours
+     */
+    static final int MAX_EXPONENT = 36;
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final StripedCounter totalCount = new StripedCounter();
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long count) {
+        counts.addAndGet(getBucketIndex(value), count);
+        totalCount.add(count);
+    }
+
+    /**
+     * Adds all values of the provided histogram to this histogram.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+                totalCount.add(count);
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    public boolean hasContent() {
+        return totalCount.sum() > 0;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the representative value of the bucket which contains the value at the provided percentile, or 0 if the histogram is empty
+     */
+    public double getValueAtPercentile(double percentile) {
+        long total = totalCount.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+            if (count >= countAtPercentile) {
+                return getBucketValue(i);
+            }
+        }
+        return getBucketValue(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the number of values in the bucket with the provided index, between {@code 0} and {@link #BUCKET_COUNT}
+     */
+    public long getCountAtBucket(int index) {
+        return counts.get(index);
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketLowerBound(int index) {
+        int magnitude = index >> SUB_BUCKET_BITS;
+        if (magnitude == 0) {
+            return index;
+        }
+        int subBucket = index & (SUB_BUCKET_COUNT - 1);
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (magnitude - 1);
+    }
+
+    /**
+     * @return the midpoint of the bucket, or the exact value for the linear buckets
+     */
+    public static double getBucketValue(int index) {
+        int magnitude = index >> SUB_BUCKET_BITS;
+        if (magnitude <= 1) {
+            return getBucketLowerBound(index);
+        }
+        return getBucketLowerBound(index) + ((1L << (magnitude - 1)) - 1) / 2.0;
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.resetState();
+    }
+}
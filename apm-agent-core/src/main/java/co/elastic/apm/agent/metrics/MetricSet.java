@@ -24,7 +24,6 @@ import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A metric set is a collection of metrics which have the same labels.
@@ -45,10 +44,12 @@ public class MetricSet implements Recyclable {
     private final ConcurrentMap<String, DoubleSupplier> gauges;
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
-    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, Double> rawValues = new ConcurrentHashMap<>();
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -90,22 +91,36 @@ public class MetricSet implements Recyclable {
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public void addToCounter(String name, long count) {
         hasNonEmptyCounter = true;
-        AtomicLong counter = counters.get(name);
+        StripedCounter counter = counters.get(name);
         if (counter == null) {
-            counters.putIfAbsent(name, new AtomicLong());
+            counters.putIfAbsent(name, new StripedCounter());
             counter = counters.get(name);
         }
-        counter.addAndGet(count);
+        counter.add(count);
     }
 
     public Map<String, Timer> getTimers() {
         return timers;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || !rawValues.isEmpty();
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram || !rawValues.isEmpty();
     }
 
     /**
@@ -115,15 +130,19 @@ public class MetricSet implements Recyclable {
         for (Timer timer : timers.values()) {
             timer.resetState();
         }
-        for (AtomicLong counter : counters.values()) {
-            counter.set(0);
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
+        }
+        for (StripedCounter counter : counters.values()) {
+            counter.resetState();
         }
         rawValues.clear();
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
-    public Map<String, AtomicLong> getCounters() {
+    public Map<String, StripedCounter> getCounters() {
         return counters;
     }
 
@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads concurrent updates over multiple cells to avoid contention on a single {@link AtomicLong},
+ * similar to {@code java.util.concurrent.atomic.LongAdder} which is not available in Java 7.
+ * <p>
+ * As long as there is no contention, updates are applied to a single base value.
+ * Only when an update fails due to a concurrent update, the cells are allocated.
+ * The cell of a thread is determined by its id.
+ * To avoid false sharing, the cells are placed on separate cache lines.
+ * </p>
+ * <p>
+ * {@link #sum()} is not an atomic snapshot when there are concurrent updates.
+ * That's fine as metrics are only read and {@linkplain #resetState() reset} after
+ * the {@link org.HdrHistogram.WriterReaderPhaser} has been flipped, which guarantees that there are no concurrent writers.
+ * </p>
+ */
+public class StripedCounter implements Recyclable {
+
+    /**
+     * The number of longs per cache line (assuming 64 byte cache lines)
+     */
+    private static final int PADDING = 8;
+    private static final int CELL_COUNT = getCellCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLong base = new AtomicLong();
+    @Nullable
+    private volatile AtomicLongArray cells;
+
+    static int getCellCount(int availableProcessors) {
+        int cellCount = Integer.highestOneBit(Math.max(1, availableProcessors));
+        if (cellCount < availableProcessors) {
+            cellCount <<= 1;
+        }
+        return Math.min(64, cellCount);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            long value = base.get();
+            if (base.compareAndSet(value, value + x)) {
+                return;
+            }
+            cells = getOrCreateCells();
+        }
+        cells.addAndGet(getCellIndex(), x);
+    }
+
+    private synchronized AtomicLongArray getOrCreateCells() {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            // one additional cache line at the start, so that the first cell does not share a cache line with the array header
+            cells = new AtomicLongArray((CELL_COUNT + 1) * PADDING);
+            this.cells = cells;
+        }
+        return cells;
+    }
+
+    private static int getCellIndex() {
+        long threadId = Thread.currentThread().getId();
+        int hash = (int) (threadId ^ (threadId >>> 32)) * 0x9e3779b9;
+        return ((hash >>> 16 ^ hash) & (CELL_COUNT - 1)) * PADDING + PADDING;
+    }
+
+    public long sum() {
+        long sum = base.get();
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int i = PADDING; i < cells.length(); i += PADDING) {
+                sum += cells.get(i);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the value to zero but keeps the cells, as the counter is likely to be contended again.
+     */
+    @Override
+    public void resetState() {
+        base.set(0);
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int i = PADDING; i < cells.length(); i += PADDING) {
+                cells.set(i, 0);
+            }
+        }
+    }
+}
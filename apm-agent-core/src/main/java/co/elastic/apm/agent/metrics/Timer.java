@@ -21,45 +21,48 @@ package co.elastic.apm.agent.metrics;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This timer track the total time and the count of invocations so that it allows for calculating weighted averages.
+ * <p>
+ * Both values are {@link StripedCounter}s so that concurrent updates, for example when tracking breakdown metrics,
+ * don't contend on a single memory location.
+ * </p>
  */
 public class Timer implements Recyclable {
     private static final double MS_IN_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
 
-    private AtomicLong totalTime = new AtomicLong();
-    private AtomicLong count = new AtomicLong();
+    private final StripedCounter totalTime = new StripedCounter();
+    private final StripedCounter count = new StripedCounter();
 
     public void update(long durationUs) {
         update(durationUs, 1);
     }
 
     public void update(long durationUs, long count) {
-        this.totalTime.addAndGet(durationUs);
-        this.count.addAndGet(count);
+        this.totalTime.add(durationUs);
+        this.count.add(count);
     }
 
     public long getTotalTimeUs() {
-        return totalTime.get();
+        return totalTime.sum();
     }
 
     public double getTotalTimeMs() {
-        return totalTime.get() / MS_IN_MICROS;
+        return totalTime.sum() / MS_IN_MICROS;
     }
 
     public long getCount() {
-        return count.get();
+        return count.sum();
     }
 
     public boolean hasContent() {
-        return count.get() > 0;
+        return count.sum() > 0;
     }
 
     @Override
     public void resetState() {
-        totalTime.set(0);
-        count.set(0);
+        totalTime.resetState();
+        count.resetState();
     }
 }
@@ -25,6 +25,9 @@ import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricCollector;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.report.compression.AdaptiveCompressionLevel;
+import co.elastic.apm.agent.report.serialize.StackFrameCache;
+import co.elastic.apm.agent.sdk.internal.db.signature.SignatureCache;
 import co.elastic.apm.agent.util.ElasticThreadStateListener;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.util.JmxUtils;
@@ -48,6 +51,12 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
     private static final String CPU_USAGE_METRIC = "agent.background.cpu.total.pct";
     private static final String ALLOCATION_METRIC = "agent.background.memory.allocation.bytes";
     private static final String THREAD_COUNT_METRIC = "agent.background.threads.count";
+    private static final String COMPRESSION_LEVEL_METRIC = "agent.background.compression.level";
+    private static final String STACK_FRAME_CACHE_HIT_METRIC = "agent.background.stack_frame_cache.hit.count";
+    private static final String STACK_FRAME_CACHE_MISS_METRIC = "agent.background.stack_frame_cache.miss.count";
+    private static final String SQL_SIGNATURE_CACHE_HIT_METRIC = "agent.background.sql_signature_cache.hit.count";
+    private static final String SQL_SIGNATURE_CACHE_MISS_METRIC = "agent.background.sql_signature_cache.miss.count";
+    private static final String SQL_SIGNATURE_CACHE_EVICTION_METRIC = "agent.background.sql_signature_cache.eviction.count";
 
     private static final long NO_VALUE = -1L;
 
@@ -55,6 +64,9 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
     private boolean cpuUsageMetricEnabled;
     private boolean allocationMetricEnabled;
     private boolean threadCountMetricEnabled;
+    private boolean compressionLevelMetricEnabled;
+    private boolean stackFrameCacheMetricsEnabled;
+    private boolean sqlSignatureCacheMetricsEnabled;
 
     private long lastReportedProcessCpuTime = NO_VALUE;
 
@@ -126,6 +138,11 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
         cpuUsageMetricEnabled = !metricRegistry.isDisabled(CPU_USAGE_METRIC) && overheadMetricsEnabled;
         allocationMetricEnabled = !metricRegistry.isDisabled(ALLOCATION_METRIC) && overheadMetricsEnabled;
         threadCountMetricEnabled = !metricRegistry.isDisabled(THREAD_COUNT_METRIC) && overheadMetricsEnabled;
+        compressionLevelMetricEnabled = !metricRegistry.isDisabled(COMPRESSION_LEVEL_METRIC) && overheadMetricsEnabled;
+        stackFrameCacheMetricsEnabled = !metricRegistry.isDisabled(STACK_FRAME_CACHE_HIT_METRIC) && !metricRegistry.isDisabled(STACK_FRAME_CACHE_MISS_METRIC)
+            && overheadMetricsEnabled;
+        sqlSignatureCacheMetricsEnabled = !metricRegistry.isDisabled(SQL_SIGNATURE_CACHE_HIT_METRIC) && !metricRegistry.isDisabled(SQL_SIGNATURE_CACHE_MISS_METRIC)
+            && !metricRegistry.isDisabled(SQL_SIGNATURE_CACHE_EVICTION_METRIC) && overheadMetricsEnabled;
 
         if (allocationMetricEnabled) {
             boolean allocationMeasurementEnabled = enableThreadAllocationMeasurement();
@@ -201,7 +218,8 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
     }
 
     private boolean anyMetricEnabled() {
-        return cpuOverheadMetricEnabled || cpuUsageMetricEnabled || allocationMetricEnabled || threadCountMetricEnabled;
+        return cpuOverheadMetricEnabled || cpuUsageMetricEnabled || allocationMetricEnabled || threadCountMetricEnabled || compressionLevelMetricEnabled
+            || stackFrameCacheMetricsEnabled;
     }
 
     @Override
@@ -232,6 +250,9 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
         collectCpuUsageMetrics(collector, reusableCounters);
         collectAllocationMetrics(collector, reusableCounters);
         collectActiveThreadsMetric(collector, reusableCounters);
+        collectCompressionLevelMetric(collector);
+        collectStackFrameCacheMetrics(collector);
+        collectSqlSignatureCacheMetrics(collector);
 
         //cleanup dead threads
         for (Map.Entry<Thread, ThreadInfo> threadInfo : lastThreadInfo.entrySet()) {
@@ -264,6 +285,50 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
         }
     }
 
+    private void collectCompressionLevelMetric(MetricCollector collector) {
+        if (!compressionLevelMetricEnabled) {
+            return;
+        }
+        for (AdaptiveCompressionLevel compressionLevel : AdaptiveCompressionLevel.getInstances()) {
+            String threadPurpose = compressionLevel.getThreadPurpose();
+            if (threadPurpose != null) {
+                Labels labels = Labels.Mutable.of("task", threadPurpose).immutableCopy();
+                collector.addMetricValue(COMPRESSION_LEVEL_METRIC, labels, compressionLevel.getLevel());
+            }
+        }
+    }
+
+    private void collectStackFrameCacheMetrics(MetricCollector collector) {
+        if (!stackFrameCacheMetricsEnabled) {
+            return;
+        }
+        long hits = 0;
+        long misses = 0;
+        for (StackFrameCache stackFrameCache : StackFrameCache.getInstances()) {
+            hits += stackFrameCache.getAndResetHits();
+            misses += stackFrameCache.getAndResetMisses();
+        }
+        collector.addMetricValue(STACK_FRAME_CACHE_HIT_METRIC, Labels.EMPTY, hits);
+        collector.addMetricValue(STACK_FRAME_CACHE_MISS_METRIC, Labels.EMPTY, misses);
+    }
+
+    private void collectSqlSignatureCacheMetrics(MetricCollector collector) {
+        if (!sqlSignatureCacheMetricsEnabled) {
+            return;
+        }
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (SignatureCache signatureCache : SignatureCache.getInstances()) {
+            hits += signatureCache.getAndResetHits();
+            misses += signatureCache.getAndResetMisses();
+            evictions += signatureCache.getAndResetEvictions();
+        }
+        collector.addMetricValue(SQL_SIGNATURE_CACHE_HIT_METRIC, Labels.EMPTY, hits);
+        collector.addMetricValue(SQL_SIGNATURE_CACHE_MISS_METRIC, Labels.EMPTY, misses);
+        collector.addMetricValue(SQL_SIGNATURE_CACHE_EVICTION_METRIC, Labels.EMPTY, evictions);
+    }
+
     private void collectAllocationMetrics(MetricCollector collector, Map<String, AtomicLong> allocatedBytesByPurpose) {
         if (!allocationMetricEnabled) {
             return;
@@ -31,6 +31,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class AgentReporterMetrics implements ReporterMonitor {
 
@@ -73,9 +75,8 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private static final Labels GENERIC_QUEUE_LABEL = Labels.Mutable.of("queue_name", "generic").immutableCopy();
 
 
-    private volatile double currentQueueUtilization = 0;
-    private final AtomicDouble maxQueueSize = new AtomicDouble(0.0);
-    private final AtomicDouble minQueueSize = new AtomicDouble(0.0);
+    private final QueueUtilization genericQueue = new QueueUtilization(GENERIC_QUEUE_LABEL);
+    private final List<QueueUtilization> shardQueues = new CopyOnWriteArrayList<>();
 
     public AgentReporterMetrics(final MetricRegistry registry, MetricsConfiguration configuration) {
         this.metricRegistry = registry;
@@ -91,15 +92,10 @@ public class AgentReporterMetrics implements ReporterMonitor {
             registry.addMetricsProvider(new MetricsProvider() {
                 @Override
                 public void collectAndReset(MetricCollector collector) {
-                    if (minQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, minQueueSize.get());
+                    genericQueue.collectAndReset(collector);
+                    for (int i = 0; i < shardQueues.size(); i++) {
+                        shardQueues.get(i).collectAndReset(collector);
                     }
-                    if (maxQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, maxQueueSize.get());
-                    }
-                    double currentUtilization = currentQueueUtilization;
-                    minQueueSize.set(currentUtilization);
-                    maxQueueSize.set(currentUtilization);
                 }
             });
         }
@@ -113,21 +109,12 @@ public class AgentReporterMetrics implements ReporterMonitor {
                 metricRegistry.incrementCounter(TOTAL_EVENTS_METRIC, label);
             }
         }
-        updateQueueMetric(queueCapacity, queueSizeAfter);
-    }
-
-    private void updateQueueMetric(long queueCapacity, long queueSize) {
-        if (anyQueueSizeMetricEnabled()) {
-            double queueUtilization = ((double) queueSize) / queueCapacity;
-            currentQueueUtilization = queueUtilization;
-            maxQueueSize.setWeakMax(queueUtilization);
-            minQueueSize.setWeakMin(queueUtilization);
-        }
+        genericQueue.update(queueCapacity, queueSizeAfter);
     }
 
     @Override
     public void eventDequeued(ReportingEvent.ReportingEventType eventType, long queueCapacity, long queueSizeAfter) {
-        updateQueueMetric(queueCapacity, queueSizeAfter);
+        genericQueue.update(queueCapacity, queueSizeAfter);
     }
 
     @Override
@@ -138,7 +125,7 @@ public class AgentReporterMetrics implements ReporterMonitor {
                 metricRegistry.incrementCounter(DROPPED_EVENTS_METRIC, QUEUE_REASON_LABEL);
             }
         }
-        updateQueueMetric(queueCapacity, queueCapacity);
+        genericQueue.update(queueCapacity, queueCapacity);
     }
 
     @Override
@@ -171,6 +158,18 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    /**
+     * Returns a monitor which tracks the queue utilization of a single reporter shard under the {@code shard} label,
+     * in addition to all the metrics tracked by this monitor.
+     */
+    @Override
+    public ReporterMonitor forShard(int shard) {
+        QueueUtilization shardQueue = new QueueUtilization(
+            Labels.Mutable.of("queue_name", "generic").add("shard", Integer.toString(shard)).immutableCopy());
+        shardQueues.add(shardQueue);
+        return new ShardReporterMetrics(shardQueue);
+    }
+
     // package-protected for tests
     @Nullable
     static Labels getLabelFor(ReportingEvent.ReportingEventType type) {
@@ -198,5 +197,80 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private boolean anyQueueSizeMetricEnabled() {
         return maxQueueSizeMetricEnabled || minQueueSizeMetricEnabled;
     }
+
+    private class QueueUtilization {
+
+        private final Labels labels;
+        private volatile double currentQueueUtilization = 0;
+        private final AtomicDouble maxQueueSize = new AtomicDouble(0.0);
+        private final AtomicDouble minQueueSize = new AtomicDouble(0.0);
+
+        private QueueUtilization(Labels labels) {
+            this.labels = labels;
+        }
+
+        private void update(long queueCapacity, long queueSize) {
+            if (anyQueueSizeMetricEnabled()) {
+                double queueUtilization = ((double) queueSize) / queueCapacity;
+                currentQueueUtilization = queueUtilization;
+                maxQueueSize.setWeakMax(queueUtilization);
+                minQueueSize.setWeakMin(queueUtilization);
+            }
+        }
+
+        private void collectAndReset(MetricCollector collector) {
+            if (minQueueSizeMetricEnabled) {
+                collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, labels, minQueueSize.get());
+            }
+            if (maxQueueSizeMetricEnabled) {
+                collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, labels, maxQueueSize.get());
+            }
+            double currentUtilization = currentQueueUtilization;
+            minQueueSize.set(currentUtilization);
+            maxQueueSize.set(currentUtilization);
+        }
+    }
+
+    private class ShardReporterMetrics implements ReporterMonitor {
+
+        private final QueueUtilization shardQueue;
+
+        private ShardReporterMetrics(QueueUtilization shardQueue) {
+            this.shardQueue = shardQueue;
+        }
+
+        @Override
+        public void eventCreated(ReportingEvent.ReportingEventType eventType, long queueCapacity, long queueSize) {
+            AgentReporterMetrics.this.eventCreated(eventType, queueCapacity, queueSize);
+            shardQueue.update(queueCapacity, queueSize);
+        }
+
+        @Override
+        public void eventDequeued(ReportingEvent.ReportingEventType eventType, long queueCapacity, long queueSize) {
+            AgentReporterMetrics.this.eventDequeued(eventType, queueCapacity, queueSize);
+            shardQueue.update(queueCapacity, queueSize);
+        }
+
+        @Override
+        public void eventDroppedBeforeQueue(ReportingEvent.ReportingEventType eventType, long queueCapacity) {
+            AgentReporterMetrics.this.eventDroppedBeforeQueue(eventType, queueCapacity);
+            shardQueue.update(queueCapacity, queueCapacity);
+        }
+
+        @Override
+        public void eventDroppedAfterDequeue(ReportingEvent.ReportingEventType eventType) {
+            AgentReporterMetrics.this.eventDroppedAfterDequeue(eventType);
+        }
+
+        @Override
+        public void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success) {
+            AgentReporterMetrics.this.requestFinished(requestContent, acceptedEventCount, bytesWritten, success);
+        }
+
+        @Override
+        public ReporterMonitor forShard(int shard) {
+            return AgentReporterMetrics.this.forShard(shard);
+        }
+    }
 }
 
@@ -18,11 +18,13 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
@@ -43,6 +45,13 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
         return QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<T>((maxCapacity)), false, allocator);
     }
 
+    /**
+     * Creates a pool that keeps recycled objects in thread-local magazines, see {@link MagazineObjectPool}.
+     */
+    public <T extends Recyclable> ObjectPool<T> createMagazineObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return MagazineObjectPool.ofRecyclable(maxCapacity, MagazineObjectPool.DEFAULT_MAGAZINE_SIZE, allocator);
+    }
+
     @Override
     public <T> ObjectPool<ObjectHandle<T>> createHandlePool(Allocator<T> allocator) {
         ObjectHandle.Allocator<T> handleAlloc = new ObjectHandle.Allocator<T>(allocator);
@@ -66,7 +75,7 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
     }
 
     public ObjectPool<Transaction> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Transaction>() {
+        return createTracerObjectPool(maxCapacity, tracer, new Allocator<Transaction>() {
             @Override
             public Transaction createInstance() {
                 return new Transaction(tracer);
@@ -75,7 +84,7 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
     }
 
     public ObjectPool<Span> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Span>() {
+        return createTracerObjectPool(maxCapacity, tracer, new Allocator<Span>() {
             @Override
             public Span createInstance() {
                 return new Span(tracer);
@@ -84,7 +93,7 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
     }
 
     public ObjectPool<ErrorCapture> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<ErrorCapture>() {
+        return createTracerObjectPool(maxCapacity, tracer, new Allocator<ErrorCapture>() {
             @Override
             public ErrorCapture createInstance() {
                 return new ErrorCapture(tracer);
@@ -93,7 +102,7 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
     }
 
     public ObjectPool<TraceContext> createSpanLinkPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TraceContext>() {
+        return createTracerObjectPool(maxCapacity, tracer, new Allocator<TraceContext>() {
             @Override
             public TraceContext createInstance() {
                 return TraceContext.with64BitId(tracer);
@@ -101,4 +110,11 @@ public class ObjectPoolFactory implements co.elastic.apm.agent.tracer.pooling.Ob
         });
     }
 
+    private <T extends Recyclable> ObjectPool<T> createTracerObjectPool(int maxCapacity, ElasticApmTracer tracer, Allocator<T> allocator) {
+        if (tracer.getConfig(CoreConfiguration.class).getObjectPoolType() == CoreConfiguration.ObjectPoolType.MAGAZINE) {
+            return createMagazineObjectPool(maxCapacity, allocator);
+        }
+        return createRecyclableObjectPool(maxCapacity, allocator);
+    }
+
 }
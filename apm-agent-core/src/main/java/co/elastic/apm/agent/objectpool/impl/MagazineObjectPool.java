@@ -0,0 +1,201 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.tracer.pooling.Allocator;
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An object pool that keeps recycled objects in per-thread magazines, backed by a shared depot of magazines.
+ * <p>
+ * Most {@link #createInstance()} and {@link #recycle(Object)} calls only access the magazines of the current thread and thus don't
+ * involve any synchronization.
+ * The shared depot is only accessed once per {@code magazineSize} operations, to exchange a whole magazine.
+ * That fits the typical lifecycle of transactions and spans which are created on application threads but are recycled on the reporter
+ * thread:
+ * the reporter thread returns the objects to the depot in batches of full magazines that the application threads then pick up.
+ * </p>
+ * <p>
+ * Each thread holds two magazines, so that alternating between creating and recycling objects at the boundary of a magazine does not
+ * cause an exchange with the depot for every operation.
+ * The depot holds at most {@code maxCapacity} objects.
+ * In addition to that, up to {@code 2 * magazineSize} objects are held by each thread that uses the pool.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class MagazineObjectPool<T> extends AbstractObjectPool<T> {
+
+    public static final int DEFAULT_MAGAZINE_SIZE = 32;
+
+    private final int magazineSize;
+    private final int maxFullMagazines;
+    private final AtomicInteger fullMagazineCount = new AtomicInteger();
+    private final Queue<Object[]> fullMagazines;
+    private final Queue<Object[]> emptyMagazines;
+    private final ThreadLocal<Magazines> magazines = new ThreadLocal<Magazines>() {
+        @Override
+        protected Magazines initialValue() {
+            return new Magazines(magazineSize);
+        }
+    };
+
+    /**
+     * Creates a magazine based pool for types that implement {@link Recyclable}.
+     *
+     * @param maxCapacity  the maximum number of objects in the shared depot
+     * @param magazineSize the number of objects in a magazine
+     * @param allocator    a factory used to create new instances of the recyclable object when there are no objects in the pool
+     */
+    public static <T extends Recyclable> MagazineObjectPool<T> ofRecyclable(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        return new MagazineObjectPool<>(maxCapacity, magazineSize, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    /**
+     * Creates a magazine based pool for types that do not implement {@link Recyclable}.
+     *
+     * @param maxCapacity  the maximum number of objects in the shared depot
+     * @param magazineSize the number of objects in a magazine
+     * @param allocator    a factory used to create new instances of the object when there are no objects in the pool
+     * @param resetter     a reset strategy class
+     */
+    public static <T> MagazineObjectPool<T> of(int maxCapacity, int magazineSize, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        return new MagazineObjectPool<>(maxCapacity, magazineSize, allocator, resetter);
+    }
+
+    private MagazineObjectPool(int maxCapacity, int magazineSize, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        super(allocator, resetter);
+        this.magazineSize = Math.max(1, magazineSize);
+        this.maxFullMagazines = maxCapacity / this.magazineSize;
+        // the queues are at least as large as the max number of magazines, the actual limit is enforced by fullMagazineCount
+        int queueCapacity = Math.max(2, maxFullMagazines);
+        this.fullMagazines = new MpmcAtomicArrayQueue<>(queueCapacity);
+        this.emptyMagazines = new MpmcAtomicArrayQueue<>(queueCapacity);
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    protected T tryCreateInstance() {
+        Magazines magazines = this.magazines.get();
+        if (magazines.loadedSize == 0) {
+            if (magazines.previousSize > 0) {
+                magazines.swap();
+            } else {
+                Object[] full = pollFullMagazine();
+                if (full == null) {
+                    return null;
+                }
+                // the empty loaded magazine can be used by threads that recycle more objects than they create
+                emptyMagazines.offer(magazines.loaded);
+                magazines.loaded = full;
+                magazines.loadedSize = full.length;
+            }
+        }
+        int index = --magazines.loadedSize;
+        T object = (T) magazines.loaded[index];
+        magazines.loaded[index] = null;
+        return object;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        Magazines magazines = this.magazines.get();
+        if (magazines.loadedSize == magazineSize) {
+            if (magazines.previousSize < magazineSize) {
+                magazines.swap();
+            } else {
+                if (!offerFullMagazine(magazines.loaded)) {
+                    return false;
+                }
+                Object[] empty = emptyMagazines.poll();
+                magazines.loaded = empty != null ? empty : new Object[magazineSize];
+                magazines.loadedSize = 0;
+            }
+        }
+        magazines.loaded[magazines.loadedSize++] = obj;
+        return true;
+    }
+
+    @Nullable
+    private Object[] pollFullMagazine() {
+        Object[] full = fullMagazines.poll();
+        if (full != null) {
+            fullMagazineCount.decrementAndGet();
+        }
+        return full;
+    }
+
+    private boolean offerFullMagazine(Object[] full) {
+        if (fullMagazineCount.incrementAndGet() > maxFullMagazines || !fullMagazines.offer(full)) {
+            fullMagazineCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of objects in the shared depot and in the magazines of the current thread
+     */
+    @Override
+    public int getObjectsInPool() {
+        Magazines magazines = this.magazines.get();
+        return fullMagazineCount.get() * magazineSize + magazines.loadedSize + magazines.previousSize;
+    }
+
+    /**
+     * Clears the shared depot and the magazines of the current thread.
+     * The magazines of other threads are not affected.
+     */
+    @Override
+    public void clear() {
+        Object[] full;
+        do {
+            full = pollFullMagazine();
+        } while (full != null);
+        magazines.remove();
+    }
+
+    private static class Magazines {
+        private Object[] loaded;
+        private int loadedSize;
+        private Object[] previous;
+        private int previousSize;
+
+        private Magazines(int magazineSize) {
+            loaded = new Object[magazineSize];
+            previous = new Object[magazineSize];
+        }
+
+        private void swap() {
+            Object[] tmp = loaded;
+            int tmpSize = loadedSize;
+            loaded = previous;
+            loadedSize = previousSize;
+            previous = tmp;
+            previousSize = tmpSize;
+        }
+    }
+}
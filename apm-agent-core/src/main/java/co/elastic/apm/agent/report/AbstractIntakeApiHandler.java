@@ -18,6 +18,9 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.report.compression.AdaptiveCompressionLevel;
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.CompressionCodecs;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -33,8 +36,6 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     private static final Logger logger = LoggerFactory.getLogger(AbstractIntakeApiHandler.class);
@@ -43,23 +44,35 @@ public class AbstractIntakeApiHandler {
     protected final ReporterConfiguration reporterConfiguration;
     protected final DslJsonSerializer.Writer payloadSerializer;
     protected final ApmServerClient apmServerClient;
-    protected Deflater deflater;
+    private final CompressionCodec compressionCodec;
+    private final CompressionCodec noCompression;
+    @Nullable
+    private final AdaptiveCompressionLevel adaptiveCompressionLevel;
+    @Nullable
+    private CompressionCodec activeCodec;
     @Nullable
     protected HttpURLConnection connection;
     @Nullable
     protected OutputStream os;
-    @Nullable
-    private CountingOutputStream countingOs;
     protected int errorCount;
     protected volatile boolean shutDown;
     private volatile boolean healthy = true;
+    /**
+     * The {@link System#nanoTime()} until which no requests should be made when not {@linkplain #isBlockingBackoff() blocking during backoff}
+     */
+    private volatile long backoffUntilNanos;
+    private volatile boolean backingOff;
     private long requestStartedNanos;
 
     protected AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer.newWriter();
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.compressionCodec = CompressionCodecs.create(reporterConfiguration.getIntakeCompression(), reporterConfiguration.getIntakeCompressionLevel());
+        this.noCompression = CompressionCodecs.none();
+        this.adaptiveCompressionLevel = reporterConfiguration.isIntakeCompressionAdaptive()
+            ? new AdaptiveCompressionLevel(reporterConfiguration.getIntakeCompressionLevel())
+            : null;
     }
 
     /*
@@ -78,10 +91,10 @@ public class AbstractIntakeApiHandler {
     }
 
     protected boolean shouldEndRequest() {
-        if (countingOs == null) {
+        if (os == null) {
             return false;
         }
-        final long written = countingOs.getCount() + payloadSerializer.getBufferSize();
+        final long written = getWrittenBytes() + payloadSerializer.getBufferSize();
         final boolean endRequest = written >= reporterConfiguration.getApiRequestSize();
         if (endRequest && logger.isDebugEnabled()) {
             logger.debug("Flushing, because request size limit exceeded {}/{}", written, reporterConfiguration.getApiRequestSize());
@@ -94,7 +107,8 @@ public class AbstractIntakeApiHandler {
         payloadSerializer.blockUntilReady();
         final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
         if (connection != null) {
-            boolean useCompression = !isLocalhost(connection);
+            CompressionCodec codec = isLocalhost(connection) ? noCompression : compressionCodec;
+            String contentEncoding = codec.getContentEncoding();
             try {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Starting new request to {}", connection.getURL());
@@ -102,18 +116,18 @@ public class AbstractIntakeApiHandler {
                 connection.setRequestMethod("POST");
                 connection.setDoOutput(true);
                 connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
-                if (useCompression) {
-                    connection.setRequestProperty("Content-Encoding", "deflate");
+                if (contentEncoding != null) {
+                    connection.setRequestProperty("Content-Encoding", contentEncoding);
                 }
                 connection.setRequestProperty("Content-Type", "application/x-ndjson");
                 connection.setUseCaches(false);
                 connection.connect();
-                countingOs = new CountingOutputStream(connection.getOutputStream());
-                if (useCompression) {
-                    os = new DeflaterOutputStream(countingOs, deflater, true);
-                } else {
-                    os = countingOs;
+                if (adaptiveCompressionLevel != null && codec == compressionCodec) {
+                    codec.setLevel(adaptiveCompressionLevel.getLevel());
+                    adaptiveCompressionLevel.onRequestStarted();
                 }
+                activeCodec = codec;
+                os = codec.createOutputStream(connection.getOutputStream());
                 payloadSerializer.setOutputStream(os);
                 payloadSerializer.appendMetaDataNdJsonToStream();
                 payloadSerializer.flushToOutputStream();
@@ -159,6 +173,12 @@ public class AbstractIntakeApiHandler {
             connection.disconnect();
         } catch (Throwable t) {
             logger.debug("Suppressed error on attempt to close connection", t);
+        } finally {
+            os = null;
+            if (activeCodec != null) {
+                activeCodec.reset();
+                activeCodec = null;
+            }
         }
     }
 
@@ -189,15 +209,18 @@ public class AbstractIntakeApiHandler {
 
     private void endRequest(boolean isFailed) {
         if (connection != null) {
-            long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+            long writtenBytes = getWrittenBytes();
             try {
                 payloadSerializer.fullFlush();
                 if (os != null) {
                     os.close();
                 }
-                writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+                writtenBytes = getWrittenBytes();
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), writtenBytes);
+                    logger.debug("Flushing {} uncompressed {} compressed bytes", activeCodec != null ? activeCodec.getBytesRead() : 0L, writtenBytes);
+                }
+                if (adaptiveCompressionLevel != null && activeCodec == compressionCodec) {
+                    adaptiveCompressionLevel.onRequestEnded(getQueueFill());
                 }
                 InputStream inputStream = connection.getInputStream();
                 final int responseCode = connection.getResponseCode();
@@ -216,12 +239,28 @@ public class AbstractIntakeApiHandler {
                 HttpUtils.consumeAndClose(connection);
                 connection = null;
                 os = null;
-                countingOs = null;
-                deflater.reset();
+                if (activeCodec != null) {
+                    activeCodec.reset();
+                    activeCodec = null;
+                }
             }
         }
     }
 
+    /**
+     * Returns the number of (compressed) bytes that have been written to the connection so far.
+     */
+    private long getWrittenBytes() {
+        return activeCodec != null ? activeCodec.getBytesWritten() : 0L;
+    }
+
+    /**
+     * @return the share of the reporter queue capacity that is currently in use [0-1]
+     */
+    protected double getQueueFill() {
+        return 0;
+    }
+
     protected boolean isApiRequestTimeExpired() {
         return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
     }
@@ -259,6 +298,11 @@ public class AbstractIntakeApiHandler {
         logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
         if (backoffTimeMillis > 0) {
+            if (!isBlockingBackoff()) {
+                backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+                backingOff = true;
+                return;
+            }
             // back off because there are connection issues with the apm server
             try {
                 healthy = false;
@@ -273,8 +317,34 @@ public class AbstractIntakeApiHandler {
         }
     }
 
+    /**
+     * Whether the reporter thread should be blocked while backing off.
+     * If not, {@link #isBackingOff()} returns {@code true} until the backoff time has elapsed
+     * and the subclass is responsible for not making requests in the meantime.
+     */
+    protected boolean isBlockingBackoff() {
+        return true;
+    }
+
+    /**
+     * @return the remaining backoff time in milliseconds, or {@code 0} if not {@linkplain #isBackingOff() backing off}
+     */
+    protected long getRemainingBackoffMillis() {
+        if (!isBackingOff()) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(backoffUntilNanos - System.nanoTime()));
+    }
+
+    protected boolean isBackingOff() {
+        if (backingOff && System.nanoTime() - backoffUntilNanos >= 0) {
+            backingOff = false;
+        }
+        return backingOff;
+    }
+
     public boolean isHealthy() {
-        return healthy;
+        return healthy && !isBackingOff();
     }
 
     public void close() {
@@ -22,6 +22,8 @@ import co.elastic.apm.agent.common.util.Version;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.ServerlessConfiguration;
 import co.elastic.apm.agent.report.ssl.SslUtils;
+import co.elastic.apm.agent.report.transport.HttpConnectionPool;
+import co.elastic.apm.agent.report.transport.KeepAliveHttpURLConnection;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.UrlConnectionUtils;
@@ -85,6 +87,7 @@ public class ApmServerClient {
     private volatile Future<Version> apmServerVersion;
     private final AtomicInteger errorCount = new AtomicInteger();
     private final ApmServerHealthChecker healthChecker;
+    private final HttpConnectionPool connectionPool = new HttpConnectionPool();
 
     private final String userAgent;
 
@@ -143,12 +146,41 @@ public class ApmServerClient {
         return copy;
     }
 
+    /**
+     * Closes the idle persistent connections to the APM Server.
+     * Should be called after the reporter has been closed, as requests that are still in flight release their connections to the pool.
+     */
+    public void close() {
+        connectionPool.close();
+    }
+
+    HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Starts a request to the current APM Server which is used to send events.
+     * <p>
+     * Depending on {@link ReporterConfiguration#getIntakeTransport()}, the returned connection is either a
+     * {@link KeepAliveHttpURLConnection} or a regular {@link HttpURLConnection}.
+     * </p>
+     *
+     * @param relativePath the APM Server path
+     * @return the connection, or {@code null} if no APM Server URL is configured
+     */
     @Nullable
     HttpURLConnection startRequest(String relativePath) throws IOException {
         URL url = appendPathToCurrentUrl(relativePath);
         if (url == null) {
             return null;
         }
+        if (reporterConfiguration.getIntakeTransport() == ReporterConfiguration.IntakeTransport.KEEP_ALIVE && KeepAliveHttpURLConnection.isSupported(url)) {
+            boolean verifyServerCert = reporterConfiguration.isVerifyServerCert();
+            SSLSocketFactory sslSocketFactory = SslUtils.getSSLSocketFactory(verifyServerCert);
+            if (!"https".equals(url.getProtocol()) || sslSocketFactory != null) {
+                return configureConnection(new KeepAliveHttpURLConnection(url, connectionPool, sslSocketFactory, verifyServerCert));
+            }
+        }
         return startRequestToUrl(url);
     }
 
@@ -169,7 +201,10 @@ public class ApmServerClient {
                 httpsConnection.setSSLSocketFactory(sslSocketFactory);
             }
         }
+        return configureConnection((HttpURLConnection) connection);
+    }
 
+    private HttpURLConnection configureConnection(HttpURLConnection connection) {
         String secretToken = reporterConfiguration.getSecretToken();
         String apiKey = reporterConfiguration.getApiKey();
         String authHeaderValue = null;
@@ -187,7 +222,7 @@ public class ApmServerClient {
         connection.setRequestProperty("User-Agent", userAgent);
         connection.setConnectTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
         connection.setReadTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        return (HttpURLConnection) connection;
+        return connection;
     }
 
     @Nullable
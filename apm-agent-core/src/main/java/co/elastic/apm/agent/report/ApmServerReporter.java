@@ -145,6 +145,19 @@ public class ApmServerReporter implements Reporter {
                              ObjectPoolFactory poolFactory
 
     ) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, coreConfiguration, reportingEventHandler, monitor, apmServer, serializer,
+            poolFactory, "server-reporter");
+    }
+
+    ApmServerReporter(boolean dropTransactionIfQueueFull,
+                      ReporterConfiguration reporterConfiguration,
+                      CoreConfiguration coreConfiguration,
+                      ReportingEventHandler reportingEventHandler,
+                      ReporterMonitor monitor,
+                      ApmServerClient apmServer,
+                      DslJsonSerializer serializer,
+                      ObjectPoolFactory poolFactory,
+                      String threadName) {
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
         this.syncReport = reporterConfiguration.isReportSynchronously();
         this.monitor = monitor;
@@ -152,7 +165,7 @@ public class ApmServerReporter implements Reporter {
         disruptor = new Disruptor<>(
             new TransactionEventFactory(),
             MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()),
-            new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
+            new ExecutorUtils.SingleNamedThreadFactory(threadName),
             ProducerType.MULTI,
             new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
         this.reportingEventHandler = reportingEventHandler;
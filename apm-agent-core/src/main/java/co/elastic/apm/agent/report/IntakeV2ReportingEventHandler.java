@@ -20,14 +20,17 @@ package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.SpillLog;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
 import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
 
 import javax.annotation.Nullable;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +48,13 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     private static final Logger logsSupportLogger = LoggerUtils.logOnce(LoggerFactory.getLogger(IntakeV2ReportingEventHandler.class));
 
+    /**
+     * The queue fill above which events are spilled instead of being sent,
+     * so that the reporter thread keeps up with the application threads instead of them dropping events
+     */
+    static final double SPILL_QUEUE_FILL = 0.9;
+    private static final ReportingEvent.ReportingEventType[] EVENT_TYPES = ReportingEvent.ReportingEventType.values();
+
     private final ProcessorEventHandler processorEventHandler;
     private final ScheduledExecutorService timeoutTimer;
     @Nullable
@@ -57,15 +67,39 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     private final DslJson<Object> dslJson;
 
+    /**
+     * Stores serialized events while the APM Server is not available or the queue is about to overflow, {@code null} if spilling is disabled
+     */
+    @Nullable
+    private final SpillLog spillLog;
+    /**
+     * Serializes events that are spilled to the {@link #spillLog}, {@code null} if spilling is disabled
+     */
+    @Nullable
+    private final DslJsonSerializer.Writer spillSerializer;
+    private byte[] replayBuffer = new byte[0];
+    /**
+     * The spilled events that have been replayed as part of the current request
+     */
+    private final ReportingEventCounter inflightReplayed = new ReportingEventCounter();
+    private long evicted;
+
     private long reported;
     private long dropped;
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, null);
+    }
+
+    public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient, @Nullable SpillLog spillLog) {
         super(reporterConfiguration, payloadSerializer, apmServerClient);
         this.processorEventHandler = processorEventHandler;
         this.dslJson = new DslJson<>(new DslJson.Settings<>());
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
+        this.spillLog = spillLog;
+        this.spillSerializer = spillLog != null ? payloadSerializer.newWriter() : null;
     }
 
     @Override
@@ -106,7 +140,8 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void dispatchEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
         switch (event.getType()) {
             case WAKEUP:
-                // wakeup silently ignored
+                // replays spilled events even if no new events arrive
+                replayPendingEvents(event);
                 break;
             case MAKE_FLUSH_REQUEST:
                 endRequest();
@@ -138,13 +173,68 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         processorEventHandler.onEvent(event, sequence, endOfBatch);
+        if (spillLog == null) {
+            sendEvent(event);
+        } else if (shouldSpill(spillLog)) {
+            if (spill(event, spillLog)) {
+                replayPendingEvents(event);
+            } else if (!isBackingOff() && !spillLog.hasUnread()) {
+                sendEvent(event);
+            } else {
+                // sending the event now would overtake the older events that are still in the spill log
+                dropEvent(event);
+            }
+        } else {
+            sendEvent(event);
+        }
+
+        if (shouldEndRequest()) {
+            endRequest();
+            replayPendingEvents(event);
+        }
+    }
+
+    /**
+     * Events are only spilled while the APM Server is not available, or while the queue is about to overflow.
+     * Otherwise, they are sent directly, unless older events that have been spilled are still waiting to be sent,
+     * as sending them directly would change the order of the events.
+     */
+    private boolean shouldSpill(SpillLog spillLog) {
+        return isBackingOff() || spillLog.hasUnread() || isQueueOverflowing();
+    }
+
+    private boolean isQueueOverflowing() {
+        return getQueueFill() >= SPILL_QUEUE_FILL;
+    }
+
+    /**
+     * Sends the spilled events which have not been read yet, in as many requests as necessary
+     */
+    private void replayPendingEvents(ReportingEvent event) {
+        while (isReplayPending()) {
+            replaySpilledEvents(event);
+            if (!shouldEndRequest()) {
+                break;
+            }
+            endRequest();
+        }
+    }
+
+    private void dropEvent(ReportingEvent event) {
+        dropped++;
+        if (reporter != null) {
+            reporter.getReporterMonitor().eventDroppedAfterDequeue(event.getType());
+        }
+    }
+
+    private void sendEvent(ReportingEvent event) {
         try {
             inflightEvents.increment(event.getType());
             if (connection == null) {
                 connection = startRequest(INTAKE_V2_URL);
             }
             if (connection != null) {
-                writeEvent(event);
+                writeEvent(event, payloadSerializer);
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Failed to get APM server connection, dropping event: {}", event);
@@ -158,9 +248,62 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         } catch (Exception e) {
             handleConnectionError(event, e);
         }
+    }
 
-        if (shouldEndRequest()) {
-            endRequest();
+    /**
+     * @return {@code true}, if the event has been appended to the spill log,
+     * {@code false} if it could not be appended, for example because it's larger than a segment of the spill log
+     */
+    private boolean spill(ReportingEvent event, SpillLog spillLog) {
+        if (spillSerializer == null) {
+            return false;
+        }
+        // the spill serializer has no output stream so that the JsonWriter buffers the whole event
+        JsonWriter jw = spillSerializer.getJsonWriter();
+        // the event type prefixes the serialized event, so that replayed events can be counted by type
+        jw.writeByte((byte) event.getType().ordinal());
+        writeEvent(event, spillSerializer);
+        boolean spilled = jw.size() == 1 || spillLog.append(jw.getByteBuffer(), 0, jw.size());
+        jw.reset();
+        long evictedRecords = spillLog.getEvictedRecords();
+        dropped += evictedRecords - evicted;
+        evicted = evictedRecords;
+        return spilled;
+    }
+
+    private boolean isReplayPending() {
+        return spillLog != null && spillLog.hasUnread() && !isBackingOff() && !isQueueOverflowing();
+    }
+
+    /**
+     * Starts a request, which replays the spilled events, or continues replaying into the current request.
+     */
+    private void replaySpilledEvents(ReportingEvent event) {
+        try {
+            if (connection == null) {
+                connection = startRequest(INTAKE_V2_URL);
+            } else {
+                replaySpilledEventsIntoRequest();
+            }
+        } catch (Exception e) {
+            handleConnectionError(event, e);
+        }
+    }
+
+    private void replaySpilledEventsIntoRequest() {
+        if (spillLog == null) {
+            return;
+        }
+        ByteBuffer record;
+        while (!shouldEndRequest() && (record = spillLog.readNext()) != null) {
+            ReportingEvent.ReportingEventType type = EVENT_TYPES[record.get()];
+            int length = record.remaining();
+            if (replayBuffer.length < length) {
+                replayBuffer = new byte[Math.max(length, replayBuffer.length * 2)];
+            }
+            record.get(replayBuffer, 0, length);
+            payloadSerializer.writeBytes(replayBuffer, length);
+            inflightReplayed.increment(type);
         }
     }
 
@@ -170,6 +313,14 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         endRequestExceptionally();
     }
 
+    @Override
+    protected double getQueueFill() {
+        if (reporter == null) {
+            return 0;
+        }
+        return reporter.getQueueElementCount() / (double) reporter.getQueueCapacity();
+    }
+
     /**
      * Returns the number of bytes already serialized and waiting in the underlying serializer's buffer.
      *
@@ -179,19 +330,19 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         return payloadSerializer.getBufferSize();
     }
 
-    private void writeEvent(ReportingEvent event) {
+    private void writeEvent(ReportingEvent event, DslJsonSerializer.Writer serializer) {
         if (event.getTransaction() != null) {
-            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            serializer.serializeTransactionNdJson(event.getTransaction());
         } else if (event.getSpan() != null) {
-            payloadSerializer.serializeSpanNdJson(event.getSpan());
+            serializer.serializeSpanNdJson(event.getSpan());
         } else if (event.getError() != null) {
-            payloadSerializer.serializeErrorNdJson(event.getError());
+            serializer.serializeErrorNdJson(event.getError());
         } else if (event.getJsonWriter() != null) {
-            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+            serializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
         } else if (event.getBytesLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getBytesLog());
+            serializer.serializeLogNdJson(event.getBytesLog());
         } else if (event.getStringLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getStringLog());
+            serializer.serializeLogNdJson(event.getStringLog());
         }
     }
 
@@ -216,30 +367,78 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 }
                 timeoutTimer.schedule(timeoutTask, requestTimeoutMillis, TimeUnit.MILLISECONDS);
             }
+            this.connection = connection;
+            replaySpilledEventsIntoRequest();
         }
         return connection;
     }
 
+    @Override
+    protected boolean isBlockingBackoff() {
+        // when spilling, the reporter thread must keep consuming events while backing off
+        return spillLog == null;
+    }
+
     @Override
     protected void onRequestSuccess(long bytesWritten) {
-        long totalCount = inflightEvents.getTotalCount();
+        ReportingEventCounter requestEvents = getRequestEvents();
+        long totalCount = requestEvents.getTotalCount();
         reported += totalCount;
+        if (spillLog != null) {
+            spillLog.commit();
+        }
         if (reporter != null) {
-            reporter.getReporterMonitor().requestFinished(new ReportingEventCounter(inflightEvents), totalCount, bytesWritten, true);
+            reporter.getReporterMonitor().requestFinished(requestEvents, totalCount, bytesWritten, true);
         }
         inflightEvents.reset();
+        inflightReplayed.reset();
         super.onRequestSuccess(bytesWritten);
     }
 
     @Override
     protected void onConnectionError(@Nullable Integer responseCode, @Nullable String responseBody, long bytesWritten) {
         long accepted = readAccepted(responseBody);
-        dropped += inflightEvents.getTotalCount() - accepted;
+        ReportingEventCounter requestEvents = getRequestEvents();
+        long replayed = inflightReplayed.getTotalCount();
+        if (spillLog != null) {
+            if (isRetryable(responseCode)) {
+                // replayed events will be replayed again, which may lead to duplicates if some have been accepted
+                spillLog.rollback();
+            } else {
+                // the APM Server would reject the events again
+                dropped += Math.max(0, replayed - accepted);
+                spillLog.commit();
+            }
+        }
+        // the accepted events are attributed to the replayed events first
+        dropped += Math.max(0, inflightEvents.getTotalCount() - Math.max(0, accepted - replayed));
         if (reporter != null) {
-            reporter.getReporterMonitor().requestFinished(new ReportingEventCounter(inflightEvents), accepted, bytesWritten, false);
+            reporter.getReporterMonitor().requestFinished(requestEvents, accepted, bytesWritten, false);
         }
         inflightEvents.reset();
+        inflightReplayed.reset();
         super.onConnectionError(responseCode, responseBody, bytesWritten);
+        if (spillLog != null && timeoutTask != null && isBackingOff()) {
+            // makes sure spilled events are replayed after the backoff, even if there are no new events
+            timeoutTimer.schedule(timeoutTask, getRemainingBackoffMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the events of the current request, including the replayed ones
+     */
+    private ReportingEventCounter getRequestEvents() {
+        ReportingEventCounter requestEvents = new ReportingEventCounter(inflightEvents);
+        requestEvents.addAll(inflightReplayed);
+        return requestEvents;
+    }
+
+    /**
+     * @return whether the events of a request that failed with the provided response code can be sent again
+     */
+    private static boolean isRetryable(@Nullable Integer responseCode) {
+        // no response, request timeout, too many requests, or server errors like 503 queue full
+        return responseCode == null || responseCode < 400 || responseCode == 408 || responseCode == 429 || responseCode >= 500;
     }
 
     private long readAccepted(@Nullable String responseBody) {
@@ -271,6 +470,9 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         logger.info("Reported events: {}", reported);
         logger.info("Dropped events: {}", dropped);
         timeoutTimer.shutdownNow();
+        if (spillLog != null) {
+            spillLog.close();
+        }
     }
 
     /**
@@ -23,11 +23,10 @@ import co.elastic.apm.agent.tracer.configuration.ByteValueConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
-import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
@@ -35,7 +34,9 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isInRange;
 import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isNotInRange;
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.min;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider implements co.elastic.apm.agent.tracer.configuration.ReporterConfiguration {
 
@@ -155,6 +156,111 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<Integer> reporterShards = ConfigurationOption.integerOption()
+        .key("reporter_shards")
+        .tags("added[1.45.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of independent reporter threads that serialize, compress and send events to the APM Server.\n" +
+            "\n" +
+            "Each shard has its own queue of size <<config-max-queue-size>> and its own connection to the APM Server.\n" +
+            "Events are routed to a shard based on their trace id so that all events of a trace are sent over the same stream.\n" +
+            "\n" +
+            "Increasing this value can help on hosts with many cores which produce more events than a single reporter thread can " +
+            "keep up with. Note that each shard keeps its own buffers and an additional connection open to the APM Server.")
+        .addValidator(min(1))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<IntakeTransport> intakeTransport = ConfigurationOption.enumOption(IntakeTransport.class)
+        .key("intake_transport")
+        .tags("added[1.45.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The HTTP client used to send events to the APM Server.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "\n" +
+            "* 'url_connection': Uses the JDK's `HttpURLConnection`.\n" +
+            "* 'keep_alive': Uses a persistent HTTP/1.1 connection per reporter thread which is kept open across intake requests. " +
+            "The connection uses blocking I/O and sends one request at a time. " +
+            "Request bodies are written from direct buffers with chunked transfer encoding. " +
+            "Falls back to 'url_connection' when a proxy is configured for the APM Server URL.\n" +
+            "\n" +
+            "This option is case-insensitive.")
+        .dynamic(false)
+        .buildWithDefault(IntakeTransport.URL_CONNECTION);
+
+    private final ConfigurationOption<IntakeCompression> intakeCompression = ConfigurationOption.enumOption(IntakeCompression.class)
+        .key("intake_compression")
+        .tags("added[1.45.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The compression codec for the events sent to the APM Server.\n" +
+            "\n" +
+            "Valid values are:\n" +
+            "\n" +
+            "* 'deflate': zlib compression (`Content-Encoding: deflate`).\n" +
+            "* 'gzip': gzip compression (`Content-Encoding: gzip`).\n" +
+            "* 'fast': zlib compression that only applies Huffman coding, skipping the search for repeated strings. " +
+            "This uses considerably less CPU on the reporter thread at the cost of a lower compression ratio.\n" +
+            "* 'none': no compression.\n" +
+            "\n" +
+            "Regardless of this setting, events sent to an APM Server on localhost are not compressed.\n" +
+            "\n" +
+            "This option is case-insensitive.")
+        .dynamic(false)
+        .buildWithDefault(IntakeCompression.DEFLATE);
+
+    private final ConfigurationOption<Integer> intakeCompressionLevel = ConfigurationOption.integerOption()
+        .key("intake_compression_level")
+        .tags("added[1.45.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The compression level, from 1 (fastest) to 9 (best compression).\n" +
+            "When <<config-intake-compression-adaptive, `intake_compression_adaptive`>> is enabled, this is the initial and the maximum level.")
+        .addValidator(isInRange(1, 9))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> intakeCompressionAdaptive = ConfigurationOption.booleanOption()
+        .key("intake_compression_adaptive")
+        .tags("added[1.45.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If enabled, the compression level is adjusted after each request to the APM Server, " +
+            "between 0 and <<config-intake-compression-level, `intake_compression_level`>>.\n" +
+            "At level 0, events are sent in stored deflate blocks, without compressing them.\n" +
+            "With the default `intake_compression_level` of 1, the reporter therefore switches between the fastest compression and no compression.\n" +
+            "The level is lowered when the reporter thread is busy compressing or when the reporter queue fills up, " +
+            "and raised again when the reporter is mostly idle.\n" +
+            "The current level is reported as the `agent.background.compression.level` metric " +
+            "if <<config-agent-background-overhead-metrics, `agent_background_overhead_metrics`>> is enabled.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<String> spillDirectory = ConfigurationOption.stringOption()
+        .key("spill_directory")
+        .tags("added[1.45.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("A directory in which events are temporarily stored while the APM Server is not available.\n" +
+            "Instead of dropping events during the backoff after a failed request, the agent appends them to memory-mapped files " +
+            "in this directory and sends them once the APM Server is available again.\n" +
+            "Events are also stored in this directory while the reporter queue is almost full, so that they are not dropped when the application creates them faster than they can be sent.\n" +
+            "The files are deleted when the agent shuts down, events are not sent across restarts of the application.\n" +
+            "\n" +
+            "When not set, spilling is disabled.\n" +
+            "The directory must not be shared by multiple applications.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> spillMaxSize = ByteValueConverter.byteOption()
+        .key("spill_max_size")
+        .tags("added[1.45.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum disk space used to store events in the <<config-spill-directory, `spill_directory`>>.\n" +
+            "When this limit is reached, the oldest events are dropped.\n" +
+            "The limit is divided evenly across the <<config-reporter-shards, `reporter_shards`>>.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("100mb"));
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -202,7 +308,7 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -279,6 +385,35 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
         return maxQueueSize.get();
     }
 
+    public int getReporterShards() {
+        return reporterShards.get();
+    }
+
+    public IntakeTransport getIntakeTransport() {
+        return intakeTransport.get();
+    }
+
+    public IntakeCompression getIntakeCompression() {
+        return intakeCompression.get();
+    }
+
+    public int getIntakeCompressionLevel() {
+        return intakeCompressionLevel.get();
+    }
+
+    public boolean isIntakeCompressionAdaptive() {
+        return intakeCompressionAdaptive.get();
+    }
+
+    @Nullable
+    public String getSpillDirectory() {
+        return spillDirectory.get();
+    }
+
+    public long getSpillMaxSize() {
+        return spillMaxSize.get().getBytes();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -313,4 +448,26 @@ public class ReporterConfiguration extends ConfigurationOptionProvider implement
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum IntakeTransport {
+        URL_CONNECTION,
+        KEEP_ALIVE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum IntakeCompression {
+        DEFLATE,
+        GZIP,
+        FAST,
+        NONE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
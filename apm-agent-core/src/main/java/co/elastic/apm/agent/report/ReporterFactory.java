@@ -22,9 +22,14 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.SpillLog;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ReporterFactory {
 
@@ -36,17 +41,51 @@ public class ReporterFactory {
 
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         CoreConfiguration coreConfig = configurationRegistry.getConfig(CoreConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, payloadSerializer, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, coreConfig, reportingEventHandler, monitor, apmServerClient, payloadSerializer, poolFactory);
+        int shardCount = reporterConfiguration.getReporterShards();
+        if (shardCount <= 1) {
+            ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, payloadSerializer, apmServerClient,
+                openSpillLog(reporterConfiguration, null, reporterConfiguration.getSpillMaxSize()));
+            return withTailSampling(coreConfig, apmServerClient,
+                new ApmServerReporter(true, reporterConfiguration, coreConfig, reportingEventHandler, monitor, apmServerClient, payloadSerializer, poolFactory));
+        }
+        List<ApmServerReporter> shards = new ArrayList<>(shardCount);
+        // the shards share the disk space of the spill directory
+        long spillMaxSizePerShard = reporterConfiguration.getSpillMaxSize() / shardCount;
+        for (int i = 0; i < shardCount; i++) {
+            // each handler has its own serializer writer, deflater and connection
+            ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, payloadSerializer, apmServerClient,
+                openSpillLog(reporterConfiguration, "shard-" + i, spillMaxSizePerShard));
+            shards.add(new ApmServerReporter(true, reporterConfiguration, coreConfig, reportingEventHandler, monitor.forShard(i), apmServerClient,
+                payloadSerializer, poolFactory, "server-reporter-" + i));
+        }
+        return withTailSampling(coreConfig, apmServerClient, new ShardedApmServerReporter(shards));
+    }
+
+    private Reporter withTailSampling(CoreConfiguration coreConfig, ApmServerClient apmServerClient, Reporter reporter) {
+        if (!coreConfig.isTailSamplingEnabled()) {
+            return reporter;
+        }
+        return new TailSamplingReporter(reporter, coreConfig, apmServerClient);
     }
 
     @Nonnull
     private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            DslJsonSerializer payloadSerializer,
-                                                           ApmServerClient apmServerClient) {
+                                                           ApmServerClient apmServerClient,
+                                                           @Nullable SpillLog spillLog) {
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, spillLog);
+    }
+
+    @Nullable
+    private SpillLog openSpillLog(ReporterConfiguration reporterConfiguration, @Nullable String shardDirectory, long maxBytes) {
+        String spillDirectory = reporterConfiguration.getSpillDirectory();
+        if (spillDirectory == null || spillDirectory.isEmpty()) {
+            return null;
+        }
+        File directory = shardDirectory != null ? new File(spillDirectory, shardDirectory) : new File(spillDirectory);
+        return SpillLog.open(directory, maxBytes);
     }
 
 }
@@ -30,6 +30,14 @@ public interface ReporterMonitor {
 
     void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success);
 
+    /**
+     * Creates a monitor for a single shard of a {@link ShardedApmServerReporter}.
+     * The returned monitor is expected to report to this monitor, while additionally tracking the queue of the shard.
+     *
+     * @param shard the index of the shard
+     * @return a monitor for the given shard
+     */
+    ReporterMonitor forShard(int shard);
 
     ReporterMonitor NOOP = new ReporterMonitor() {
 
@@ -57,5 +65,10 @@ public interface ReporterMonitor {
         public void requestFinished(ReportingEventCounter contents, long acceptedEventCount, long bytesWritten, boolean success) {
 
         }
+
+        @Override
+        public ReporterMonitor forShard(int shard) {
+            return this;
+        }
     };
 }
@@ -0,0 +1,166 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import com.dslplatform.json.JsonWriter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Reporter} which distributes the events to multiple independent {@link ApmServerReporter}s (shards).
+ * <p>
+ * Each shard has its own ring buffer, reporter thread, serializer, {@link java.util.zip.Deflater} and connection to the APM Server.
+ * This allows to use multiple cores for serializing, compressing and sending events.
+ * </p>
+ * <p>
+ * Transactions, spans and errors are routed by their trace id so that all events of a trace end up on the same stream.
+ * Metrics and logs are routed based on the reporting thread, which preserves the ordering of logs written by a single thread.
+ * </p>
+ */
+public class ShardedApmServerReporter implements Reporter {
+
+    private final ApmServerReporter[] shards;
+
+    public ShardedApmServerReporter(List<ApmServerReporter> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards.toArray(new ApmServerReporter[0]);
+    }
+
+    @Override
+    public void start() {
+        for (ApmServerReporter shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void reportPartialTransaction(Transaction transaction) {
+        getShard(transaction.getTraceContext().getTraceId()).reportPartialTransaction(transaction);
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        getShard(transaction.getTraceContext().getTraceId()).report(transaction);
+    }
+
+    @Override
+    public void report(Span span) {
+        getShard(span.getTraceContext().getTraceId()).report(span);
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        getShard(error.getTraceContext().getTraceId()).report(error);
+    }
+
+    @Override
+    public void reportMetrics(JsonWriter jsonWriter) {
+        getShardForCurrentThread().reportMetrics(jsonWriter);
+    }
+
+    @Override
+    public void reportLog(String log) {
+        getShardForCurrentThread().reportLog(log);
+    }
+
+    @Override
+    public void reportLog(byte[] log) {
+        getShardForCurrentThread().reportLog(log);
+    }
+
+    @Override
+    public void reportAgentLog(byte[] log) {
+        getShardForCurrentThread().reportAgentLog(log);
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (ApmServerReporter shard : shards) {
+            dropped += shard.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getReported() {
+        long reported = 0;
+        for (ApmServerReporter shard : shards) {
+            reported += shard.getReported();
+        }
+        return reported;
+    }
+
+    /**
+     * Flushes all shards, sharing the provided timeout across them.
+     * If requested, the flush request to the APM Server is only made by the last shard,
+     * after all other shards have ended their current requests.
+     */
+    @Override
+    public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+        long thresholdNs = timeout < 0 ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(timeout);
+        boolean success = true;
+        for (int i = 0; i < shards.length; i++) {
+            long remainingNs;
+            if (timeout < 0) {
+                remainingNs = -1;
+            } else {
+                remainingNs = Math.max(0, thresholdNs - System.nanoTime());
+            }
+            boolean lastShard = i == shards.length - 1;
+            success &= shards[i].flush(remainingNs, TimeUnit.NANOSECONDS, followupWithFlushRequest && lastShard);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean flush() {
+        return flush(-1, TimeUnit.NANOSECONDS, false);
+    }
+
+    @Override
+    public void close() {
+        for (ApmServerReporter shard : shards) {
+            shard.close();
+        }
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    ApmServerReporter getShard(Id traceId) {
+        return shards[getShardIndex(traceId.getLeastSignificantBits(), shards.length)];
+    }
+
+    private ApmServerReporter getShardForCurrentThread() {
+        return shards[getShardIndex(Thread.currentThread().getId(), shards.length)];
+    }
+
+    static int getShardIndex(long routingKey, int shardCount) {
+        return (int) ((routingKey & Long.MAX_VALUE) % shardCount);
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TailSamplingBuffer;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.Outcome;
+import com.dslplatform.json.JsonWriter;
+import org.stagemonitor.configuration.ConfigurationOption;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Reporter} which makes the sampling decision for locally rooted traces when the transaction ends, rather than when it starts.
+ * <p>
+ * The spans of sampled transactions that have been started by this service are buffered in the {@link TailSamplingBuffer} of their transaction.
+ * When the transaction ends, the trace is kept if
+ * </p>
+ * <ul>
+ *     <li>an error has been captured within the transaction, or the outcome of the transaction or one of its spans is {@link Outcome#FAILURE},</li>
+ *     <li>the duration is at least the configured percentile of the durations in the previous time window, or</li>
+ *     <li>the trace is sampled by the fallback rate.</li>
+ * </ul>
+ * <p>
+ * Kept traces are forwarded to the delegate reporter, including spans that end after the transaction.
+ * The spans of dropped traces are discarded, while their transactions are reported as non-sampled transactions
+ * if the APM Server {@linkplain ApmServerClient#supportsKeepingUnsampledTransaction() supports} them,
+ * just like transactions that have not been sampled when they started.
+ * Traces that have been continued from an upstream service are forwarded as-is, as their sampling decision has already been propagated.
+ * </p>
+ * <p>
+ * The total number of buffered spans is strictly limited.
+ * When the limit is reached, the trace whose spans have been buffered for the longest time is decided on early, based on the fallback rate,
+ * which releases its buffered spans.
+ * This also makes sure that transactions which never end can't hold on to buffer space indefinitely.
+ * The transaction of an evicted trace is still kept if it meets one of the other criteria when it ends, but spans that have been discarded are lost.
+ * </p>
+ */
+public class TailSamplingReporter implements Reporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSamplingReporter.class);
+    static final long DURATION_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Reporter delegate;
+    private final ApmServerClient apmServerClient;
+    private final int maxBufferedSpans;
+    private final ConfigurationOption<Double> durationPercentile;
+    private final ConfigurationOption<Double> fallbackRate;
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+    private final AtomicLong keptTraces = new AtomicLong();
+    private final AtomicLong droppedTraces = new AtomicLong();
+    private final AtomicLong evictedTraces = new AtomicLong();
+    /**
+     * Guards the list of non-empty buffers, which is ordered by the time their first span has been buffered.
+     * May be acquired while holding the lock of a buffer, but not the other way around.
+     */
+    private final Object listLock = new Object();
+    @Nullable
+    private TailSamplingBuffer oldest;
+    @Nullable
+    private TailSamplingBuffer newest;
+    private final Histogram durations = new Histogram();
+    private final long durationWindowNanos;
+    private final AtomicLong nextDurationWindowNanos;
+    /**
+     * The duration percentile of the previous window, in microseconds
+     */
+    private volatile double durationThreshold = Double.MAX_VALUE;
+
+    public TailSamplingReporter(Reporter delegate, CoreConfiguration coreConfiguration, ApmServerClient apmServerClient) {
+        this(delegate, apmServerClient, coreConfiguration.getTailSamplingMaxBufferedSpans(), coreConfiguration.getTailSamplingDurationPercentile(),
+            coreConfiguration.getTailSamplingFallbackRate(), DURATION_WINDOW_NANOS);
+    }
+
+    TailSamplingReporter(Reporter delegate, ApmServerClient apmServerClient, int maxBufferedSpans, ConfigurationOption<Double> durationPercentile,
+                         ConfigurationOption<Double> fallbackRate, long durationWindowNanos) {
+        this.delegate = delegate;
+        this.apmServerClient = apmServerClient;
+        this.maxBufferedSpans = maxBufferedSpans;
+        this.durationPercentile = durationPercentile;
+        this.fallbackRate = fallbackRate;
+        this.durationWindowNanos = durationWindowNanos;
+        this.nextDurationWindowNanos = new AtomicLong(System.nanoTime() + durationWindowNanos);
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    @Override
+    public void reportPartialTransaction(Transaction transaction) {
+        delegate.reportPartialTransaction(transaction);
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        if (!isTailSampled(transaction)) {
+            delegate.report(transaction);
+            return;
+        }
+        boolean keep = shouldKeep(transaction, System.nanoTime());
+        TailSamplingBuffer buffer = transaction.getTailSamplingBuffer();
+        synchronized (buffer) {
+            int decision = buffer.getDecision();
+            if (decision == TailSamplingBuffer.UNDECIDED) {
+                decision = keep ? TailSamplingBuffer.KEEP : TailSamplingBuffer.DROP;
+                decide(buffer, decision);
+            }
+            // the spans of a trace that has been kept early have already been reported, so its transaction is needed
+            keep |= decision == TailSamplingBuffer.KEEP;
+        }
+        if (keep) {
+            keptTraces.incrementAndGet();
+            delegate.report(transaction);
+        } else {
+            logger.debug("Dropping transaction {} as it doesn't match any tail sampling criteria", transaction);
+            droppedTraces.incrementAndGet();
+            if (apmServerClient.supportsKeepingUnsampledTransaction()) {
+                transaction.convertToUnsampled();
+                delegate.report(transaction);
+            } else {
+                transaction.decrementReferences();
+            }
+        }
+    }
+
+    @Override
+    public void report(Span span) {
+        Transaction transaction = span.getParentTransaction();
+        // checks the sampling flag of the span, as the transaction may have been converted to a non-sampled one already
+        if (transaction == null || !span.isSampled() || !transaction.getTraceContext().isRoot()) {
+            delegate.report(span);
+            return;
+        }
+        TailSamplingBuffer buffer = transaction.getTailSamplingBuffer();
+        if (span.getOutcome() == Outcome.FAILURE) {
+            buffer.onErrorCaptured();
+        }
+        int decision;
+        synchronized (buffer) {
+            decision = buffer.getDecision();
+        }
+        if (decision != TailSamplingBuffer.UNDECIDED) {
+            // spans of decided traces, like spans that end after their transaction, are not buffered and must not evict other traces
+            dispatch(span, decision);
+            return;
+        }
+        // reserving without holding the lock of the buffer, as evicting another trace requires acquiring the lock of its buffer
+        boolean reserved = tryReserve() || evictUntilReserved();
+        synchronized (buffer) {
+            decision = buffer.getDecision();
+            if (decision == TailSamplingBuffer.UNDECIDED) {
+                if (reserved) {
+                    if (buffer.size() == 0) {
+                        link(buffer, transaction);
+                    }
+                    buffer.add(span);
+                    return;
+                }
+                // there's nothing else to evict, as all buffered spans belong to this trace or are just being released
+                decision = evict(transaction, buffer);
+            }
+        }
+        if (reserved) {
+            bufferedSpans.decrementAndGet();
+        }
+        dispatch(span, decision);
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        delegate.report(error);
+    }
+
+    @Override
+    public void reportMetrics(JsonWriter jsonWriter) {
+        delegate.reportMetrics(jsonWriter);
+    }
+
+    @Override
+    public void reportLog(String log) {
+        delegate.reportLog(log);
+    }
+
+    @Override
+    public void reportLog(byte[] log) {
+        delegate.reportLog(log);
+    }
+
+    @Override
+    public void reportAgentLog(byte[] log) {
+        delegate.reportAgentLog(log);
+    }
+
+    @Override
+    public long getDropped() {
+        return delegate.getDropped();
+    }
+
+    @Override
+    public long getReported() {
+        return delegate.getReported();
+    }
+
+    /**
+     * Flushes the delegate reporter.
+     * Spans of transactions which have not ended yet stay in the buffer, as there's no sampling decision for them yet.
+     */
+    @Override
+    public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+        return delegate.flush(timeout, unit, followupWithFlushRequest);
+    }
+
+    @Override
+    public boolean flush() {
+        return delegate.flush();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    int getBufferedSpans() {
+        return bufferedSpans.get();
+    }
+
+    long getKeptTraces() {
+        return keptTraces.get();
+    }
+
+    long getDroppedTraces() {
+        return droppedTraces.get();
+    }
+
+    long getEvictedTraces() {
+        return evictedTraces.get();
+    }
+
+    double getDurationThreshold() {
+        return durationThreshold;
+    }
+
+    private static boolean isTailSampled(Transaction transaction) {
+        return transaction.isSampled() && transaction.getTraceContext().isRoot();
+    }
+
+    private boolean shouldKeep(Transaction transaction, long nowNanos) {
+        if (transaction.getTailSamplingBuffer().isErrorCaptured() || transaction.getOutcome() == Outcome.FAILURE) {
+            return true;
+        }
+        long duration = transaction.getDuration();
+        boolean slow = durationPercentile.get() > 0 && duration >= getDurationThreshold(nowNanos);
+        durations.record(duration);
+        return slow || isSampledByFallbackRate(transaction.getTraceContext().getTraceId());
+    }
+
+    /**
+     * The threshold is the configured percentile of the durations of all locally rooted transactions within the previous window.
+     * It's re-calculated lazily by the first transaction that ends after the window has elapsed.
+     */
+    private double getDurationThreshold(long nowNanos) {
+        long nextWindow = nextDurationWindowNanos.get();
+        if (nowNanos - nextWindow >= 0 && nextDurationWindowNanos.compareAndSet(nextWindow, nowNanos + durationWindowNanos)) {
+            if (durations.hasContent()) {
+                durationThreshold = durations.getValueAtPercentile(durationPercentile.get());
+            }
+            durations.resetState();
+        }
+        return durationThreshold;
+    }
+
+    /**
+     * Uses a different hash of the trace id than the {@link co.elastic.apm.agent.impl.sampling.ProbabilitySampler},
+     * so that the fallback rate is independent of the head sampling decision.
+     */
+    boolean isSampledByFallbackRate(Id traceId) {
+        double rate = fallbackRate.get();
+        if (rate >= 1) {
+            return true;
+        }
+        long hash = traceId.getLeastSignificantBits() * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return (hash >>> 11) * 0x1.0p-53 < rate;
+    }
+
+    /**
+     * Evicts the oldest traces from the buffer until a span can be reserved.
+     *
+     * @return {@code true} if a span has been reserved, {@code false} if there are no more traces to evict
+     */
+    private boolean evictUntilReserved() {
+        Transaction transaction;
+        while ((transaction = pollOldest()) != null) {
+            try {
+                TailSamplingBuffer buffer = transaction.getTailSamplingBuffer();
+                synchronized (buffer) {
+                    if (buffer.getDecision() == TailSamplingBuffer.UNDECIDED) {
+                        evict(transaction, buffer);
+                    }
+                }
+            } finally {
+                transaction.decrementReferences();
+            }
+            if (tryReserve()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decides early, based on the fallback rate, to release the buffered spans. Must be called while holding the lock of the buffer.
+     */
+    private int evict(Transaction transaction, TailSamplingBuffer buffer) {
+        evictedTraces.incrementAndGet();
+        int decision = isSampledByFallbackRate(transaction.getTraceContext().getTraceId()) ? TailSamplingBuffer.KEEP : TailSamplingBuffer.DROP;
+        logger.debug("Tail sampling buffer is full, deciding early to {} trace of {}",
+            decision == TailSamplingBuffer.KEEP ? "keep" : "drop", transaction);
+        decide(buffer, decision);
+        return decision;
+    }
+
+    private void link(TailSamplingBuffer buffer, Transaction transaction) {
+        synchronized (listLock) {
+            buffer.setOwner(transaction);
+            buffer.setPrevious(newest);
+            buffer.setNext(null);
+            if (newest != null) {
+                newest.setNext(buffer);
+            } else {
+                oldest = buffer;
+            }
+            newest = buffer;
+        }
+    }
+
+    private void unlink(TailSamplingBuffer buffer) {
+        synchronized (listLock) {
+            if (buffer.getOwner() != null) {
+                unlinkUnsafe(buffer);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest buffer from the list.
+     * As the buffer still holds spans, which reference their transaction, the transaction can't have been recycled yet.
+     *
+     * @return the transaction of the oldest buffer, with an additional reference the caller has to decrement, or {@code null} if the list is empty
+     */
+    @Nullable
+    private Transaction pollOldest() {
+        synchronized (listLock) {
+            TailSamplingBuffer buffer = oldest;
+            if (buffer == null) {
+                return null;
+            }
+            Transaction transaction = buffer.getOwner();
+            transaction.incrementReferences();
+            unlinkUnsafe(buffer);
+            return transaction;
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #listLock}
+     */
+    private void unlinkUnsafe(TailSamplingBuffer buffer) {
+        TailSamplingBuffer previous = buffer.getPrevious();
+        TailSamplingBuffer next = buffer.getNext();
+        if (previous != null) {
+            previous.setNext(next);
+        } else {
+            oldest = next;
+        }
+        if (next != null) {
+            next.setPrevious(previous);
+        } else {
+            newest = previous;
+        }
+        buffer.setOwner(null);
+        buffer.setPrevious(null);
+        buffer.setNext(null);
+    }
+
+    private boolean tryReserve() {
+        int buffered;
+        do {
+            buffered = bufferedSpans.get();
+            if (buffered >= maxBufferedSpans) {
+                return false;
+            }
+        } while (!bufferedSpans.compareAndSet(buffered, buffered + 1));
+        return true;
+    }
+
+    /**
+     * Sets the decision and releases the buffered spans. Must be called while holding the lock of the buffer.
+     */
+    private void decide(TailSamplingBuffer buffer, int decision) {
+        buffer.setDecision(decision);
+        // unlinking before the spans are released, which may recycle the transaction
+        unlink(buffer);
+        int size = buffer.size();
+        for (int i = 0; i < size; i++) {
+            dispatch(buffer.get(i), decision);
+        }
+        buffer.clear();
+        bufferedSpans.addAndGet(-size);
+    }
+
+    private void dispatch(Span span, int decision) {
+        if (decision == TailSamplingBuffer.KEEP) {
+            delegate.report(span);
+        } else {
+            span.decrementReferences();
+        }
+    }
+}
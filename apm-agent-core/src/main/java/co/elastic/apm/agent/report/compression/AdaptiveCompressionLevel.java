@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakSet;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Adjusts the compression level of a reporter thread after each intake request, based on how busy the reporter is.
+ * <p>
+ * The level starts at the configured maximum.
+ * It is decreased if the reporter thread was busy for more than {@link #HIGH_CPU_UTILIZATION} of the request's duration,
+ * or if the reporter queue is filled by more than {@link #HIGH_QUEUE_FILL}, down to {@link #MIN_LEVEL},
+ * which stores the events without compressing them.
+ * It is increased again, up to the configured maximum, if the reporter thread was mostly idle and the queue is nearly empty.
+ * </p>
+ * <p>
+ * The current levels of all reporter threads are reported by {@link co.elastic.apm.agent.metrics.builtin.AgentOverheadMetrics}.
+ * </p>
+ */
+public class AdaptiveCompressionLevel {
+
+    /**
+     * {@link java.util.zip.Deflater#NO_COMPRESSION}
+     */
+    static final int MIN_LEVEL = 0;
+    static final double HIGH_CPU_UTILIZATION = 0.5;
+    static final double LOW_CPU_UTILIZATION = 0.2;
+    static final double HIGH_QUEUE_FILL = 0.5;
+    static final double LOW_QUEUE_FILL = 0.1;
+
+    private static final WeakSet<AdaptiveCompressionLevel> instances = WeakConcurrent.buildSet();
+
+    @Nullable
+    private final ThreadMXBean threadBean;
+    private final int maxLevel;
+    private volatile int level;
+    @Nullable
+    private volatile String threadPurpose;
+    private long requestStartedNanos;
+    private long requestStartedCpuNanos;
+
+    public AdaptiveCompressionLevel(int maxLevel) {
+        this(maxLevel, getThreadBean());
+    }
+
+    AdaptiveCompressionLevel(int maxLevel, @Nullable ThreadMXBean threadBean) {
+        this.maxLevel = Math.max(MIN_LEVEL, maxLevel);
+        this.level = this.maxLevel;
+        this.threadBean = threadBean;
+        instances.add(this);
+    }
+
+    @Nullable
+    private static ThreadMXBean getThreadBean() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!threadBean.isCurrentThreadCpuTimeSupported() || !threadBean.isThreadCpuTimeEnabled()) {
+            return null;
+        }
+        return threadBean;
+    }
+
+    /**
+     * @return all instances which have not been garbage collected yet
+     */
+    public static Iterable<AdaptiveCompressionLevel> getInstances() {
+        return instances;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the purpose of the reporter thread using this instance, as registered in {@link ExecutorUtils#getStartedThreads()},
+     * or {@code null} if no request has been started yet
+     */
+    @Nullable
+    public String getThreadPurpose() {
+        return threadPurpose;
+    }
+
+    /**
+     * Must be called by the reporter thread when starting a request.
+     */
+    public void onRequestStarted() {
+        if (threadPurpose == null) {
+            threadPurpose = ExecutorUtils.getStartedThreads().get(Thread.currentThread());
+        }
+        requestStartedNanos = System.nanoTime();
+        requestStartedCpuNanos = getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Must be called by the reporter thread when a request has ended.
+     *
+     * @param queueFill the share of the reporter queue capacity that is currently in use [0-1]
+     */
+    public void onRequestEnded(double queueFill) {
+        long elapsedNanos = System.nanoTime() - requestStartedNanos;
+        double cpuUtilization = 0;
+        if (threadBean != null && elapsedNanos > 0) {
+            cpuUtilization = (getCurrentThreadCpuTime() - requestStartedCpuNanos) / (double) elapsedNanos;
+        }
+        adjust(cpuUtilization, queueFill);
+    }
+
+    void adjust(double cpuUtilization, double queueFill) {
+        if (cpuUtilization >= HIGH_CPU_UTILIZATION || queueFill >= HIGH_QUEUE_FILL) {
+            level = Math.max(MIN_LEVEL, level - 1);
+        } else if (cpuUtilization <= LOW_CPU_UTILIZATION && queueFill <= LOW_QUEUE_FILL) {
+            level = Math.min(maxLevel, level + 1);
+        }
+    }
+
+    private long getCurrentThreadCpuTime() {
+        return threadBean != null ? threadBean.getCurrentThreadCpuTime() : 0L;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the body of intake API requests.
+ * <p>
+ * A codec is stateful and not thread safe.
+ * Each reporter thread has its own instance which is re-used for all requests and which is {@linkplain #reset() reset} after each request.
+ * </p>
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the value of the {@code Content-Encoding} header, or {@code null} if the request body is not compressed
+     */
+    @Nullable
+    String getContentEncoding();
+
+    /**
+     * Creates the stream to which the uncompressed request body is written.
+     * Closing the returned stream also closes the provided stream.
+     *
+     * @param out the request body stream of the connection
+     * @return the stream to which the uncompressed request body should be written
+     */
+    OutputStream createOutputStream(OutputStream out) throws IOException;
+
+    /**
+     * Sets the compression level, from {@code 0} (no compression) to {@code 9} (best compression),
+     * which applies to subsequent calls to {@link #createOutputStream(OutputStream)}.
+     * Codecs that don't support levels ignore this.
+     *
+     * @param level the compression level
+     */
+    void setLevel(int level);
+
+    /**
+     * @return the number of uncompressed bytes of the current request
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of bytes of the current request that have been written to the connection so far
+     */
+    long getBytesWritten();
+
+    /**
+     * Resets the state after a request has ended, so that the codec can be used for the next request.
+     */
+    void reset();
+}
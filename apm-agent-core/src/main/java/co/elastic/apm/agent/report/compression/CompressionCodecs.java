@@ -0,0 +1,47 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.report.ReporterConfiguration;
+
+import java.util.zip.Deflater;
+
+public class CompressionCodecs {
+
+    private CompressionCodecs() {
+    }
+
+    public static CompressionCodec create(ReporterConfiguration.IntakeCompression compression, int level) {
+        switch (compression) {
+            case NONE:
+                return none();
+            case GZIP:
+                return new GzipCodec(level);
+            case FAST:
+                return new DeflateCodec(level, Deflater.HUFFMAN_ONLY);
+            case DEFLATE:
+            default:
+                return new DeflateCodec(level, Deflater.DEFAULT_STRATEGY);
+        }
+    }
+
+    public static CompressionCodec none() {
+        return new NoCompressionCodec();
+    }
+}
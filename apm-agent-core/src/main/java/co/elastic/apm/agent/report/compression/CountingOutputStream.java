@@ -16,7 +16,7 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-package co.elastic.apm.agent.report;
+package co.elastic.apm.agent.report.compression;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
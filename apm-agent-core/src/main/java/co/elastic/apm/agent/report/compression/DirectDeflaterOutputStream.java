@@ -0,0 +1,191 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.report.transport.DirectBufferOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A replacement for {@link DeflaterOutputStream} that avoids copying the compressed output if possible.
+ * <p>
+ * If the target stream is a {@link DirectBufferOutputStream} and the JVM supports {@code Deflater#deflate(ByteBuffer, int)} (Java 11+),
+ * the compressed output is written straight into the direct buffer that is sent to the socket.
+ * Otherwise, this falls back to deflating into a re-usable {@code byte[]}, just like {@link DeflaterOutputStream} does.
+ * </p>
+ * <p>
+ * The input is handed over to the {@link Deflater} via {@link Deflater#setInput(byte[], int, int)},
+ * which references the serializer's buffer without copying it.
+ * </p>
+ * <p>
+ * The number of compressed bytes can be retrieved via {@link Deflater#getBytesWritten()}.
+ * Just as with {@link DeflaterOutputStream}, the {@link Deflater} is not {@linkplain Deflater#end() ended} when closing this stream.
+ * </p>
+ */
+class DirectDeflaterOutputStream extends OutputStream {
+
+    @Nullable
+    private static final MethodHandle deflateToByteBuffer = getDeflateToByteBufferMethodHandle();
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    @Nullable
+    private final DirectBufferOutputStream directOut;
+    @Nullable
+    private final byte[] buf;
+    private final byte[] singleByte = new byte[1];
+    private boolean finished;
+    private boolean closed;
+
+    DirectDeflaterOutputStream(OutputStream out, Deflater deflater) {
+        this(out, deflater, deflateToByteBuffer != null);
+    }
+
+    // visible for testing
+    DirectDeflaterOutputStream(OutputStream out, Deflater deflater, boolean allowDirectOutput) {
+        this.out = out;
+        this.deflater = deflater;
+        if (allowDirectOutput && out instanceof DirectBufferOutputStream) {
+            this.directOut = (DirectBufferOutputStream) out;
+            this.buf = null;
+        } else {
+            this.directOut = null;
+            this.buf = new byte[512];
+        }
+    }
+
+    @Nullable
+    private static MethodHandle getDeflateToByteBufferMethodHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Deflater.class, "deflate", MethodType.methodType(int.class, ByteBuffer.class, int.class));
+        } catch (Exception e) {
+            // Java 7 and 8
+            return null;
+        }
+    }
+
+    static boolean isDirectOutputSupported() {
+        return deflateToByteBuffer != null;
+    }
+
+    boolean isDirectOutput() {
+        return directOut != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return;
+        }
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+    }
+
+    /**
+     * Compresses all pending input with {@link Deflater#SYNC_FLUSH} and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (deflate(Deflater.SYNC_FLUSH)) {
+            // the output was full so there may be more pending output
+        }
+        out.flush();
+    }
+
+    /**
+     * Finishes writing the compressed data to the underlying stream without closing it.
+     */
+    void finish() throws IOException {
+        ensureOpen();
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!finished) {
+                finish();
+            }
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * @return {@code true} if the output space has been exhausted, which means there may be more pending output
+     */
+    private boolean deflate(int flush) throws IOException {
+        if (directOut != null) {
+            ByteBuffer target = directOut.getWritableBuffer();
+            deflateToByteBuffer(target, flush);
+            return !target.hasRemaining();
+        }
+        // buf is always non-null if directOut is null
+        //noinspection ConstantConditions
+        int length = deflater.deflate(buf, 0, buf.length, flush);
+        if (length > 0) {
+            out.write(buf, 0, length);
+        }
+        return length == buf.length;
+    }
+
+    private void deflateToByteBuffer(ByteBuffer target, int flush) throws IOException {
+        try {
+            //noinspection ConstantConditions
+            int ignore = (int) deflateToByteBuffer.invokeExact(deflater, target, flush);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed || finished) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
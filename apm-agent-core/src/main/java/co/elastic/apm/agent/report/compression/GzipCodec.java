@@ -0,0 +1,149 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the request body with the gzip format ({@code Content-Encoding: gzip}).
+ * <p>
+ * Compared to {@link DeflateCodec}, this adds a 10 byte header, an 8 byte trailer and a CRC32 checksum of the uncompressed data,
+ * which some proxies in front of the APM Server handle better than the zlib format.
+ * </p>
+ */
+class GzipCodec implements CompressionCodec {
+
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // magic number
+        Deflater.DEFLATED,        // compression method
+        0,                        // flags
+        0, 0, 0, 0,               // modification time
+        0,                        // extra flags
+        (byte) 0xff               // operating system (unknown)
+    };
+    private static final int TRAILER_SIZE = 8;
+
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private long headerAndTrailerBytes;
+
+    GzipCodec(int level) {
+        // the gzip format wraps a raw deflate stream
+        deflater = new Deflater(level, true);
+    }
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+        return "gzip";
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream out) throws IOException {
+        out.write(HEADER);
+        headerAndTrailerBytes = HEADER.length;
+        return new GzipOutputStream(out);
+    }
+
+    @Override
+    public void setLevel(int level) {
+        deflater.setLevel(level);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return deflater.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return deflater.getBytesWritten() + headerAndTrailerBytes;
+    }
+
+    @Override
+    public void reset() {
+        deflater.reset();
+        crc.reset();
+        headerAndTrailerBytes = 0;
+    }
+
+    private class GzipOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final DirectDeflaterOutputStream deflaterOut;
+        private final byte[] singleByte = new byte[1];
+        private boolean closed;
+
+        private GzipOutputStream(OutputStream out) {
+            this.out = out;
+            this.deflaterOut = new DirectDeflaterOutputStream(out, deflater);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            deflaterOut.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            deflaterOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflaterOut.finish();
+                writeTrailer();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeTrailer() throws IOException {
+            byte[] trailer = new byte[TRAILER_SIZE];
+            writeIntLittleEndian(trailer, 0, crc.getValue());
+            writeIntLittleEndian(trailer, 4, deflater.getBytesRead());
+            out.write(trailer);
+            headerAndTrailerBytes += TRAILER_SIZE;
+        }
+
+        private void writeIntLittleEndian(byte[] buffer, int offset, long value) {
+            buffer[offset] = (byte) value;
+            buffer[offset + 1] = (byte) (value >> 8);
+            buffer[offset + 2] = (byte) (value >> 16);
+            buffer[offset + 3] = (byte) (value >> 24);
+        }
+    }
+}
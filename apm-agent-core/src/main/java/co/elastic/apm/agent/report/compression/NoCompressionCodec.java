@@ -0,0 +1,62 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.OutputStream;
+
+/**
+ * Sends the request body as-is.
+ */
+class NoCompressionCodec implements CompressionCodec {
+
+    @Nullable
+    private CountingOutputStream countingOs;
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream out) {
+        countingOs = new CountingOutputStream(out);
+        return countingOs;
+    }
+
+    @Override
+    public void setLevel(int level) {
+    }
+
+    @Override
+    public long getBytesRead() {
+        return getBytesWritten();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return countingOs != null ? countingOs.getCount() : 0L;
+    }
+
+    @Override
+    public void reset() {
+        countingOs = null;
+    }
+}
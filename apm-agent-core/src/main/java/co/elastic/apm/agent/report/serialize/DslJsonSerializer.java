@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.report.serialize;
 
+import co.elastic.apm.agent.collections.AttributeMap;
 import co.elastic.apm.agent.impl.context.AbstractContext;
 import co.elastic.apm.agent.impl.context.CloudOrigin;
 import co.elastic.apm.agent.impl.context.Db;
@@ -46,6 +47,7 @@ import co.elastic.apm.agent.impl.metadata.ProcessInfo;
 import co.elastic.apm.agent.impl.metadata.RuntimeInfo;
 import co.elastic.apm.agent.impl.metadata.Service;
 import co.elastic.apm.agent.impl.metadata.SystemInfo;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceCapturer;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Composite;
@@ -81,6 +83,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -99,11 +102,11 @@ public class DslJsonSerializer {
     private static final byte NEW_LINE = (byte) '\n';
     private static final Logger logger = LoggerFactory.getLogger(DslJsonSerializer.class);
     private static final String[] DISALLOWED_IN_PROPERTY_NAME = new String[]{".", "*", "\""};
-    private static final List<String> excludedStackFramesPrefixes = Arrays.asList("java.lang.reflect.", "com.sun.", "sun.", "jdk.internal.");
 
 
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
+    private final StackFrameCache stackFrameCache = new StackFrameCache();
 
     private final Future<MetaData> metaData;
     @Nullable
@@ -120,6 +123,11 @@ public class DslJsonSerializer {
         return new Writer();
     }
 
+    // visible for testing
+    StackFrameCache getStackFrameCache() {
+        return stackFrameCache;
+    }
+
     private void waitForMetadata() throws Exception {
         // we wait for the metaData outside of the synchronized block to prevent multiple
         // threads from queuing up and exceeding the 5 second timeout
@@ -461,13 +469,7 @@ public class DslJsonSerializer {
         if (stackTraceElement.getFileName() == null) {
             return true;
         }
-        String className = stackTraceElement.getClassName();
-        for (int i = 0, size = excludedStackFramesPrefixes.size(); i < size; i++) {
-            if (className.startsWith(excludedStackFramesPrefixes.get(i))) {
-                return true;
-            }
-        }
-        return false;
+        return StackTraceCapturer.isExcluded(stackTraceElement.getClassName());
     }
 
     private static void serializeStringKeyScalarValueMap(Iterator<? extends Map.Entry<String, ? /* String|Number|Boolean */>> it,
@@ -490,6 +492,30 @@ public class DslJsonSerializer {
         jw.writeByte(OBJECT_END);
     }
 
+    private static void serializeLabelMap(AttributeMap labels, final StringBuilder replaceBuilder, final JsonWriter jw, boolean supportsNonStringValues) {
+        jw.writeByte(OBJECT_START);
+        for (int i = 0; i < labels.size(); i++) {
+            if (i > 0) {
+                jw.writeByte(COMMA);
+            }
+            writeStringValue(sanitizePropertyName(labels.getKey(i), replaceBuilder), replaceBuilder, jw);
+            jw.writeByte(JsonWriter.SEMI);
+            byte valueType = labels.getValueType(i);
+            if (valueType == AttributeMap.TYPE_OBJECT) {
+                serializeScalarValue(replaceBuilder, jw, labels.getObjectValue(i), false, supportsNonStringValues);
+            } else if (!supportsNonStringValues) {
+                jw.writeNull();
+            } else if (valueType == AttributeMap.TYPE_BOOLEAN) {
+                BoolConverter.serialize(labels.getBooleanValue(i), jw);
+            } else if (valueType == AttributeMap.TYPE_LONG) {
+                NumberConverter.serialize((double) labels.getLongValue(i), jw);
+            } else {
+                NumberConverter.serialize(labels.getDoubleValue(i), jw);
+            }
+        }
+        jw.writeByte(OBJECT_END);
+    }
+
     static void serializeLabels(Labels labels, final String serviceName, final String serviceVersion, final StringBuilder replaceBuilder, final JsonWriter jw) {
         if (labels.getServiceName() != null) {
             serializeService(labels.getServiceName(), labels.getServiceVersion(), replaceBuilder, jw);
@@ -1050,6 +1076,8 @@ public class DslJsonSerializer {
             writeField("duration", span.getDurationMs());
             if (span.getStacktrace() != null) {
                 serializeStacktrace(span.getStacktrace().getStackTrace());
+            } else if (span.getStackTraceElements() != null) {
+                serializeStacktrace(span.getStackTraceElements());
             } else if (span.getStackFrames() != null) {
                 serializeStackTrace(span.getStackFrames());
             }
@@ -1088,7 +1116,7 @@ public class DslJsonSerializer {
 
         private void serializeOTel(AbstractSpan<?> span) {
             OTelSpanKind kind = span.getOtelKind();
-            Map<String, Object> attributes = span.getOtelAttributes();
+            AttributeMap attributes = span.getOtelAttributes();
             boolean hasAttributes = !attributes.isEmpty();
             boolean hasKind = kind != null;
             if (hasKind || hasAttributes) {
@@ -1106,19 +1134,30 @@ public class DslJsonSerializer {
                     }
                     writeFieldName("attributes");
                     jw.writeByte(OBJECT_START);
-                    int index = 0;
-                    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
-                        if (index++ > 0) {
+                    for (int i = 0; i < attributes.size(); i++) {
+                        if (i > 0) {
                             jw.writeByte(COMMA);
                         }
-                        writeFieldName(entry.getKey());
-                        Object o = entry.getValue();
-                        if (o instanceof Number) {
-                            serializeNumber((Number) o, jw);
-                        } else if (o instanceof String) {
-                            writeStringValue((String) o);
-                        } else if (o instanceof Boolean) {
-                            BoolConverter.serialize((Boolean) o, jw);
+                        writeFieldName(attributes.getKey(i));
+                        switch (attributes.getValueType(i)) {
+                            case AttributeMap.TYPE_LONG:
+                                NumberConverter.serialize(attributes.getLongValue(i), jw);
+                                break;
+                            case AttributeMap.TYPE_DOUBLE:
+                                NumberConverter.serialize(attributes.getDoubleValue(i), jw);
+                                break;
+                            case AttributeMap.TYPE_BOOLEAN:
+                                BoolConverter.serialize(attributes.getBooleanValue(i), jw);
+                                break;
+                            default:
+                                Object o = attributes.getObjectValue(i);
+                                if (o instanceof Number) {
+                                    serializeNumber((Number) o, jw);
+                                } else if (o instanceof String) {
+                                    writeStringValue((String) o);
+                                } else if (o instanceof Boolean) {
+                                    BoolConverter.serialize((Boolean) o, jw);
+                                }
                         }
                     }
                     jw.writeByte(OBJECT_END);
@@ -1271,7 +1310,7 @@ public class DslJsonSerializer {
             for (int i = 0; i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
                 StackTraceElement stackTraceElement = stacktrace[i];
                 // only skip the top most apm stack frames
-                if (!topMostElasticApmPackagesSkipped && stackTraceElement.getClassName().startsWith("co.elastic.apm")) {
+                if (!topMostElasticApmPackagesSkipped && stackTraceElement.getClassName().startsWith(StackTraceCapturer.AGENT_FRAME_PREFIX)) {
                     continue;
                 }
                 topMostElasticApmPackagesSkipped = true;
@@ -1289,14 +1328,34 @@ public class DslJsonSerializer {
         }
 
         private void serializeStackTraceElement(StackTraceElement stacktrace) {
+            Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+            stackFrameCache.ensureApplicationPackages(applicationPackages);
+            byte[] cached = stackFrameCache.get(stacktrace);
+            if (cached != null) {
+                jw.writeAscii(cached);
+                return;
+            }
+            int start = jw.size();
+            long flushed = jw.flushed();
             jw.writeByte(OBJECT_START);
             writeField("filename", stacktrace.getFileName());
             writeField("classname", stacktrace.getClassName());
             writeField("function", stacktrace.getMethodName());
-            writeField("library_frame", isLibraryFrame(stacktrace.getClassName()));
+            writeField("library_frame", isLibraryFrame(stacktrace.getClassName(), applicationPackages));
             writeField("lineno", stacktrace.getLineNumber());
             serializeStackFrameModule(stacktrace.getClassName());
             jw.writeByte(OBJECT_END);
+            cacheSerializedFrame(stacktrace, start, flushed, applicationPackages);
+        }
+
+        /**
+         * Caches the bytes that have been written since {@code start},
+         * unless the writer has been flushed to the output stream in the meantime.
+         */
+        private void cacheSerializedFrame(Object frame, int start, long flushed, Collection<String> applicationPackages) {
+            if (jw.flushed() == flushed) {
+                stackFrameCache.put(frame, Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()), applicationPackages);
+            }
         }
 
         private void serializeStackFrameModule(final String fullyQualifiedClassName) {
@@ -1309,8 +1368,11 @@ public class DslJsonSerializer {
             DslJsonSerializer.writeStringBuilderValue(replaceBuilder, jw);
         }
 
-        private boolean isLibraryFrame(String className) {
-            for (String applicationPackage : stacktraceConfiguration.getApplicationPackages()) {
+        private boolean isLibraryFrame(@Nullable String className, Collection<String> applicationPackages) {
+            if (className == null) {
+                return true;
+            }
+            for (String applicationPackage : applicationPackages) {
                 if (className.startsWith(applicationPackage)) {
                     return false;
                 }
@@ -1336,15 +1398,25 @@ public class DslJsonSerializer {
         }
 
         private void serializeStackTraceElement(StackFrame frame, StringBuilder replaceBuilder) {
+            Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+            stackFrameCache.ensureApplicationPackages(applicationPackages);
+            byte[] cached = stackFrameCache.get(frame);
+            if (cached != null) {
+                jw.writeAscii(cached);
+                return;
+            }
+            int start = jw.size();
+            long flushed = jw.flushed();
             jw.writeByte(OBJECT_START);
 
             replaceBuilder.setLength(0);
             frame.appendFileName(replaceBuilder);
             writeField("filename", replaceBuilder);
             writeField("function", frame.getMethodName());
-            writeField("library_frame", isLibraryFrame(frame.getClassName()));
+            writeField("library_frame", isLibraryFrame(frame.getClassName(), applicationPackages));
             writeLastField("lineno", -1);
             jw.writeByte(OBJECT_END);
+            cacheSerializedFrame(frame, start, flushed, applicationPackages);
         }
 
         private void serializeSpanContext(SpanContext context, TraceContext traceContext) {
@@ -1609,7 +1681,7 @@ public class DslJsonSerializer {
         // visible for testing
         void serializeLabels(AbstractContext context) {
             if (context.hasLabels()) {
-                serializeStringKeyScalarValueMap(context.getLabelIterator(), replaceBuilder, jw, false, apmServerClient.supportsNonStringLabels());
+                serializeLabelMap(context.getLabels(), replaceBuilder, jw, apmServerClient.supportsNonStringLabels());
             } else {
                 jw.writeByte(OBJECT_START);
                 jw.writeByte(OBJECT_END);
@@ -20,7 +20,9 @@ package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.tracer.service.ServiceInfo;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.metrics.StripedCounter;
 import co.elastic.apm.agent.metrics.Timer;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
@@ -30,7 +32,6 @@ import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class MetricRegistrySerializer {
 
@@ -91,6 +92,7 @@ public class MetricRegistrySerializer {
                 jw.writeByte(JsonWriter.OBJECT_START);
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
                 hasSamples |= serializeRawMetrics(metricSet.getRawMetrics(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
@@ -165,16 +167,32 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static boolean serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (histograms.size() > 0) {
+            for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+                Histogram histogram = kv.getValue();
+                if (histogram.hasContent()) {
+                    if (hasSamples) {
+                        jw.writeByte(JsonWriter.COMMA);
+                    }
+                    serializeHistogram(kv.getKey(), histogram, jw);
+                    hasSamples = true;
+                }
+            }
+        }
+        return hasSamples;
+    }
+
+    private static boolean serializeCounters(Map<String, StripedCounter> counters, boolean hasSamples, JsonWriter jw) {
         final int size = counters.size();
         if (size > 0) {
-            final Iterator<Map.Entry<String, AtomicLong>> iterator = counters.entrySet().iterator();
+            final Iterator<Map.Entry<String, StripedCounter>> iterator = counters.entrySet().iterator();
 
             // serialize first valid value
-            AtomicLong value = null;
+            StripedCounter value = null;
             while (iterator.hasNext() && value == null) {
-                Map.Entry<String, AtomicLong> kv = iterator.next();
-                if (kv.getValue().get() > 0) {
+                Map.Entry<String, StripedCounter> kv = iterator.next();
+                if (kv.getValue().sum() > 0) {
                     value = kv.getValue();
                     if (hasSamples) {
                         jw.writeByte(JsonWriter.COMMA);
@@ -186,9 +204,9 @@ public class MetricRegistrySerializer {
 
             // serialize rest
             while (iterator.hasNext()) {
-                Map.Entry<String, AtomicLong> kv = iterator.next();
+                Map.Entry<String, StripedCounter> kv = iterator.next();
                 value = kv.getValue();
-                if (kv.getValue().get() > 0) {
+                if (kv.getValue().sum() > 0) {
                     jw.writeByte(JsonWriter.COMMA);
                     serializeCounter(kv.getKey(), value, jw);
                 }
@@ -227,9 +245,9 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
+    private static void serializeCounter(String key, StripedCounter value, JsonWriter jw) {
         serializeValueStart(key, "", jw);
-        NumberConverter.serialize(value.get(), jw);
+        NumberConverter.serialize(value.sum(), jw);
         jw.writeByte(JsonWriter.OBJECT_END);
     }
 
@@ -243,6 +261,48 @@ public class MetricRegistrySerializer {
         serializeValue(key, ".sum.us", timer.getTotalTimeUs(), jw);
     }
 
+    /**
+     * Serializes the non-empty buckets in the intake histogram format:
+     * <pre>
+     * "transaction.duration.histogram":{"values":[1.0,12.5],"counts":[3,1],"type":"histogram"}
+     * </pre>
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+            if (histogram.getCountAtBucket(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(Histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+            long count = histogram.getCountAtBucket(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        jw.writeAscii("\"type\":\"histogram\"");
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeValue(String key, double value, JsonWriter jw) {
         serializeValue(key, "", value, jw);
     }
@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakSet;
+import co.elastic.apm.agent.tracer.configuration.ByteValue;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the serialized JSON of stack frames, keyed by {@link StackTraceElement} or {@link co.elastic.apm.agent.impl.transaction.StackFrame}.
+ * <p>
+ * Most stack traces of spans and errors share a limited set of frames.
+ * Caching the serialized frames, including the library frame verdict which requires a scan of all {@code application_packages},
+ * turns the serialization of a stack trace mostly into copying bytes.
+ * The cache is bounded by the total size of the serialized frames and evicts the least recently used entries.
+ * </p>
+ * <p>
+ * The hits and misses of all instances are reported by {@link co.elastic.apm.agent.metrics.builtin.AgentOverheadMetrics}.
+ * </p>
+ */
+public class StackFrameCache {
+
+    static final int DEFAULT_MAX_SIZE_BYTES = (int) ByteValue.of("1mb").getBytes();
+
+    private static final WeakSet<StackFrameCache> instances = WeakConcurrent.buildSet();
+
+    private final ConcurrentMap<Object, byte[]> serializedFrames;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The application packages the cached frames have been serialized with.
+     * The library frame verdict of the cached frames is stale if they change.
+     */
+    @Nullable
+    private volatile Collection<String> applicationPackages;
+
+    StackFrameCache() {
+        this(DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    StackFrameCache(int maxSizeBytes) {
+        serializedFrames = new ConcurrentLinkedHashMap.Builder<Object, byte[]>()
+            .maximumWeightedCapacity(maxSizeBytes)
+            .weigher(new Weigher<byte[]>() {
+                @Override
+                public int weightOf(byte[] value) {
+                    return Math.max(1, value.length);
+                }
+            })
+            .build();
+        instances.add(this);
+    }
+
+    /**
+     * @return all instances which have not been garbage collected yet
+     */
+    public static Iterable<StackFrameCache> getInstances() {
+        return instances;
+    }
+
+    /**
+     * Clears the cache if the application packages are not the ones the cached frames have been serialized with.
+     *
+     * @param applicationPackages the current application packages
+     */
+    void ensureApplicationPackages(Collection<String> applicationPackages) {
+        // the configuration returns the same instance until the value is changed
+        if (this.applicationPackages != applicationPackages) {
+            serializedFrames.clear();
+            this.applicationPackages = applicationPackages;
+        }
+    }
+
+    /**
+     * @param frame a {@link StackTraceElement} or {@link co.elastic.apm.agent.impl.transaction.StackFrame}
+     * @return the serialized frame or {@code null} if the frame is not cached
+     */
+    @Nullable
+    byte[] get(Object frame) {
+        byte[] serialized = serializedFrames.get(frame);
+        if (serialized != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return serialized;
+    }
+
+    /**
+     * @param frame               a {@link StackTraceElement} or {@link co.elastic.apm.agent.impl.transaction.StackFrame}
+     * @param serialized          the serialized frame
+     * @param applicationPackages the application packages the frame has been serialized with
+     */
+    void put(Object frame, byte[] serialized, Collection<String> applicationPackages) {
+        if (this.applicationPackages == applicationPackages) {
+            serializedFrames.put(frame, serialized);
+        }
+    }
+
+    int size() {
+        return serializedFrames.size();
+    }
+
+    /**
+     * @return the number of cache hits since the last invocation of this method
+     */
+    public long getAndResetHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * @return the number of cache misses since the last invocation of this method
+     */
+    public long getAndResetMisses() {
+        return misses.getAndSet(0);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spill;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * A bounded, append-only log of serialized ND-JSON events, backed by memory-mapped segment files.
+ * <p>
+ * Events are {@linkplain #append(byte[], int, int) appended} by the reporter thread while the APM Server is not available or its queue is about to overflow
+ * and {@linkplain #readNext() read} in the same order once it's available again.
+ * Records that have been read are only discarded after they have been {@linkplain #commit() committed},
+ * which happens after the request containing them has been successfully sent.
+ * If the request fails, reading {@linkplain #rollback() restarts} from the last committed record.
+ * </p>
+ * <p>
+ * The log consists of segments with a fixed size.
+ * When appending a record would exceed the maximum size of the log, the oldest segment is evicted, even if it has not been read yet.
+ * Each record is prefixed by its length as a 4 byte integer.
+ * </p>
+ * <p>
+ * The log is not meant to survive restarts of the agent, as the events are sent with the metadata of the current process.
+ * Therefore, existing segments are deleted when opening the log and when it is closed.
+ * </p>
+ * <p>
+ * This class is not thread safe and must only be used by the reporter thread.
+ * </p>
+ */
+public class SpillLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillLog.class);
+
+    static final String SEGMENT_FILE_SUFFIX = ".spill";
+    private static final String LOCK_FILE_NAME = ".lock";
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId;
+
+    /**
+     * Index of the segment to read the next record from, relative to the head of {@link #segments}.
+     */
+    private int readSegment;
+    private int readPosition;
+    private int uncommittedRecords;
+    private long unreadRecords;
+    private long evictedRecords;
+
+    private SpillLog(File directory, int segmentSize, int maxSegments, RandomAccessFile lockFile, FileLock lock) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens a spill log in the provided directory.
+     *
+     * @param directory the directory in which the segment files are stored, created if it doesn't exist
+     * @param maxBytes  the maximum size of all segment files
+     * @return the spill log or {@code null}, if the directory can't be used,
+     * for example because it's already used by another process
+     */
+    @Nullable
+    public static SpillLog open(File directory, long maxBytes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Can't create spill directory {}, events will be dropped when the APM Server is not available", directory);
+            return null;
+        }
+        int segmentSize = getSegmentSize(maxBytes);
+        int maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+        RandomAccessFile lockFile = null;
+        try {
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock == null) {
+                logger.warn("Spill directory {} is already in use by another process, events will be dropped when the APM Server is not available", directory);
+                lockFile.close();
+                return null;
+            }
+            SpillLog spillLog = new SpillLog(directory, segmentSize, maxSegments, lockFile, lock);
+            spillLog.deleteSegmentFiles();
+            logger.info("Spilling events to {} when the APM Server is not available (max {} segments of {} bytes)", directory, maxSegments, segmentSize);
+            return spillLog;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Can't use spill directory " + directory + ", events will be dropped when the APM Server is not available", e);
+            closeQuietly(lockFile);
+            return null;
+        }
+    }
+
+    static int getSegmentSize(long maxBytes) {
+        return (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / 4));
+    }
+
+    /**
+     * Appends a record to the log, evicting the oldest segment if the maximum size would be exceeded.
+     *
+     * @return {@code true}, if the record has been appended, {@code false} if the record is too large or the segment could not be created
+     */
+    public boolean append(byte[] bytes, int offset, int length) {
+        if (length <= 0 || length > segmentSize - RECORD_HEADER_SIZE) {
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition + RECORD_HEADER_SIZE + length > segmentSize) {
+            segment = addSegment();
+            if (segment == null) {
+                return false;
+            }
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        ((Buffer) buffer).position(segment.writePosition);
+        buffer.putInt(length);
+        buffer.put(bytes, offset, length);
+        segment.writePosition += RECORD_HEADER_SIZE + length;
+        unreadRecords++;
+        return true;
+    }
+
+    /**
+     * @return {@code true}, if there are records which have not been read yet
+     */
+    public boolean hasUnread() {
+        return unreadRecords > 0;
+    }
+
+    /**
+     * Returns the next unread record.
+     * The returned buffer is only valid until the next invocation of any method of this class.
+     *
+     * @return the next record, or {@code null} if all records have been read
+     */
+    @Nullable
+    public ByteBuffer readNext() {
+        while (readSegment < segments.size()) {
+            Segment segment = getSegment(readSegment);
+            if (readPosition + RECORD_HEADER_SIZE <= segment.writePosition) {
+                int length = segment.buffer.getInt(readPosition);
+                ByteBuffer record = segment.buffer.duplicate();
+                ((Buffer) record).limit(readPosition + RECORD_HEADER_SIZE + length);
+                ((Buffer) record).position(readPosition + RECORD_HEADER_SIZE);
+                readPosition += RECORD_HEADER_SIZE + length;
+                uncommittedRecords++;
+                unreadRecords--;
+                return record.slice();
+            }
+            if (segment == segments.peekLast()) {
+                return null;
+            }
+            readSegment++;
+            readPosition = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Discards all records which have been read so far.
+     */
+    public void commit() {
+        for (int i = 0; i < readSegment; i++) {
+            deleteSegment(segments.removeFirst());
+        }
+        readSegment = 0;
+        Segment head = segments.peekFirst();
+        if (head != null) {
+            if (head != segments.peekLast() && readPosition >= head.writePosition) {
+                deleteSegment(segments.removeFirst());
+                readPosition = 0;
+                head = segments.peekFirst();
+            }
+            head.readOffset = readPosition;
+        }
+        uncommittedRecords = 0;
+    }
+
+    /**
+     * Restarts reading from the first record that has not been committed yet.
+     */
+    public void rollback() {
+        unreadRecords += uncommittedRecords;
+        uncommittedRecords = 0;
+        readSegment = 0;
+        Segment head = segments.peekFirst();
+        readPosition = head != null ? head.readOffset : 0;
+    }
+
+    /**
+     * @return the number of records that have been evicted before they could be sent
+     */
+    public long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    @Override
+    public void close() {
+        while (!segments.isEmpty()) {
+            deleteSegment(segments.removeFirst());
+        }
+        try {
+            lock.release();
+        } catch (IOException ignore) {
+            // ignored
+        }
+        closeQuietly(lockFile);
+    }
+
+    private Segment getSegment(int index) {
+        Iterator<Segment> iterator = segments.iterator();
+        for (int i = 0; i < index; i++) {
+            iterator.next();
+        }
+        return iterator.next();
+    }
+
+    @Nullable
+    private Segment addSegment() {
+        if (segments.size() >= maxSegments) {
+            evictOldestSegment();
+        }
+        File file = new File(directory, String.format(Locale.ROOT, "%020d%s", nextSegmentId++, SEGMENT_FILE_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            Segment segment = new Segment(file, buffer);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            logger.warn("Failed to create spill segment " + file, e);
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            return null;
+        }
+    }
+
+    private void evictOldestSegment() {
+        Segment oldest = segments.removeFirst();
+        int unreadInOldest = 0;
+        if (readSegment == 0) {
+            uncommittedRecords -= countRecords(oldest, oldest.readOffset, readPosition);
+            unreadInOldest = countRecords(oldest, readPosition, oldest.writePosition);
+            readPosition = 0;
+        } else {
+            uncommittedRecords -= countRecords(oldest, oldest.readOffset, oldest.writePosition);
+            readSegment--;
+        }
+        unreadRecords -= unreadInOldest;
+        evictedRecords += unreadInOldest;
+        logger.debug("Evicting spill segment {} with {} unsent events", oldest.file, unreadInOldest);
+        deleteSegment(oldest);
+    }
+
+    private static int countRecords(Segment segment, int from, int to) {
+        int count = 0;
+        for (int position = from; position + RECORD_HEADER_SIZE <= to; position += RECORD_HEADER_SIZE + segment.buffer.getInt(position)) {
+            count++;
+        }
+        return count;
+    }
+
+    private void deleteSegment(Segment segment) {
+        // mapped buffers can't be unmapped explicitly on Java 7, the mapping is released when the buffer is garbage collected
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    private void deleteSegmentFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("Failed to delete stale spill segment {}", file);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+                // ignored
+            }
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        /**
+         * The position of the first record which has not been committed yet
+         */
+        private int readOffset;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
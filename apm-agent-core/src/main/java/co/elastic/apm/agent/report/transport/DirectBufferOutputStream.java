@@ -0,0 +1,44 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} which is backed by a direct {@link ByteBuffer} that can be written to directly,
+ * for example by {@code Deflater#deflate(ByteBuffer, int)} on Java 11+,
+ * avoiding the copy from an intermediate {@code byte[]}.
+ */
+public abstract class DirectBufferOutputStream extends OutputStream {
+
+    /**
+     * Returns the buffer backing this stream.
+     * <p>
+     * The buffer is guaranteed to have at least one byte {@linkplain ByteBuffer#remaining() remaining}.
+     * All bytes that are put into the buffer are part of this stream's content, just as if they had been written via {@link #write}.
+     * The returned buffer must not be retained, as it is only valid until the next invocation of any method of this stream.
+     * </p>
+     *
+     * @return the writable buffer
+     * @throws IOException if the buffer was full and flushing its contents failed
+     */
+    public abstract ByteBuffer getWritableBuffer() throws IOException;
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps idle, persistent connections to APM Servers, keyed by scheme, host and port.
+ * <p>
+ * Connections are handed out in LIFO order so that the most recently used connection, which is the least likely one to be closed
+ * by the APM Server due to being idle, is re-used first.
+ * Connections that have been idle for longer than {@link #MAX_IDLE_NANOS} are closed instead of being re-used,
+ * as the APM Server closes idle connections after 45 seconds by default.
+ * Before an idle connection is handed out, it is also checked whether the APM Server has closed it in the meantime,
+ * see {@link PooledHttpConnection#isStale()}.
+ * </p>
+ */
+public class HttpConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpConnectionPool.class);
+
+    static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final int MAX_IDLE_CONNECTIONS_PER_KEY = 8;
+
+    private final ConcurrentMap<String, ConcurrentLinkedDeque<PooledHttpConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicLong openedConnections = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    private volatile boolean closed;
+
+    PooledHttpConnection acquire(URL url, int connectTimeoutMillis, int readTimeoutMillis,
+                                 @Nullable SSLSocketFactory sslSocketFactory, boolean verifyHostname) throws IOException {
+        String key = getKey(url);
+        ConcurrentLinkedDeque<PooledHttpConnection> idle = idleConnections.get(key);
+        if (idle != null) {
+            for (PooledHttpConnection connection = idle.pollFirst(); connection != null; connection = idle.pollFirst()) {
+                if (connection.isOpen() && connection.getIdleNanos() < MAX_IDLE_NANOS && !connection.isStale()) {
+                    connection.setReadTimeout(readTimeoutMillis);
+                    connection.markReused();
+                    reusedConnections.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open(url, connectTimeoutMillis, readTimeoutMillis, sslSocketFactory, verifyHostname);
+    }
+
+    /**
+     * Opens a new connection, bypassing the idle connections
+     */
+    PooledHttpConnection open(URL url, int connectTimeoutMillis, int readTimeoutMillis,
+                              @Nullable SSLSocketFactory sslSocketFactory, boolean verifyHostname) throws IOException {
+        String key = getKey(url);
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        logger.debug("Opening new persistent connection to {}", key);
+        PooledHttpConnection connection = PooledHttpConnection.open(key, url.getHost(), port, connectTimeoutMillis, readTimeoutMillis,
+            sslSocketFactory, verifyHostname);
+        openedConnections.incrementAndGet();
+        return connection;
+    }
+
+    void release(PooledHttpConnection connection) {
+        if (closed) {
+            connection.close();
+            return;
+        }
+        if (!connection.isOpen()) {
+            return;
+        }
+        connection.markUsed();
+        ConcurrentLinkedDeque<PooledHttpConnection> idle = idleConnections.get(connection.getKey());
+        if (idle == null) {
+            idleConnections.putIfAbsent(connection.getKey(), new ConcurrentLinkedDeque<PooledHttpConnection>());
+            idle = idleConnections.get(connection.getKey());
+        }
+        idle.offerFirst(connection);
+        if (closed && idle.remove(connection)) {
+            // the pool has been closed concurrently
+            connection.close();
+            return;
+        }
+        // the size of a ConcurrentLinkedDeque is computed in O(n) but n is bounded by MAX_IDLE_CONNECTIONS_PER_KEY + 1
+        while (idle.size() > MAX_IDLE_CONNECTIONS_PER_KEY) {
+            PooledHttpConnection eldest = idle.pollLast();
+            if (eldest != null) {
+                eldest.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     * Connections that are released afterwards are closed instead of being kept for re-use.
+     */
+    public void close() {
+        closed = true;
+        for (ConcurrentLinkedDeque<PooledHttpConnection> idle : idleConnections.values()) {
+            for (PooledHttpConnection connection = idle.pollFirst(); connection != null; connection = idle.pollFirst()) {
+                connection.close();
+            }
+        }
+    }
+
+    public long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    public long getReusedConnections() {
+        return reusedConnections.get();
+    }
+
+    private static String getKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+}
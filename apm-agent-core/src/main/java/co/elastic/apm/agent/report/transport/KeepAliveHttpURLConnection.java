@@ -0,0 +1,644 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.1 client implementing the subset of {@link HttpURLConnection} the agent uses to send data to the APM Server.
+ * <p>
+ * In contrast to the JDK's implementation, the underlying connections are explicitly kept in a {@link HttpConnectionPool}
+ * and request bodies are sent with chunked transfer encoding directly from a direct {@link ByteBuffer},
+ * without going through the JDK's internal stream and buffer layers.
+ * </p>
+ * <p>
+ * If a request on a re-used connection fails before any part of the request body has been sent,
+ * because the APM Server has closed the connection in the meantime, the request is retried once on a new connection.
+ * Requests whose body has already been partly sent can't be replayed and fail with the original exception.
+ * </p>
+ * <p>
+ * Only direct connections (no proxies) over {@code http} and {@code https} are supported, see {@link #isSupported(URL)}.
+ * </p>
+ */
+public class KeepAliveHttpURLConnection extends HttpURLConnection {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int DEFAULT_CHUNK_SIZE = 4096;
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final HttpConnectionPool pool;
+    @Nullable
+    private final SSLSocketFactory sslSocketFactory;
+    private final boolean verifyHostname;
+
+    @Nullable
+    private PooledHttpConnection transport;
+    @Nullable
+    private Map<String, List<String>> requestHeaders;
+    private boolean requestHeadSent;
+    @Nullable
+    private ChunkedRequestOutputStream requestBody;
+    private boolean requestBodySent;
+    private boolean retried;
+    private boolean responseRead;
+    @Nullable
+    private String statusLine;
+    private final List<String> responseHeaderKeys = new ArrayList<>();
+    private final List<String> responseHeaderValues = new ArrayList<>();
+    @Nullable
+    private ResponseBodyInputStream responseBody;
+
+    public KeepAliveHttpURLConnection(URL url, HttpConnectionPool pool, @Nullable SSLSocketFactory sslSocketFactory, boolean verifyHostname) {
+        super(url);
+        this.pool = pool;
+        this.sslSocketFactory = "https".equals(url.getProtocol()) ? sslSocketFactory : null;
+        this.verifyHostname = verifyHostname;
+        if ("https".equals(url.getProtocol()) && sslSocketFactory == null) {
+            throw new IllegalArgumentException("An SSLSocketFactory is required for https URLs");
+        }
+    }
+
+    /**
+     * Returns whether the provided URL can be handled by this class.
+     * That's the case for {@code http} and {@code https} URLs that are not routed via a proxy.
+     *
+     * @param url the URL to check
+     * @return {@code true}, if the URL can be handled by this class
+     */
+    public static boolean isSupported(URL url) {
+        String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            return false;
+        }
+        ProxySelector proxySelector = PrivilegedActionUtils.getDefaultProxySelector();
+        if (proxySelector == null) {
+            return true;
+        }
+        try {
+            for (Proxy proxy : proxySelector.select(url.toURI())) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        // must be read before setting connected to true
+        requestHeaders = getRequestProperties();
+        transport = pool.acquire(url, getConnectTimeout(), getReadTimeout(), sslSocketFactory, verifyHostname);
+        connected = true;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (responseRead) {
+            throw new ProtocolException("Cannot write output after reading input.");
+        }
+        if (requestBody == null) {
+            if ("GET".equals(method)) {
+                method = "POST";
+            }
+            sendRequestHead(true);
+            requestBody = new ChunkedRequestOutputStream(getTransport().getRequestBuffer(chunkLength > 0 ? chunkLength : DEFAULT_CHUNK_SIZE));
+        }
+        return requestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        readResponse();
+        if (responseCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return getResponseBody();
+    }
+
+    @Override
+    @Nullable
+    public InputStream getErrorStream() {
+        if (responseRead && responseCode >= 400) {
+            return responseBody;
+        }
+        return null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponse();
+        return responseCode;
+    }
+
+    @Override
+    @Nullable
+    public String getResponseMessage() throws IOException {
+        readResponse();
+        return responseMessage;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(String name) {
+        if (!readResponseQuietly()) {
+            return null;
+        }
+        for (int i = responseHeaderKeys.size() - 1; i >= 0; i--) {
+            if (responseHeaderKeys.get(i).equalsIgnoreCase(name)) {
+                return responseHeaderValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderFieldKey(int n) {
+        if (!readResponseQuietly() || n <= 0 || n > responseHeaderKeys.size()) {
+            return null;
+        }
+        return responseHeaderKeys.get(n - 1);
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(int n) {
+        if (!readResponseQuietly()) {
+            return null;
+        }
+        if (n == 0) {
+            return statusLine;
+        }
+        if (n > responseHeaderValues.size()) {
+            return null;
+        }
+        return responseHeaderValues.get(n - 1);
+    }
+
+    @Override
+    public void disconnect() {
+        if (responseBody != null && responseBody.released) {
+            return;
+        }
+        closeTransport();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private InputStream getResponseBody() {
+        if (responseBody == null) {
+            throw new IllegalStateException("Response has not been read");
+        }
+        return responseBody;
+    }
+
+    private void sendRequestHead(boolean withBody) throws IOException {
+        if (requestHeadSent) {
+            return;
+        }
+        connect();
+        StringBuilder head = new StringBuilder(256);
+        String file = url.getFile();
+        head.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        if (requestHeaders != null) {
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                String key = header.getKey();
+                if (key == null || isManagedHeader(key)) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    head.append(key).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+        if (withBody) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if ("POST".equals(method) || "PUT".equals(method)) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(ISO_8859_1));
+        boolean retryable = isRetryable();
+        try {
+            write(headBuffer);
+        } catch (IOException e) {
+            if (!retryable) {
+                throw e;
+            }
+            reconnect();
+            headBuffer.rewind();
+            write(headBuffer);
+        }
+        requestHeadSent = true;
+    }
+
+    /**
+     * Returns whether the current request can be retried on a new connection if it fails.
+     * That's the case if it's the first attempt on a re-used connection and no part of the request body has been sent yet.
+     */
+    private boolean isRetryable() {
+        return !retried && !requestBodySent && transport != null && transport.isReused();
+    }
+
+    /**
+     * Replaces the (already closed) transport with a newly opened connection
+     */
+    private void reconnect() throws IOException {
+        retried = true;
+        requestHeadSent = false;
+        transport = pool.open(url, getConnectTimeout(), getReadTimeout(), sslSocketFactory, verifyHostname);
+    }
+
+    private static boolean isManagedHeader(String key) {
+        return key.equalsIgnoreCase("Host")
+            || key.equalsIgnoreCase("Connection")
+            || key.equalsIgnoreCase("Transfer-Encoding")
+            || key.equalsIgnoreCase("Content-Length");
+    }
+
+    private boolean readResponseQuietly() {
+        try {
+            readResponse();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readResponse() throws IOException {
+        if (responseRead) {
+            return;
+        }
+        if (requestBody != null) {
+            requestBody.close();
+        } else {
+            sendRequestHead(false);
+        }
+        PooledHttpConnection transport = getTransport();
+        boolean retryable = requestBody == null && isRetryable();
+        try {
+            InputStream in = transport.getInputStream();
+            String httpVersion;
+            do {
+                // skip informational responses like 100 Continue
+                statusLine = readLine(in);
+                String[] parts = statusLine.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new ProtocolException("Invalid HTTP status line: " + statusLine);
+                }
+                httpVersion = parts[0];
+                responseCode = Integer.parseInt(parts[1]);
+                responseMessage = parts.length > 2 ? parts[2] : "";
+                responseHeaderKeys.clear();
+                responseHeaderValues.clear();
+                for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        responseHeaderKeys.add(line.substring(0, colon).trim());
+                        responseHeaderValues.add(line.substring(colon + 1).trim());
+                    }
+                }
+            } while (responseCode >= 100 && responseCode < 200);
+            responseRead = true;
+
+            String connectionHeader = getHeaderField("Connection");
+            boolean reusable = "HTTP/1.1".equals(httpVersion)
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+            String transferEncoding = getHeaderField("Transfer-Encoding");
+            String contentLength = getHeaderField("Content-Length");
+            if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+                responseBody = new ResponseBodyInputStream(in, 0, false, reusable);
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                responseBody = new ResponseBodyInputStream(in, -1, true, reusable);
+            } else if (contentLength != null) {
+                responseBody = new ResponseBodyInputStream(in, Long.parseLong(contentLength), false, reusable);
+            } else {
+                // body is delimited by the end of the connection
+                responseBody = new ResponseBodyInputStream(in, -1, false, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeTransport();
+            if (retryable && e instanceof IOException && statusLine == null) {
+                // the server has closed the connection before sending any part of the response
+                reconnect();
+                readResponse();
+                return;
+            }
+            throw e;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new EOFException("Unexpected end of stream while reading HTTP response");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        try {
+            getTransport().write(buffers);
+        } catch (IOException e) {
+            closeTransport();
+            throw e;
+        }
+    }
+
+    private PooledHttpConnection getTransport() throws IOException {
+        if (transport == null) {
+            throw new IOException("Connection to " + url + " has already been closed");
+        }
+        return transport;
+    }
+
+    private void releaseTransport(boolean reusable) {
+        PooledHttpConnection transport = this.transport;
+        this.transport = null;
+        if (transport != null) {
+            if (reusable) {
+                pool.release(transport);
+            } else {
+                transport.close();
+            }
+        }
+    }
+
+    private void closeTransport() {
+        releaseTransport(false);
+    }
+
+    private class ChunkedRequestOutputStream extends DirectBufferOutputStream {
+
+        private final ByteBuffer chunk;
+        private final ByteBuffer chunkHeader = ByteBuffer.allocate(16);
+        private final ByteBuffer chunkTrailer = ByteBuffer.wrap(CRLF);
+        private boolean closed;
+
+        private ChunkedRequestOutputStream(ByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public ByteBuffer getWritableBuffer() throws IOException {
+            ensureOpen();
+            if (!chunk.hasRemaining()) {
+                writeChunk();
+            }
+            return chunk;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            chunk.put((byte) b);
+            if (!chunk.hasRemaining()) {
+                writeChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                int length = Math.min(len, chunk.remaining());
+                chunk.put(b, off, length);
+                off += length;
+                len -= length;
+                if (!chunk.hasRemaining()) {
+                    writeChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            writeChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            writeChunk();
+            closed = true;
+            KeepAliveHttpURLConnection.this.write(ByteBuffer.wrap(LAST_CHUNK));
+        }
+
+        private void writeChunk() throws IOException {
+            if (chunk.position() == 0) {
+                return;
+            }
+            chunk.flip();
+            chunkHeader.clear();
+            chunkHeader.put(Integer.toHexString(chunk.remaining()).getBytes(ISO_8859_1)).put(CRLF).flip();
+            chunkTrailer.rewind();
+            boolean retryable = isRetryable();
+            try {
+                try {
+                    KeepAliveHttpURLConnection.this.write(chunkHeader, chunk, chunkTrailer);
+                } catch (IOException e) {
+                    if (!retryable) {
+                        throw e;
+                    }
+                    reconnect();
+                    sendRequestHead(true);
+                    chunkHeader.rewind();
+                    chunk.rewind();
+                    chunkTrailer.rewind();
+                    KeepAliveHttpURLConnection.this.write(chunkHeader, chunk, chunkTrailer);
+                }
+                requestBodySent = true;
+            } finally {
+                chunk.clear();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+        }
+    }
+
+    private class ResponseBodyInputStream extends InputStream {
+
+        private final InputStream in;
+        private final boolean chunked;
+        private final boolean reusable;
+        /**
+         * Remaining bytes of the body (or of the current chunk if {@link #chunked}), -1 if unknown
+         */
+        private long remaining;
+        private boolean endOfBody;
+        private boolean released;
+
+        private ResponseBodyInputStream(InputStream in, long contentLength, boolean chunked, boolean reusable) {
+            this.in = in;
+            this.chunked = chunked;
+            this.reusable = reusable;
+            this.remaining = chunked ? 0 : contentLength;
+            if (contentLength == 0 && !chunked) {
+                onEndOfBody();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (endOfBody) {
+                return -1;
+            }
+            if (released) {
+                throw new IOException("Stream is closed");
+            }
+            try {
+                if (chunked && remaining == 0) {
+                    remaining = readChunkSize();
+                    if (remaining == 0) {
+                        String trailer;
+                        do {
+                            // skip trailers
+                            trailer = readLine(in);
+                        } while (!trailer.isEmpty());
+                        onEndOfBody();
+                        return -1;
+                    }
+                }
+                int toRead = remaining < 0 ? len : (int) Math.min(len, remaining);
+                int read = in.read(b, off, toRead);
+                if (read == -1) {
+                    if (remaining < 0) {
+                        onEndOfBody();
+                        return -1;
+                    }
+                    throw new EOFException("Unexpected end of stream while reading HTTP response body");
+                }
+                if (remaining > 0) {
+                    remaining -= read;
+                    if (remaining == 0) {
+                        if (chunked) {
+                            readLine(in);
+                        } else {
+                            onEndOfBody();
+                        }
+                    }
+                }
+                return read;
+            } catch (IOException e) {
+                released = true;
+                closeTransport();
+                throw e;
+            }
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine(in);
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            try {
+                return Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+        }
+
+        private void onEndOfBody() {
+            endOfBody = true;
+            if (!released) {
+                released = true;
+                releaseTransport(reusable);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            // try to drain the rest of the body so that the connection can be re-used
+            byte[] buffer = new byte[512];
+            long drained = 0;
+            while (!endOfBody && drained < MAX_DRAIN_BYTES) {
+                int read = read(buffer, 0, buffer.length);
+                if (read == -1) {
+                    break;
+                }
+                drained += read;
+            }
+            if (!released) {
+                released = true;
+                closeTransport();
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A persistent connection to an APM Server which can be re-used for multiple subsequent HTTP/1.1 requests.
+ * <p>
+ * Plain text connections are backed by a {@link SocketChannel} so that request bodies can be written directly from
+ * (direct) {@link ByteBuffer}s, using gathering writes for the chunk framing.
+ * TLS connections are backed by an {@link SSLSocket} created by the agent's {@link SSLSocketFactory}.
+ * </p>
+ */
+class PooledHttpConnection {
+
+    private final String key;
+    private final Socket socket;
+    @Nullable
+    private final SocketChannel channel;
+    private final InputStream inputStream;
+    @Nullable
+    private final OutputStream outputStream;
+    @Nullable
+    private byte[] copyBuffer;
+    @Nullable
+    private ByteBuffer requestBuffer;
+    private long lastUsedNanos;
+    private boolean reused;
+
+    private PooledHttpConnection(String key, Socket socket, @Nullable SocketChannel channel) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.channel = channel;
+        this.inputStream = new BufferedInputStream(socket.getInputStream());
+        this.outputStream = channel == null ? socket.getOutputStream() : null;
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    static PooledHttpConnection open(String key, String host, int port, int connectTimeoutMillis, int readTimeoutMillis,
+                                     @Nullable SSLSocketFactory sslSocketFactory, boolean verifyHostname) throws IOException {
+        if (sslSocketFactory == null) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                Socket socket = channel.socket();
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                return new PooledHttpConnection(key, socket, channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        Socket plainSocket = new Socket();
+        try {
+            plainSocket.setTcpNoDelay(true);
+            plainSocket.setKeepAlive(true);
+            plainSocket.setSoTimeout(readTimeoutMillis);
+            plainSocket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(plainSocket, host, port, true);
+            if (verifyHostname) {
+                SSLParameters sslParameters = sslSocket.getSSLParameters();
+                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(sslParameters);
+            }
+            sslSocket.startHandshake();
+            return new PooledHttpConnection(key, sslSocket, null);
+        } catch (IOException e) {
+            plainSocket.close();
+            throw e;
+        }
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Returns a cleared direct buffer for request bodies which is re-used for all requests sent over this connection.
+     *
+     * @param size the capacity of the buffer
+     * @return a cleared direct buffer with the provided capacity
+     */
+    ByteBuffer getRequestBuffer(int size) {
+        if (requestBuffer == null || requestBuffer.capacity() != size) {
+            requestBuffer = ByteBuffer.allocateDirect(size);
+        }
+        requestBuffer.clear();
+        return requestBuffer;
+    }
+
+    /**
+     * Writes all remaining bytes of the provided buffers to the connection.
+     */
+    void write(ByteBuffer... buffers) throws IOException {
+        if (channel != null) {
+            long remaining = remaining(buffers);
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } else if (outputStream != null) {
+            for (ByteBuffer buffer : buffers) {
+                writeToStream(buffer, outputStream);
+            }
+            outputStream.flush();
+        }
+    }
+
+    private void writeToStream(ByteBuffer buffer, OutputStream os) throws IOException {
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (copyBuffer == null) {
+            copyBuffer = new byte[8192];
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), copyBuffer.length);
+            buffer.get(copyBuffer, 0, length);
+            os.write(copyBuffer, 0, length);
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    void setReadTimeout(int readTimeoutMillis) throws IOException {
+        socket.setSoTimeout(readTimeoutMillis);
+    }
+
+    void markUsed() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    long getIdleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    void markReused() {
+        reused = true;
+    }
+
+    /**
+     * Returns whether this connection has been handed out by the {@link HttpConnectionPool} after having been used for a previous request.
+     * Requests on such connections may fail because the APM Server has closed the connection in the meantime.
+     */
+    boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Checks whether the APM Server has closed this idle connection, which is not reflected in the local socket state.
+     * <p>
+     * Plain text connections are probed with a non-blocking read.
+     * As that's not possible for TLS connections, they are probed with a read that times out after one millisecond.
+     * Any data or the end of the stream means that the connection can't be used for another request.
+     * </p>
+     *
+     * @return {@code true}, if the connection must not be re-used
+     */
+    boolean isStale() {
+        try {
+            if (inputStream.available() > 0) {
+                return true;
+            }
+            if (channel != null) {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) != 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            }
+            int readTimeoutMillis = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                inputStream.read();
+                return true;
+            } catch (SocketTimeoutException expected) {
+                return false;
+            } finally {
+                socket.setSoTimeout(readTimeoutMillis);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+            // ignored
+        }
+    }
+}
@@ -36,6 +36,11 @@ public class ExecutorUtilsProviderImpl implements ExecutorUtilsProvider {
         return ExecutorUtils.createSingleThreadSchedulingDaemonPool(threadPurpose);
     }
 
+    @Override
+    public ExecutorService createThreadDaemonPool(String threadPurpose, int poolSize, int queueCapacity) {
+        return ExecutorUtils.createThreadDaemonPool(threadPurpose, poolSize, queueCapacity);
+    }
+
     @Override
     public void shutdownAndWaitTermination(ExecutorService executor) {
         ExecutorUtils.shutdownAndWaitTermination(executor);
@@ -0,0 +1,163 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClassFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPersistAndLoad() throws IOException {
+        File file = tempDir.resolve("cache").toFile();
+        File jar = createJar("app.jar", "foo");
+
+        ClassFileCache cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        assertThat(cache.getHits()).isZero();
+        assertThat(cache.getMisses()).isEqualTo(1);
+        // recorded class files are served from the cache
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        assertThat(cache.getHits()).isEqualTo(1);
+        cache.persist();
+
+        cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isZero();
+        cache.persist();
+
+        // the class files that have been served from the cache are carried over to the next run
+        cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    void testPreviousClassFilesAreNotRecordedAgain() throws IOException {
+        File file = tempDir.resolve("cache").toFile();
+        File jar = createJar("app.jar", "foo");
+        ClassFileCache cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        cache.persist();
+
+        cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        assertThat(cache.getHits()).isEqualTo(1);
+        // hits of the previous run are copied from the previous file when persisting, instead of being written to a temporary file
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.filter(path -> path.toString().endsWith(".classes"))).isEmpty();
+        }
+    }
+
+    @Test
+    void testClassLoaderResolutionOrderIsRespected() throws IOException {
+        File file = tempDir.resolve("cache").toFile();
+        File jar = createJar("app.jar", "foo");
+        ClassFileCache cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        cache.persist();
+
+        // even though the class has only been seen in app.jar, the class loader finds it in other.jar first
+        cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        File otherJar = createJar("other.jar", "bar");
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{otherJar.toURI().toURL(), jar.toURI().toURL()}, null)) {
+            assertThat(new String(cache.classFileLocator(classLoader, null).locate("com.example.Foo").resolve(), StandardCharsets.UTF_8))
+                .isEqualTo("bar");
+        }
+        assertThat(cache.getHits()).isZero();
+    }
+
+    @Test
+    void testChangedJarInvalidatesClassFiles() throws IOException {
+        File file = tempDir.resolve("cache").toFile();
+        ClassFileCache cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, createJar("app.jar", "foo"), "com.example.Foo")).isEqualTo("foo");
+        cache.persist();
+
+        cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, createJar("app-v2.jar", "bar"), "com.example.Foo")).isEqualTo("bar");
+        assertThat(cache.getHits()).isZero();
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    void testUnresolvableAndUncacheableClassFiles() throws IOException {
+        File directory = tempDir.resolve("classes").toFile();
+        File classFile = new File(directory, "com/example/Foo.class");
+        assertThat(classFile.getParentFile().mkdirs()).isTrue();
+        Files.write(classFile.toPath(), "foo".getBytes(StandardCharsets.UTF_8));
+
+        ClassFileCache cache = ClassFileCache.load(tempDir.resolve("cache").toFile(), AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, directory, "com.example.Foo")).isEqualTo("foo");
+        assertThat(locate(cache, directory, "com.example.Bar")).isNull();
+        assertThat(cache.getHits()).isZero();
+        assertThat(cache.getMisses()).isZero();
+    }
+
+    @Test
+    void testCorruptFile() throws IOException {
+        File file = tempDir.resolve("cache").toFile();
+        Files.write(file.toPath(), "not a cache".getBytes(StandardCharsets.UTF_8));
+        File jar = createJar("app.jar", "foo");
+
+        ClassFileCache cache = ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG);
+        assertThat(locate(cache, jar, "com.example.Foo")).isEqualTo("foo");
+        cache.persist();
+        assertThat(locate(ClassFileCache.load(file, AgentBuilder.LocationStrategy.ForClassLoader.STRONG), jar, "com.example.Foo")).isEqualTo("foo");
+    }
+
+    private static String locate(ClassFileCache cache, File classPath, String name) throws IOException {
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classPath.toURI().toURL()}, null)) {
+            ClassFileLocator.Resolution resolution = cache.classFileLocator(classLoader, null).locate(name);
+            return resolution.isResolved() ? new String(resolution.resolve(), StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    private File createJar(String name, String content) throws IOException {
+        File jar = tempDir.resolve(name).toFile();
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            ZipEntry entry = new ZipEntry("com/example/Foo.class");
+            entry.setTime(0);
+            out.putNextEntry(entry);
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return jar;
+    }
+}
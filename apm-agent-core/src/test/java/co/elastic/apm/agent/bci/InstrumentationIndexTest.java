@@ -0,0 +1,210 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InstrumentationIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testCentralDirectoryChecksum() throws IOException {
+        File jar = createJar("app.jar", "foo");
+        String checksum = InstrumentationIndex.centralDirectoryChecksum(jar);
+        assertThat(checksum).isNotNull();
+        assertThat(InstrumentationIndex.centralDirectoryChecksum(createJar("same.jar", "foo"))).isEqualTo(checksum);
+        assertThat(InstrumentationIndex.centralDirectoryChecksum(createJar("changed.jar", "bar"))).isNotEqualTo(checksum);
+
+        File notAJar = tempDir.resolve("not-a.jar").toFile();
+        Files.write(notAJar.toPath(), "foo".getBytes(StandardCharsets.UTF_8));
+        assertThat(InstrumentationIndex.centralDirectoryChecksum(notAJar)).isNull();
+    }
+
+    @Test
+    void testCentralDirectoryChecksumOfPrefixedJar() throws IOException {
+        File jar = createJar("app.jar", "foo");
+        // like a Spring Boot executable jar with a launch script
+        File prefixedJar = tempDir.resolve("prefixed.jar").toFile();
+        try (OutputStream out = new FileOutputStream(prefixedJar)) {
+            out.write("#!/bin/bash\nexec java -jar $0\n".getBytes(StandardCharsets.UTF_8));
+            out.write(Files.readAllBytes(jar.toPath()));
+        }
+        assertThat(InstrumentationIndex.centralDirectoryChecksum(prefixedJar)).isEqualTo(InstrumentationIndex.centralDirectoryChecksum(jar));
+    }
+
+    @Test
+    void testCodeSourceKey() throws IOException {
+        InstrumentationIndex index = InstrumentationIndex.load(tempDir.resolve("index").toFile(), "1.0 abc");
+        File jar = createJar("app.jar", "foo");
+        String checksum = InstrumentationIndex.centralDirectoryChecksum(jar);
+
+        assertThat(index.getCodeSourceKey(protectionDomain(jar.toURI().toURL()))).isEqualTo(checksum);
+        assertThat(index.getCodeSourceKey(protectionDomain(new URL("jar:" + jar.toURI() + "!/BOOT-INF/lib/lib.jar!/"))))
+            .isEqualTo(checksum + "!/BOOT-INF/lib/lib.jar!/");
+        assertThat(index.getCodeSourceKey(protectionDomain(tempDir.toUri().toURL()))).isNull();
+        assertThat(index.getCodeSourceKey(protectionDomain(null))).isNull();
+        assertThat(index.getCodeSourceKey(null)).isNull();
+    }
+
+    @Test
+    void testPersistAndLoad() throws IOException {
+        File file = tempDir.resolve("index").toFile();
+        InstrumentationIndex index = InstrumentationIndex.load(file, "1.0 abc");
+        assertThat(index.isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isFalse();
+        index.recordMismatch("jar1", "Instrumentation", "com.example.Foo", "");
+        index.recordMismatch("jar1", "Instrumentation", "com.example.Bar", "");
+        index.recordMismatch("jar2", "OtherInstrumentation", "com.example.Baz", "");
+        // mismatches are only considered in the next run
+        assertThat(index.isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isFalse();
+        index.persist();
+
+        index = InstrumentationIndex.load(file, "1.0 abc");
+        assertThat(index.isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isTrue();
+        assertThat(index.isKnownMismatch("jar1", "OtherInstrumentation", "com.example.Foo")).isFalse();
+        assertThat(index.isKnownMismatch("jar3", "Instrumentation", "com.example.Foo")).isFalse();
+        assertThat(index.isKnownMismatch("jar2", "OtherInstrumentation", "com.example.Baz")).isTrue();
+        assertThat(index.getSkippedTypeMatches()).isEqualTo(2);
+        index.persist();
+
+        // entries that have not been used in the previous run are dropped
+        index = InstrumentationIndex.load(file, "1.0 abc");
+        assertThat(index.isKnownMismatch("jar1", "Instrumentation", "com.example.Bar")).isFalse();
+        assertThat(index.isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isTrue();
+
+        assertThat(InstrumentationIndex.load(file, "1.1 abc").isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isFalse();
+    }
+
+    @Test
+    void testChangedHierarchyDependencyInvalidatesEntry() throws IOException {
+        File file = tempDir.resolve("index").toFile();
+        File lib = createJar("lib.jar", "foo");
+        String location = lib.toURI().toURL().toString();
+        InstrumentationIndex index = InstrumentationIndex.load(file, "1.0 abc");
+        index.recordMismatch("jar1", "Instrumentation", "com.example.Foo", location + " " + InstrumentationIndex.centralDirectoryChecksum(lib));
+        index.persist();
+
+        assertThat(InstrumentationIndex.load(file, "1.0 abc").isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isTrue();
+
+        // the jar that provides a super type of com.example.Foo has changed
+        createJar("lib.jar", "bar");
+        assertThat(InstrumentationIndex.load(file, "1.0 abc").isKnownMismatch("jar1", "Instrumentation", "com.example.Foo")).isFalse();
+    }
+
+    @Test
+    void testHierarchyDependencies() throws IOException {
+        InstrumentationIndex index = InstrumentationIndex.load(tempDir.resolve("index").toFile(), "1.0 abc");
+        ClassLoader classLoader = SimpleSource.class.getClassLoader();
+        String location = InstrumentationIndex.getJarLocation(SimpleSource.class.getName(), classLoader);
+        assertThat(location).isEqualTo(SimpleSource.class.getProtectionDomain().getCodeSource().getLocation().toString());
+        String key = index.getCodeSourceKey(SimpleSource.class.getProtectionDomain());
+        assertThat(key).isNotNull();
+
+        // the super class of SimpleSource is in the same jar
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(SimpleSource.class), classLoader, "other"))
+            .isEqualTo(location + " " + key);
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(SimpleSource.class), classLoader, key)).isEmpty();
+        // JDK types are covered by the fingerprint
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(ArrayList.class), null, key)).isEmpty();
+        // types loaded from directories can't be indexed
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(Subclass.class), getClass().getClassLoader(), key)).isNull();
+    }
+
+    @Test
+    void testJarLocationsAreResolvedOncePerClassLoader() throws IOException {
+        InstrumentationIndex index = InstrumentationIndex.load(tempDir.resolve("index").toFile(), "1.0 abc");
+        AtomicInteger resourceLookups = new AtomicInteger();
+        ClassLoader classLoader = new ClassLoader(SimpleSource.class.getClassLoader()) {
+            @Override
+            public URL getResource(String name) {
+                resourceLookups.incrementAndGet();
+                return super.getResource(name);
+            }
+        };
+        String dependencies = index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(SimpleSource.class), classLoader, "other");
+        int lookups = resourceLookups.get();
+        assertThat(lookups).isPositive();
+
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(SimpleSource.class), classLoader, "other")).isEqualTo(dependencies);
+        assertThat(resourceLookups.get()).isEqualTo(lookups);
+        // types that are not loaded from a jar are memoized as well
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(Subclass.class), classLoader, "other")).isNull();
+        lookups = resourceLookups.get();
+        assertThat(index.getHierarchyDependencies(TypeDescription.ForLoadedType.of(Subclass.class), classLoader, "other")).isNull();
+        assertThat(resourceLookups.get()).isEqualTo(lookups);
+    }
+
+    @Test
+    void testFingerprint() {
+        String fingerprint = InstrumentationIndex.fingerprint("1.0", SpyConfiguration.createSpyConfig());
+        assertThat(fingerprint).startsWith("1.0 ");
+        assertThat(InstrumentationIndex.fingerprint("1.0", SpyConfiguration.createSpyConfig())).isEqualTo(fingerprint);
+        assertThat(InstrumentationIndex.fingerprint("1.1", SpyConfiguration.createSpyConfig())).isNotEqualTo(fingerprint);
+        assertThat(InstrumentationIndex.fingerprint("1.0", SpyConfiguration.createSpyConfig(SimpleSource.forTest("trace_methods", "com.example.*#*"))))
+            .isNotEqualTo(fingerprint);
+        assertThat(InstrumentationIndex.fingerprint("1.0", SpyConfiguration.createSpyConfig(SimpleSource.forTest("application_packages", "com.example"))))
+            .isNotEqualTo(fingerprint);
+        // options that don't affect type matching don't invalidate the index
+        assertThat(InstrumentationIndex.fingerprint("1.0", SpyConfiguration.createSpyConfig(SimpleSource.forTest("service_node_name", "node-1"))))
+            .isEqualTo(fingerprint);
+    }
+
+    private File createJar(String name, String content) throws IOException {
+        File jar = tempDir.resolve(name).toFile();
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            ZipEntry entry = new ZipEntry("com/example/Foo.class");
+            // fixed timestamps so that jars with the same content have the same central directory
+            entry.setTime(0);
+            out.putNextEntry(entry);
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return jar;
+    }
+
+    private static ProtectionDomain protectionDomain(URL location) {
+        return new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+    }
+
+    private static class Subclass extends InstrumentationIndexTest {
+    }
+}
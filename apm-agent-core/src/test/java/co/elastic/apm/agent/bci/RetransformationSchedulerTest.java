@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RetransformationSchedulerTest {
+
+    @Test
+    void testPrioritizedClassesAreRetransformedFirst() {
+        RetransformationScheduler scheduler = new RetransformationScheduler(1, Arrays.asList("servlet-api", "jdbc"));
+        scheduler.onMatch(Integer.class, Arrays.asList("jdbc"));
+        scheduler.onMatch(Long.class, Arrays.asList("executor", "servlet-api"));
+        scheduler.onMatch(Short.class, Arrays.asList("executor"));
+
+        List<Class<?>> retransformed = new ArrayList<>();
+        for (List<Class<?>> batch : scheduler.batch(Arrays.<Class<?>>asList(String.class, Short.class, Long.class, Object.class, Integer.class))) {
+            retransformed.addAll(batch);
+        }
+        assertThat(retransformed).containsExactly(Long.class, Integer.class, String.class, Short.class, Object.class);
+    }
+
+    @Test
+    void testAllClassesAreRetransformed() {
+        RetransformationScheduler scheduler = new RetransformationScheduler(1, Collections.<String>emptyList());
+        List<Class<?>> types = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            types.add(i % 2 == 0 ? String.class : Object.class);
+        }
+        List<Class<?>> retransformed = new ArrayList<>();
+        for (List<Class<?>> batch : scheduler.batch(types)) {
+            assertThat(batch.size()).isBetween(1, RetransformationScheduler.MAX_BATCH_SIZE);
+            assertThat(scheduler.getRetransformedClasses()).isEqualTo(retransformed.size());
+            retransformed.addAll(batch);
+        }
+        assertThat(retransformed).hasSize(250);
+        assertThat(scheduler.getScheduledClasses()).isEqualTo(250);
+        assertThat(scheduler.getRetransformedClasses()).isEqualTo(250);
+        assertThat(scheduler.getBatches()).isGreaterThanOrEqualTo(2);
+    }
+
+    @Test
+    void testNextBatchSize() {
+        // batches that take too long shrink proportionally
+        assertThat(RetransformationScheduler.nextBatchSize(100, 200, 50)).isEqualTo(25);
+        assertThat(RetransformationScheduler.nextBatchSize(1, 200, 50)).isEqualTo(1);
+        // fast batches grow by at most a factor of two
+        assertThat(RetransformationScheduler.nextBatchSize(100, 10, 50)).isEqualTo(200);
+        assertThat(RetransformationScheduler.nextBatchSize(100, 40, 50)).isEqualTo(125);
+        assertThat(RetransformationScheduler.nextBatchSize(800, 0, 50)).isEqualTo(RetransformationScheduler.MAX_BATCH_SIZE);
+    }
+}
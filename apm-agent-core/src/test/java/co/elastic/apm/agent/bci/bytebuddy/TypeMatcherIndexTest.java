@@ -0,0 +1,174 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.hasSuperType;
+import static net.bytebuddy.matcher.ElementMatchers.isInterface;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.namedOneOf;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TypeMatcherIndexTest {
+
+    @Test
+    void testGetNameConditions() {
+        assertThat(TypeMatcherIndex.getNameConditions(named("foo.Bar")))
+            .containsExactly(new TypeMatcherIndex.NameCondition("foo.Bar", StringMatcher.Mode.EQUALS_FULLY));
+        assertThat(TypeMatcherIndex.getNameConditions(namedOneOf("foo.Bar", "foo.Baz")))
+            .containsExactlyInAnyOrder(
+                new TypeMatcherIndex.NameCondition("foo.Bar", StringMatcher.Mode.EQUALS_FULLY),
+                new TypeMatcherIndex.NameCondition("foo.Baz", StringMatcher.Mode.EQUALS_FULLY));
+        assertThat(TypeMatcherIndex.getNameConditions(nameStartsWith("foo.").or(nameContains("Servlet"))))
+            .containsExactly(
+                new TypeMatcherIndex.NameCondition("foo.", StringMatcher.Mode.STARTS_WITH),
+                new TypeMatcherIndex.NameCondition("Servlet", StringMatcher.Mode.CONTAINS));
+        // the exact name is more selective than the prefix
+        assertThat(TypeMatcherIndex.getNameConditions(nameStartsWith("foo.").and(not(isInterface())).and(named("foo.Bar"))))
+            .containsExactly(new TypeMatcherIndex.NameCondition("foo.Bar", StringMatcher.Mode.EQUALS_FULLY));
+        assertThat(TypeMatcherIndex.getNameConditions(hasSuperType(named("foo.Bar")).and(nameEndsWith("Bar"))))
+            .containsExactly(new TypeMatcherIndex.NameCondition("Bar", StringMatcher.Mode.ENDS_WITH));
+    }
+
+    @Test
+    void testGetNameConditionsNotIndexable() {
+        assertThat(TypeMatcherIndex.getNameConditions(any())).isNull();
+        assertThat(TypeMatcherIndex.getNameConditions(not(named("foo.Bar")))).isNull();
+        assertThat(TypeMatcherIndex.getNameConditions(hasSuperType(named("foo.Bar")))).isNull();
+        assertThat(TypeMatcherIndex.getNameConditions(named("foo.Bar").or(hasSuperType(named("foo.Bar"))))).isNull();
+        assertThat(TypeMatcherIndex.getNameConditions(nameStartsWith(""))).isNull();
+    }
+
+    @Test
+    void testNotCompiled() {
+        TypeMatcherIndex index = new TypeMatcherIndex();
+        int id = index.register(named("foo.Bar"), null);
+        assertThat(index.isCandidate(type("foo.Baz"), id)).isTrue();
+        assertThat(index.prepare(type("foo.Baz"))).isFalse();
+    }
+
+    @Test
+    void testCandidates() {
+        TypeMatcherIndex index = new TypeMatcherIndex();
+        int exact = index.register(named("foo.Bar"), null);
+        int prefix = index.register(hasSuperType(named("javax.servlet.Servlet")), nameStartsWith("foo."));
+        int suffix = index.register(nameEndsWith("Bar"), null);
+        int infix = index.register(hasSuperType(named("javax.servlet.Servlet")), nameContains("Servlet"));
+        int notIndexed = index.register(hasSuperType(named("javax.servlet.Servlet")), null);
+        index.compile();
+        assertThat(index.getRegisteredMatchers()).isEqualTo(5);
+        assertThat(index.getIndexedMatchers()).isEqualTo(4);
+
+        assertCandidates(index, "foo.Bar", exact, prefix, suffix, notIndexed);
+        assertCandidates(index, "foo.Baz", prefix, notIndexed);
+        assertCandidates(index, "bar.foo.Bar", suffix, notIndexed);
+        assertCandidates(index, "bar.Bar$Inner", notIndexed);
+        assertCandidates(index, "com.acme.MyServletImpl", infix, notIndexed);
+        assertCandidates(index, "foo.ServletBar", prefix, suffix, infix, notIndexed);
+        assertCandidates(index, "fo", notIndexed);
+        assertThat(index.getLookups()).isEqualTo(7);
+        assertThat(index.getSkippedTypeMatches()).isEqualTo(1 + 3 + 3 + 4 + 3 + 1 + 4);
+    }
+
+    @Test
+    void testOverlappingPatterns() {
+        TypeMatcherIndex index = new TypeMatcherIndex();
+        int abcd = index.register(nameContains("abcd"), null);
+        int bc = index.register(nameContains("bc"), null);
+        int bcx = index.register(nameContains("bcx"), null);
+        int startsWithB = index.register(nameStartsWith("b"), null);
+        int endsWithCd = index.register(nameEndsWith("cd"), null);
+        index.compile();
+
+        assertCandidates(index, "abcd", abcd, bc, endsWithCd);
+        assertCandidates(index, "abcx", bc, bcx);
+        assertCandidates(index, "bcd.x", bc, startsWithB);
+        assertCandidates(index, "xabcabcd", abcd, bc, endsWithCd);
+    }
+
+    @Test
+    void testNeverRejectsMatchingTypes() {
+        List<ElementMatcher<? super NamedElement>> matchers = Arrays.<ElementMatcher<? super NamedElement>>asList(
+            named("co.elastic.Foo"),
+            nameStartsWith("co.elastic."),
+            nameStartsWith("co.elastic.apm"),
+            nameEndsWith("Foo"),
+            nameEndsWith("oo"),
+            nameContains("Servlet"),
+            nameContains("ervletF"),
+            nameContains("e"),
+            nameStartsWith("co.").and(nameEndsWith("Filter")),
+            named("co.elastic.Bar").or(nameContains("Bar")),
+            not(nameContains("Foo"))
+        );
+        TypeMatcherIndex index = new TypeMatcherIndex();
+        List<Integer> ids = new ArrayList<>();
+        for (ElementMatcher<? super NamedElement> matcher : matchers) {
+            ids.add(index.register(matcher, null));
+        }
+        index.compile();
+
+        List<String> parts = Arrays.asList("co", "elastic", "apm", "Foo", "Bar", "Servlet", "Filter", "ServletFilter", "e", "oo");
+        for (String first : parts) {
+            for (String second : parts) {
+                for (String third : parts) {
+                    TypeDescription type = type(first + "." + second + "." + third);
+                    for (int i = 0; i < matchers.size(); i++) {
+                        if (matchers.get(i).matches(type)) {
+                            assertThat(index.isCandidate(type, ids.get(i)))
+                                .describedAs("%s should be a candidate for %s", type, matchers.get(i))
+                                .isTrue();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertCandidates(TypeMatcherIndex index, String typeName, Integer... expectedIds) {
+        TypeDescription type = type(typeName);
+        assertThat(index.prepare(type)).isTrue();
+        assertThat(index.prepare(type)).isFalse();
+        List<Integer> candidates = new ArrayList<>();
+        for (int id = 0; id < index.getRegisteredMatchers(); id++) {
+            if (index.isCandidate(type, id)) {
+                candidates.add(id);
+            }
+        }
+        assertThat(candidates).describedAs(typeName).containsExactly(expectedIds);
+    }
+
+    private static TypeDescription type(String name) {
+        return new TypeDescription.Latent(name, 0, TypeDescription.Generic.OBJECT);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AttributeMapTest {
+
+    @Test
+    void testPrimitiveValues() {
+        AttributeMap map = new AttributeMap();
+        map.putLong("long", 42);
+        map.putDouble("double", 0.5);
+        map.putBoolean("boolean", true);
+        map.put("string", "foo");
+        map.put("int", 7);
+
+        assertThat(map.size()).isEqualTo(5);
+        assertThat(map.getValueType(0)).isEqualTo(AttributeMap.TYPE_LONG);
+        assertThat(map.getLongValue(0)).isEqualTo(42);
+        assertThat(map.getValueType(1)).isEqualTo(AttributeMap.TYPE_DOUBLE);
+        assertThat(map.getDoubleValue(1)).isEqualTo(0.5);
+        assertThat(map.getValueType(2)).isEqualTo(AttributeMap.TYPE_BOOLEAN);
+        assertThat(map.getBooleanValue(2)).isTrue();
+        assertThat(map.getValueType(3)).isEqualTo(AttributeMap.TYPE_OBJECT);
+        assertThat(map.getObjectValue(3)).isEqualTo("foo");
+
+        // boxed values are unboxed, other numbers keep their type
+        map.put("boxed", 43L);
+        assertThat(map.getValueType(5)).isEqualTo(AttributeMap.TYPE_LONG);
+        assertThat(map.get("int")).isEqualTo(7);
+        assertThat(map.get("long")).isEqualTo(42L);
+        assertThat(map.get("double")).isEqualTo(0.5d);
+        assertThat(map.get("boolean")).isEqualTo(true);
+        assertThat(map.get("missing")).isNull();
+    }
+
+    @Test
+    void testOverwrite() {
+        AttributeMap map = new AttributeMap();
+        map.put("foo", "bar");
+        map.putLong("foo", 1);
+        assertThat(map).hasSize(1).containsEntry("foo", 1L);
+        map.put("foo", "baz");
+        assertThat(map).hasSize(1).containsEntry("foo", "baz");
+        assertThat(map.getObjectValue(0)).isEqualTo("baz");
+    }
+
+    @Test
+    void testGrowAndCompareWithHashMap() {
+        AttributeMap map = new AttributeMap(1);
+        Map<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.putLong("key" + i, i);
+            expected.put("key" + i, (long) i);
+            map.putLong("key" + (i / 2), -i);
+            expected.put("key" + (i / 2), (long) -i);
+        }
+        assertThat(map).isEqualTo(expected);
+        assertThat(map.keySet()).containsExactlyInAnyOrderElementsOf(expected.keySet());
+        for (int i = 0; i < map.size(); i++) {
+            assertThat(map.getKey(i)).isEqualTo("key" + i);
+        }
+    }
+
+    @Test
+    void testRemove() {
+        AttributeMap map = new AttributeMap();
+        map.put("a", "1");
+        map.putLong("b", 2);
+        map.putBoolean("c", false);
+        assertThat(map.remove("b")).isEqualTo(2L);
+        assertThat(map.remove("b")).isNull();
+        assertThat(map).hasSize(2).containsEntry("a", "1").containsEntry("c", false);
+        assertThat(map.getKey(1)).isEqualTo("c");
+        map.putLong("b", 3);
+        assertThat(map).containsEntry("b", 3L);
+    }
+
+    @Test
+    void testClearAndCopy() {
+        AttributeMap map = new AttributeMap();
+        for (int i = 0; i < 20; i++) {
+            map.putDouble("key" + i, i);
+        }
+        AttributeMap copy = new AttributeMap();
+        copy.put("other", true);
+        copy.putAll(map);
+        assertThat(copy).hasSize(21).containsEntry("key19", 19d);
+
+        map.clear();
+        assertThat(map).isEmpty();
+        assertThat(map.get("key1")).isNull();
+        map.put("key1", "value");
+        assertThat(map).containsOnlyKeys("key1");
+        assertThat(copy).hasSize(21);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.SoftAssertions.assertSoftly;
+
+class WildcardMatcherListTest {
+
+    private static final List<WildcardMatcher> MATCHERS = Arrays.asList(
+        WildcardMatcher.valueOf("/VAADIN/*"),
+        WildcardMatcher.valueOf("/heartbeat*"),
+        WildcardMatcher.valueOf("/favicon.ico"),
+        WildcardMatcher.valueOf("*.js"),
+        WildcardMatcher.valueOf("*.css"),
+        WildcardMatcher.valueOf("(?-i)*Token*"),
+        WildcardMatcher.valueOf("*token*"),
+        WildcardMatcher.valueOf("*key"),
+        WildcardMatcher.valueOf("/foo/*/bar"),
+        WildcardMatcher.valueOf("(?-i)/CaseSensitive*"),
+        WildcardMatcher.valueOf("*")
+    );
+
+    @Test
+    void testFirstMatchWins() {
+        List<WildcardMatcher> matchers = WildcardMatcherList.compile(MATCHERS);
+        assertSoftly(softly -> {
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/vaadin/app.js")).isSameAs(MATCHERS.get(0));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/heartbeat/token")).isSameAs(MATCHERS.get(1));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/FAVICON.ICO")).isSameAs(MATCHERS.get(2));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/favicon.icon")).isSameAs(MATCHERS.get(10));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/static/app.JS")).isSameAs(MATCHERS.get(3));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "x-Token-id")).isSameAs(MATCHERS.get(5));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "x-TOKEN-id")).isSameAs(MATCHERS.get(6));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "api-key")).isSameAs(MATCHERS.get(7));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/foo/baz/bar")).isSameAs(MATCHERS.get(8));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/CaseSensitive/foo")).isSameAs(MATCHERS.get(9));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/casesensitive/foo")).isSameAs(MATCHERS.get(10));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "")).isSameAs(MATCHERS.get(10));
+        });
+    }
+
+    @Test
+    void testPartitionedString() {
+        List<WildcardMatcher> matchers = WildcardMatcherList.compile(MATCHERS.subList(0, 9));
+        assertSoftly(softly -> {
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/heart", "beat")).isSameAs(MATCHERS.get(1));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/favicon", ".ico")).isSameAs(MATCHERS.get(2));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/app.", "css")).isSameAs(MATCHERS.get(4));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "x-tok", "en")).isSameAs(MATCHERS.get(6));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/foo/baz", "/bar")).isSameAs(MATCHERS.get(8));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "/favicon", null)).isNull();
+        });
+    }
+
+    @Test
+    void testOverlappingInfixes() {
+        List<WildcardMatcher> matchers = WildcardMatcherList.compile(Arrays.asList(
+            WildcardMatcher.valueOf("*abcd*"),
+            WildcardMatcher.valueOf("*bc*"),
+            WildcardMatcher.valueOf("*abce*")
+        ));
+        assertSoftly(softly -> {
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "xabcex")).isSameAs(matchers.get(1));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "xabcdx")).isSameAs(matchers.get(0));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "abcx")).isSameAs(matchers.get(1));
+            softly.assertThat(WildcardMatcher.anyMatch(matchers, "ab")).isNull();
+        });
+    }
+
+    @Test
+    void testEquivalentToLinearScan() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            List<WildcardMatcher> matchers = new ArrayList<>();
+            for (int j = random.nextInt(10); j >= 0; j--) {
+                matchers.add(WildcardMatcher.valueOf(randomString(random, "ab*", 4)));
+            }
+            List<WildcardMatcher> compiled = WildcardMatcherList.compile(matchers);
+            for (int j = 0; j < 20; j++) {
+                String firstPart = randomString(random, "abAB", 6);
+                String secondPart = randomString(random, "abAB", 2);
+                assertThat(WildcardMatcher.anyMatch(compiled, firstPart, secondPart))
+                    .describedAs("%s matching %s%s", matchers, firstPart, secondPart)
+                    .isSameAs(linearScan(matchers, firstPart, secondPart));
+            }
+        }
+    }
+
+    @Test
+    void testListSemantics() {
+        List<WildcardMatcher> compiled = WildcardMatcherList.compile(MATCHERS);
+        assertThat(compiled).isEqualTo(MATCHERS);
+        assertThat(compiled.toString()).isEqualTo(MATCHERS.toString());
+        assertThat(WildcardMatcherList.compile(compiled)).isSameAs(compiled);
+    }
+
+    private static WildcardMatcher linearScan(List<WildcardMatcher> matchers, String firstPart, String secondPart) {
+        for (WildcardMatcher matcher : matchers) {
+            if (matcher.matches(firstPart, secondPart)) {
+                return matcher;
+            }
+        }
+        return null;
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
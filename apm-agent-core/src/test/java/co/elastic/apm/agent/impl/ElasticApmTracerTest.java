@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.impl;
 
 import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.common.JvmRuntimeInfo;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.AutoDetectedServiceInfo;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
@@ -148,7 +149,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertNoStackTrace(reporter.getFirstSpan());
     }
 
     @Test
@@ -163,7 +164,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNotNull();
+        assertStackTrace(reporter.getFirstSpan());
     }
 
     @Test
@@ -177,7 +178,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertNoStackTrace(reporter.getFirstSpan());
 
     }
 
@@ -193,7 +194,24 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNotNull();
+        assertStackTrace(reporter.getFirstSpan());
+    }
+
+    /**
+     * Asserts the representation of the stack trace the capturer for the current JVM produces,
+     * frames on Java 9+ and a {@link Throwable} on Java 7 and 8
+     */
+    private static void assertStackTrace(Span span) {
+        if (JvmRuntimeInfo.ofCurrentVM().getMajorVersion() >= 9) {
+            assertThat(span.getStackTraceElements()).isNotEmpty();
+        } else {
+            assertThat(span.getStacktrace()).isNotNull();
+        }
+    }
+
+    private static void assertNoStackTrace(Span span) {
+        assertThat(span.getStacktrace()).isNull();
+        assertThat(span.getStackTraceElements()).isNull();
     }
 
     @Nullable
@@ -20,24 +20,29 @@ package co.elastic.apm.agent.impl;
 
 import co.elastic.apm.agent.MockReporter;
 import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.source.SimpleSource;
 
 import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
 import static org.mockito.Mockito.doReturn;
 
 @SuppressWarnings("ConstantConditions")
@@ -106,6 +111,54 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    /*
+     * ██████████░░░░░░░░░░██████████
+     * └─────────██████████
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_durationHistograms() {
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("duration_histogram_metrics", "true")));
+        final Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(false), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram transactionDuration = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"))
+                .getHistograms().get("transaction.duration.histogram");
+            assertThat(transactionDuration.getTotalCount()).isEqualTo(1);
+            assertThat(transactionDuration.getValueAtPercentile(100)).isCloseTo(30, offset(1.0));
+            assertThat(getMetricSet(metricSets, null, null, "db", "mysql").getHistograms().get("span.self_time.histogram").getValueAtPercentile(100))
+                .isCloseTo(10, offset(1.0));
+        });
+    }
+
+    @Test
+    void testBreakdown_durationHistogramsDisabledDynamically() {
+        reporter.setImmediateRecycling(true);
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("duration_histogram_metrics", "true")));
+        Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(false), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        transaction.end(30);
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> assertThat(metricSets).isNotEmpty());
+
+        doReturn(Collections.singletonList(WildcardMatcher.valueOf("transaction.duration.histogram")))
+            .when(tracer.getConfig(ReporterConfiguration.class)).getDisableMetrics();
+        Transaction recycled = tracer.startRootTransaction(ConstantSampler.of(false), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        // the pooled transaction has been created before the metrics have been disabled
+        assertThat(recycled).isSameAs(transaction);
+        recycled.end(30);
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            MetricSet metricSet = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"));
+            assertThat(metricSet == null ? null : metricSet.getHistograms().get("transaction.duration.histogram")).isNull();
+        });
+    }
+
     /*
      * ██████████░░░░░░░░░░██████████
      * └─────────██████████
@@ -388,16 +441,21 @@ class SpanTypeBreakdownTest {
 
     @Nullable
     private Timer getTimer(Map<? extends Labels, MetricSet> metricSets, String timerName, @Nullable String serviceName, @Nullable String serviceVersion, @Nullable String spanType, @Nullable String spanSubType) {
-        final MetricSet metricSet = metricSets.get(Labels.Mutable.of()
+        final MetricSet metricSet = getMetricSet(metricSets, serviceName, serviceVersion, spanType, spanSubType);
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.timer(timerName);
+    }
+
+    @Nullable
+    private MetricSet getMetricSet(Map<? extends Labels, MetricSet> metricSets, @Nullable String serviceName, @Nullable String serviceVersion, @Nullable String spanType, @Nullable String spanSubType) {
+        return metricSets.get(Labels.Mutable.of()
             .serviceName(serviceName)
             .serviceVersion(serviceVersion)
             .transactionName("test")
             .transactionType("request")
             .spanType(spanType)
             .spanSubType(spanSubType));
-        if (metricSet == null) {
-            return null;
-        }
-        return metricSet.timer(timerName);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveSamplerTest {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void testComputeSampleRate() {
+        assertThat(AdaptiveSampler.computeSampleRate(10, 0, 1.0)).isEqualTo(1.0);
+        assertThat(AdaptiveSampler.computeSampleRate(10, 10, 0.5)).isEqualTo(0.5);
+        assertThat(AdaptiveSampler.computeSampleRate(10, 100, 1.0)).isEqualTo(0.1);
+        assertThat(AdaptiveSampler.computeSampleRate(10, 100, 0.05)).isEqualTo(0.05);
+        assertThat(AdaptiveSampler.computeSampleRate(1, 30, 1.0)).isEqualTo(0.0333);
+        // never rounds to zero
+        assertThat(AdaptiveSampler.computeSampleRate(1, 1_000_000, 1.0)).isEqualTo(0.0001);
+        assertThat(AdaptiveSampler.computeSampleRate(0, 100, 1.0)).isEqualTo(0.0001);
+        assertThat(AdaptiveSampler.computeSampleRate(1, 1_000_000, 0.00005)).isEqualTo(0.00005);
+    }
+
+    @Test
+    void testSampleRateIsClampedAtHighThroughput() {
+        AdaptiveSampler sampler = new AdaptiveSampler(1, 1.0, INTERVAL, 0);
+
+        // 25k transactions per second with a single name
+        simulateInterval(sampler, 0, 25_000, "GET /foo");
+        assertThat(sampler.getSampleRate()).isEqualTo(AdaptiveSampler.MIN_SAMPLE_RATE);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.0001));
+    }
+
+    @Test
+    void testAdaptsToThroughputAndNames() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, INTERVAL, 0);
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+
+        // 1000 transactions per second with two distinct names
+        long now = simulateInterval(sampler, 0, 1000, "GET /foo", "GET /bar");
+        assertThat(sampler.getSampleRate()).isEqualTo(0.02);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.02));
+
+        // when the throughput drops, the sample rate gradually increases as the throughput is smoothed
+        now = simulateInterval(sampler, now, 10, "GET /foo", "GET /bar");
+        assertThat(sampler.getSampleRate()).isBetween(0.03, 0.05);
+        for (int i = 0; i < 8; i++) {
+            now = simulateInterval(sampler, now, 10, "GET /foo", "GET /bar");
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void isSampledEmpiricalTest() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, INTERVAL, 0);
+        long now = simulateInterval(sampler, 0, 1000, "GET /foo", "GET /bar");
+        assertThat(sampler.getSampleRate()).isEqualTo(0.02);
+
+        int sampled = 0;
+        Id id = Id.new128BitId();
+        for (int i = 0; i < 100_000; i++) {
+            id.setToRandomValue();
+            if (sampler.isSampled(id, now)) {
+                sampled++;
+            }
+        }
+        assertThat(sampled).isBetween(1500, 2500);
+    }
+
+    @Test
+    void testHeaderIsCachedPerRate() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 0.5, INTERVAL, 0);
+        assertThat(sampler.getTraceStateHeader()).isSameAs(sampler.getTraceStateHeader());
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.5));
+    }
+
+    @Test
+    void testNameTableIsBounded() {
+        AdaptiveSampler.NameTable names = new AdaptiveSampler.NameTable();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < AdaptiveSampler.MAX_TRANSACTION_NAMES * 2; i++) {
+            name.setLength(0);
+            name.append("GET /").append(i);
+            names.add(name);
+            names.add(name.toString());
+        }
+        assertThat(names.getDistinctNames()).isEqualTo(AdaptiveSampler.MAX_TRANSACTION_NAMES);
+    }
+
+    /**
+     * Simulates an interval with the given throughput and transaction names and triggers the recomputation of the sample rate
+     *
+     * @return the end of the interval
+     */
+    private static long simulateInterval(AdaptiveSampler sampler, long start, int transactions, String... names) {
+        Id id = Id.new128BitId();
+        for (int i = 0; i < transactions - 1; i++) {
+            id.setToRandomValue();
+            sampler.isSampled(id, start + i);
+            sampler.onRootTransactionEnd(names[i % names.length]);
+        }
+        long end = start + INTERVAL;
+        sampler.isSampled(id, end);
+        return end;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.Span;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class StackTraceCapturerTest {
+
+    private ElasticApmTracer tracer;
+    private StacktraceConfiguration stacktraceConfiguration;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.createRealTracer();
+        stacktraceConfiguration = tracer.getConfig(StacktraceConfiguration.class);
+    }
+
+    @Test
+    void testStackWalkerIsUsedOnJava9Plus() {
+        assertThat(StackTraceCapturer.create(stacktraceConfiguration)).isInstanceOf(StackWalkerStackTraceCapturer.class);
+    }
+
+    @Test
+    void testAgentFramesAndExcludedFramesAreSkipped() {
+        StackTraceElement[] frames = captureStackTrace();
+
+        assertThat(frames).isNotEmpty();
+        assertThat(frames[0].getClassName()).doesNotStartWith(StackTraceCapturer.AGENT_FRAME_PREFIX);
+        assertThat(frames).allSatisfy(frame -> {
+            assertThat(frame.getFileName()).isNotNull();
+            assertThat(StackTraceCapturer.isExcluded(frame.getClassName())).isFalse();
+        });
+    }
+
+    @Test
+    void testLimitIsAppliedWhileWalking() {
+        doReturn(3).when(stacktraceConfiguration).getStackTraceLimit();
+        assertThat(captureStackTrace()).hasSize(3);
+    }
+
+    @Test
+    void testNoFramesAreCapturedWithZeroLimit() {
+        doReturn(0).when(stacktraceConfiguration).getStackTraceLimit();
+        Span span = new Span(tracer);
+        StackTraceCapturer.create(stacktraceConfiguration).captureStackTrace(span);
+        assertThat(span.getStackTraceElements()).isNull();
+    }
+
+    @Test
+    void testThrowableCapturer() {
+        Span span = new Span(tracer);
+        new StackTraceCapturer.ThrowableStackTraceCapturer().captureStackTrace(span);
+        assertThat(span.getStacktrace()).isNotNull();
+        assertThat(span.getStackTraceElements()).isNull();
+    }
+
+    private StackTraceElement[] captureStackTrace() {
+        Span span = new Span(tracer);
+        StackTraceCapturer.create(stacktraceConfiguration).captureStackTrace(span);
+        assertThat(span.getStacktrace()).isNull();
+        StackTraceElement[] frames = span.getStackTraceElements();
+        assertThat(frames).isNotNull();
+        return frames;
+    }
+}
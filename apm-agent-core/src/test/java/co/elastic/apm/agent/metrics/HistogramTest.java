@@ -0,0 +1,76 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class HistogramTest {
+
+    @Test
+    void testBucketBoundaries() {
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = Histogram.getBucketIndex(value);
+            assertThat(Histogram.getBucketLowerBound(index)).isLessThanOrEqualTo(value);
+            assertThat(Histogram.getBucketLowerBound(index + 1)).isGreaterThan(value);
+        }
+        assertThat(Histogram.getBucketIndex(-1)).isZero();
+        assertThat(Histogram.getBucketIndex(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKET_COUNT - 1);
+    }
+
+    @Test
+    void testRelativeError() {
+        for (long value = 1; value < 1L << Histogram.MAX_EXPONENT; value = value * 3 + 1) {
+            assertThat(Histogram.getBucketValue(Histogram.getBucketIndex(value))).isCloseTo(value, offset(value / 8.0));
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getTotalCount()).isEqualTo(1000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(500, offset(500 * 0.07));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(990, offset(990 * 0.07));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(1000, offset(1000 * 0.07));
+    }
+
+    @Test
+    void testMergeAndReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(5, 2);
+        Histogram other = new Histogram();
+        other.record(5);
+        other.record(1000);
+
+        histogram.add(other);
+        assertThat(histogram.getTotalCount()).isEqualTo(4);
+        assertThat(histogram.getCountAtBucket(Histogram.getBucketIndex(5))).isEqualTo(3);
+        assertThat(histogram.getCountAtBucket(Histogram.getBucketIndex(1000))).isEqualTo(1);
+
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getCountAtBucket(Histogram.getBucketIndex(5))).isZero();
+    }
+}
@@ -101,6 +101,23 @@ class MetricRegistryTest {
         assertThat(timer.getTotalTimeUs()).isEqualTo(expectedTotalDurationUs);
     }
 
+    @Test
+    void testHistogramResetWithReporting() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
+        metricRegistry.updateHistogram("histogram", labels, 20);
+        metricRegistry.updateHistogram("histogram", labels, 22);
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets.get(labels).hasContent()).isTrue();
+            assertThat(metricSets.get(labels).getHistograms().get("histogram").getTotalCount()).isEqualTo(2);
+        });
+        metricRegistry.flipPhaseAndReport(null);
+        // Now we get the original buffer back
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets.get(labels).hasContent()).isFalse();
+            assertThat(metricSets.get(labels).getHistograms().get("histogram").getTotalCount()).isZero();
+        });
+    }
+
     @Test
     void testCounterResetWithReporting() {
         Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
@@ -129,7 +146,7 @@ class MetricRegistryTest {
         } else {
             assertThat(metricSet.hasContent()).isFalse();
         }
-        assertThat(metricSet.getCounters().get("counter").get()).isEqualTo(expectedCount);
+        assertThat(metricSet.getCounters().get("counter").sum()).isEqualTo(expectedCount);
     }
 
     @Test
@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedCounterTest {
+
+    @Test
+    void testCellCount() {
+        assertThat(StripedCounter.getCellCount(1)).isEqualTo(1);
+        assertThat(StripedCounter.getCellCount(6)).isEqualTo(8);
+        assertThat(StripedCounter.getCellCount(8)).isEqualTo(8);
+        assertThat(StripedCounter.getCellCount(1024)).isEqualTo(64);
+    }
+
+    @Test
+    void testAddAndReset() {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.add(41);
+        assertThat(counter.sum()).isEqualTo(42);
+        counter.resetState();
+        assertThat(counter.sum()).isZero();
+    }
+
+    @Test
+    void testConcurrentUpdates() throws Exception {
+        StripedCounter counter = new StripedCounter();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int j = 0; j < 100_000; j++) {
+                    counter.increment();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.sum()).isEqualTo(800_000);
+
+        counter.resetState();
+        assertThat(counter.sum()).isZero();
+        counter.add(3);
+        assertThat(counter.sum()).isEqualTo(3);
+    }
+}
@@ -23,6 +23,7 @@ import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.compression.AdaptiveCompressionLevel;
 import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import com.sun.management.ThreadMXBean;
@@ -43,6 +44,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -327,6 +329,51 @@ public class AgentOverheadMetricsTest {
         });
     }
 
+    @Test
+    public void checkCompressionLevelMetric() throws InterruptedException {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        overheadMetrics.bindTo(metricRegistry, spyMetricsConfig);
+
+        AtomicReference<AdaptiveCompressionLevel> compressionLevel = new AtomicReference<>();
+        ThreadFactory singleNamedThreadFactory = new ExecutorUtils.SingleNamedThreadFactory("compressing-reporter");
+        Thread t1 = singleNamedThreadFactory.newThread(() -> {
+            AdaptiveCompressionLevel level = new AdaptiveCompressionLevel(9);
+            level.onRequestStarted();
+            level.onRequestEnded(0);
+            compressionLevel.set(level);
+        });
+        t1.start();
+        t1.join();
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(Labels.Mutable.of("task", "compressing-reporter")).getRawMetrics())
+                .containsEntry("agent.background.compression.level", (double) compressionLevel.get().getLevel());
+        });
+    }
+
+    @Test
+    public void checkStackFrameCacheMetrics() throws InterruptedException {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        overheadMetrics.bindTo(metricRegistry, spyMetricsConfig);
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+                .containsKeys("agent.background.stack_frame_cache.hit.count", "agent.background.stack_frame_cache.miss.count");
+        });
+    }
+
+    @Test
+    public void checkSqlSignatureCacheMetrics() throws InterruptedException {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        overheadMetrics.bindTo(metricRegistry, spyMetricsConfig);
+
+        reportAndCheckMetrics(metrics -> {
+            assertThat(metrics.get(Labels.EMPTY).getRawMetrics())
+                .containsKeys("agent.background.sql_signature_cache.hit.count", "agent.background.sql_signature_cache.miss.count",
+                    "agent.background.sql_signature_cache.eviction.count");
+        });
+    }
+
     @Test
     public void disableAllViaFlag() throws InterruptedException {
         ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
@@ -357,6 +404,9 @@ public class AgentOverheadMetricsTest {
     @ParameterizedTest
     @ValueSource(strings = {
         "agent.background.threads.count",
+        "agent.background.compression.level",
+        "agent.background.stack_frame_cache.hit.count",
+        "agent.background.sql_signature_cache.eviction.count",
         "agent.background.memory.allocation.bytes",
         "agent.background.cpu.overhead.pct",
         "agent.background.cpu.total.pct"
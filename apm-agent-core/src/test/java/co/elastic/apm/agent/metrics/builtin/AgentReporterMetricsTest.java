@@ -24,6 +24,7 @@ import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.ReporterMonitor;
 import co.elastic.apm.agent.report.ReportingEvent;
 import co.elastic.apm.agent.report.ReportingEventCounter;
 import org.junit.jupiter.api.BeforeEach;
@@ -84,19 +85,19 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "transaction")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(2));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(2));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "span")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(3));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(3));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "error")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(4));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(4));
             assertThat(metricSets.get(Labels.Mutable.of("event_type", "metricset")).getCounters())
                 .hasSize(1)
                 .extractingByKey("agent.events.total")
-                .satisfies(counter -> assertThat(counter).hasValue(5));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(5));
         });
 
     }
@@ -116,7 +117,7 @@ public class AgentReporterMetricsTest {
         reportAndCheckMetrics(metricSets -> {
             assertThat(metricSets.get(Labels.Mutable.of("reason", "queue")).getCounters())
                 .extractingByKey("agent.events.dropped")
-                .satisfies(counter -> assertThat(counter).hasValue(14));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(14));
         });
     }
 
@@ -147,7 +148,7 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("reason", "error")).getCounters())
                 .extractingByKey("agent.events.dropped")
                 //14 events dropped after dequeue, 140 sent, server responded with 100 accepted
-                .satisfies(counter -> assertThat(counter).hasValue(14 + 140 - 100));
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(14 + 140 - 100));
         });
     }
 
@@ -169,15 +170,15 @@ public class AgentReporterMetricsTest {
             assertThat(metricSets.get(Labels.Mutable.of("success", "true")).getCounters())
                 .hasSize(2)
                 .satisfies(counters -> {
-                    assertThat(counters.get("agent.events.requests.count")).hasValue(3);
-                    assertThat(counters.get("agent.events.requests.bytes")).hasValue(70);
+                    assertThat(counters.get("agent.events.requests.count").sum()).isEqualTo(3);
+                    assertThat(counters.get("agent.events.requests.bytes").sum()).isEqualTo(70);
                 });
 
             assertThat(metricSets.get(Labels.Mutable.of("success", "false")).getCounters())
                 .hasSize(2)
                 .satisfies(counters -> {
-                    assertThat(counters.get("agent.events.requests.count")).hasValue(2);
-                    assertThat(counters.get("agent.events.requests.bytes")).hasValue(300);
+                    assertThat(counters.get("agent.events.requests.count").sum()).isEqualTo(2);
+                    assertThat(counters.get("agent.events.requests.bytes").sum()).isEqualTo(300);
                 });
         });
     }
@@ -237,6 +238,33 @@ public class AgentReporterMetricsTest {
 
     }
 
+    @Test
+    public void checkShardQueueUtilization() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+        ReporterMonitor shard0 = reporterMetrics.forShard(0);
+        ReporterMonitor shard1 = reporterMetrics.forShard(1);
+
+        shard0.eventCreated(ReportingEvent.ReportingEventType.TRANSACTION, 10, 2);
+        shard1.eventCreated(ReportingEvent.ReportingEventType.TRANSACTION, 10, 9);
+        shard1.eventDequeued(ReportingEvent.ReportingEventType.TRANSACTION, 10, 4);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "generic")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 0.9);
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "generic").add("shard", "0")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 0.2);
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "generic").add("shard", "1")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 0.9);
+            assertThat(metricSets.get(Labels.Mutable.of("event_type", "transaction")).getCounters())
+                .extractingByKey("agent.events.total")
+                .satisfies(counter -> assertThat(counter.sum()).isEqualTo(2));
+        });
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
         "agent.events.total",
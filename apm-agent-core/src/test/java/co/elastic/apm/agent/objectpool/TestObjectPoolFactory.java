@@ -52,6 +52,14 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
         return wrappedPool;
     }
 
+    @Override
+    public <T extends Recyclable> ObjectPool<T> createMagazineObjectPool(int maxCapacity, Allocator<T> allocator) {
+        ObjectPool<T> pool = super.createMagazineObjectPool(maxCapacity, allocator);
+        BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
+        createdPools.add(wrappedPool);
+        return wrappedPool;
+    }
+
     public List<BookkeeperObjectPool<?>> getCreatedPools() {
         return createdPools;
     }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.ObjectPoolTest;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MagazineObjectPoolTest extends ObjectPoolTest<MagazineObjectPool<TestRecyclable>> {
+
+    private static final int MAGAZINE_SIZE = 4;
+
+    @Override
+    protected MagazineObjectPool<TestRecyclable> createObjectPool(int maxSize) {
+        // the current thread holds two magazines in addition to the objects in the depot
+        return MagazineObjectPool.ofRecyclable(maxSize - 2 * MAGAZINE_SIZE, MAGAZINE_SIZE, TestRecyclable::new);
+    }
+
+    /**
+     * Objects recycled on another thread are only available to the current thread once they are handed over to the depot
+     * in a full magazine.
+     */
+    @Test
+    @Override
+    public void testRecycleInDifferentThread() {
+        MagazineObjectPool<TestRecyclable> objectPool = getObjectPool();
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < 3 * MAGAZINE_SIZE; i++) {
+            instances.add(objectPool.createInstance());
+        }
+
+        Thread reporter = new Thread(() -> {
+            for (TestRecyclable instance : instances) {
+                objectPool.recycle(instance);
+            }
+        });
+        reporter.start();
+        try {
+            reporter.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        // the first two magazines are held by the recycling thread, the third one has been handed over to the depot
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+        for (int i = 0; i < MAGAZINE_SIZE; i++) {
+            assertThat(instances).contains(objectPool.createInstance());
+        }
+        assertThat(objectPool.getObjectsInPool()).isZero();
+        assertThat(instances).doesNotContain(objectPool.createInstance());
+        assertThat(objectPool.getGarbageCreated()).isZero();
+    }
+
+    @Test
+    void testAlternatingAtMagazineBoundary() {
+        MagazineObjectPool<TestRecyclable> objectPool = getObjectPool();
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < MAGAZINE_SIZE; i++) {
+            instances.add(objectPool.createInstance());
+        }
+        for (TestRecyclable instance : instances) {
+            objectPool.recycle(instance);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            TestRecyclable instance = objectPool.createInstance();
+            objectPool.recycle(objectPool.createInstance());
+            objectPool.recycle(instance);
+        }
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+        assertThat(objectPool.getGarbageCreated()).isZero();
+    }
+
+    @Test
+    void testClear() {
+        MagazineObjectPool<TestRecyclable> objectPool = getObjectPool();
+        testMaxElements();
+        objectPool.clear();
+        assertThat(objectPool.getObjectsInPool()).isZero();
+    }
+}
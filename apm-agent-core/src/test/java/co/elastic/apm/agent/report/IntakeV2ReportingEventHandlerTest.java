@@ -32,6 +32,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.SpillLog;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -43,11 +44,13 @@ import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
@@ -60,6 +63,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static co.elastic.apm.agent.report.IntakeV2ReportingEventHandler.INTAKE_V2_URL;
+import static com.github.tomakehurst.wiremock.client.WireMock.badRequest;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.ok;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
@@ -67,6 +71,8 @@ import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 class IntakeV2ReportingEventHandlerTest {
@@ -81,6 +87,9 @@ class IntakeV2ReportingEventHandlerTest {
     private IntakeV2ReportingEventHandler reportingEventHandler;
     private IntakeV2ReportingEventHandler nonConnectedReportingEventHandler;
     private ApmServerClient apmServerClient;
+    private ReporterConfiguration reporterConfiguration;
+    @TempDir
+    File spillDirectory;
 
     @Nonnull
     private static JsonNode getReadTree(String s) {
@@ -103,7 +112,7 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.start();
 
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
-        final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         final CoreConfiguration coreConfiguration = configurationRegistry.getConfig(CoreConfiguration.class);
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final ProcessInfo title = new ProcessInfo("title");
@@ -186,6 +195,25 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(5).get("metrics")).isNotNull();
     }
 
+    @Test
+    void testReportWithKeepAliveTransport() throws Exception {
+        doReturn(ReporterConfiguration.IntakeTransport.KEEP_ALIVE).when(reporterConfiguration).getIntakeTransport();
+
+        reportTransaction(reportingEventHandler);
+        reportingEventHandler.endRequest();
+        reportTransaction(reportingEventHandler);
+        reportSpan();
+        reportingEventHandler.endRequest();
+
+        mockApmServer1.verify(2, postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        assertThat(apmServerClient.getConnectionPool().getOpenedConnections()).isEqualTo(1);
+        assertThat(apmServerClient.getConnectionPool().getReusedConnections()).isEqualTo(1);
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+    }
+
     @Test
     void testNoopWhenNotConnected() throws Exception {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -223,6 +251,106 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
     }
 
+    @Test
+    void testSendDirectlyWhileHealthy() throws Exception {
+        SpillLog spillLog = SpillLog.open(spillDirectory, 1024 * 1024);
+        assertThat(spillLog).isNotNull();
+        IntakeV2ReportingEventHandler spillingEventHandler = createSpillingEventHandler(spillLog);
+
+        reportTransaction(spillingEventHandler);
+        assertThat(spillLog.hasUnread()).isFalse();
+        assertThat(spillingEventHandler.getBufferSize()).isGreaterThan(0);
+        spillingEventHandler.endRequest();
+
+        assertThat(spillingEventHandler.getReported()).isEqualTo(1);
+        assertThat(getNdJsonNodes()).hasSize(2);
+        spillingEventHandler.close();
+    }
+
+    @Test
+    void testSpillWhileBackingOff() throws Exception {
+        SpillLog spillLog = SpillLog.open(spillDirectory, 1024 * 1024);
+        assertThat(spillLog).isNotNull();
+        IntakeV2ReportingEventHandler spillingEventHandler = createSpillingEventHandler(spillLog);
+        failUntilBackingOff(spillingEventHandler);
+
+        mockApmServer1.resetAll();
+        mockApmServer2.resetAll();
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
+        reportTransaction(spillingEventHandler);
+        assertThat(spillLog.hasUnread()).isTrue();
+        assertThat(spillingEventHandler.getBufferSize()).isEqualTo(0);
+
+        await().until(spillingEventHandler::isHealthy);
+        ReportingEvent wakeupEvent = new ReportingEvent();
+        wakeupEvent.setWakeupEvent();
+        spillingEventHandler.onEvent(wakeupEvent, -1, true);
+        spillingEventHandler.endRequest();
+
+        assertThat(spillLog.hasUnread()).isFalse();
+        assertThat(spillingEventHandler.getReported()).isEqualTo(1);
+        assertThat(spillingEventHandler.getDropped()).isEqualTo(2);
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        spillingEventHandler.close();
+    }
+
+    @Test
+    void testSpilledEventsAreDroppedWhenRejected() throws Exception {
+        SpillLog spillLog = SpillLog.open(spillDirectory, 1024 * 1024);
+        assertThat(spillLog).isNotNull();
+        IntakeV2ReportingEventHandler spillingEventHandler = createSpillingEventHandler(spillLog);
+        failUntilBackingOff(spillingEventHandler);
+
+        mockApmServer1.resetAll();
+        mockApmServer2.resetAll();
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(badRequest()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(badRequest()));
+        reportTransaction(spillingEventHandler);
+        assertThat(spillLog.hasUnread()).isTrue();
+
+        await().until(spillingEventHandler::isHealthy);
+        ReportingEvent wakeupEvent = new ReportingEvent();
+        wakeupEvent.setWakeupEvent();
+        spillingEventHandler.onEvent(wakeupEvent, -1, true);
+        spillingEventHandler.endRequest();
+
+        // the APM Server would reject the events again
+        assertThat(spillLog.hasUnread()).isFalse();
+        assertThat(spillingEventHandler.getDropped()).isEqualTo(3);
+        spillingEventHandler.close();
+    }
+
+    private void failUntilBackingOff(IntakeV2ReportingEventHandler spillingEventHandler) throws Exception {
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+        // the first error does not lead to a backoff
+        for (int i = 0; i < 2; i++) {
+            reportTransaction(spillingEventHandler);
+            spillingEventHandler.endRequest();
+        }
+        // events that have been sent directly are not retained
+        assertThat(spillingEventHandler.getDropped()).isEqualTo(2);
+        assertThat(spillingEventHandler.isHealthy()).isFalse();
+    }
+
+    private IntakeV2ReportingEventHandler createSpillingEventHandler(SpillLog spillLog) {
+        return new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient,
+            spillLog);
+    }
+
     @Test
     void testExponentialBackoff() {
         assertThat(IntakeV2ReportingEventHandler.getBackoffTimeSeconds(0)).isEqualTo(0);
@@ -121,6 +121,25 @@ class ReporterFactoryTest {
     }
 
 
+    @Test
+    void testShardedReporter() throws Exception {
+        doReturn(false).when(reporterConfiguration).isVerifyServerCert();
+        doReturn(3).when(reporterConfiguration).getReporterShards();
+        ApmServerClient apmServerClient = new ApmServerClient(configuration);
+        apmServerClient.start();
+        DslJsonSerializer serializer = new DslJsonSerializer(configuration.getConfig(StacktraceConfiguration.class), apmServerClient, MetaDataMock.create());
+        ObjectPoolFactory poolFactory = new ObjectPoolFactory();
+        final Reporter reporter = reporterFactory.createReporter(configuration, apmServerClient, serializer, ReporterMonitor.NOOP, poolFactory);
+        assertThat(reporter).isInstanceOf(ShardedApmServerReporter.class);
+        assertThat(((ShardedApmServerReporter) reporter).getShardCount()).isEqualTo(3);
+        reporter.start();
+
+        reporter.report(new Transaction(MockTracer.create()));
+        assertThat(reporter.flush()).isTrue();
+
+        assertThat(requestHandled).isTrue();
+        reporter.close();
+    }
     @Test
     void testValidatingSslCertificate() throws Exception {
         doReturn(true).when(reporterConfiguration).isVerifyServerCert();
@@ -0,0 +1,110 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ShardedApmServerReporterTest {
+
+    private List<ApmServerReporter> shards;
+    private ShardedApmServerReporter reporter;
+    private ElasticApmTracer tracer;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.create();
+        shards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ApmServerReporter shard = mock(ApmServerReporter.class);
+            doReturn(true).when(shard).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(false));
+            doReturn(true).when(shard).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(true));
+            doReturn((long) i).when(shard).getReported();
+            doReturn(1L).when(shard).getDropped();
+            shards.add(shard);
+        }
+        reporter = new ShardedApmServerReporter(shards);
+    }
+
+    @Test
+    void testEventsOfSameTraceAreRoutedToSameShard() {
+        for (int i = 0; i < 100; i++) {
+            Transaction transaction = new Transaction(tracer);
+            transaction.getTraceContext().getTraceId().setToRandomValue();
+            Span span = new Span(tracer);
+            span.getTraceContext().getTraceId().copyFrom(transaction.getTraceContext().getTraceId());
+
+            ApmServerReporter shard = reporter.getShard(transaction.getTraceContext().getTraceId());
+            reporter.report(transaction);
+            reporter.report(span);
+
+            verify(shard).report(transaction);
+            verify(shard).report(span);
+        }
+    }
+
+    @Test
+    void testShardIndexIsAlwaysInRange() {
+        assertThat(ShardedApmServerReporter.getShardIndex(Long.MIN_VALUE, 3)).isBetween(0, 2);
+        assertThat(ShardedApmServerReporter.getShardIndex(-1, 3)).isBetween(0, 2);
+        assertThat(ShardedApmServerReporter.getShardIndex(Long.MAX_VALUE, 3)).isBetween(0, 2);
+        assertThat(ShardedApmServerReporter.getShardIndex(5, 1)).isEqualTo(0);
+    }
+
+    @Test
+    void testFlushRequestOnlySentByLastShard() {
+        assertThat(reporter.flush(1, TimeUnit.SECONDS, true)).isTrue();
+
+        for (int i = 0; i < shards.size() - 1; i++) {
+            verify(shards.get(i)).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(false));
+            verify(shards.get(i), never()).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(true));
+        }
+        verify(shards.get(shards.size() - 1)).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(true));
+    }
+
+    @Test
+    void testFlushFailsIfAnyShardFails() {
+        doReturn(false).when(shards.get(1)).flush(anyLong(), eq(TimeUnit.NANOSECONDS), eq(false));
+
+        assertThat(reporter.flush()).isFalse();
+        verify(shards.get(3)).flush(-1, TimeUnit.NANOSECONDS, false);
+    }
+
+    @Test
+    void testCountsAreSummedUp() {
+        assertThat(reporter.getReported()).isEqualTo(6);
+        assertThat(reporter.getDropped()).isEqualTo(4);
+    }
+}
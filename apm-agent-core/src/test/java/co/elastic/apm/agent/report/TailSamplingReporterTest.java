@@ -0,0 +1,264 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.tracer.Outcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Percentage.withPercentage;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class TailSamplingReporterTest {
+
+    private static final int MAX_BUFFERED_SPANS = 4;
+
+    private MockReporter mockReporter;
+    private ApmServerClient apmServerClient;
+    private CoreConfiguration coreConfig;
+    private ElasticApmTracer tracer;
+    private TailSamplingReporter reporter;
+
+    @BeforeEach
+    void setUp() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        coreConfig = config.getConfig(CoreConfiguration.class);
+        setFallbackRate(0.0);
+        setDurationPercentile(0.0);
+        mockReporter = new MockReporter();
+        apmServerClient = mock(ApmServerClient.class);
+        doReturn(false).when(apmServerClient).supportsKeepingUnsampledTransaction();
+        reporter = new TailSamplingReporter(mockReporter, apmServerClient, MAX_BUFFERED_SPANS, coreConfig.getTailSamplingDurationPercentile(),
+            coreConfig.getTailSamplingFallbackRate(), 0);
+        tracer = MockTracer.createRealTracer(reporter, config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        assertThat(reporter.getBufferedSpans()).isZero();
+        mockReporter.assertRecycledAfterDecrementingReferences();
+        tracer.stop();
+    }
+
+    @Test
+    void testTraceWithErrorIsKept() {
+        Transaction transaction = startTransaction(0);
+        endSpan(transaction, 0, 10);
+        assertThat(mockReporter.getSpans()).isEmpty();
+        assertThat(reporter.getBufferedSpans()).isEqualTo(1);
+
+        transaction.captureException(new RuntimeException("test"));
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(1);
+        assertThat(mockReporter.getErrors()).hasSize(1);
+        assertThat(reporter.getKeptTraces()).isEqualTo(1);
+    }
+
+    @Test
+    void testTraceWithFailedSpanIsKept() {
+        Transaction transaction = startTransaction(0);
+        transaction.createSpan(0).withName("span").withType("custom").withOutcome(Outcome.FAILURE).end(TimeUnit.MILLISECONDS.toMicros(10));
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testTraceWithoutCriteriaIsDropped() {
+        Transaction transaction = startTransaction(0);
+        endSpan(transaction, 0, 10);
+        Span lateSpan = transaction.createSpan(0).withName("late").withType("custom");
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+        // spans that end after the transaction follow its decision
+        lateSpan.end(TimeUnit.MILLISECONDS.toMicros(30));
+
+        assertThat(mockReporter.getTransactions()).isEmpty();
+        assertThat(mockReporter.getSpans()).isEmpty();
+        assertThat(reporter.getDroppedTraces()).isEqualTo(1);
+    }
+
+    @Test
+    void testDroppedTransactionIsReportedAsUnsampled() {
+        doReturn(true).when(apmServerClient).supportsKeepingUnsampledTransaction();
+        Transaction transaction = startTransaction(0);
+        transaction.getContext().getRequest().withMethod("GET");
+        endSpan(transaction, 0, 10);
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(transaction.isSampled()).isFalse();
+        assertThat(transaction.getContext().getRequest().getMethod()).isNull();
+        assertThat(mockReporter.getSpans()).isEmpty();
+        assertThat(reporter.getDroppedTraces()).isEqualTo(1);
+    }
+
+    @Test
+    void testFallbackRate() {
+        setFallbackRate(1.0);
+        Transaction transaction = startTransaction(0);
+        endSpan(transaction, 0, 10);
+        Span lateSpan = transaction.createSpan(0).withName("late").withType("custom");
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+        lateSpan.end(TimeUnit.MILLISECONDS.toMicros(30));
+
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+        assertThat(mockReporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    void testFallbackRateIsApproximated() {
+        setFallbackRate(0.25);
+        Id traceId = Id.new128BitId();
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            traceId.setToRandomValue();
+            if (reporter.isSampledByFallbackRate(traceId)) {
+                sampled++;
+            }
+        }
+        assertThat(sampled).isBetween(2_200, 2_800);
+    }
+
+    @Test
+    void testSlowTransactionIsKept() {
+        setDurationPercentile(50.0);
+        // the duration window of 0 makes the threshold the duration of the previous transaction
+        startTransaction(0).end(TimeUnit.MILLISECONDS.toMicros(100));
+        assertThat(mockReporter.getTransactions()).isEmpty();
+        startTransaction(0).end(TimeUnit.MILLISECONDS.toMicros(10));
+        assertThat(mockReporter.getTransactions()).isEmpty();
+        assertThat(reporter.getDurationThreshold()).isCloseTo(TimeUnit.MILLISECONDS.toMicros(100), withPercentage(10));
+        Transaction slow = startTransaction(0);
+        slow.end(TimeUnit.MILLISECONDS.toMicros(200));
+        assertThat(mockReporter.getTransactions()).containsExactly(slow);
+    }
+
+    @Test
+    void testBufferLimitEvictsOldestTrace() {
+        Transaction oldest = startTransaction(0);
+        for (int i = 0; i < MAX_BUFFERED_SPANS - 1; i++) {
+            endSpan(oldest, i, i + 1);
+        }
+        Transaction newer = startTransaction(0);
+        endSpan(newer, 0, 1);
+        assertThat(reporter.getBufferedSpans()).isEqualTo(MAX_BUFFERED_SPANS);
+
+        // the oldest trace is evicted, even though its transaction has not ended yet
+        endSpan(newer, 1, 2);
+        assertThat(reporter.getEvictedTraces()).isEqualTo(1);
+        assertThat(reporter.getBufferedSpans()).isEqualTo(2);
+
+        oldest.captureException(new RuntimeException("test"));
+        oldest.end(TimeUnit.MILLISECONDS.toMicros(10));
+        // the evicted trace has been dropped based on the fallback rate, but its transaction is kept on failure
+        assertThat(mockReporter.getTransactions()).containsExactly(oldest);
+        assertThat(mockReporter.getSpans()).isEmpty();
+
+        newer.captureException(new RuntimeException("test"));
+        newer.end(TimeUnit.MILLISECONDS.toMicros(10));
+        assertThat(mockReporter.getSpans()).hasSize(2);
+        assertThat(reporter.getEvictedTraces()).isEqualTo(1);
+    }
+
+    @Test
+    void testLateSpanDoesNotEvictWhenBufferIsFull() {
+        setFallbackRate(1.0);
+        Transaction decided = startTransaction(0);
+        Span lateSpan = decided.createSpan(0).withName("late").withType("custom");
+        decided.end(TimeUnit.MILLISECONDS.toMicros(10));
+        assertThat(mockReporter.getTransactions()).containsExactly(decided);
+
+        Transaction buffered = startTransaction(0);
+        for (int i = 0; i < MAX_BUFFERED_SPANS; i++) {
+            endSpan(buffered, i, i + 1);
+        }
+        assertThat(reporter.getBufferedSpans()).isEqualTo(MAX_BUFFERED_SPANS);
+
+        // the span of the decided trace is dispatched right away, without evicting the undecided trace
+        lateSpan.end(TimeUnit.MILLISECONDS.toMicros(20));
+        assertThat(mockReporter.getSpans()).containsExactly(lateSpan);
+        assertThat(reporter.getEvictedTraces()).isZero();
+        assertThat(reporter.getBufferedSpans()).isEqualTo(MAX_BUFFERED_SPANS);
+
+        buffered.end(TimeUnit.MILLISECONDS.toMicros(10));
+        assertThat(mockReporter.getSpans()).hasSize(MAX_BUFFERED_SPANS + 1);
+    }
+
+    @Test
+    void testContinuedTraceIsNotBuffered() {
+        Transaction transaction = tracer.startChildTransaction(
+            Collections.singletonMap("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01"),
+            TextHeaderMapAccessor.INSTANCE, ConstantSampler.of(true), 0, null);
+        assertThat(transaction).isNotNull();
+        endSpan(transaction, 0, 10);
+        assertThat(mockReporter.getSpans()).hasSize(1);
+        transaction.end(TimeUnit.MILLISECONDS.toMicros(20));
+        assertThat(mockReporter.getTransactions()).containsExactly(transaction);
+    }
+
+    private Transaction startTransaction(long startMs) {
+        return tracer.startRootTransaction(ConstantSampler.of(true), TimeUnit.MILLISECONDS.toMicros(startMs), null)
+            .withName("transaction")
+            .withType("request");
+    }
+
+    private void endSpan(Transaction transaction, long startMs, long endMs) {
+        transaction.createSpan(TimeUnit.MILLISECONDS.toMicros(startMs))
+            .withName("span")
+            .withType("custom")
+            .end(TimeUnit.MILLISECONDS.toMicros(endMs));
+    }
+
+    private void setFallbackRate(double rate) {
+        try {
+            coreConfig.getTailSamplingFallbackRate().update(rate, SpyConfiguration.CONFIG_SOURCE_NAME);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void setDurationPercentile(double percentile) {
+        try {
+            coreConfig.getTailSamplingDurationPercentile().update(percentile, SpyConfiguration.CONFIG_SOURCE_NAME);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
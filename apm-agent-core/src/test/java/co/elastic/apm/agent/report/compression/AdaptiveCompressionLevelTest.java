@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveCompressionLevelTest {
+
+    @Test
+    void testLevelIsRaisedWhenIdle() {
+        AdaptiveCompressionLevel compressionLevel = new AdaptiveCompressionLevel(3, null);
+        assertThat(compressionLevel.getLevel()).isEqualTo(3);
+        compressionLevel.adjust(1, 1);
+        assertThat(compressionLevel.getLevel()).isEqualTo(2);
+
+        for (int i = 0; i < 5; i++) {
+            compressionLevel.adjust(0.01, 0);
+        }
+        assertThat(compressionLevel.getLevel()).isEqualTo(3);
+    }
+
+    @Test
+    void testLevelIsLoweredWhenBusy() {
+        AdaptiveCompressionLevel compressionLevel = new AdaptiveCompressionLevel(9, null);
+        compressionLevel.adjust(0, 0);
+        assertThat(compressionLevel.getLevel()).isEqualTo(9);
+
+        compressionLevel.adjust(0.9, 0);
+        assertThat(compressionLevel.getLevel()).isEqualTo(8);
+        compressionLevel.adjust(0, 0.8);
+        assertThat(compressionLevel.getLevel()).isEqualTo(7);
+
+        for (int i = 0; i < 10; i++) {
+            compressionLevel.adjust(1, 1);
+        }
+        assertThat(compressionLevel.getLevel()).isEqualTo(AdaptiveCompressionLevel.MIN_LEVEL);
+    }
+
+    @Test
+    void testDefaultLevelIsAdapted() {
+        // the default intake_compression_level of 1 can still be lowered to stored blocks
+        AdaptiveCompressionLevel compressionLevel = new AdaptiveCompressionLevel(1, null);
+        assertThat(compressionLevel.getLevel()).isEqualTo(1);
+        compressionLevel.adjust(0.9, 0);
+        assertThat(compressionLevel.getLevel()).isEqualTo(0);
+        compressionLevel.adjust(0, 0);
+        assertThat(compressionLevel.getLevel()).isEqualTo(1);
+    }
+
+    @Test
+    void testLevelIsKeptInBetweenThresholds() {
+        AdaptiveCompressionLevel compressionLevel = new AdaptiveCompressionLevel(9, null);
+        compressionLevel.adjust(1, 1);
+        compressionLevel.adjust(0.3, 0.3);
+        assertThat(compressionLevel.getLevel()).isEqualTo(8);
+    }
+
+    @Test
+    void testInstancesAreTracked() {
+        AdaptiveCompressionLevel compressionLevel = new AdaptiveCompressionLevel(9);
+        assertThat(AdaptiveCompressionLevel.getInstances()).contains(compressionLevel);
+        assertThat(compressionLevel.getThreadPurpose()).isNull();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.report.ReporterConfiguration.IntakeCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressionCodecTest {
+
+    private static final String PAYLOAD = createPayload();
+
+    @ParameterizedTest
+    @EnumSource(IntakeCompression.class)
+    void testRoundTrip(IntakeCompression compression) throws Exception {
+        CompressionCodec codec = CompressionCodecs.create(compression, 1);
+
+        // the codec is re-used across requests
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            try (OutputStream os = codec.createOutputStream(target)) {
+                os.write(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                os.write('\n');
+            }
+
+            assertThat(codec.getBytesWritten()).isEqualTo(target.size());
+            assertThat(codec.getBytesRead()).isEqualTo(PAYLOAD.length() + 1);
+            assertThat(decode(codec.getContentEncoding(), target.toByteArray())).isEqualTo(PAYLOAD + "\n");
+            codec.reset();
+            assertThat(codec.getBytesWritten()).isZero();
+        }
+    }
+
+    @Test
+    void testContentEncoding() {
+        assertThat(CompressionCodecs.create(IntakeCompression.DEFLATE, 1).getContentEncoding()).isEqualTo("deflate");
+        assertThat(CompressionCodecs.create(IntakeCompression.FAST, 1).getContentEncoding()).isEqualTo("deflate");
+        assertThat(CompressionCodecs.create(IntakeCompression.GZIP, 1).getContentEncoding()).isEqualTo("gzip");
+        assertThat(CompressionCodecs.create(IntakeCompression.NONE, 1).getContentEncoding()).isNull();
+    }
+
+    @Test
+    void testHigherLevelCompressesBetter() throws Exception {
+        CompressionCodec codec = CompressionCodecs.create(IntakeCompression.DEFLATE, 1);
+        long level1 = compress(codec);
+        codec.setLevel(9);
+        long level9 = compress(codec);
+        long huffmanOnly = compress(CompressionCodecs.create(IntakeCompression.FAST, 1));
+
+        assertThat(level9).isLessThanOrEqualTo(level1);
+        assertThat(huffmanOnly).isGreaterThan(level1).isLessThan(PAYLOAD.length());
+    }
+
+    private static long compress(CompressionCodec codec) throws IOException {
+        try (OutputStream os = codec.createOutputStream(new ByteArrayOutputStream())) {
+            os.write(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        }
+        long bytesWritten = codec.getBytesWritten();
+        codec.reset();
+        return bytesWritten;
+    }
+
+    private static String decode(String contentEncoding, byte[] bytes) throws IOException {
+        InputStream is = new ByteArrayInputStream(bytes);
+        if ("gzip".equals(contentEncoding)) {
+            is = new GZIPInputStream(is);
+        } else if ("deflate".equals(contentEncoding)) {
+            is = new InflaterInputStream(is);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = is.read(buffer); n != -1; n = is.read(buffer)) {
+            result.write(buffer, 0, n);
+        }
+        return result.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static String createPayload() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("{\"transaction\":{\"id\":\"").append(Integer.toHexString(i * 31)).append("\",\"name\":\"GET /foo\",\"duration\":")
+                .append(i).append("}}\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import co.elastic.apm.agent.report.transport.DirectBufferOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assumptions.assumeThat;
+
+class DirectDeflaterOutputStreamTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testRoundTrip(boolean allowDirectOutput) throws Exception {
+        TestDirectBufferOutputStream target = new TestDirectBufferOutputStream(7);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] input = createInput();
+
+        DirectDeflaterOutputStream os = new DirectDeflaterOutputStream(target, deflater, allowDirectOutput);
+        assertThat(os.isDirectOutput()).isEqualTo(allowDirectOutput);
+        for (int offset = 0; offset < input.length; offset += 1000) {
+            os.write(input, offset, Math.min(1000, input.length - offset));
+        }
+        os.write('\n');
+        os.close();
+
+        assertThat(target.closed).isTrue();
+        assertThat(deflater.getBytesWritten()).isEqualTo(target.bytes.size());
+        assertThat(inflate(target.bytes.toByteArray())).isEqualTo(new String(input, StandardCharsets.UTF_8) + "\n");
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testFlushMakesAllInputAvailable(boolean allowDirectOutput) throws Exception {
+        TestDirectBufferOutputStream target = new TestDirectBufferOutputStream(16);
+        DirectDeflaterOutputStream os = new DirectDeflaterOutputStream(target, new Deflater(Deflater.BEST_SPEED), allowDirectOutput);
+
+        os.write("{\"metadata\":{}}\n".getBytes(StandardCharsets.UTF_8));
+        os.flush();
+
+        assertThat(target.flushed).isTrue();
+        assertThat(inflate(target.bytes.toByteArray())).isEqualTo("{\"metadata\":{}}\n");
+    }
+
+    @Test
+    void testDirectOutputRequiresDirectBufferOutputStream() {
+        DirectDeflaterOutputStream os = new DirectDeflaterOutputStream(new ByteArrayOutputStream(), new Deflater());
+        assertThat(os.isDirectOutput()).isFalse();
+    }
+
+    @Test
+    void testDirectOutputUsedWhenSupported() {
+        assumeThat(DirectDeflaterOutputStream.isDirectOutputSupported()).isTrue();
+        DirectDeflaterOutputStream os = new DirectDeflaterOutputStream(new TestDirectBufferOutputStream(16), new Deflater());
+        assertThat(os.isDirectOutput()).isTrue();
+    }
+
+    @Test
+    void testWriteAfterClose() throws Exception {
+        DirectDeflaterOutputStream os = new DirectDeflaterOutputStream(new ByteArrayOutputStream(), new Deflater());
+        os.close();
+        assertThatThrownBy(() -> os.write(1)).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] createInput() {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("{\"span\":{\"id\":\"").append(Long.toHexString(random.nextLong())).append("\"}}\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String inflate(byte[] compressed) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!inflater.finished() && !inflater.needsInput()) {
+            int length = inflater.inflate(buffer);
+            result.write(buffer, 0, length);
+        }
+        inflater.end();
+        return result.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static class TestDirectBufferOutputStream extends DirectBufferOutputStream {
+
+        private final ByteBuffer buffer;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean flushed;
+        private boolean closed;
+
+        private TestDirectBufferOutputStream(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        @Override
+        public ByteBuffer getWritableBuffer() {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            return buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            getWritableBuffer().put((byte) b);
+        }
+
+        @Override
+        public void flush() {
+            drain();
+            flushed = true;
+        }
+
+        @Override
+        public void close() {
+            drain();
+            closed = true;
+        }
+
+        private void drain() {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytes.write(buffer.get());
+            }
+            buffer.clear();
+        }
+    }
+}
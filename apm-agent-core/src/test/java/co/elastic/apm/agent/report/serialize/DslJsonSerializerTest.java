@@ -80,6 +80,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
@@ -1359,6 +1360,36 @@ class DslJsonSerializerTest {
         return createRootTransaction(ConstantSampler.of(true));
     }
 
+    @Test
+    void testStackFrameCache() {
+        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        doReturn(List.of("co.elastic.apm")).when(stacktraceConfiguration).getApplicationPackages();
+        DslJsonSerializer serializer = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData);
+        writer = serializer.newWriter();
+        StackFrameCache stackFrameCache = serializer.getStackFrameCache();
+
+        StackTraceElement stackTraceElement = new StackTraceElement("co.elastic.apm.Foo", "bar", "Foo.java", 42);
+        String json = writer.toJsonString(stackTraceElement);
+        assertThat(writer.toJsonString(stackTraceElement)).isEqualTo(json);
+        assertThat(writer.toJsonString(new StackTraceElement("co.elastic.apm.Foo", "bar", "Foo.java", 42))).isEqualTo(json);
+        assertThat(readJsonString(json).get("library_frame").booleanValue()).isFalse();
+        assertThat(stackFrameCache.size()).isEqualTo(1);
+        assertThat(stackFrameCache.getAndResetHits()).isEqualTo(2);
+        assertThat(stackFrameCache.getAndResetMisses()).isEqualTo(1);
+
+        Span span = new Span(tracer);
+        span.setStackTrace(List.of(StackFrame.of("co.elastic.apm.Foo", "bar")));
+        String spanJson = writer.toJsonString(span);
+        assertThat(writer.toJsonString(span)).isEqualTo(spanJson);
+        assertThat(stackFrameCache.size()).isEqualTo(2);
+        assertThat(stackFrameCache.getAndResetHits()).isEqualTo(1);
+
+        // changing the application packages invalidates the library frame verdict of the cached frames
+        doReturn(List.of("org.example")).when(stacktraceConfiguration).getApplicationPackages();
+        assertThat(readJsonString(writer.toJsonString(stackTraceElement)).get("library_frame").booleanValue()).isTrue();
+        assertThat(stackFrameCache.size()).isEqualTo(1);
+    }
+
     @Test
     void testSpanStackFrameSerialization() {
         Span span = new Span(tracer);
@@ -0,0 +1,169 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spill;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillLogTest {
+
+    private static final int MAX_SIZE = 128 * 1024;
+
+    @TempDir
+    File directory;
+
+    @Nullable
+    private SpillLog spillLog;
+
+    @BeforeEach
+    void setUp() {
+        spillLog = SpillLog.open(directory, MAX_SIZE);
+        assertThat(spillLog).isNotNull();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (spillLog != null) {
+            spillLog.close();
+        }
+    }
+
+    @Test
+    void testAppendAndRead() {
+        append("foo");
+        append("bar");
+        assertThat(spillLog.hasUnread()).isTrue();
+
+        assertThat(readNext()).isEqualTo("foo");
+        assertThat(readNext()).isEqualTo("bar");
+        assertThat(spillLog.readNext()).isNull();
+        assertThat(spillLog.hasUnread()).isFalse();
+    }
+
+    @Test
+    void testRollback() {
+        append("foo");
+        append("bar");
+        assertThat(readNext()).isEqualTo("foo");
+        spillLog.commit();
+        assertThat(readNext()).isEqualTo("bar");
+
+        spillLog.rollback();
+        assertThat(spillLog.hasUnread()).isTrue();
+        assertThat(readNext()).isEqualTo("bar");
+        assertThat(spillLog.readNext()).isNull();
+    }
+
+    @Test
+    void testCommitDeletesReadSegments() {
+        String record = repeat('a', 30_000);
+        for (int i = 0; i < 3; i++) {
+            append(record);
+        }
+        assertThat(getSegmentFiles()).hasSize(2);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(readNext()).isEqualTo(record);
+        }
+        spillLog.commit();
+        assertThat(getSegmentFiles()).hasSize(1);
+        assertThat(spillLog.hasUnread()).isFalse();
+
+        append("foo");
+        assertThat(readNext()).isEqualTo("foo");
+    }
+
+    @Test
+    void testOldestSegmentIsEvicted() {
+        for (int i = 0; i < 6; i++) {
+            append(i + repeat('a', 30_000));
+        }
+        assertThat(getSegmentFiles()).hasSize(2);
+        assertThat(spillLog.getEvictedRecords()).isEqualTo(2);
+
+        for (int i = 2; i < 6; i++) {
+            assertThat(readNext()).startsWith(Integer.toString(i));
+        }
+        assertThat(spillLog.hasUnread()).isFalse();
+    }
+
+    @Test
+    void testTooLargeRecordIsRejected() {
+        byte[] bytes = new byte[SpillLog.getSegmentSize(MAX_SIZE)];
+        assertThat(spillLog.append(bytes, 0, bytes.length)).isFalse();
+        assertThat(spillLog.hasUnread()).isFalse();
+    }
+
+    @Test
+    void testDirectoryIsLocked() {
+        assertThat(SpillLog.open(directory, MAX_SIZE)).isNull();
+    }
+
+    @Test
+    void testSegmentsAreDeletedOnClose() {
+        append("foo");
+        assertThat(getSegmentFiles()).hasSize(1);
+        spillLog.close();
+        spillLog = null;
+        assertThat(getSegmentFiles()).isEmpty();
+    }
+
+    private void append(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        assertThat(spillLog.append(bytes, 0, bytes.length)).isTrue();
+    }
+
+    @Nullable
+    private String readNext() {
+        ByteBuffer record = spillLog.readNext();
+        if (record == null) {
+            return null;
+        }
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private File[] getSegmentFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SpillLog.SEGMENT_FILE_SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.report.HttpUtils;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class KeepAliveHttpURLConnectionTest {
+
+    private final WireMockRule mockApmServer = new WireMockRule(WireMockConfiguration.wireMockConfig().dynamicPort());
+    private HttpConnectionPool pool;
+
+    @BeforeEach
+    void setUp() {
+        mockApmServer.stubFor(post("/ok").willReturn(ok("accepted")));
+        mockApmServer.stubFor(post("/error").willReturn(serviceUnavailable().withBody("queue is full")));
+        mockApmServer.start();
+        pool = new HttpConnectionPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+        mockApmServer.stop();
+    }
+
+    @Test
+    void testChunkedRequestBody() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            body.append("{\"i\":").append(i).append("}\n");
+        }
+
+        HttpURLConnection connection = send("/ok", body.toString());
+
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(readBody(connection.getInputStream())).isEqualTo("accepted");
+        mockApmServer.verify(postRequestedFor(urlEqualTo("/ok"))
+            .withHeader("Transfer-Encoding", equalTo("chunked"))
+            .withHeader("Content-Type", equalTo("application/x-ndjson"))
+            .withRequestBody(containing("{\"i\":9999}")));
+        assertThat(mockApmServer.findAll(postRequestedFor(urlEqualTo("/ok"))).get(0).getBodyAsString()).isEqualTo(body.toString());
+    }
+
+    @Test
+    void testConnectionIsReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = send("/ok", "{}\n");
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            HttpUtils.consumeAndClose(connection);
+        }
+
+        assertThat(pool.getOpenedConnections()).isEqualTo(1);
+        assertThat(pool.getReusedConnections()).isEqualTo(2);
+    }
+
+    @Test
+    void testErrorResponse() throws Exception {
+        HttpURLConnection connection = send("/error", "{}\n");
+
+        assertThat(connection.getResponseCode()).isEqualTo(503);
+        assertThatThrownBy(connection::getInputStream).isInstanceOf(IOException.class);
+        assertThat(readBody(connection.getErrorStream())).isEqualTo("queue is full");
+
+        HttpURLConnection next = send("/ok", "{}\n");
+        assertThat(next.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(next);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testConnectionIsNotReusedWhenServerClosesIt() throws Exception {
+        mockApmServer.stubFor(post("/close").willReturn(aResponse().withStatus(200).withHeader("Connection", "close")));
+
+        HttpURLConnection connection = send("/close", "{}\n");
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(connection);
+        HttpUtils.consumeAndClose(send("/ok", "{}\n"));
+
+        assertThat(pool.getOpenedConnections()).isEqualTo(2);
+        assertThat(pool.getReusedConnections()).isEqualTo(0);
+    }
+
+    @Test
+    void testStaleConnectionIsNotReused() throws Exception {
+        // closes the connection after the response without sending a Connection: close header, like an idle timeout would
+        try (RawHttpServer server = new RawHttpServer(1, true)) {
+            HttpURLConnection connection = get(server, "/");
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            HttpUtils.consumeAndClose(connection);
+            await().untilAsserted(() -> assertThat(server.closedConnections.get()).isEqualTo(1));
+
+            HttpURLConnection next = get(server, "/");
+            assertThat(next.getResponseCode()).isEqualTo(200);
+            HttpUtils.consumeAndClose(next);
+        }
+
+        assertThat(pool.getOpenedConnections()).isEqualTo(2);
+        assertThat(pool.getReusedConnections()).isEqualTo(0);
+    }
+
+    @Test
+    void testRequestIsRetriedWhenReusedConnectionIsClosed() throws Exception {
+        // closes the connection when receiving the second request, before sending any part of the response
+        try (RawHttpServer server = new RawHttpServer(1, false)) {
+            HttpURLConnection connection = get(server, "/");
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            HttpUtils.consumeAndClose(connection);
+
+            HttpURLConnection next = get(server, "/");
+            assertThat(next.getResponseCode()).isEqualTo(200);
+            assertThat(readBody(next.getInputStream())).isEqualTo("ok");
+        }
+
+        assertThat(pool.getOpenedConnections()).isEqualTo(2);
+        assertThat(pool.getReusedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testConnectionsAreNotKeptAfterPoolIsClosed() throws Exception {
+        pool.close();
+        for (int i = 0; i < 2; i++) {
+            HttpURLConnection connection = send("/ok", "{}\n");
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            HttpUtils.consumeAndClose(connection);
+        }
+
+        assertThat(pool.getOpenedConnections()).isEqualTo(2);
+        assertThat(pool.getReusedConnections()).isEqualTo(0);
+    }
+
+    @Test
+    void testIsSupported() throws Exception {
+        assertThat(KeepAliveHttpURLConnection.isSupported(new URL("http://localhost:8200"))).isTrue();
+        assertThat(KeepAliveHttpURLConnection.isSupported(new URL("https://localhost:8200"))).isTrue();
+        assertThat(KeepAliveHttpURLConnection.isSupported(new URL("file:///tmp/foo"))).isFalse();
+    }
+
+    private HttpURLConnection send(String path, String body) throws IOException {
+        HttpURLConnection connection = new KeepAliveHttpURLConnection(new URL("http://localhost:" + mockApmServer.port() + path), pool, null, false);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(1024);
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.connect();
+        try (OutputStream os = connection.getOutputStream()) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            // write in odd-sized pieces to exercise chunk boundaries
+            for (int offset = 0; offset < bytes.length; offset += 777) {
+                os.write(bytes, offset, Math.min(777, bytes.length - offset));
+            }
+        }
+        return connection;
+    }
+
+    private HttpURLConnection get(RawHttpServer server, String path) throws IOException {
+        return new KeepAliveHttpURLConnection(new URL("http://localhost:" + server.getPort() + path), pool, null, false);
+    }
+
+    private static String readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        for (int n = is.read(buffer); n != -1; n = is.read(buffer)) {
+            baos.write(buffer, 0, n);
+        }
+        is.close();
+        return baos.toString("UTF-8");
+    }
+
+    /**
+     * A minimal HTTP server for body-less requests which allows to simulate connections being closed by the server
+     */
+    private static class RawHttpServer implements Closeable {
+
+        private final ServerSocket serverSocket;
+        private final Thread thread;
+        private final AtomicInteger closedConnections = new AtomicInteger();
+
+        /**
+         * @param responsesPerConnection the number of requests answered per connection, the connection is closed on the next request
+         * @param closeAfterLastResponse whether to close the connection right after the last response
+         */
+        private RawHttpServer(final int responsesPerConnection, final boolean closeAfterLastResponse) throws IOException {
+            serverSocket = new ServerSocket(0);
+            thread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        InputStream in = socket.getInputStream();
+                        for (int responses = 0; skipRequestHead(in); responses++) {
+                            if (responses == responsesPerConnection) {
+                                break;
+                            }
+                            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                            socket.getOutputStream().flush();
+                            if (closeAfterLastResponse && responses + 1 == responsesPerConnection) {
+                                break;
+                            }
+                        }
+                    } catch (IOException ignore) {
+                        // server socket closed or connection reset
+                    } finally {
+                        closedConnections.incrementAndGet();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static boolean skipRequestHead(InputStream in) throws IOException {
+            int matched = 0;
+            for (int b = in.read(); b != -1; b = in.read()) {
+                matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+                if (matched == 4) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
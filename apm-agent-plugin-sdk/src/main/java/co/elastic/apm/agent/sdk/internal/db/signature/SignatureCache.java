@@ -0,0 +1,306 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.sdk.internal.db.signature;
+
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakSet;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of query signatures, based on the W-TinyLFU policy.
+ * <p>
+ * New entries are added to a small LRU admission window.
+ * Entries evicted from the window are candidates for the main space, which is a segmented LRU consisting of a
+ * probation and a protected segment.
+ * A candidate is only admitted if it has been used more frequently than the entry it would replace.
+ * The frequencies are approximated with a {@link FrequencySketch} which is periodically aged,
+ * so that queries which have been hot in the past don't stay in the cache forever.
+ * </p>
+ * <p>
+ * The size of the cache is limited by the total weight of the entries, which is the length of the query and the signature.
+ * </p>
+ * <p>
+ * Lookups are lock-free.
+ * The access order is only updated if the lock can be acquired without blocking,
+ * which means that some accesses are not recorded under contention.
+ * That's fine as the policy only relies on approximate frequencies anyway.
+ * </p>
+ */
+public class SignatureCache {
+
+    private static final WeakSet<SignatureCache> instances = WeakConcurrent.buildSet();
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final long maxWeight;
+    private final long maxWindowWeight;
+    private final long maxProtectedWeight;
+    private final AccessOrderList window = new AccessOrderList();
+    private final AccessOrderList probation = new AccessOrderList();
+    private final AccessOrderList protectedSegment = new AccessOrderList();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight       the maximum total weight of all entries
+     * @param expectedEntries the expected number of entries, used to size the frequency sketch
+     */
+    public SignatureCache(long maxWeight, int expectedEntries) {
+        this.maxWeight = maxWeight;
+        this.maxWindowWeight = Math.max(1, maxWeight / 100);
+        this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 4 / 5;
+        this.sketch = new FrequencySketch(expectedEntries);
+        instances.add(this);
+    }
+
+    public static Iterable<SignatureCache> getInstances() {
+        return instances;
+    }
+
+    /**
+     * @return the cached signature and db link, or {@code null} if the query is not cached
+     */
+    @Nullable
+    public String[] get(String query) {
+        Node node = data.get(query);
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (evictionLock.tryLock()) {
+            try {
+                sketch.increment(query.hashCode());
+                onAccess(node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    public void put(String query, String signature, String dbLink) {
+        long weight = (long) query.length() + signature.length() + dbLink.length();
+        if (weight > maxWeight) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            sketch.increment(query.hashCode());
+            if (data.containsKey(query)) {
+                return;
+            }
+            Node node = new Node(query, new String[]{signature, dbLink}, (int) weight);
+            data.put(query, node);
+            window.addLast(node);
+            evictFromWindow();
+            evictFromMain();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void onAccess(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.segment = PROTECTED;
+                protectedSegment.addLast(node);
+                while (protectedSegment.weight > maxProtectedWeight) {
+                    Node demoted = protectedSegment.removeFirst();
+                    demoted.segment = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedSegment.moveToLast(node);
+                break;
+            default:
+                // the node has already been removed
+                break;
+        }
+    }
+
+    private void evictFromWindow() {
+        while (window.weight > maxWindowWeight) {
+            Node candidate = window.removeFirst();
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+        }
+    }
+
+    private void evictFromMain() {
+        while (window.weight + probation.weight + protectedSegment.weight > maxWeight) {
+            Node victim = selectVictim();
+            if (victim == null) {
+                return;
+            }
+            evict(victim);
+        }
+    }
+
+    /**
+     * The least recently used entry of the probation segment is the victim and the most recently added one is the candidate
+     * that has just been evicted from the admission window.
+     * The candidate is only admitted if it's used more frequently than the victim.
+     */
+    @Nullable
+    private Node selectVictim() {
+        Node victim = probation.first();
+        if (victim == null) {
+            return protectedSegment.first() != null ? protectedSegment.first() : window.first();
+        }
+        Node candidate = probation.last();
+        if (candidate != null && candidate != victim
+            && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+            return candidate;
+        }
+        return victim;
+    }
+
+    private void evict(Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            default:
+                protectedSegment.remove(node);
+                break;
+        }
+        node.segment = -1;
+        data.remove(node.key, node);
+        evictions.incrementAndGet();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long getAndResetHits() {
+        return hits.getAndSet(0);
+    }
+
+    public long getAndResetMisses() {
+        return misses.getAndSet(0);
+    }
+
+    public long getAndResetEvictions() {
+        return evictions.getAndSet(0);
+    }
+
+    private static class Node {
+        private final String key;
+        private final String[] value;
+        private final int weight;
+        /**
+         * Only accessed while holding the eviction lock
+         */
+        private int segment = WINDOW;
+        @Nullable
+        private Node prev;
+        @Nullable
+        private Node next;
+
+        private Node(String key, String[] value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes, ordered from the least to the most recently used.
+     */
+    private static class AccessOrderList {
+        @Nullable
+        private Node head;
+        @Nullable
+        private Node tail;
+        private long weight;
+
+        @Nullable
+        Node first() {
+            return head;
+        }
+
+        @Nullable
+        Node last() {
+            return tail;
+        }
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        Node removeFirst() {
+            Node node = head;
+            remove(node);
+            return node;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+}
@@ -24,17 +24,17 @@ import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 
 import javax.annotation.Nullable;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 public class SignatureParser {
 
     /**
-     * If the cache reaches this size we assume that the application creates a lot of dynamic queries.
-     * In that case it's inefficient to try to cache these as they are not likely to be repeated.
-     * But we still pay the price of allocating a Map.Entry and a String for the signature.
+     * The maximum total length of the cached queries and signatures.
      */
-    private static final int DISABLE_CACHE_THRESHOLD = 512;
+    private static final int CACHE_MAX_WEIGHT = 1024 * 1024;
+    /**
+     * Used to size the frequency sketch of the cache, based on an average query length of a few hundred characters.
+     */
+    private static final int CACHE_EXPECTED_ENTRIES = 4096;
     /**
      * The cache management overhead is probably not worth it for short queries
      */
@@ -49,10 +49,9 @@ public class SignatureParser {
     /**
      * Not using weak keys because ORMs like Hibernate generate equal SQL strings for the same query but don't reuse the same string instance.
      * When relying on weak keys, we would not leverage any caching benefits if the query string is collected.
-     * That means that we are leaking Strings but as the size of the map is limited that should not be an issue.
+     * Instead, the cache is bounded and only admits queries that are used more frequently than the ones they would replace.
      */
-    private final ConcurrentMap<String, String[]> signatureCache = new ConcurrentHashMap<String, String[]>(DISABLE_CACHE_THRESHOLD,
-            0.5f, Runtime.getRuntime().availableProcessors());
+    private final SignatureCache signatureCache = new SignatureCache(CACHE_MAX_WEIGHT, CACHE_EXPECTED_ENTRIES);
 
     public SignatureParser() {
         this(new Callable<Scanner>() {
@@ -72,11 +71,13 @@ public class SignatureParser {
     }
 
     public void querySignature(String query, StringBuilder signature, @Nullable StringBuilder dbLink, boolean preparedStatement) {
-        final boolean cacheable = preparedStatement // non-prepared statements are likely to be dynamic strings
-            && QUERY_LENGTH_CACHE_LOWER_THRESHOLD < query.length()
-            && query.length() < QUERY_LENGTH_CACHE_UPPER_THRESHOLD;
-        if (cacheable) {
-            final String[] cachedSignature = signatureCache.get(query);
+        String cacheKey = null;
+        if (QUERY_LENGTH_CACHE_LOWER_THRESHOLD < query.length() && query.length() < QUERY_LENGTH_CACHE_UPPER_THRESHOLD) {
+            // non-prepared statements are likely to be dynamic strings which only differ in their literals
+            cacheKey = preparedStatement ? query : normalizeLiterals(query);
+        }
+        if (cacheKey != null) {
+            final String[] cachedSignature = signatureCache.get(cacheKey);
             if (cachedSignature != null) {
                 signature.append(cachedSignature[0]);
                 if (dbLink != null) {
@@ -88,13 +89,197 @@ public class SignatureParser {
         try (ObjectHandle<Scanner> pooledScanner = scannerPool.createInstance()) {
             Scanner scanner = pooledScanner.get();
             scanner.setQuery(query);
+            int signatureStart = signature.length();
+            int dbLinkStart = dbLink != null ? dbLink.length() : 0;
             parse(scanner, query, signature, dbLink);
 
-            if (cacheable && signatureCache.size() <= DISABLE_CACHE_THRESHOLD) {
-                // we don't mind a small overshoot due to race conditions
-                signatureCache.put(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
+            if (cacheKey != null) {
+                signatureCache.put(cacheKey, signature.substring(signatureStart), dbLink != null ? dbLink.substring(dbLinkStart) : "");
+            }
+        }
+    }
+
+    /**
+     * Replaces string and numeric literals with {@code ?}, so that queries which only differ in their literals share a cache entry.
+     * <p>
+     * The literals are detected the same way as the {@link Scanner} does, which means that the replaced parts of the query
+     * are always {@link Scanner.Token#STRING} or {@link Scanner.Token#NUMBER} tokens.
+     * As the signature does not depend on the value of these tokens, all queries with the same normalized form have the same signature.
+     * The first word of the query is never normalized, as it's used as the signature for unknown statements.
+     * </p>
+     *
+     * @return the normalized query, or {@code null} if the query contains constructs that can't be normalized reliably,
+     * like unterminated or dollar-quoted string literals
+     */
+    @Nullable
+    static String normalizeLiterals(String query) {
+        final int length = query.length();
+        int firstWordEnd = 0;
+        while (firstWordEnd < length && Character.isSpaceChar(query.charAt(firstWordEnd))) {
+            firstWordEnd++;
+        }
+        while (firstWordEnd < length && !Character.isSpaceChar(query.charAt(firstWordEnd))) {
+            firstWordEnd++;
+        }
+        StringBuilder normalized = null;
+        int copiedUntil = 0;
+        int i = 0;
+        while (i < length) {
+            final char c = query.charAt(i);
+            int end;
+            if (c == '\'') {
+                end = skipStringLiteral(query, i + 1);
+                if (end < 0) {
+                    return null;
+                }
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(query.charAt(i - 1)))) {
+                end = skipNumericLiteral(query, i + 1);
+            } else {
+                i = skipNonLiteral(query, i);
+                if (i < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (i < firstWordEnd) {
+                i = end;
+                continue;
+            }
+            if (normalized == null) {
+                normalized = new StringBuilder(length);
+            }
+            normalized.append(query, copiedUntil, i).append('?');
+            copiedUntil = end;
+            i = end;
+        }
+        if (normalized == null) {
+            return query;
+        }
+        return normalized.append(query, copiedUntil, length).toString();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return c == '_' || c == '$' || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * @return the index after the end of the string literal, or {@code -1} if it's not terminated
+     */
+    private static int skipStringLiteral(String query, int i) {
+        final int length = query.length();
+        while (i < length) {
+            char c = query.charAt(i++);
+            if (c == '\\' && i < length) {
+                i++;
+            } else if (c == '\'') {
+                if (i < length && query.charAt(i) == '\'') {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int skipNumericLiteral(String query, int i) {
+        final int length = query.length();
+        boolean hasPeriod = false;
+        boolean hasExponent = false;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (Character.isDigit(c)) {
+                i++;
+            } else if (c == '.' && !hasPeriod) {
+                hasPeriod = true;
+                i++;
+            } else if ((c == 'e' || c == 'E') && !hasExponent) {
+                hasExponent = true;
+                i++;
+                if (i < length && (query.charAt(i) == '+' || query.charAt(i) == '-')) {
+                    i++;
+                }
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Skips identifiers, quoted identifiers and comments, which must not be normalized.
+     *
+     * @return the index of the next character to look at, or {@code -1} if the query can't be normalized
+     */
+    private static int skipNonLiteral(String query, int i) {
+        final int length = query.length();
+        final char c = query.charAt(i++);
+        if (isIdentifierPart(c)) {
+            while (i < length && isIdentifierPart(query.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+        switch (c) {
+            case '"':
+                return skipQuotedIdentifier(query, i, '"');
+            case '[':
+                return skipQuotedIdentifier(query, i, ']');
+            case '`':
+                return skipQuotedIdentifier(query, i, '`');
+            case '-':
+                return i < length && query.charAt(i) == '-' ? skipSimpleComment(query, i + 1) : i;
+            case '/':
+                if (i < length && query.charAt(i) == '*') {
+                    return skipBracketedComment(query, i + 1);
+                }
+                return i < length && query.charAt(i) == '/' ? skipSimpleComment(query, i + 1) : i;
+            case '$':
+                // dollar-quoted string literals, like $foo$...$foo$ are not supported
+                return i < length && (query.charAt(i) == '$' || Character.isLetter(query.charAt(i))) ? -1 : i;
+            default:
+                return i;
+        }
+    }
+
+    private static int skipQuotedIdentifier(String query, int i, char delimiter) {
+        final int length = query.length();
+        while (i < length) {
+            char c = query.charAt(i++);
+            if (c == delimiter) {
+                if (delimiter == '"' && i < length && query.charAt(i) == '"') {
+                    i++;
+                    continue;
+                }
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private static int skipSimpleComment(String query, int i) {
+        int newLine = query.indexOf('\n', i);
+        return newLine < 0 ? query.length() : newLine + 1;
+    }
+
+    private static int skipBracketedComment(String query, int i) {
+        final int length = query.length();
+        int nesting = 1;
+        while (i < length) {
+            char c = query.charAt(i++);
+            // mirrors the fall through in Scanner#scanBracketedComment
+            if (c == '/' && i < length && query.charAt(i) == '*') {
+                i++;
+                nesting++;
+            }
+            if ((c == '/' || c == '*') && i < length && query.charAt(i) == '/') {
+                i++;
+                if (--nesting == 0) {
+                    return i;
+                }
             }
         }
+        return i;
     }
 
     private void parse(Scanner scanner, String query, StringBuilder signature, @Nullable StringBuilder dbLink) {
@@ -37,6 +37,10 @@ public final class ExecutorUtils {
         return supplier.createSingleThreadSchedulingDaemonPool(threadPurpose);
     }
 
+    public static ExecutorService createThreadDaemonPool(String threadPurpose, int poolSize, int queueCapacity) {
+        return supplier.createThreadDaemonPool(threadPurpose, poolSize, queueCapacity);
+    }
+
     public static boolean isAgentExecutor(Executor executor) {
         return supplier.isAgentExecutor(executor);
     }
@@ -51,6 +55,8 @@ public final class ExecutorUtils {
 
         ScheduledExecutorService createSingleThreadSchedulingDaemonPool(String threadPurpose);
 
+        ExecutorService createThreadDaemonPool(String threadPurpose, int poolSize, int queueCapacity);
+
         void shutdownAndWaitTermination(ExecutorService executor);
     }
 }
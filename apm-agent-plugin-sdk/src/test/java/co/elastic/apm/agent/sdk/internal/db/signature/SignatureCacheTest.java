@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.sdk.internal.db.signature;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SignatureCacheTest {
+
+    @Test
+    void testHitsAndMisses() {
+        SignatureCache cache = new SignatureCache(1000, 16);
+        assertThat(cache.get("SELECT * FROM foo")).isNull();
+        cache.put("SELECT * FROM foo", "SELECT FROM foo", "");
+        assertThat(cache.get("SELECT * FROM foo")).containsExactly("SELECT FROM foo", "");
+
+        assertThat(cache.getAndResetHits()).isEqualTo(1);
+        assertThat(cache.getAndResetMisses()).isEqualTo(1);
+        assertThat(cache.getAndResetEvictions()).isZero();
+        assertThat(cache.getAndResetHits()).isZero();
+    }
+
+    @Test
+    void testWeightIsBounded() {
+        SignatureCache cache = new SignatureCache(1000, 16);
+        for (int i = 0; i < 100; i++) {
+            cache.put(query(i), "SELECT FROM t", "");
+        }
+        // each entry weighs 45 chars
+        assertThat(cache.size()).isLessThanOrEqualTo(1000 / 45);
+        assertThat(cache.getAndResetEvictions()).isEqualTo(100 - cache.size());
+    }
+
+    @Test
+    void testTooLargeEntryIsNotCached() {
+        SignatureCache cache = new SignatureCache(10, 16);
+        cache.put("SELECT * FROM foo", "SELECT FROM foo", "");
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void testFrequentlyUsedQueriesAreNotEvictedByOneHitWonders() {
+        SignatureCache cache = new SignatureCache(1000, 16);
+        for (int i = 0; i < 10; i++) {
+            cache.put(query(i), "SELECT FROM t", "");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(cache.get(query(i))).isNotNull();
+            }
+        }
+        for (int i = 10; i < 1000; i++) {
+            cache.put(query(i), "SELECT FROM t", "");
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(cache.get(query(i))).describedAs(query(i)).isNotNull();
+        }
+    }
+
+    @Test
+    void testInstancesAreTracked() {
+        SignatureCache cache = new SignatureCache(1000, 16);
+        assertThat(SignatureCache.getInstances()).contains(cache);
+    }
+
+    private static String query(int i) {
+        return String.format("SELECT * FROM t WHERE id = %05d", i);
+    }
+}
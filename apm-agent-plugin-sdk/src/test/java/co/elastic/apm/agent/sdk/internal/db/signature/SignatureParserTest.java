@@ -119,4 +119,44 @@ public class SignatureParserTest {
         assertThat(dblink.toString()).isEqualTo("DBLINK.FQDN.COM@USER");
     }
 
+    @Test
+    void testNormalizeLiterals() {
+        assertThat(SignatureParser.normalizeLiterals("SELECT * FROM foo WHERE id = 42 AND name = 'it''s' AND x = 1.5e-3"))
+            .isEqualTo("SELECT * FROM foo WHERE id = ? AND name = ? AND x = ?");
+        assertThat(SignatureParser.normalizeLiterals("SELECT * FROM table1 t1 WHERE t1.id IN (1, 2) -- comment 1"))
+            .isEqualTo("SELECT * FROM table1 t1 WHERE t1.id IN (?, ?) -- comment 1");
+        assertThat(SignatureParser.normalizeLiterals("SELECT \"col 1\", [col 2], `col 3`, $1 FROM foo /* 'x' */"))
+            .isEqualTo("SELECT \"col 1\", [col 2], `col 3`, $1 FROM foo /* 'x' */");
+        assertThat(SignatureParser.normalizeLiterals("VALUES(1) 2")).isEqualTo("VALUES(1) ?");
+        assertThat(SignatureParser.normalizeLiterals("SELECT'a b' FROM foo")).isEqualTo("SELECT'a b' FROM foo");
+        assertThat(SignatureParser.normalizeLiterals("SELECT * FROM foo WHERE name = 'unterminated")).isNull();
+        assertThat(SignatureParser.normalizeLiterals("SELECT $tag$it's$tag$ FROM foo")).isNull();
+    }
+
+    @Test
+    void testNonPreparedStatementsShareCacheEntry() {
+        SignatureParser parser = new SignatureParser();
+        StringBuilder sb = new StringBuilder();
+        parser.querySignature("SELECT * FROM foo, bar WHERE foo.id = bar.foo_id AND foo.name = 'first'", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+        sb.setLength(0);
+        parser.querySignature("SELECT * FROM foo, bar WHERE foo.id = bar.foo_id AND foo.name = 'second one'", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+        sb.setLength(0);
+        parser.querySignature("SELECT * FROM baz, bar WHERE baz.id = bar.foo_id AND baz.name = 'second one'", sb, false);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM baz");
+    }
+
+    @Test
+    void testCachedSignatureIsAppended() {
+        SignatureParser parser = new SignatureParser();
+        String query = "SELECT * FROM foo, bar WHERE foo.id = bar.foo_id AND foo.name = ?";
+        StringBuilder sb = new StringBuilder("prefix ");
+        parser.querySignature(query, sb, true);
+        assertThat(sb.toString()).isEqualTo("prefix SELECT FROM foo");
+        sb.setLength(0);
+        parser.querySignature(query, sb, true);
+        assertThat(sb.toString()).isEqualTo("SELECT FROM foo");
+    }
+
 }
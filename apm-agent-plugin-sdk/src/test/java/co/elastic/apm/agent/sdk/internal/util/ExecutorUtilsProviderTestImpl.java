@@ -20,8 +20,10 @@ package co.elastic.apm.agent.sdk.internal.util;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static co.elastic.apm.agent.sdk.internal.util.ExecutorUtils.ExecutorUtilsProvider;
@@ -38,6 +40,11 @@ public class ExecutorUtilsProviderTestImpl implements ExecutorUtilsProvider {
         return new SimpleScheduledThreadPoolExecutor();
     }
 
+    @Override
+    public ExecutorService createThreadDaemonPool(String threadPurpose, int poolSize, int queueCapacity) {
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity));
+    }
+
     @Override
     public void shutdownAndWaitTermination(ExecutorService executor) {
         executor.shutdown();
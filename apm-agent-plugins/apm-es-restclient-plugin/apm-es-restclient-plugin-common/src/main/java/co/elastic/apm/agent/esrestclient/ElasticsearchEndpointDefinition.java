@@ -20,23 +20,21 @@ package co.elastic.apm.agent.esrestclient;
 
 import co.elastic.apm.agent.tracer.Span;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class ElasticsearchEndpointDefinition {
 
     private static final String OTEL_PATH_PARTS_ATTRIBUTE_PREFIX = "db.elasticsearch.path_parts.";
 
-    private static final String UNDERSCORE_REPLACEMENT = "0";
-
     private final String endpointName;
     private final List<Route> routes;
+    /**
+     * Contains the routes with parameters, as only those contribute path part attributes
+     */
+    private final RouteTrie routeTrie;
 
     private final boolean isSearchEndpoint;
 
@@ -44,8 +42,13 @@ public final class ElasticsearchEndpointDefinition {
         String endpointName, String[] routes, boolean isSearchEndpoint) {
         this.endpointName = endpointName;
         this.routes = new ArrayList<>();
-        for (String route : routes) {
-            this.routes.add(new Route(route));
+        this.routeTrie = new RouteTrie();
+        for (String routeName : routes) {
+            Route route = new Route(routeName);
+            this.routes.add(route);
+            if (route.hasParameters()) {
+                routeTrie.add(route);
+            }
         }
         this.isSearchEndpoint = isSearchEndpoint;
     }
@@ -60,134 +63,172 @@ public final class ElasticsearchEndpointDefinition {
     }
 
     public void addPathPartAttributes(String urlPath, Span<?> spanToEnrich) {
-        for (Route route : routes) {
-            if (route.hasParameters()) {
-                EndpointPattern pattern = route.getEndpointPattern();
-                Matcher matcher = pattern.createMatcher(urlPath);
-                if (matcher.find()) {
-                    for (String groupName : pattern.getPatternGroupNames()) {
-                        String value = matcher.group(groupName);
-                        String attributeKey = pattern.getOtelPathPartAttributeName(groupName);
-                        spanToEnrich.withOtelAttribute(attributeKey, value);
-                    }
-                    return;
-                }
-            }
+        Route route = routeTrie.find(urlPath);
+        if (route != null) {
+            route.addPathPartAttributes(urlPath, spanToEnrich);
         }
     }
 
-    List<Route> getRoutes() {
+    public List<Route> getRoutes() {
         return routes;
     }
 
-    static final class Route {
+    public static final class Route {
         private final String name;
         private final boolean hasParameters;
-
-        private volatile EndpointPattern epPattern;
+        /**
+         * The segments of the route, {@code null} for parameter segments
+         */
+        private final String[] segments;
+        /**
+         * The OTel attribute names of the parameter segments, {@code null} for literal segments
+         */
+        private final String[] pathPartAttributeNames;
 
         public Route(String name) {
             this.name = name;
             this.hasParameters = name.contains("{") && name.contains("}");
+            List<String> segments = new ArrayList<>();
+            for (String segment : name.split("/")) {
+                if (!segment.isEmpty()) {
+                    segments.add(segment);
+                }
+            }
+            this.segments = new String[segments.size()];
+            this.pathPartAttributeNames = new String[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                String segment = segments.get(i);
+                if (segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+                    pathPartAttributeNames[i] = OTEL_PATH_PARTS_ATTRIBUTE_PREFIX + segment.substring(1, segment.length() - 1);
+                } else {
+                    this.segments[i] = segment;
+                }
+            }
         }
 
-        String getName() {
+        public String getName() {
             return name;
         }
 
-        boolean hasParameters() {
+        public boolean hasParameters() {
             return hasParameters;
         }
 
-        private EndpointPattern getEndpointPattern() {
-            // Intentionally NOT synchronizing here to avoid synchronization overhead.
-            // Main purpose here is to cache the pattern without the need for strict thread-safety.
-            if (epPattern == null) {
-                epPattern = new EndpointPattern(this);
-            }
-
-            return epPattern;
+        /**
+         * @return the literal segment at the given index, or {@code null} if it's a parameter segment
+         */
+        @Nullable
+        String getSegment(int index) {
+            return segments[index];
         }
-    }
 
-    static final class EndpointPattern {
-        private static final Pattern PATH_PART_NAMES_PATTERN = Pattern.compile("\\{([^}]+)}");
-        private final Pattern pattern;
-        private final Map<String, String> pathPartNamesToOtelAttributes;
+        int getSegmentCount() {
+            return segments.length;
+        }
 
         /**
-         * Creates, compiles and caches a regular expression pattern and retrieves a set of
-         * pathPartNames (names of the URL path parameters) for this route.
-         *
-         * <p>The regex pattern is later being used to match against a URL path to retrieve the URL path
-         * parameters for that route pattern using named regex capture groups.
+         * Adds the parameter segments of the URL path as attributes.
+         * Must only be called with URL paths matching this route.
          */
-        private EndpointPattern(Route route) {
-            pattern = buildRegexPattern(route.getName());
-
-            if (route.hasParameters()) {
-                pathPartNamesToOtelAttributes = new HashMap<>();
-                Matcher matcher = PATH_PART_NAMES_PATTERN.matcher(route.getName());
-                while (matcher.find()) {
-                    String groupName = matcher.group(1);
-
-                    if (groupName != null) {
-                        String actualPatternGroupName = groupName.replace("_", UNDERSCORE_REPLACEMENT);
-                        pathPartNamesToOtelAttributes.put(actualPatternGroupName, OTEL_PATH_PARTS_ATTRIBUTE_PREFIX + groupName);
-                    }
+        private void addPathPartAttributes(String urlPath, Span<?> spanToEnrich) {
+            int start = 1;
+            for (int i = 0; i < segments.length; i++) {
+                int end = segmentEnd(urlPath, start);
+                if (pathPartAttributeNames[i] != null) {
+                    spanToEnrich.withOtelAttribute(pathPartAttributeNames[i], urlPath.substring(start, end));
                 }
-            } else {
-                pathPartNamesToOtelAttributes = Collections.emptyMap();
+                start = end + 1;
             }
         }
+    }
 
-        /**
-         * Builds a regex pattern from the parameterized route pattern.
-         */
-        static Pattern buildRegexPattern(String routeStr) {
-            StringBuilder regexStr = new StringBuilder();
-            regexStr.append('^');
-            int startIdx = routeStr.indexOf("{");
-            while (startIdx >= 0) {
-                regexStr.append(routeStr.substring(0, startIdx));
-
-                int endIndex = routeStr.indexOf("}");
-                if (endIndex <= startIdx + 1) {
-                    break;
-                }
+    private static int segmentEnd(String urlPath, int start) {
+        int end = urlPath.indexOf('/', start);
+        return end < 0 ? urlPath.length() : end;
+    }
 
-                // Append named capture group.
-                // If group name contains an underscore `_` it is being replaced with `0`,
-                // because `_` is not allowed in capture group names.
-                regexStr.append("(?<");
-                regexStr.append(
-                    routeStr.substring(startIdx + 1, endIndex).replace("_", UNDERSCORE_REPLACEMENT));
-                regexStr.append(">[^/]+)");
+    /**
+     * A trie of route segments with literal segments and {@code {param}} wildcards which match any non-empty segment.
+     * Lookups don't allocate and return the first route in declaration order that matches the whole URL path.
+     */
+    static final class RouteTrie {
 
-                routeStr = routeStr.substring(endIndex + 1);
-                startIdx = routeStr.indexOf("{");
-            }
+        private static final String[] NO_LITERALS = new String[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
 
-            regexStr.append(routeStr);
-            regexStr.append('$');
+        private final Node root = new Node();
+        private final List<Route> routes = new ArrayList<>();
 
-            return Pattern.compile(regexStr.toString());
+        void add(Route route) {
+            Node node = root;
+            for (int i = 0; i < route.getSegmentCount(); i++) {
+                node = node.getOrCreateChild(route.getSegment(i));
+            }
+            if (node.routeIndex == Integer.MAX_VALUE) {
+                node.routeIndex = routes.size();
+            }
+            routes.add(route);
         }
 
-        Matcher createMatcher(String urlPath) {
-            return pattern.matcher(urlPath);
+        @Nullable
+        Route find(String urlPath) {
+            if (urlPath.isEmpty() || urlPath.charAt(0) != '/') {
+                return null;
+            }
+            int routeIndex = find(root, urlPath, 0, Integer.MAX_VALUE);
+            return routeIndex == Integer.MAX_VALUE ? null : routes.get(routeIndex);
         }
 
-        String getOtelPathPartAttributeName(String patternGroupName) {
-            String attributeName = pathPartNamesToOtelAttributes.get(patternGroupName);
-            if (attributeName == null) {
-                throw new IllegalArgumentException(patternGroupName + " is not a group of this pattern!");
+        /**
+         * @param offset the index of the {@code /} preceding the next segment, or the length of the URL path if all segments have been consumed
+         * @return the lower one of {@code routeIndex} and the index of the first route matching the remainder of the URL path
+         */
+        private static int find(Node node, String urlPath, int offset, int routeIndex) {
+            if (offset == urlPath.length()) {
+                return Math.min(routeIndex, node.routeIndex);
+            }
+            int start = offset + 1;
+            int end = segmentEnd(urlPath, start);
+            int length = end - start;
+            for (int i = 0; i < node.literals.length; i++) {
+                String literal = node.literals[i];
+                if (literal.length() == length && urlPath.regionMatches(start, literal, 0, length)) {
+                    routeIndex = find(node.literalChildren[i], urlPath, end, routeIndex);
+                    break;
+                }
+            }
+            if (node.parameterChild != null && length > 0) {
+                routeIndex = find(node.parameterChild, urlPath, end, routeIndex);
             }
-            return attributeName;
+            return routeIndex;
         }
 
-        Collection<String> getPatternGroupNames() {
-            return pathPartNamesToOtelAttributes.keySet();
+        private static final class Node {
+            private String[] literals = NO_LITERALS;
+            private Node[] literalChildren = NO_CHILDREN;
+            @Nullable
+            private Node parameterChild;
+            private int routeIndex = Integer.MAX_VALUE;
+
+            private Node getOrCreateChild(@Nullable String literal) {
+                if (literal == null) {
+                    if (parameterChild == null) {
+                        parameterChild = new Node();
+                    }
+                    return parameterChild;
+                }
+                for (int i = 0; i < literals.length; i++) {
+                    if (literals[i].equals(literal)) {
+                        return literalChildren[i];
+                    }
+                }
+                Node child = new Node();
+                literals = Arrays.copyOf(literals, literals.length + 1);
+                literalChildren = Arrays.copyOf(literalChildren, literalChildren.length + 1);
+                literals[literals.length - 1] = literal;
+                literalChildren[literalChildren.length - 1] = child;
+                return child;
+            }
         }
     }
 }
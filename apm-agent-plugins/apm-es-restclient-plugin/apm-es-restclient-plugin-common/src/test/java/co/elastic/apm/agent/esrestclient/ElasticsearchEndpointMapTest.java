@@ -29,7 +29,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -121,30 +120,46 @@ public class ElasticsearchEndpointMapTest {
     }
 
     @Test
-    public void testBuildRegexPattern() {
-        Pattern pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_nodes/{node_id}/shutdown");
-        assertEquals("^/_nodes/(?<node0id>[^/]+)/shutdown$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_snapshot/{repository}/{snapshot}/_mount");
-        assertEquals("^/_snapshot/(?<repository>[^/]+)/(?<snapshot>[^/]+)/_mount$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_security/profile/_suggest");
-        assertEquals("^/_security/profile/_suggest$", pattern.pattern());
-
-        pattern =
-            ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern(
-                "/_application/search_application/{name}");
-        assertEquals("^/_application/search_application/(?<name>[^/]+)$", pattern.pattern());
-
-        pattern = ElasticsearchEndpointDefinition.EndpointPattern.buildRegexPattern("/");
-        assertEquals("^/$", pattern.pattern());
+    public void testFirstMatchingRouteWins() {
+        ElasticsearchEndpointDefinition esEndpoint = new ElasticsearchEndpointDefinition("test", new String[]{
+            "/_foo",
+            "/{index}/_foo/{id}",
+            "/_all/_foo/{id}",
+            "/_all/{type}/{id}",
+            "/{index}/_bar"
+        }, false);
+
+        assertEquals(Map.of("db.elasticsearch.path_parts.index", "_all", "db.elasticsearch.path_parts.id", "1"),
+            getPathPartAttributes(esEndpoint, "/_all/_foo/1"));
+        assertEquals(Map.of("db.elasticsearch.path_parts.type", "_baz", "db.elasticsearch.path_parts.id", "1"),
+            getPathPartAttributes(esEndpoint, "/_all/_baz/1"));
+        assertEquals(Map.of("db.elasticsearch.path_parts.index", "my-index"),
+            getPathPartAttributes(esEndpoint, "/my-index/_bar"));
     }
 
+    @Test
+    public void testNoMatchingRoute() {
+        ElasticsearchEndpointDefinition esEndpoint = new ElasticsearchEndpointDefinition("test", new String[]{
+            "/_foo",
+            "/{index}/_foo/{id}"
+        }, false);
+
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "/_foo"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, ""));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "my-index/_foo/1"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "/my-index/_foo"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "/my-index/_foo/"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "//_foo/1"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "/my-index/_foo/1/2"));
+        assertEquals(Map.of(), getPathPartAttributes(esEndpoint, "/my-index/_FOO/1"));
+    }
 
+    private static Map<String, String> getPathPartAttributes(ElasticsearchEndpointDefinition esEndpoint, String urlPath) {
+        Map<String, String> observedParams = new HashMap<>();
+        Span<?> dummy = Mockito.mock(Span.class);
+        doAnswer((invoc) -> observedParams.put(invoc.getArgument(0), invoc.getArgument(1)))
+            .when(dummy).withOtelAttribute(any(), any());
+        esEndpoint.addPathPartAttributes(urlPath, dummy);
+        return observedParams;
+    }
 }
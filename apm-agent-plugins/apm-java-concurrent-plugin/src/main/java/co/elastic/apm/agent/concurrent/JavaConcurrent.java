@@ -43,6 +43,12 @@ import java.util.concurrent.ForkJoinTask;
 @GlobalState
 public class JavaConcurrent {
 
+    /**
+     * Holds the contexts of tasks that can't carry their context themselves.
+     * Task classes can't be extended with a field for the context,
+     * as instrumentations must not change the class format and many tasks are JDK classes that are loaded before the agent.
+     * The lambdas that are wrapped by the agent hold their context in a {@link ContextSlotWrapper} instead.
+     */
     private static final ReferenceCountedMap<Object, ElasticContext<?>> contextMap = GlobalTracer.get().newReferenceCountedMap();
 
     private static final List<Class<? extends ElasticApmInstrumentation>> RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION = Collections.
@@ -62,7 +68,14 @@ public class JavaConcurrent {
     }
 
     private static void removeContext(Object o) {
-        contextMap.remove(o);
+        if (o instanceof ContextSlotWrapper) {
+            ElasticContext<?> context = ((ContextSlotWrapper) o).takeContext();
+            if (context != null) {
+                context.decrementReferences();
+            }
+        } else {
+            contextMap.remove(o);
+        }
     }
 
     private static boolean shouldAvoidContextPropagation(@Nullable Object executable) {
@@ -87,6 +100,23 @@ public class JavaConcurrent {
         // When an Executor executes directly on the current thread we need to enable this thread for context propagation again
         needsContext.set(Boolean.TRUE);
 
+        if (o instanceof ContextSlotWrapper) {
+            ElasticContext<?> context = ((ContextSlotWrapper) o).takeContext();
+            if (context == null) {
+                return null;
+            }
+            try {
+                return activateIfNotCurrent(context, tracer);
+            } finally {
+                // releases the reference that has been held by the slot
+                context.decrementReferences();
+            }
+        }
+
+        // when no context is mapped, tasks are executed without looking them up in the map
+        if (contextMap.isEmpty()) {
+            return null;
+        }
         // we cannot remove yet, as this decrements the reference count, which may cause already ended spans to be recycled ahead of time
         ElasticContext<?> context = contextMap.get(o);
         if (context == null) {
@@ -94,13 +124,18 @@ public class JavaConcurrent {
         }
 
         try {
-            if (tracer.currentContext() != context) {
-                return context.activate();
-            } else {
-                return null;
-            }
+            return activateIfNotCurrent(context, tracer);
         } finally {
-            contextMap.remove(o);
+            removeContext(o);
+        }
+    }
+
+    @Nullable
+    private static ElasticContext<?> activateIfNotCurrent(ElasticContext<?> context, Tracer tracer) {
+        if (tracer.currentContext() != context) {
+            return context.activate();
+        } else {
+            return null;
         }
     }
 
@@ -125,8 +160,17 @@ public class JavaConcurrent {
     }
 
     private static void captureContext(Object task, ElasticContext<?> active) {
-        DynamicTransformer.ensureInstrumented(task.getClass(), RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION);
-        contextMap.put(task, active);
+        if (task instanceof ContextSlotWrapper) {
+            // the wrapper restores the context itself, so neither instrumentation nor a map lookup is needed
+            active.incrementReferences();
+            ElasticContext<?> previous = ((ContextSlotWrapper) task).setContext(active);
+            if (previous != null) {
+                previous.decrementReferences();
+            }
+        } else {
+            DynamicTransformer.ensureInstrumented(task.getClass(), RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION);
+            contextMap.put(task, active);
+        }
         // Do no discard branches leading to async operations so not to break span references
         if (active.getSpan() != null) {
             active.getSpan().setNonDiscardable();
@@ -231,7 +275,55 @@ public class JavaConcurrent {
         needsContext.set(Boolean.TRUE);
     }
 
-    public static class RunnableLambdaWrapper implements Runnable {
+    /**
+     * A wrapper which holds the context of the wrapped task in a field, rather than in the {@link #contextMap}.
+     * Used for tasks which can't be instrumented, such as lambdas.
+     */
+    public abstract static class ContextSlotWrapper {
+
+        private static final Tracer tracer = GlobalTracer.get();
+
+        @Nullable
+        private volatile ElasticContext<?> context;
+
+        /**
+         * @return the previous context
+         */
+        @Nullable
+        private synchronized ElasticContext<?> setContext(ElasticContext<?> context) {
+            ElasticContext<?> previous = this.context;
+            this.context = context;
+            return previous;
+        }
+
+        /**
+         * Removes the context from this wrapper, transferring the reference that has been held by this wrapper to the caller.
+         */
+        @Nullable
+        private synchronized ElasticContext<?> takeContext() {
+            ElasticContext<?> context = this.context;
+            this.context = null;
+            return context;
+        }
+
+        @Nullable
+        protected ElasticContext<?> restoreContext() {
+            if (context == null) {
+                // avoids the lock for tasks which have been submitted without an active context
+                needsContext.set(Boolean.TRUE);
+                return null;
+            }
+            return JavaConcurrent.restoreContext(this, tracer);
+        }
+
+        protected static void deactivate(@Nullable ElasticContext<?> context) {
+            if (context != null) {
+                context.deactivate();
+            }
+        }
+    }
+
+    public static class RunnableLambdaWrapper extends ContextSlotWrapper implements Runnable {
 
         private final Runnable delegate;
 
@@ -241,11 +333,16 @@ public class JavaConcurrent {
 
         @Override
         public void run() {
-            delegate.run();
+            ElasticContext<?> context = restoreContext();
+            try {
+                delegate.run();
+            } finally {
+                deactivate(context);
+            }
         }
     }
 
-    public static class CallableLambdaWrapper<V> implements Callable<V> {
+    public static class CallableLambdaWrapper<V> extends ContextSlotWrapper implements Callable<V> {
         private final Callable<V> delegate;
 
         public CallableLambdaWrapper(Callable<V> delegate) {
@@ -254,7 +351,12 @@ public class JavaConcurrent {
 
         @Override
         public V call() throws Exception {
-            return delegate.call();
+            ElasticContext<?> context = restoreContext();
+            try {
+                return delegate.call();
+            } finally {
+                deactivate(context);
+            }
         }
     }
 
@@ -0,0 +1,95 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ContextSlotWrapperTest extends AbstractInstrumentationTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Transaction transaction;
+
+    @Before
+    public void setUp() {
+        transaction = tracer.startRootTransaction(null).withName("Transaction").activate();
+    }
+
+    @After
+    public void tearDown() {
+        transaction.deactivate().end();
+        executor.shutdown();
+        assertThat(tracer.getActive()).isNull();
+    }
+
+    @Test
+    public void testRunnableWrapperRestoresContextOnce() throws Exception {
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        Runnable wrapped = JavaConcurrent.withContext(() -> active.set(tracer.getActive()), tracer);
+        JavaConcurrent.allowContextPropagationOnCurrentThread();
+        assertThat(wrapped).isInstanceOf(JavaConcurrent.RunnableLambdaWrapper.class);
+
+        runOnOtherThread(wrapped);
+        assertThat(active.get()).isSameAs(transaction);
+
+        // the slot is cleared after the context has been restored
+        runOnOtherThread(wrapped);
+        assertThat(active.get()).isNull();
+    }
+
+    @Test
+    public void testCallableWrapperRestoresContext() throws Exception {
+        Callable<AbstractSpan<?>> wrapped = JavaConcurrent.withContext(() -> tracer.getActive(), tracer);
+        JavaConcurrent.allowContextPropagationOnCurrentThread();
+        assertThat(wrapped).isInstanceOf(JavaConcurrent.CallableLambdaWrapper.class);
+        assertThat(executor.submit(wrapped).get()).isSameAs(transaction);
+    }
+
+    @Test
+    public void testRejectedWrapperReleasesContext() {
+        executor.shutdown();
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        Runnable task = () -> active.set(tracer.getActive());
+        int referenceCount = transaction.getReferenceCount();
+        assertThatThrownBy(() -> executor.execute(task)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(JavaConcurrent.needsContext.get()).isNotEqualTo(false);
+        // the reference the slot of the wrapper held on the transaction has been released
+        assertThat(transaction.getReferenceCount()).isEqualTo(referenceCount);
+        assertThat(active.get()).isNull();
+    }
+
+    private void runOnOtherThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+}
@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.jaxrs;
 
+import co.elastic.apm.agent.tracer.configuration.CoreConfiguration;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 
@@ -31,7 +32,7 @@ public class JaxRsConfiguration extends ConfigurationOptionProvider {
         .key("enable_jaxrs_annotation_inheritance")
         .tags("added[1.5.0]")
         .configurationCategory(JAXRS_CATEGORY)
-        .tags("performance")
+        .tags("performance", CoreConfiguration.AFFECTS_INSTRUMENTATION_TAG)
         .description(
             "By default, the agent will scan for @Path annotations on the whole class hierarchy, recognizing a class as a JAX-RS resource if the class or any of its superclasses/interfaces has a class level @Path annotation.\n" +
             "If your application does not use @Path annotation inheritance, set this property to 'false' to only scan for direct @Path annotations. This can improve the startup time of the agent.\n")
@@ -40,7 +41,7 @@ public class JaxRsConfiguration extends ConfigurationOptionProvider {
 
     private final ConfigurationOption<Boolean> useAnnotationValueForTransactionName = ConfigurationOption.booleanOption()
         .key("use_jaxrs_path_as_transaction_name")
-        .tags("added[1.8.0]")
+        .tags("added[1.8.0]", CoreConfiguration.AFFECTS_INSTRUMENTATION_TAG)
         .configurationCategory(JAXRS_CATEGORY)
         .description("By default, the agent will use `ClassName#methodName` for the transaction name of JAX-RS requests.\n" +
             "If you want to use the URI template from the `@Path` annotation, set the value to `true`.")
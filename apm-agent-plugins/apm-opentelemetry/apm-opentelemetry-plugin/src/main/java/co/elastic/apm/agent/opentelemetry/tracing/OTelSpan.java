@@ -71,6 +71,49 @@ public class OTelSpan implements Span {
         return this;
     }
 
+    /*
+     * The following methods avoid creating an AttributeKey and boxing the value, as the default implementations of Span do
+     */
+
+    @Override
+    public Span setAttribute(String key, boolean value) {
+        if (BehavioralAttributes.DISCARDABLE.equals(key)) {
+            if (!value) {
+                span.setNonDiscardable();
+            }
+        } else {
+            span.withOtelBooleanAttribute(key, value);
+        }
+        return this;
+    }
+
+    @Override
+    public Span setAttribute(String key, long value) {
+        checkNotBehavioralAttribute(key, value);
+        span.withOtelLongAttribute(key, value);
+        return this;
+    }
+
+    @Override
+    public Span setAttribute(String key, double value) {
+        checkNotBehavioralAttribute(key, value);
+        span.withOtelDoubleAttribute(key, value);
+        return this;
+    }
+
+    @Override
+    public Span setAttribute(String key, @Nullable String value) {
+        checkNotBehavioralAttribute(key, value);
+        span.withOtelAttribute(key, value);
+        return this;
+    }
+
+    private static void checkNotBehavioralAttribute(String key, @Nullable Object value) {
+        if (BehavioralAttributes.DISCARDABLE.equals(key)) {
+            throw new IllegalArgumentException(String.format(ILLEGAL_ATTRIBUTE_VALUE_TYPE_MESSAGE_FORMAT, BehavioralAttributes.DISCARDABLE, value));
+        }
+    }
+
     @Override
     public Span addEvent(String name, Attributes attributes) {
         eventLogger.warn("The addEvent API is not supported at the moment");
@@ -81,6 +81,11 @@ class ProcessHelperTest extends AbstractInstrumentationTest {
             public co.elastic.apm.agent.tracer.Span<?> remove(Process key) {
                 return storageMap.remove(key);
             }
+
+            @Override
+            public boolean isEmpty() {
+                return storageMap.approximateSize() == 0;
+            }
         });
     }
 
@@ -0,0 +1,628 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.sdk.weakconcurrent.DetachedThreadLocal;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory-mapped log of activation and deactivation events.
+ * <p>
+ * Writing:
+ * </p>
+ * <p>
+ * Application threads write their events directly into the mapping, without handing them off to another thread.
+ * The mapping is divided into two halves.
+ * A thread lock-free claims a segment of the half that's currently written to and appends its events to it,
+ * so that no other thread writes to the same segment.
+ * After an event has been written, the number of events in the segment is published with an ordered store.
+ * Once the segment is full, the thread claims the next segment, which is twice as large as the previous one,
+ * up to a maximum size.
+ * Starting with small segments makes sure that threads that only write a few events don't reserve space they never use.
+ * If the current half has no space left, the event is discarded.
+ * </p>
+ * <p>
+ * Reading:
+ * </p>
+ * <p>
+ * The profiler thread {@linkplain #startReading() swaps} the halves at the end of a profiling session,
+ * so that the application threads write to the other half while the events of the previous session are processed.
+ * The events within a segment are ordered by timestamp, as they are written by a single thread.
+ * All segments of a half are merged into a single sequence ordered by timestamp with a heap of segments.
+ * Ties are broken by the segment index, so that the events of a thread which spans multiple segments stay in order.
+ * </p>
+ * <p>
+ * Each writer announces the generation it's writing to before it reads the current generation again and writes its event.
+ * After swapping the halves, the profiler thread waits until no writer is writing to the previous generation anymore.
+ * Therefore, the reader sees all events of a half,
+ * and a writer that has not noticed the swap can't write to a half that has been reset and is written to by other threads again.
+ * </p>
+ */
+class ActivationEventLog {
+
+    static final int EVENT_SIZE =
+        Long.SIZE / Byte.SIZE + // timestamp
+            Short.SIZE / Byte.SIZE + // serviceName index
+            Short.SIZE / Byte.SIZE + // serviceVersion index
+            TraceContext.SERIALIZED_LENGTH + // traceContextBuffer
+            TraceContext.SERIALIZED_LENGTH + // previousContextBuffer
+            1 + // rootContext
+            Long.SIZE / Byte.SIZE + // threadId
+            1; // activation
+    /**
+     * The offset of the thread id within an event
+     */
+    static final int THREAD_ID_OFFSET = EVENT_SIZE - 1 - Long.SIZE / Byte.SIZE;
+
+    private final int minEventsPerSegment;
+    private final int maxEventsPerSegment;
+    private final int eventsPerHalf;
+    private final int maxSegmentsPerHalf;
+    private static final int NOT_WRITING = -1;
+
+    private final DetachedThreadLocal<Writer> writers = WeakConcurrent.buildThreadLocal();
+    /**
+     * All writers, so that the profiler thread can wait for writers which are still writing to the previous generation.
+     * Writers are weakly referenced so that they can be collected when their thread terminates.
+     */
+    private final ConcurrentLinkedQueue<WeakReference<Writer>> allWriters = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of claimed segments (upper 32 bits) and the number of claimed events (lower 32 bits) per half.
+     * Both are updated with a single CAS so that the segments of a half are laid out in the order they have been claimed.
+     */
+    private final AtomicLong[] claims = {new AtomicLong(), new AtomicLong()};
+    /**
+     * The start of each segment of both halves, as the index of its first event relative to the start of the half.
+     * Written before the first event of a segment is published via {@link #eventCounts}.
+     */
+    private final int[] segmentOffsets;
+    /**
+     * The number of events which have been written to each segment of both halves
+     */
+    private final AtomicIntegerArray eventCounts;
+    private final StringIndex serviceNames = new StringIndex();
+    private final StringIndex serviceVersions = new StringIndex();
+    /**
+     * Even generations write to the first half, odd generations write to the second half.
+     * Only incremented by the profiler thread.
+     */
+    private volatile int generation;
+    @Nullable
+    private volatile MappedByteBuffer mapping;
+    @Nullable
+    private Reader reader;
+
+    /**
+     * @param minEventsPerSegment the size of the first segment a thread claims in each half
+     * @param maxEventsPerSegment the maximum size of a segment
+     * @param eventsPerHalf       the number of events each half can hold
+     */
+    ActivationEventLog(int minEventsPerSegment, int maxEventsPerSegment, int eventsPerHalf) {
+        this.minEventsPerSegment = minEventsPerSegment;
+        this.maxEventsPerSegment = maxEventsPerSegment;
+        this.eventsPerHalf = eventsPerHalf;
+        this.maxSegmentsPerHalf = eventsPerHalf / minEventsPerSegment;
+        this.segmentOffsets = new int[2 * maxSegmentsPerHalf];
+        this.eventCounts = new AtomicIntegerArray(2 * maxSegmentsPerHalf);
+    }
+
+    long getFileSize() {
+        return 2L * eventsPerHalf * EVENT_SIZE;
+    }
+
+    boolean isMapped() {
+        return mapping != null;
+    }
+
+    /**
+     * Maps the provided file, growing it to {@link #getFileSize()} if necessary.
+     */
+    void map(FileChannel channel) throws IOException {
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize());
+    }
+
+    /**
+     * Appends an event to the segment of the current thread.
+     * <p>
+     * This method is executed by application threads.
+     * </p>
+     *
+     * @return {@code true}, if the event has been written, {@code false} if there was no free segment available
+     */
+    boolean write(TraceContext traceContext, @Nullable TraceContext previousContext, boolean activation, long nanoTime) {
+        Writer writer = writers.get();
+        if (writer == null) {
+            MappedByteBuffer mapping = this.mapping;
+            if (mapping == null) {
+                return false;
+            }
+            writer = new Writer(mapping.duplicate());
+            writers.set(writer);
+            allWriters.add(new WeakReference<>(writer));
+        }
+        int generation = startWriting(writer);
+        try {
+            return write(writer, generation, traceContext, previousContext, activation, nanoTime);
+        } finally {
+            writer.writingGeneration = NOT_WRITING;
+        }
+    }
+
+    /**
+     * Announces that the writer is writing to the current generation.
+     * The generation is read again after the announcement, so that the writer either sees a concurrent increment of the generation
+     * or the profiler thread sees the announcement and waits for the write to complete, see {@link #awaitWriters(int)}.
+     *
+     * @return the generation to write to
+     */
+    private int startWriting(Writer writer) {
+        int generation = this.generation;
+        while (true) {
+            writer.writingGeneration = generation;
+            int current = this.generation;
+            if (current == generation) {
+                return generation;
+            }
+            generation = current;
+        }
+    }
+
+    private boolean write(Writer writer, int generation, TraceContext traceContext, @Nullable TraceContext previousContext, boolean activation, long nanoTime) {
+        if (writer.generation != generation || writer.eventsInSegment == writer.capacity) {
+            if (!writer.claimSegment(generation)) {
+                return false;
+            }
+        }
+        ByteBuffer buf = writer.buffer;
+        ((Buffer) buf).position(getPosition(writer.segment, writer.eventsInSegment));
+        buf.putLong(nanoTime);
+        buf.putShort(serviceNames.indexOf(traceContext.getServiceName()));
+        buf.putShort(serviceVersions.indexOf(traceContext.getServiceVersion()));
+        traceContext.serialize(writer.traceContextBuffer);
+        buf.put(writer.traceContextBuffer);
+        if (previousContext != null) {
+            previousContext.serialize(writer.traceContextBuffer);
+            buf.put(writer.traceContextBuffer);
+        } else {
+            ((Buffer) buf).position(buf.position() + TraceContext.SERIALIZED_LENGTH);
+        }
+        buf.put(previousContext == null ? (byte) 1 : (byte) 0);
+        buf.putLong(Thread.currentThread().getId());
+        buf.put(activation ? (byte) 1 : (byte) 0);
+        writer.eventsInSegment++;
+        // publishes the event to the reader
+        eventCounts.lazySet(writer.segment, writer.eventsInSegment);
+        return true;
+    }
+
+    /**
+     * Makes application threads write to the other half and prepares reading the events of the half which has been written to so far.
+     * <p>
+     * Must only be called by the profiler thread.
+     * </p>
+     *
+     * @return the number of events to read
+     */
+    long startReading() {
+        int readHalf = generation & 1;
+        resetHalf(1 - readHalf);
+        awaitWriters(++generation);
+        if (reader == null) {
+            reader = new Reader();
+        }
+        return reader.start(readHalf);
+    }
+
+    /**
+     * @return whether the half that is being read has been full
+     */
+    boolean isFull() {
+        if (reader == null) {
+            return false;
+        }
+        long claim = claims[reader.half].get();
+        return getClaimedSegments(claim) >= maxSegmentsPerHalf || getClaimedEvents(claim) >= eventsPerHalf;
+    }
+
+    boolean hasNext() {
+        return reader != null && reader.hasNext();
+    }
+
+    /**
+     * @return the timestamp of the next event to read
+     */
+    long peekTimestamp() {
+        return getReader().peekTimestamp();
+    }
+
+    /**
+     * Returns a buffer positioned at the next event to read.
+     * Each event is {@link #EVENT_SIZE} bytes long.
+     */
+    ByteBuffer next() {
+        return getReader().next();
+    }
+
+    private Reader getReader() {
+        if (reader == null) {
+            throw new IllegalStateException("startReading has not been called");
+        }
+        return reader;
+    }
+
+    /**
+     * Creates a buffer that can be used to read events at the positions of the buffers returned by {@link #next()},
+     * independent of the reading progress.
+     * Multiple threads can read events concurrently if each one uses its own buffer.
+     */
+    ByteBuffer createReadBuffer() {
+        MappedByteBuffer mapping = this.mapping;
+        if (mapping == null) {
+            throw new IllegalStateException("The activation event log has not been mapped yet");
+        }
+        return mapping.duplicate();
+    }
+
+    @Nullable
+    String getServiceName(short index) {
+        return serviceNames.get(index);
+    }
+
+    @Nullable
+    String getServiceVersion(short index) {
+        return serviceVersions.get(index);
+    }
+
+    /**
+     * Writes the events which are currently being read to the provided channel, ordered by timestamp.
+     * The events are written without gaps, which is the format {@link #copyFrom(FileChannel)} expects.
+     */
+    void writeTo(FileChannel channel) throws IOException {
+        Reader reader = getReader();
+        Reader copy = new Reader();
+        copy.start(reader.half);
+        while (copy.hasNext()) {
+            ByteBuffer event = copy.next();
+            ((Buffer) event).limit(event.position() + EVENT_SIZE);
+            while (event.hasRemaining()) {
+                channel.write(event);
+            }
+            ((Buffer) event).limit(event.capacity());
+        }
+    }
+
+    /**
+     * Appends events ordered by timestamp, as written by {@link #writeTo(FileChannel)}, to the half which is currently written to.
+     * Reading stops at the first event with a timestamp of {@code 0}.
+     * <p>
+     * Must only be called by the profiler thread.
+     * </p>
+     */
+    void copyFrom(FileChannel channel) throws IOException {
+        MappedByteBuffer mapping = this.mapping;
+        if (mapping == null) {
+            throw new IllegalStateException("The activation event log has not been mapped yet");
+        }
+        ByteBuffer buf = mapping.duplicate();
+        int half = generation & 1;
+        long remaining = channel.size() - channel.position();
+        while (remaining >= EVENT_SIZE) {
+            long claimed = claimSegment(half, (int) Math.min(maxEventsPerSegment, remaining / EVENT_SIZE));
+            if (claimed < 0) {
+                return;
+            }
+            int segment = (int) (claimed >>> 32);
+            int events = (int) claimed;
+            ((Buffer) buf).position(getPosition(segment, 0));
+            ((Buffer) buf).limit(getPosition(segment, events));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            ((Buffer) buf).limit(buf.capacity());
+            for (int i = 0; i < events; i++) {
+                // a zero timestamp marks the unused, pre-allocated part of a file
+                if (buf.getLong(getPosition(segment, i)) == 0) {
+                    eventCounts.set(segment, i);
+                    return;
+                }
+            }
+            eventCounts.set(segment, events);
+            remaining -= (long) events * EVENT_SIZE;
+        }
+    }
+
+    /**
+     * Discards all events.
+     * <p>
+     * Must only be called by the profiler thread.
+     * </p>
+     */
+    void clear() {
+        int writeHalf = generation & 1;
+        resetHalf(1 - writeHalf);
+        // forces writers to claim a segment from the other half
+        awaitWriters(++generation);
+        resetHalf(writeHalf);
+        if (reader != null) {
+            reader.clear();
+        }
+    }
+
+    /**
+     * Waits until all writers that are still writing to a generation other than the provided current one have completed their write.
+     * <p>
+     * Must only be called by the profiler thread.
+     * </p>
+     */
+    private void awaitWriters(int generation) {
+        for (Iterator<WeakReference<Writer>> iterator = allWriters.iterator(); iterator.hasNext(); ) {
+            Writer writer = iterator.next().get();
+            if (writer == null) {
+                iterator.remove();
+                continue;
+            }
+            for (int writing = writer.writingGeneration; writing != NOT_WRITING && writing != generation; writing = writer.writingGeneration) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void resetHalf(int half) {
+        int segments = Math.min(getClaimedSegments(claims[half].get()), maxSegmentsPerHalf);
+        for (int i = half * maxSegmentsPerHalf, end = i + segments; i < end; i++) {
+            eventCounts.set(i, 0);
+        }
+        claims[half].set(0);
+    }
+
+    /**
+     * Claims a segment of the provided half.
+     * The segment may be smaller than requested if the half is almost full.
+     *
+     * @return the absolute index of the segment (upper 32 bits) and its capacity in events (lower 32 bits),
+     * or {@code -1} if the half has no space left
+     */
+    private long claimSegment(int half, int requestedEvents) {
+        AtomicLong claim = claims[half];
+        while (true) {
+            long current = claim.get();
+            int segments = getClaimedSegments(current);
+            int events = getClaimedEvents(current);
+            int capacity = Math.min(requestedEvents, eventsPerHalf - events);
+            if (segments >= maxSegmentsPerHalf || capacity <= 0) {
+                return -1;
+            }
+            if (claim.compareAndSet(current, (long) (segments + 1) << 32 | (events + capacity))) {
+                int segment = half * maxSegmentsPerHalf + segments;
+                segmentOffsets[segment] = events;
+                return (long) segment << 32 | capacity;
+            }
+        }
+    }
+
+    private static int getClaimedSegments(long claim) {
+        return (int) (claim >>> 32);
+    }
+
+    private static int getClaimedEvents(long claim) {
+        return (int) claim;
+    }
+
+    /**
+     * @param segment the absolute index of the segment
+     * @param event   the index of the event within the segment
+     * @return the position of the event within the mapping
+     */
+    private int getPosition(int segment, int event) {
+        int half = segment / maxSegmentsPerHalf;
+        return (half * eventsPerHalf + segmentOffsets[segment] + event) * EVENT_SIZE;
+    }
+
+    private class Writer {
+        private final ByteBuffer buffer;
+        private final byte[] traceContextBuffer = new byte[TraceContext.SERIALIZED_LENGTH];
+        private int generation = -1;
+        /**
+         * The generation the writer is currently writing to, or {@link #NOT_WRITING}
+         */
+        private volatile int writingGeneration = NOT_WRITING;
+        private int segment;
+        private int capacity;
+        private int eventsInSegment;
+        /**
+         * The size of the next segment, doubled each time a segment of the current generation is full
+         */
+        private int nextCapacity;
+
+        private Writer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private boolean claimSegment(int generation) {
+            if (this.generation != generation) {
+                this.generation = generation;
+                nextCapacity = minEventsPerSegment;
+            }
+            long claimed = ActivationEventLog.this.claimSegment(generation & 1, nextCapacity);
+            if (claimed < 0) {
+                // no space available, try again on the next write
+                capacity = 0;
+                eventsInSegment = 0;
+                return false;
+            }
+            segment = (int) (claimed >>> 32);
+            capacity = (int) claimed;
+            eventsInSegment = 0;
+            nextCapacity = Math.min(2 * nextCapacity, maxEventsPerSegment);
+            return true;
+        }
+    }
+
+    /**
+     * Merges the segments of a half into a sequence of events ordered by timestamp
+     */
+    private class Reader {
+        private final ByteBuffer buffer;
+        /**
+         * Segment indices relative to the half, as a min-heap ordered by the timestamp of the next event and the segment index
+         */
+        private final int[] heap = new int[maxSegmentsPerHalf];
+        private final int[] eventsRead = new int[maxSegmentsPerHalf];
+        private final int[] eventsInSegment = new int[maxSegmentsPerHalf];
+        private final long[] nextTimestamp = new long[maxSegmentsPerHalf];
+        private int size;
+        private int half;
+
+        private Reader() {
+            MappedByteBuffer mapping = ActivationEventLog.this.mapping;
+            if (mapping == null) {
+                throw new IllegalStateException("The activation event log has not been mapped yet");
+            }
+            this.buffer = mapping.duplicate();
+        }
+
+        long start(int half) {
+            this.half = half;
+            size = 0;
+            long events = 0;
+            int segments = Math.min(getClaimedSegments(claims[half].get()), maxSegmentsPerHalf);
+            for (int i = 0; i < segments; i++) {
+                eventsRead[i] = 0;
+                eventsInSegment[i] = eventCounts.get(half * maxSegmentsPerHalf + i);
+                if (eventsInSegment[i] > 0) {
+                    nextTimestamp[i] = buffer.getLong(getOffset(i));
+                    heap[size++] = i;
+                    events += eventsInSegment[i];
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            return events;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean hasNext() {
+            return size > 0;
+        }
+
+        long peekTimestamp() {
+            return nextTimestamp[heap[0]];
+        }
+
+        ByteBuffer next() {
+            int segment = heap[0];
+            ((Buffer) buffer).position(getOffset(segment));
+            if (++eventsRead[segment] < eventsInSegment[segment]) {
+                nextTimestamp[segment] = buffer.getLong(getOffset(segment));
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+            return buffer;
+        }
+
+        private int getOffset(int segment) {
+            return getPosition(half * maxSegmentsPerHalf + segment, eventsRead[segment]);
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && isLess(heap[left], heap[smallest])) {
+                    smallest = left;
+                }
+                if (right < size && isLess(heap[right], heap[smallest])) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                int tmp = heap[i];
+                heap[i] = heap[smallest];
+                heap[smallest] = tmp;
+                i = smallest;
+            }
+        }
+
+        private boolean isLess(int segment, int other) {
+            return nextTimestamp[segment] < nextTimestamp[other]
+                || nextTimestamp[segment] == nextTimestamp[other] && segment < other;
+        }
+    }
+
+    /**
+     * Assigns stable indices to strings like service names, so that they don't have to be written for each event
+     */
+    private static class StringIndex {
+        private static final short NULL_INDEX = -1;
+        private final ConcurrentMap<String, Short> indices = new ConcurrentHashMap<>();
+        private volatile String[] strings = new String[0];
+
+        short indexOf(@Nullable String string) {
+            if (string == null) {
+                return NULL_INDEX;
+            }
+            Short index = indices.get(string);
+            if (index != null) {
+                return index;
+            }
+            synchronized (this) {
+                index = indices.get(string);
+                if (index == null) {
+                    index = (short) strings.length;
+                    String[] strings = Arrays.copyOf(this.strings, this.strings.length + 1);
+                    strings[index] = string;
+                    this.strings = strings;
+                    indices.put(string, index);
+                }
+                return index;
+            }
+        }
+
+        @Nullable
+        String get(short index) {
+            String[] strings = this.strings;
+            return index >= 0 && index < strings.length ? strings[index] : null;
+        }
+    }
+}
@@ -19,10 +19,9 @@
 package co.elastic.apm.agent.profiler;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
-import co.elastic.apm.agent.tracer.configuration.ListValueConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
-import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 
@@ -90,6 +89,19 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.18.0]", "internal")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Integer> postProcessingThreads = ConfigurationOption.<Integer>integerOption()
+        .key("profiling_inferred_spans_post_processing_threads")
+        .configurationCategory(PROFILING_CATEGORY)
+        .dynamic(false)
+        .description("The number of threads which create inferred spans from the stack traces and activation events of a profiling session.\n" +
+            "The call trees of different profiled threads are processed in parallel.\n" +
+            "When set to `1`, the processing is done by the profiler thread itself.\n" +
+            "\n" +
+            "When set to `0`, half of the available processors are used, but at most 4.")
+        .addValidator(isInRange(0, 64))
+        .tags("added[1.45.0]")
+        .buildWithDefault(0);
+
     private final ConfigurationOption<TimeDuration> samplingInterval = TimeDurationValueConverter.durationOption("ms")
         .key("profiling_inferred_spans_sampling_interval")
         .configurationCategory(PROFILING_CATEGORY)
@@ -114,7 +126,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("0ms"));
 
     private final ConfigurationOption<List<WildcardMatcher>> includedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_included_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("If set, the agent will only create inferred spans for methods which match this list.\n" +
@@ -127,7 +139,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(WildcardMatcher.matchAllList());
 
     private final ConfigurationOption<List<WildcardMatcher>> excludedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_excluded_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("Excludes classes for which no profiler-inferred spans should be created.\n" +
@@ -240,4 +252,12 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
     public boolean isPostProcessingEnabled() {
         return postProcessingEnabled.get();
     }
+
+    public int getPostProcessingThreads() {
+        int threads = postProcessingThreads.get();
+        if (threads == 0) {
+            return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        return threads;
+    }
 }
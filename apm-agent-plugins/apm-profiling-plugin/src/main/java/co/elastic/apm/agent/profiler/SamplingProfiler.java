@@ -34,13 +34,7 @@ import co.elastic.apm.agent.tracer.configuration.CoreConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.pooling.ObjectPool;
-import com.lmax.disruptor.EventFactory;
-import com.lmax.disruptor.EventPoller;
-import com.lmax.disruptor.EventTranslatorTwoArg;
-import com.lmax.disruptor.RingBuffer;
-import com.lmax.disruptor.Sequence;
-import com.lmax.disruptor.SequenceBarrier;
-import com.lmax.disruptor.WaitStrategy;
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
 import javax.annotation.Nullable;
 import java.io.File;
@@ -54,14 +48,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
@@ -76,20 +74,19 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * </p>
  * <p>
  * The {@link #onActivation} and {@link #onDeactivation} methods are called by {@link ProfilingActivationListener}
- * which register an {@link ActivationEvent} to a {@linkplain #eventBuffer ring buffer} whenever a {@link Span}
+ * which write an {@link ActivationEvent} to the {@linkplain #activationEventLog activation event log} whenever a {@link Span}
  * gets {@link Span#activate()}d or {@link Span#deactivate()}d while a {@linkplain #profilingSessionOngoing profiling session is ongoing}.
- * A background thread consumes the {@link ActivationEvent}s and writes them to a {@linkplain #activationEventsBuffer direct buffer}
- * which is flushed to a {@linkplain #activationEventsFileChannel file}.
- * That is necessary because within a profiling session (which lasts 10s by default) there may be many more {@link ActivationEvent}s
- * than the ring buffer {@link #RING_BUFFER_SIZE can hold}.
- * The file can hold {@link #ACTIVATION_EVENTS_IN_FILE} events and each is {@link ActivationEvent#SERIALIZED_SIZE} in size.
- * This process is completely garbage free thanks to the {@link RingBuffer} acting as an object pool for {@link ActivationEvent}s.
+ * The log is a {@linkplain #activationEventsFile memory-mapped file} which is divided into segments.
+ * Each application thread appends its events to its own segment,
+ * so that recording an event boils down to a few stores on the application thread, without any hand-off to another thread.
+ * The file can hold {@link #ACTIVATION_EVENTS_IN_FILE} events and each is {@link ActivationEventLog#EVENT_SIZE} in size.
+ * This process is completely garbage free.
  * </p>
  * <p>
  * Recording stack traces:
  * </p>
  * <p>
- * The same background thread that processes the {@link ActivationEvent}s starts the wall clock profiler of async-profiler via
+ * A background thread starts the wall clock profiler of async-profiler via
  * {@link AsyncProfiler#execute(String)}.
  * After the {@link ProfilingConfiguration#getProfilingDuration()} is over it stops the profiling and starts processing the JFR file created
  * by async-profiler with {@link JfrParser}.
@@ -103,6 +100,9 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * The result of this correlation, performed by {@link #processTraces},
  * are {@link CallTree}s which are created for each thread which has seen an {@linkplain Span#activate() activation}
  * and at least one stack trace.
+ * As the call tree of a thread only depends on the events of that thread, the events are grouped by thread first.
+ * The threads are then processed independently from each other,
+ * in parallel if {@link ProfilingConfiguration#getPostProcessingThreads()} is greater than one.
  * Once {@linkplain ActivationEvent#handleDeactivationEvent(SamplingProfiler) handling the deactivation event} of the root span in a thread
  * (after which {@link ElasticApmTracer#getActive()} would return {@code null}),
  * the {@link CallTree} is {@linkplain CallTree#spanify(CallTree.Root, TraceContext) converted into regular spans}.
@@ -120,50 +120,56 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     private static final Logger logger = LoggerFactory.getLogger(SamplingProfiler.class);
     private static final int ACTIVATION_EVENTS_IN_FILE = 1_000_000;
+    private static final int MIN_ACTIVATION_EVENTS_PER_SEGMENT = 32;
+    private static final int MAX_ACTIVATION_EVENTS_PER_SEGMENT = 128;
     private static final int MAX_STACK_DEPTH = 256;
-    private static final int PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB = 10;
-    private static final int MAX_ACTIVATION_EVENTS_FILE_SIZE = ACTIVATION_EVENTS_IN_FILE * ActivationEvent.SERIALIZED_SIZE;
-    private static final int ACTIVATION_EVENTS_BUFFER_SIZE = ActivationEvent.SERIALIZED_SIZE * 4 * 1024;
-    private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> ACTIVATION_EVENT_TRANSLATOR =
-        new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
-            @Override
-            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive) {
-                event.activation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
-            }
-        };
-    private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> DEACTIVATION_EVENT_TRANSLATOR =
-        new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
-            @Override
-            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive) {
-                event.deactivation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
-            }
-        };
-    // sizeof(ActivationEvent) is 176B so the ring buffer should be around 880KiB
-    static final int RING_BUFFER_SIZE = 4 * 1024;
-
     private final ProfilingConfiguration config;
     private final CoreConfiguration coreConfig;
     private final ScheduledExecutorService scheduler;
     private final Long2ObjectHashMap<CallTree.Root> profiledThreads = new Long2ObjectHashMap<>();
-    private final RingBuffer<ActivationEvent> eventBuffer;
+    private final ActivationEventLog activationEventLog;
     private volatile boolean profilingSessionOngoing = false;
-    private final Sequence sequence;
     private final ElasticApmTracer tracer;
     private final NanoClock nanoClock;
     private final ObjectPool<CallTree.Root> rootPool;
     private final ThreadMatcher threadMatcher = new ThreadMatcher();
-    private final EventPoller<ActivationEvent> poller;
     @Nullable
     private File jfrFile;
     private boolean canDeleteJfrFile;
-    private final WriteActivationEventToFileHandler writeActivationEventToFileHandler = new WriteActivationEventToFileHandler();
     @Nullable
     private JfrParser jfrParser;
     private volatile int profilingSessions;
+    /**
+     * The events of the threads that are processed in the current invocation of {@link #processTraces()}, by thread id
+     */
+    private final Long2ObjectHashMap<ThreadEvents> threadEvents = new Long2ObjectHashMap<>();
+    private final List<ThreadEvents> threadsToProcess = new ArrayList<>();
+    private final List<ThreadEvents> recycledThreadEvents = new ArrayList<>();
+    private final AtomicInteger nextThreadToProcess = new AtomicInteger();
+    private final JfrParser.StackTraceConsumer stackTraceCollector = new JfrParser.StackTraceConsumer() {
+        @Override
+        public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
+            ThreadEvents thread = threadEvents.get(threadId);
+            // only threads with activation events or call tree roots are relevant
+            if (thread != null) {
+                thread.addStackTrace(nanoTime, stackTraceId);
+            }
+        }
+    };
+    /**
+     * One per post-processing thread, the first one is used by the profiler thread itself
+     */
+    @Nullable
+    private PostProcessor[] postProcessors;
+    @Nullable
+    private ExecutorService postProcessingExecutor;
+    /**
+     * Used by {@link #processActivationEventsUpTo(long, ActivationEvent)} which processes the events of all threads in one go
+     */
+    private final ThreadEvents sequentialThreadEvents = new ThreadEvents();
 
-    private final ByteBuffer activationEventsBuffer;
     /**
-     * Used to efficiently write {@link #activationEventsBuffer} via {@link FileChannel#write(ByteBuffer)}
+     * Backs the {@link #activationEventLog}
      */
     @Nullable
     private File activationEventsFile;
@@ -202,11 +208,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         this.coreConfig = tracer.getConfig(CoreConfiguration.class);
         this.scheduler = ExecutorUtils.createSingleThreadSchedulingDaemonPool("sampling-profiler");
         this.nanoClock = nanoClock;
-        this.eventBuffer = createRingBuffer();
-        this.sequence = new Sequence();
-        // tells the ring buffer to not override slots which have not been read yet
-        this.eventBuffer.addGatingSequences(sequence);
-        this.poller = eventBuffer.newPoller();
+        this.activationEventLog = new ActivationEventLog(MIN_ACTIVATION_EVENTS_PER_SEGMENT, MAX_ACTIVATION_EVENTS_PER_SEGMENT, ACTIVATION_EVENTS_IN_FILE / 2);
         contextForLogging = TraceContext.with64BitId(tracer);
         this.callTreePool = tracer.getObjectPoolFactory().createRecyclableObjectPool(2 * 1024, new Allocator<CallTree>() {
             @Override
@@ -222,7 +224,6 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
         });
         this.jfrFile = jfrFile;
-        activationEventsBuffer = ByteBuffer.allocateDirect(ACTIVATION_EVENTS_BUFFER_SIZE);
         this.activationEventsFile = activationEventsFile;
     }
 
@@ -251,39 +252,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (activationEventsFileChannel == null || !activationEventsFileChannel.isOpen()) {
             activationEventsFileChannel = FileChannel.open(activationEventsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
         }
-        if (activationEventsFileChannel.size() == 0) {
-            preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
-        }
-    }
-
-    // visible for benchmarks
-    public void skipToEndOfActivationEventsFile() throws IOException {
-        activationEventsFileChannel.position(activationEventsFileChannel.size());
-    }
-
-    /**
-     * Makes sure that the first blocks of the file are contiguous to provide fast sequential access
-     */
-    private static void preAllocate(FileChannel channel, int mb) throws IOException {
-        long initialPos = channel.position();
-        ByteBuffer oneKb = ByteBuffer.allocate(1024);
-        for (int i = 0; i < mb * 1024; i++) {
-            channel.write(oneKb);
-            ((Buffer) oneKb).clear();
+        if (!activationEventLog.isMapped()) {
+            activationEventLog.map(activationEventsFileChannel);
         }
-        channel.position(initialPos);
-    }
-
-    private RingBuffer<ActivationEvent> createRingBuffer() {
-        return RingBuffer.<ActivationEvent>createMultiProducer(
-            new EventFactory<ActivationEvent>() {
-                @Override
-                public ActivationEvent newInstance() {
-                    return new ActivationEvent();
-                }
-            },
-            RING_BUFFER_SIZE,
-            new NoWaitStrategy());
     }
 
     /**
@@ -295,16 +266,16 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      *
      * @param activeSpan       the span which is about to be activated
      * @param previouslyActive the span which has previously been activated
-     * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
+     * @return {@code true}, if the event could be processed, {@code false} if the activation events file is full which means the event has been discarded
      */
     public boolean onActivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive) {
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).enableProfilingCurrentThread();
             }
-            boolean success = eventBuffer.tryPublishEvent(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = activationEventLog.write(activeSpan, previouslyActive, true, nanoClock.nanoTime());
             if (!success && logger.isDebugEnabled()) {
-                logger.debug("Could not add activation event to ring buffer as no slots are available");
+                logger.debug("Could not add activation event as the activation events file is full");
             }
             return success;
         }
@@ -320,16 +291,16 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      *
      * @param activeSpan       the span which is about to be activated
      * @param previouslyActive the span which has previously been activated
-     * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
+     * @return {@code true}, if the event could be processed, {@code false} if the activation events file is full which means the event has been discarded
      */
     public boolean onDeactivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive) {
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance(config.getProfilerLibDirectory(), config.getAsyncProfilerSafeMode()).disableProfilingCurrentThread();
             }
-            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = activationEventLog.write(activeSpan, previouslyActive, false, nanoClock.nanoTime());
             if (!success && logger.isDebugEnabled()) {
-                logger.debug("Could not add deactivation event to ring buffer as no slots are available");
+                logger.debug("Could not add deactivation event as the activation events file is full");
             }
             return success;
         }
@@ -346,6 +317,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (!enabled) {
             if (jfrParser != null) {
                 jfrParser = null;
+                postProcessors = null;
             }
             if (!scheduler.isShutdown()) {
                 scheduler.schedule(this, config.getProfilingInterval().getMillis(), TimeUnit.MILLISECONDS);
@@ -414,10 +386,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             //noinspection NonAtomicOperationOnVolatileField
             profilingSessions++;
 
-            // When post-processing is disabled activation events are ignored, but we still need to invoke this method
-            // as it is the one enforcing the sampling session duration. As a side effect it will also consume
-            // residual activation events if post-processing is disabled dynamically
-            consumeActivationEventsFromRingBufferAndWriteToFile(profilingDuration);
+            // the activation events are written to the activation event log by the application threads in the meantime
+            Thread.sleep(profilingDuration.getMillis());
 
             String stopMessage = asyncProfiler.execute("stop");
             logger.debug(stopMessage);
@@ -468,37 +438,6 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         );
     }
 
-    private void consumeActivationEventsFromRingBufferAndWriteToFile(TimeDuration profilingDuration) throws Exception {
-        resetActivationEventBuffer();
-        long threshold = System.currentTimeMillis() + profilingDuration.getMillis();
-        long initialSleep = 100_000;
-        long maxSleep = 10_000_000;
-        long sleep = initialSleep;
-        while (System.currentTimeMillis() < threshold && !Thread.currentThread().isInterrupted()) {
-            if (activationEventsFileChannel.position() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
-                EventPoller.PollState poll = consumeActivationEventsFromRingBufferAndWriteToFile();
-                if (poll == EventPoller.PollState.PROCESSING) {
-                    sleep = initialSleep;
-                    // don't sleep, after consuming the events there might be new ones in the ring buffer
-                } else {
-                    if (sleep < maxSleep) {
-                        sleep *= 2;
-                    }
-                    LockSupport.parkNanos(sleep);
-                }
-            } else {
-                logger.warn("The activation events file is full. Try lowering the profiling_duration.");
-                // the file is full, sleep the rest of the profilingDuration
-                Thread.sleep(Math.max(0, threshold - System.currentTimeMillis()));
-            }
-        }
-    }
-
-    EventPoller.PollState consumeActivationEventsFromRingBufferAndWriteToFile() throws Exception {
-        createFilesIfRequired();
-        return poller.poll(writeActivationEventToFileHandler);
-    }
-
     public void processTraces() throws IOException {
         if (jfrParser == null) {
             jfrParser = new JfrParser();
@@ -508,8 +447,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
         createFilesIfRequired();
 
-        long eof = startProcessingActivationEventsFile();
-        if (eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
+        long activationEvents = startProcessingActivationEventsFile();
+        if (activationEventLog.isFull()) {
+            logger.warn("The activation events file is full. Try lowering the profiling_duration.");
+        }
+        if (activationEvents == 0 && profiledThreads.isEmpty()) {
             logger.debug("No activation events during this period. Skip processing stack traces.");
             return;
         }
@@ -517,66 +459,160 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         List<WildcardMatcher> excludedClasses = config.getExcludedClasses();
         List<WildcardMatcher> includedClasses = config.getIncludedClasses();
         if (config.isBackupDiagnosticFiles()) {
-            backupDiagnosticFiles(eof);
+            backupDiagnosticFiles();
         }
         try {
             jfrParser.parse(jfrFile, excludedClasses, includedClasses);
-            final List<StackTraceEvent> stackTraceEvents = getSortedStackTraceEvents(jfrParser);
+            collectThreadEvents(jfrParser);
+            processThreadEvents(getPostProcessors(jfrParser));
+        } finally {
             if (logger.isDebugEnabled()) {
-                logger.debug("Processing {} stack traces", stackTraceEvents.size());
+                logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
             }
-            List<StackFrame> stackFrames = new ArrayList<>();
-            ElasticApmTracer tracer = this.tracer;
-            ActivationEvent event = new ActivationEvent();
-            long inferredSpansMinDuration = getInferredSpansMinDurationNs();
-            for (StackTraceEvent stackTrace : stackTraceEvents) {
-                processActivationEventsUpTo(stackTrace.nanoTime, event, eof);
-                CallTree.Root root = profiledThreads.get(stackTrace.threadId);
-                if (root != null) {
-                    jfrParser.resolveStackTrace(stackTrace.stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
-                    if (stackFrames.size() == MAX_STACK_DEPTH) {
-                        logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
-                    }
-                    // stack frames may not contain any Java frames
-                    // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
-                    if (!stackFrames.isEmpty()) {
-                        try {
-                            root.addStackTrace(tracer, stackFrames, stackTrace.nanoTime, callTreePool, inferredSpansMinDuration);
-                        } catch (Exception e) {
-                            logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
-                                stackTrace.threadId, e.getClass(), e.getMessage());
-                            logger.debug(e.getMessage(), e);
-                            profiledThreads.remove(stackTrace.threadId);
-                        }
+            jfrParser.resetState();
+            recycleThreadEvents();
+        }
+    }
+
+    /**
+     * Groups the activation events and stack traces by thread.
+     * <p>
+     * Only stack traces of threads where at least one activation happened or that have a {@link CallTree.Root} are retained
+     * (because only those are profiled by async-profiler).
+     * For each stack trace, only its timestamp and id are retained.
+     * Stack frames are resolved when processing the thread.
+     * </p>
+     */
+    private void collectThreadEvents(JfrParser jfrParser) throws IOException {
+        for (Long2ObjectHashMap<CallTree.Root>.EntryIterator iterator = profiledThreads.entrySet().iterator(); iterator.hasNext(); ) {
+            iterator.next();
+            getThreadEvents(iterator.getLongKey()).root = iterator.getValue();
+        }
+        ActivationEventLog activationEventLog = this.activationEventLog;
+        while (activationEventLog.hasNext()) {
+            ByteBuffer event = activationEventLog.next();
+            int position = event.position();
+            getThreadEvents(event.getLong(position + ActivationEventLog.THREAD_ID_OFFSET)).addActivationEvent(position);
+        }
+        jfrParser.consumeStackTraces(stackTraceCollector);
+        if (logger.isDebugEnabled()) {
+            long stackTraces = 0;
+            for (int i = 0; i < threadsToProcess.size(); i++) {
+                stackTraces += threadsToProcess.get(i).stackTraceCount;
+            }
+            logger.debug("Processing {} stack traces of {} threads", stackTraces, threadsToProcess.size());
+        }
+    }
+
+    private ThreadEvents getThreadEvents(long threadId) {
+        ThreadEvents thread = threadEvents.get(threadId);
+        if (thread == null) {
+            thread = recycledThreadEvents.isEmpty() ? new ThreadEvents() : recycledThreadEvents.remove(recycledThreadEvents.size() - 1);
+            thread.threadId = threadId;
+            threadEvents.put(threadId, thread);
+            threadsToProcess.add(thread);
+        }
+        return thread;
+    }
+
+    private void recycleThreadEvents() {
+        for (int i = 0; i < threadsToProcess.size(); i++) {
+            ThreadEvents thread = threadsToProcess.get(i);
+            thread.resetState();
+            recycledThreadEvents.add(thread);
+        }
+        threadsToProcess.clear();
+        threadEvents.clear();
+    }
+
+    private PostProcessor[] getPostProcessors(JfrParser jfrParser) {
+        PostProcessor[] postProcessors = this.postProcessors;
+        if (postProcessors == null) {
+            int threads = config.getPostProcessingThreads();
+            postProcessors = new PostProcessor[threads];
+            for (int i = 0; i < threads; i++) {
+                postProcessors[i] = new PostProcessor(jfrParser.createStackTraceResolver());
+            }
+            if (threads > 1 && postProcessingExecutor == null) {
+                postProcessingExecutor = ExecutorUtils.createThreadDaemonPool("profiler-post-processing", threads - 1, threads - 1);
+            }
+            this.postProcessors = postProcessors;
+        }
+        return postProcessors;
+    }
+
+    /**
+     * Builds the call trees of all {@link #threadsToProcess}.
+     * <p>
+     * The call tree of a thread only depends on the activation events and stack traces of the same thread.
+     * That's why threads are processed in parallel if there is more than one {@link PostProcessor}.
+     * Each {@link PostProcessor} picks the next thread to process until there are none left.
+     * </p>
+     */
+    private void processThreadEvents(PostProcessor[] postProcessors) throws IOException {
+        nextThreadToProcess.set(0);
+        ExecutorService postProcessingExecutor = this.postProcessingExecutor;
+        List<Future<Void>> futures = Collections.emptyList();
+        if (postProcessors.length > 1 && postProcessingExecutor != null && threadsToProcess.size() > 1) {
+            // start with the busiest threads so that they don't end up being processed last
+            Collections.sort(threadsToProcess, ThreadEvents.BY_STACK_TRACE_COUNT_DESC);
+            futures = new ArrayList<>(postProcessors.length - 1);
+            for (int i = 1; i < postProcessors.length; i++) {
+                futures.add(postProcessingExecutor.submit(postProcessors[i]));
+            }
+        }
+        Throwable failure = null;
+        try {
+            postProcessors[0].call();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the call trees must not be accessed before all post processors are done
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
                     }
+                    break;
                 }
-                stackFrames.clear();
             }
-            // process all activation events that happened after the last stack trace event
-            // otherwise we may miss root deactivations
-            processActivationEventsUpTo(System.nanoTime(), event, eof);
-        } finally {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < threadsToProcess.size(); i++) {
+            ThreadEvents thread = threadsToProcess.get(i);
+            if (thread.root != null) {
+                profiledThreads.put(thread.threadId, thread.root);
+            } else {
+                profiledThreads.remove(thread.threadId);
             }
-            jfrParser.resetState();
-            resetActivationEventBuffer();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
         }
     }
 
-    private void backupDiagnosticFiles(long eof) throws IOException {
+    private void backupDiagnosticFiles() throws IOException {
         String now = String.format("%tFT%<tT.%<tL", new Date());
         Path profilerDir = Paths.get(System.getProperty("java.io.tmpdir"), "profiler");
         profilerDir.toFile().mkdir();
 
         try (FileChannel activationsFile = FileChannel.open(profilerDir.resolve(now + "-activations.dat"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            if (eof > 0) {
-                activationEventsFileChannel.transferTo(0, eof, activationsFile);
-            } else {
-                int position = activationEventsBuffer.position();
-                activationsFile.write(activationEventsBuffer);
-                activationEventsBuffer.position(position);
-            }
+            activationEventLog.writeTo(activationsFile);
         }
         Files.copy(jfrFile.toPath(), profilerDir.resolve(now + "-traces.jfr"));
     }
@@ -585,52 +621,40 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return Math.max(config.getInferredSpansMinDuration().getMillis(), coreConfig.getSpanMinDuration().getMillis()) * 1_000_000;
     }
 
-    /**
-     * Returns stack trace events of relevant threads sorted by timestamp.
-     * The events in the JFR file are not in order.
-     * Even for the same thread, a more recent event might come before an older event.
-     * In order to be able to correlate stack trace events and activation events, both need to be in order.
-     * <p>
-     * Returns only events for threads where at least one activation happened (because only those are profiled by async-profiler)
-     */
-    private List<StackTraceEvent> getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
-        final List<StackTraceEvent> stackTraceEvents = new ArrayList<>();
-        jfrParser.consumeStackTraces(new JfrParser.StackTraceConsumer() {
-            @Override
-            public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
-                stackTraceEvents.add(new StackTraceEvent(nanoTime, stackTraceId, threadId));
-            }
-        });
-        Collections.sort(stackTraceEvents);
-        return stackTraceEvents;
+    private void handleActivationEvent(ActivationEvent event, ThreadEvents thread) {
+        try {
+            event.handle(this, thread);
+        } catch (Exception e) {
+            logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
+                event.threadId, e.getClass(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+            thread.root = null;
+        }
     }
 
-    void processActivationEventsUpTo(long timestamp, long eof) throws IOException {
-        processActivationEventsUpTo(timestamp, new ActivationEvent(), eof);
+    void processActivationEventsUpTo(long timestamp) {
+        processActivationEventsUpTo(timestamp, new ActivationEvent());
     }
 
-    public void processActivationEventsUpTo(long timestamp, ActivationEvent event, long eof) throws IOException {
-        FileChannel activationEventsFileChannel = this.activationEventsFileChannel;
-        ByteBuffer buf = activationEventsBuffer;
+    public void processActivationEventsUpTo(long timestamp, ActivationEvent event) {
+        ActivationEventLog activationEventLog = this.activationEventLog;
         long previousTimestamp = 0;
-        while (buf.hasRemaining() || activationEventsFileChannel.position() < eof) {
-            if (!buf.hasRemaining()) {
-                readActivationEventsToBuffer(activationEventsFileChannel, eof, buf);
-            }
-            long eventTimestamp = peekLong(buf);
+        while (activationEventLog.hasNext()) {
+            long eventTimestamp = activationEventLog.peekTimestamp();
             if (eventTimestamp < previousTimestamp && logger.isDebugEnabled()) {
                 logger.debug("Timestamp of current activation event ({}) is lower than the one from the previous event ({})", eventTimestamp, previousTimestamp);
             }
             previousTimestamp = eventTimestamp;
             if (eventTimestamp <= timestamp) {
-                event.deserialize(buf);
-                try {
-                    event.handle(this);
-                } catch (Exception e) {
-                    logger.warn("Removing call tree for thread {} because of exception while handling activation event: {} {}",
-                        event.threadId, e.getClass(), e.getMessage());
-                    logger.debug(e.getMessage(), e);
-                    profiledThreads.remove(event.threadId);
+                event.deserialize(activationEventLog.next(), activationEventLog);
+                ThreadEvents thread = sequentialThreadEvents;
+                thread.threadId = event.threadId;
+                thread.root = profiledThreads.get(event.threadId);
+                handleActivationEvent(event, thread);
+                if (thread.root != null) {
+                    profiledThreads.put(thread.threadId, thread.root);
+                } else {
+                    profiledThreads.remove(thread.threadId);
                 }
             } else {
                 return;
@@ -638,64 +662,34 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
     }
 
-    private void readActivationEventsToBuffer(FileChannel activationEventsFileChannel, long eof, ByteBuffer byteBuffer) throws IOException {
-        Buffer buf = byteBuffer;
-        buf.clear();
-        long remaining = eof - activationEventsFileChannel.position();
-        activationEventsFileChannel.read(byteBuffer);
-        buf.flip();
-        if (remaining < buf.capacity()) {
-            buf.limit((int) remaining);
-        }
-    }
-
-    private static long peekLong(ByteBuffer buf) {
-        int pos = buf.position();
-        try {
-            return buf.getLong();
-        } finally {
-            ((Buffer) buf).position(pos);
-        }
-    }
-
-    public void resetActivationEventBuffer() throws IOException {
-        ((Buffer) activationEventsBuffer).clear();
-        if (activationEventsFileChannel != null && activationEventsFileChannel.isOpen()) {
-            activationEventsFileChannel.position(0L);
-        }
-    }
-
-    private void flushActivationEvents() throws IOException {
-        if (activationEventsBuffer.position() > 0) {
-            ((Buffer) activationEventsBuffer).flip();
-            activationEventsFileChannel.write(activationEventsBuffer);
-            ((Buffer) activationEventsBuffer).clear();
-        }
-    }
-
-    long startProcessingActivationEventsFile() throws IOException {
-        Buffer activationEventsBuffer = this.activationEventsBuffer;
-        if (activationEventsFileChannel.position() > 0) {
-            flushActivationEvents();
-            activationEventsBuffer.limit(0);
-        } else {
-            activationEventsBuffer.flip();
-        }
-        long eof = activationEventsFileChannel.position();
-        activationEventsFileChannel.position(0);
-        return eof;
+    /**
+     * Makes application threads write to a fresh part of the activation events file
+     * and prepares reading the events which have been recorded so far.
+     *
+     * @return the number of activation events to process
+     */
+    long startProcessingActivationEventsFile() {
+        return activationEventLog.startReading();
     }
 
     void copyFromFiles(Path activationEvents, Path traces) throws IOException {
-        createFilesIfRequired();
-
-        FileChannel otherActivationsChannel = FileChannel.open(activationEvents, READ);
-        activationEventsFileChannel.transferFrom(otherActivationsChannel, 0, otherActivationsChannel.size());
-        activationEventsFileChannel.position(otherActivationsChannel.size());
+        copyActivationEventsFrom(activationEvents);
         FileChannel otherTracesChannel = FileChannel.open(traces, READ);
         FileChannel.open(jfrFile.toPath(), WRITE).transferFrom(otherTracesChannel, 0, otherTracesChannel.size());
     }
 
+    /**
+     * Adds the activation events of a file written by {@link #backupDiagnosticFiles()},
+     * so that they are processed by the next invocation of {@link #processTraces()}.
+     */
+    // visible for benchmarks
+    public void copyActivationEventsFrom(Path activationEvents) throws IOException {
+        createFilesIfRequired();
+        try (FileChannel channel = FileChannel.open(activationEvents, READ)) {
+            activationEventLog.copyFrom(channel);
+        }
+    }
+
     @Override
     public void start(ElasticApmTracer tracer) {
         scheduler.submit(this);
@@ -706,6 +700,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         // cancels/interrupts the profiling thread
         // implicitly clears profiled threads
         ExecutorUtils.shutdownAndWaitTermination(scheduler);
+        if (postProcessingExecutor != null) {
+            ExecutorUtils.shutdownAndWaitTermination(postProcessingExecutor);
+        }
 
         if (activationEventsFileChannel != null) {
             activationEventsFileChannel.close();
@@ -720,6 +717,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     void setProfilingSessionOngoing(boolean profilingSessionOngoing) {
+        if (profilingSessionOngoing) {
+            try {
+                // the activation event log has to be mapped before application threads can write to it
+                createFilesIfRequired();
+            } catch (IOException e) {
+                logger.error("unable to initialize profiling files", e);
+            }
+        }
         this.profilingSessionOngoing = profilingSessionOngoing;
         if (!profilingSessionOngoing) {
             clearProfiledThreads();
@@ -740,20 +745,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return profiledThreads.get(Thread.currentThread().getId());
     }
 
-    void clear() throws IOException {
-        // consume all remaining events from the ring buffer
-        try {
-            poller.poll(new EventPoller.Handler<ActivationEvent>() {
-                @Override
-                public boolean onEvent(ActivationEvent event, long sequence, boolean endOfBatch) {
-                    SamplingProfiler.this.sequence.set(sequence);
-                    return true;
-                }
-            });
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        resetActivationEventBuffer();
+    void clear() {
+        activationEventLog.clear();
         profiledThreads.clear();
         callTreePool.clear();
         rootPool.clear();
@@ -764,51 +757,215 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
     // --
 
-    public static class StackTraceEvent implements Comparable<StackTraceEvent> {
-        private final long nanoTime;
-        private final long stackTraceId;
-        private final long threadId;
+    /**
+     * The activation events and stack traces of a single thread that are processed in one invocation of {@link #processTraces()}
+     */
+    private static class ThreadEvents implements Recyclable {
+        private static final Comparator<ThreadEvents> BY_STACK_TRACE_COUNT_DESC = new Comparator<ThreadEvents>() {
+            @Override
+            public int compare(ThreadEvents o1, ThreadEvents o2) {
+                return o2.stackTraceCount < o1.stackTraceCount ? -1 : (o2.stackTraceCount == o1.stackTraceCount ? 0 : 1);
+            }
+        };
+        private static final int INITIAL_CAPACITY = 16;
+        /**
+         * Avoids retaining the memory of an exceptionally busy thread for the following profiling sessions
+         */
+        private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
 
-        private StackTraceEvent(long nanoTime, long stackTraceId, long threadId) {
-            this.nanoTime = nanoTime;
-            this.stackTraceId = stackTraceId;
-            this.threadId = threadId;
+        private long threadId;
+        @Nullable
+        private CallTree.Root root;
+        /**
+         * The positions of the activation events within the {@link ActivationEventLog}, ordered by timestamp
+         */
+        private int[] activationEvents = new int[INITIAL_CAPACITY];
+        private int activationEventCount;
+        private long[] stackTraceTimestamps = new long[INITIAL_CAPACITY];
+        private long[] stackTraceIds = new long[INITIAL_CAPACITY];
+        private int stackTraceCount;
+
+        private void addActivationEvent(int position) {
+            if (activationEventCount == activationEvents.length) {
+                activationEvents = Arrays.copyOf(activationEvents, activationEventCount * 2);
+            }
+            activationEvents[activationEventCount++] = position;
         }
 
-        public long getThreadId() {
-            return threadId;
+        private void addStackTrace(long nanoTime, long stackTraceId) {
+            if (stackTraceCount == stackTraceTimestamps.length) {
+                stackTraceTimestamps = Arrays.copyOf(stackTraceTimestamps, stackTraceCount * 2);
+                stackTraceIds = Arrays.copyOf(stackTraceIds, stackTraceCount * 2);
+            }
+            stackTraceTimestamps[stackTraceCount] = nanoTime;
+            stackTraceIds[stackTraceCount] = stackTraceId;
+            stackTraceCount++;
         }
 
-        public long getNanoTime() {
-            return nanoTime;
+        /**
+         * The events in the JFR file are not in order.
+         * Even for the same thread, a more recent event might come before an older event.
+         * In order to be able to correlate stack trace events and activation events, both need to be in order.
+         * <p>
+         * As the stack traces are mostly in order already, this is an insertion sort for the common case,
+         * which falls back to a merge sort if there are too many out-of-order events.
+         * </p>
+         */
+        private void sortStackTraces() {
+            long[] timestamps = stackTraceTimestamps;
+            long[] ids = stackTraceIds;
+            int moves = 0;
+            for (int i = 1; i < stackTraceCount; i++) {
+                long timestamp = timestamps[i];
+                long id = ids[i];
+                int j = i - 1;
+                while (j >= 0 && timestamps[j] > timestamp) {
+                    timestamps[j + 1] = timestamps[j];
+                    ids[j + 1] = ids[j];
+                    j--;
+                }
+                timestamps[j + 1] = timestamp;
+                ids[j + 1] = id;
+                moves += i - 1 - j;
+                if (moves > stackTraceCount) {
+                    mergeSort(timestamps, ids, stackTraceCount);
+                    return;
+                }
+            }
         }
 
-        public long getStackTraceId() {
-            return stackTraceId;
+        private static void mergeSort(long[] timestamps, long[] ids, int length) {
+            long[] srcTimestamps = timestamps;
+            long[] srcIds = ids;
+            long[] dstTimestamps = new long[length];
+            long[] dstIds = new long[length];
+            for (int width = 1; width < length; width *= 2) {
+                for (int low = 0; low < length; low += 2 * width) {
+                    int mid = Math.min(low + width, length);
+                    int high = Math.min(low + 2 * width, length);
+                    int left = low;
+                    int right = mid;
+                    for (int i = low; i < high; i++) {
+                        // taking from the left on equal timestamps keeps the sort stable
+                        if (left < mid && (right >= high || srcTimestamps[left] <= srcTimestamps[right])) {
+                            dstTimestamps[i] = srcTimestamps[left];
+                            dstIds[i] = srcIds[left++];
+                        } else {
+                            dstTimestamps[i] = srcTimestamps[right];
+                            dstIds[i] = srcIds[right++];
+                        }
+                    }
+                }
+                long[] tmp = srcTimestamps;
+                srcTimestamps = dstTimestamps;
+                dstTimestamps = tmp;
+                tmp = srcIds;
+                srcIds = dstIds;
+                dstIds = tmp;
+            }
+            if (srcTimestamps != timestamps) {
+                System.arraycopy(srcTimestamps, 0, timestamps, 0, length);
+                System.arraycopy(srcIds, 0, ids, 0, length);
+            }
+        }
+
+        @Override
+        public void resetState() {
+            threadId = 0;
+            root = null;
+            activationEventCount = 0;
+            stackTraceCount = 0;
+            if (activationEvents.length > MAX_RETAINED_CAPACITY) {
+                activationEvents = new int[INITIAL_CAPACITY];
+            }
+            if (stackTraceTimestamps.length > MAX_RETAINED_CAPACITY) {
+                stackTraceTimestamps = new long[INITIAL_CAPACITY];
+                stackTraceIds = new long[INITIAL_CAPACITY];
+            }
+        }
+    }
+
+    /**
+     * Builds the call trees of the {@link #threadsToProcess}, one thread at a time.
+     * <p>
+     * Each post processor has its own state so that multiple post processors can run concurrently.
+     * </p>
+     */
+    private class PostProcessor implements Callable<Void> {
+        private final ActivationEvent event = new ActivationEvent();
+        private final List<StackFrame> stackFrames = new ArrayList<>();
+        private final JfrParser.StackTraceResolver stackTraceResolver;
+        @Nullable
+        private ByteBuffer activationEvents;
+
+        private PostProcessor(JfrParser.StackTraceResolver stackTraceResolver) {
+            this.stackTraceResolver = stackTraceResolver;
         }
 
         @Override
-        public int compareTo(StackTraceEvent o) {
-            return Long.compare(nanoTime, o.nanoTime);
+        public Void call() throws IOException {
+            if (activationEvents == null) {
+                activationEvents = activationEventLog.createReadBuffer();
+            }
+            List<ThreadEvents> threadsToProcess = SamplingProfiler.this.threadsToProcess;
+            for (int i = nextThreadToProcess.getAndIncrement(); i < threadsToProcess.size(); i = nextThreadToProcess.getAndIncrement()) {
+                process(threadsToProcess.get(i), activationEvents);
+            }
+            return null;
+        }
+
+        private void process(ThreadEvents thread, ByteBuffer activationEvents) throws IOException {
+            thread.sortStackTraces();
+            ElasticApmTracer tracer = SamplingProfiler.this.tracer;
+            long inferredSpansMinDuration = getInferredSpansMinDurationNs();
+            int activationEventIndex = 0;
+            for (int i = 0; i < thread.stackTraceCount; i++) {
+                long nanoTime = thread.stackTraceTimestamps[i];
+                activationEventIndex = processActivationEventsUpTo(thread, activationEventIndex, nanoTime, activationEvents);
+                CallTree.Root root = thread.root;
+                if (root != null) {
+                    stackTraceResolver.resolveStackTrace(thread.stackTraceIds[i], true, stackFrames, MAX_STACK_DEPTH);
+                    if (stackFrames.size() == MAX_STACK_DEPTH) {
+                        logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
+                    }
+                    // stack frames may not contain any Java frames
+                    // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
+                    if (!stackFrames.isEmpty()) {
+                        try {
+                            root.addStackTrace(tracer, stackFrames, nanoTime, callTreePool, inferredSpansMinDuration);
+                        } catch (Exception e) {
+                            logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
+                                thread.threadId, e.getClass(), e.getMessage());
+                            logger.debug(e.getMessage(), e);
+                            thread.root = null;
+                        }
+                    }
+                }
+                stackFrames.clear();
+            }
+            // process all activation events that happened after the last stack trace event
+            // otherwise we may miss root deactivations
+            processActivationEventsUpTo(thread, activationEventIndex, Long.MAX_VALUE, activationEvents);
+        }
+
+        /**
+         * @return the index of the first activation event that has not been processed
+         */
+        private int processActivationEventsUpTo(ThreadEvents thread, int index, long timestamp, ByteBuffer activationEvents) {
+            for (; index < thread.activationEventCount; index++) {
+                int position = thread.activationEvents[index];
+                if (activationEvents.getLong(position) > timestamp) {
+                    break;
+                }
+                ((Buffer) activationEvents).position(position);
+                event.deserialize(activationEvents, activationEventLog);
+                handleActivationEvent(event, thread);
+            }
+            return index;
         }
     }
 
     private static class ActivationEvent {
-        public static final int SERIALIZED_SIZE =
-            Long.SIZE / Byte.SIZE + // timestamp
-                Short.SIZE / Byte.SIZE + // serviceName index
-                Short.SIZE / Byte.SIZE + // serviceVersion index
-                TraceContext.SERIALIZED_LENGTH + // traceContextBuffer
-                TraceContext.SERIALIZED_LENGTH + // previousContextBuffer
-                1 + // rootContext
-                Long.SIZE / Byte.SIZE + // threadId
-                1; // activation
-
-        private static final Map<String, Short> serviceNameMap = new HashMap<>();
-        private static final Map<Short, String> serviceNameBackMap = new HashMap<>();
-
-        private static final Map<String, Short> serviceVersionMap = new HashMap<>();
-        private static final Map<Short, String> serviceVersionBackMap = new HashMap<>();
 
         private long timestamp;
         @Nullable
@@ -821,45 +978,22 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         private long threadId;
         private boolean activation;
 
-        public void activation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime);
-        }
-
-        public void deactivation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, false, previousContext != null ? previousContext : null, nanoTime);
-        }
-
-        private void set(TraceContext traceContext, long threadId, boolean activation, @Nullable TraceContext previousContext, long nanoTime) {
-            traceContext.serialize(traceContextBuffer);
-            this.threadId = threadId;
-            this.activation = activation;
-            this.serviceName = traceContext.getServiceName();
-            this.serviceVersion = traceContext.getServiceVersion();
-            if (previousContext != null) {
-                previousContext.serialize(previousContextBuffer);
-                rootContext = false;
-            } else {
-                rootContext = true;
-            }
-            this.timestamp = nanoTime;
-        }
-
-        public void handle(SamplingProfiler samplingProfiler) {
+        public void handle(SamplingProfiler samplingProfiler, ThreadEvents thread) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Handling event timestamp={} root={} threadId={} activation={}", timestamp, rootContext, threadId, activation);
             }
             if (activation) {
-                handleActivationEvent(samplingProfiler);
+                handleActivationEvent(samplingProfiler, thread);
             } else {
-                handleDeactivationEvent(samplingProfiler);
+                handleDeactivationEvent(samplingProfiler, thread);
             }
         }
 
-        private void handleActivationEvent(SamplingProfiler samplingProfiler) {
+        private void handleActivationEvent(SamplingProfiler samplingProfiler, ThreadEvents thread) {
             if (rootContext) {
-                startProfiling(samplingProfiler);
+                startProfiling(samplingProfiler, thread);
             } else {
-                CallTree.Root root = samplingProfiler.profiledThreads.get(threadId);
+                CallTree.Root root = thread.root;
                 if (root != null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Handling activation for thread {}", threadId);
@@ -871,13 +1005,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
         }
 
-        private void startProfiling(SamplingProfiler samplingProfiler) {
+        private void startProfiling(SamplingProfiler samplingProfiler, ThreadEvents thread) {
             CallTree.Root root = CallTree.createRoot(samplingProfiler.rootPool, traceContextBuffer, serviceName, serviceVersion, timestamp);
             if (logger.isDebugEnabled()) {
-                logger.debug("Create call tree ({}) for thread {}", deserialize(samplingProfiler, traceContextBuffer), threadId);
+                logger.debug("Create call tree ({}) for thread {}", toString(samplingProfiler, traceContextBuffer), threadId);
             }
 
-            CallTree.Root orphaned = samplingProfiler.profiledThreads.put(threadId, root);
+            CallTree.Root orphaned = thread.root;
+            thread.root = root;
             if (orphaned != null) {
                 if (logger.isDebugEnabled()) {
                     logger.warn("Illegal state when stopping profiling for thread {}: orphaned root", threadId);
@@ -886,16 +1021,19 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
         }
 
-        private TraceContext deserialize(SamplingProfiler samplingProfiler, byte[] traceContextBuffer) {
-            samplingProfiler.contextForLogging.deserialize(traceContextBuffer, null, null);
-            return samplingProfiler.contextForLogging;
+        private String toString(SamplingProfiler samplingProfiler, byte[] traceContextBuffer) {
+            // post processors may log concurrently
+            synchronized (samplingProfiler.contextForLogging) {
+                samplingProfiler.contextForLogging.deserialize(traceContextBuffer, null, null);
+                return samplingProfiler.contextForLogging.toString();
+            }
         }
 
-        private void handleDeactivationEvent(SamplingProfiler samplingProfiler) {
+        private void handleDeactivationEvent(SamplingProfiler samplingProfiler, ThreadEvents thread) {
             if (rootContext) {
-                stopProfiling(samplingProfiler);
+                stopProfiling(samplingProfiler, thread);
             } else {
-                CallTree.Root root = samplingProfiler.profiledThreads.get(threadId);
+                CallTree.Root root = thread.root;
                 if (root != null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Handling deactivation for thread {}", threadId);
@@ -907,13 +1045,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
         }
 
-        private void stopProfiling(SamplingProfiler samplingProfiler) {
-            CallTree.Root callTree = samplingProfiler.profiledThreads.get(threadId);
+        private void stopProfiling(SamplingProfiler samplingProfiler, ThreadEvents thread) {
+            CallTree.Root callTree = thread.root;
             if (callTree != null && callTree.getRootContext().traceIdAndIdEquals(traceContextBuffer)) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug("End call tree ({}) for thread {}", deserialize(samplingProfiler, traceContextBuffer), threadId);
+                    logger.debug("End call tree ({}) for thread {}", toString(samplingProfiler, traceContextBuffer), threadId);
                 }
-                samplingProfiler.profiledThreads.remove(threadId);
+                thread.root = null;
                 try {
                     callTree.end(samplingProfiler.callTreePool, samplingProfiler.getInferredSpansMinDurationNs());
                     int createdSpans = callTree.spanify();
@@ -930,81 +1068,15 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
         }
 
-        public void serialize(ByteBuffer buf) {
-            buf.putLong(timestamp);
-            buf.putShort(getServiceNameIndex());
-            buf.putShort(getServiceVersionIndex());
-            buf.put(traceContextBuffer);
-            buf.put(previousContextBuffer);
-            buf.put(rootContext ? (byte) 1 : (byte) 0);
-            buf.putLong(threadId);
-            buf.put(activation ? (byte) 1 : (byte) 0);
-        }
-
-        public void deserialize(ByteBuffer buf) {
+        public void deserialize(ByteBuffer buf, ActivationEventLog activationEventLog) {
             timestamp = buf.getLong();
-            serviceName = serviceNameBackMap.get(buf.getShort());
-            serviceVersion = serviceVersionBackMap.get(buf.getShort());
+            serviceName = activationEventLog.getServiceName(buf.getShort());
+            serviceVersion = activationEventLog.getServiceVersion(buf.getShort());
             buf.get(traceContextBuffer);
             buf.get(previousContextBuffer);
             rootContext = buf.get() == 1;
             threadId = buf.getLong();
             activation = buf.get() == 1;
         }
-
-        private short getServiceNameIndex() {
-            Short index = serviceNameMap.get(serviceName);
-            if (index == null) {
-                index = (short) serviceNameMap.size();
-                serviceNameMap.put(serviceName, index);
-                serviceNameBackMap.put(index, serviceName);
-            }
-            return index;
-        }
-
-        private short getServiceVersionIndex() {
-            Short index = serviceVersionMap.get(serviceVersion);
-            if (index == null) {
-                index = (short) serviceVersionMap.size();
-                serviceVersionMap.put(serviceVersion, index);
-                serviceVersionBackMap.put(index, serviceVersion);
-            }
-            return index;
-        }
-    }
-
-    /**
-     * Does not wait but immediately returns the highest sequence which is available for read
-     * We never want to wait until new elements are available,
-     * we just want to process all available events
-     */
-    private static class NoWaitStrategy implements WaitStrategy {
-
-        @Override
-        public long waitFor(long sequence, Sequence cursor, Sequence dependentSequence, SequenceBarrier barrier) {
-            return dependentSequence.get();
-        }
-
-        @Override
-        public void signalAllWhenBlocking() {
-        }
-    }
-
-    // extracting to a class instead of instantiating an anonymous inner class makes a huge difference in allocations
-    private class WriteActivationEventToFileHandler implements EventPoller.Handler<ActivationEvent> {
-        @Override
-        public boolean onEvent(ActivationEvent event, long sequence, boolean endOfBatch) throws IOException {
-            if (endOfBatch) {
-                SamplingProfiler.this.sequence.set(sequence);
-            }
-            if (activationEventsFileChannel.size() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
-                event.serialize(activationEventsBuffer);
-                if (!activationEventsBuffer.hasRemaining()) {
-                    flushActivationEvents();
-                }
-                return true;
-            }
-            return false;
-        }
     }
 }
@@ -66,6 +66,10 @@ class BufferedFile implements Recyclable {
     private boolean wholeFileInBuffer;
     @Nullable
     private FileChannel fileChannel;
+    /**
+     * Whether the {@link #fileChannel} has been opened by this instance, as opposed to being shared with another one
+     */
+    private boolean ownsFileChannel;
 
     /**
      * @param bigBuffer   the buffer to be used to read the whole file if the file fits into it
@@ -85,6 +89,7 @@ class BufferedFile implements Recyclable {
      */
     public void setFile(File file) throws IOException {
         fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ownsFileChannel = true;
         if (fileChannel.size() <= bigBuffer.capacity()) {
             buffer = bigBuffer;
             read(0, bigBuffer.capacity());
@@ -96,6 +101,33 @@ class BufferedFile implements Recyclable {
         }
     }
 
+    /**
+     * Reads from the same file as the provided instance.
+     * If the other instance holds the whole file in its buffer, this instance reads from the same memory.
+     * <p>
+     * Both instances can be used concurrently, as all reads from the file are positional.
+     * This instance must be {@linkplain #resetState() reset} before the other one.
+     * </p>
+     *
+     * @param other the instance to share the file with
+     */
+    public void setFile(BufferedFile other) {
+        if (other.fileChannel == null) {
+            throw new IllegalStateException("setFile has not been called on the other instance yet");
+        }
+        fileChannel = other.fileChannel;
+        ownsFileChannel = false;
+        if (other.wholeFileInBuffer) {
+            buffer = other.buffer.duplicate();
+            wholeFileInBuffer = true;
+        } else {
+            buffer = smallBuffer;
+            Buffer buffer = this.buffer;
+            buffer.clear();
+            buffer.flip();
+        }
+    }
+
     /**
      * Returns the position of the file
      *
@@ -295,9 +327,11 @@ class BufferedFile implements Recyclable {
         buffer.clear();
         offset = 0;
         wholeFileInBuffer = false;
-        try {
-            fileChannel.close();
-        } catch (IOException ignore) {
+        if (ownsFileChannel) {
+            try {
+                fileChannel.close();
+            } catch (IOException ignore) {
+            }
         }
         fileChannel = null;
         this.buffer = null;
@@ -309,9 +343,9 @@ class BufferedFile implements Recyclable {
         }
         Buffer buffer = this.buffer;
         buffer.clear();
-        fileChannel.position(offset);
         buffer.limit(limit);
-        fileChannel.read(this.buffer);
+        // positional reads don't change the channel's position which may be shared with other instances
+        fileChannel.read(this.buffer, offset);
         buffer.flip();
         this.offset = offset;
     }
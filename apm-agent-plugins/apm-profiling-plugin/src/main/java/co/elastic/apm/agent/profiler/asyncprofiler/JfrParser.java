@@ -21,9 +21,7 @@ package co.elastic.apm.agent.profiler.asyncprofiler;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.profiler.collections.Int2IntHashMap;
-import co.elastic.apm.agent.profiler.collections.Int2ObjectHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
-import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
@@ -35,8 +33,8 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Parses the binary JFR file created by async-profiler.
@@ -46,6 +44,12 @@ import java.util.Set;
  * Most data structures can be reused by first {@linkplain #resetState() resetting the state} and then {@linkplain #parse(File, List, List) parsing}
  * another file.
  * </p>
+ * <p>
+ * Parsing only indexes the positions of stack traces, methods, classes and symbols.
+ * Stack frames are resolved on demand and kept in a bounded cache.
+ * In order to resolve stack traces from multiple threads concurrently,
+ * each thread has to use its own {@link StackTraceResolver}.
+ * </p>
  */
 public class JfrParser implements Recyclable {
 
@@ -56,21 +60,26 @@ public class JfrParser implements Recyclable {
     private static final int BIG_FILE_BUFFER_SIZE = 5 * 1024 * 1024;
     private static final int SMALL_FILE_BUFFER_SIZE = 4 * 1024;
     private static final String SYMBOL_EXCLUDED = "3x cluded";
-    private static final String SYMBOL_NULL = "n u11";
     private final static StackFrame FRAME_EXCLUDED = new StackFrame("excluded", "excluded");
-    private final static StackFrame FRAME_NULL = new StackFrame("null", "null");
+    private static final int FRAME_CACHE_SIZE = 16 * 1024;
+    private static final int CLASS_NAME_CACHE_SIZE = 4 * 1024;
 
     private final BufferedFile bufferedFile;
     private final Int2IntHashMap classIdToClassNameSymbolId = new Int2IntHashMap(-1);
     private final Int2IntHashMap symbolIdToPos = new Int2IntHashMap(-1);
-    private final Int2ObjectHashMap<String> symbolIdToString = new Int2ObjectHashMap<String>();
     private final Int2IntHashMap stackTraceIdToFilePositions = new Int2IntHashMap(-1);
     private final Long2LongHashMap nativeTidToJavaTid = new Long2LongHashMap(-1);
-    private final Long2ObjectHashMap<StackFrame> frameIdToFrame = new Long2ObjectHashMap<StackFrame>();
     private final Long2LongHashMap frameIdToMethodSymbol = new Long2LongHashMap(-1);
     private final Long2LongHashMap frameIdToClassId = new Long2LongHashMap(-1);
+    private final SymbolCache<StackFrame> frameCache = new SymbolCache<>(FRAME_CACHE_SIZE);
+    /**
+     * Caches class names by their symbol id, or {@link #SYMBOL_EXCLUDED} if the class is excluded
+     */
+    private final SymbolCache<String> classNameCache = new SymbolCache<>(CLASS_NAME_CACHE_SIZE);
     // used to resolve a symbol with minimal allocations
     private final StringBuilder symbolBuilder = new StringBuilder();
+    private final StackTraceResolver stackTraceResolver;
+    private final List<StackTraceResolver> forkedStackTraceResolvers = new CopyOnWriteArrayList<>();
     private long eventsOffset;
     private long metadataOffset;
     @Nullable
@@ -86,6 +95,19 @@ public class JfrParser implements Recyclable {
 
     JfrParser(ByteBuffer bigBuffer, ByteBuffer smallBuffer) {
         bufferedFile = new BufferedFile(bigBuffer, smallBuffer);
+        stackTraceResolver = new StackTraceResolver(bufferedFile, false);
+    }
+
+    /**
+     * Creates a {@link StackTraceResolver} that can be used concurrently to the ones of other threads.
+     * The resolver is bound to this parser and can be reused after this parser has been {@linkplain #resetState() reset}.
+     *
+     * @return a new {@link StackTraceResolver}
+     */
+    public StackTraceResolver createStackTraceResolver() {
+        StackTraceResolver resolver = new StackTraceResolver(new BufferedFile(ByteBuffer.allocate(0), ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE)), true);
+        forkedStackTraceResolvers.add(resolver);
+        return resolver;
     }
 
     /**
@@ -211,7 +233,6 @@ public class JfrParser implements Recyclable {
                     int classId = (int) bufferedFile.getUnsafeLong();
                     // symbol ids are incrementing integers, no way there are more than 2 billion distinct ones
                     int methodNameSymbolId = (int) bufferedFile.getUnsafeLong();
-                    frameIdToFrame.put(id, FRAME_NULL);
                     frameIdToClassId.put(id, classId);
                     frameIdToMethodSymbol.put(id, methodNameSymbolId);
                     bufferedFile.getUnsafeLong(); // signature
@@ -225,7 +246,6 @@ public class JfrParser implements Recyclable {
                     int symbolId = (int) bufferedFile.getLong();
                     int pos = (int) bufferedFile.position();
                     symbolIdToPos.put(symbolId, pos);
-                    symbolIdToString.put(symbolId, SYMBOL_NULL);
                     skipString();
                 }
                 break;
@@ -292,12 +312,14 @@ public class JfrParser implements Recyclable {
     /**
      * Resolves the stack trace with the given {@code stackTraceId}.
      * <p>
-     * Note that his allocates strings for symbols in case a stack frame has not already been resolved for the current JFR file yet.
-     * These strings are currently not cached so this can create some GC pressure.
+     * Note that his allocates strings for symbols in case a stack frame is not in the bounded frame cache.
      * </p>
      * <p>
      * Excludes frames based on the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
      * </p>
+     * <p>
+     * Must not be called concurrently, use {@link #createStackTraceResolver()} to resolve stack traces from multiple threads.
+     * </p>
      *
      * @param stackTraceId   The id of the stack traced.
      *                       Used to look up the position of the file in which the given stack trace is stored via {@link #stackTraceIdToFilePositions}.
@@ -311,95 +333,24 @@ public class JfrParser implements Recyclable {
      * @throws IOException if there is an error reading in current buffer
      */
     public void resolveStackTrace(long stackTraceId, boolean onlyJavaFrames, List<StackFrame> stackFrames, int maxStackDepth) throws IOException {
-        if (!bufferedFile.isSet()) {
-            throw new IllegalStateException("getStackTrace was called before parse");
-        }
-        long position = bufferedFile.position();
-        bufferedFile.position(stackTraceIdToFilePositions.get((int) stackTraceId));
-        bufferedFile.ensureRemaining(13);
-        long stackTraceIdFromFile = bufferedFile.getUnsafeLong();
-        assert stackTraceId == stackTraceIdFromFile;
-        bufferedFile.getUnsafe(); // truncated
-        int numFrames = bufferedFile.getUnsafeInt();
-        for (int i = 0; i < numFrames; i++) {
-            bufferedFile.ensureRemaining(13);
-            long frameId = bufferedFile.getUnsafeLong();
-            bufferedFile.getUnsafeInt(); // bci (always set to 0 by async-profiler)
-            byte frameType = bufferedFile.getUnsafe();
-            addFrameIfIncluded(stackFrames, onlyJavaFrames, frameId, frameType);
-            if (stackFrames.size() > maxStackDepth) {
-                stackFrames.remove(0);
-            }
-        }
-        bufferedFile.position(position);
-    }
-
-    private void addFrameIfIncluded(List<StackFrame> stackFrames, boolean onlyJavaFrames, long frameId, byte frameType) throws IOException {
-        if (!onlyJavaFrames || isJavaFrameType(frameType)) {
-            StackFrame stackFrame = resolveStackFrame(frameId);
-            if (stackFrame != FRAME_EXCLUDED) {
-                stackFrames.add(stackFrame);
-            }
-        }
+        stackTraceResolver.resolveStackTrace(stackTraceId, onlyJavaFrames, stackFrames, maxStackDepth);
     }
 
     private boolean isJavaFrameType(byte frameType) {
         return isJavaFrameType[frameType];
     }
 
-    private String resolveSymbol(int id, boolean classSymbol) throws IOException {
-        String symbol = symbolIdToString.get(id);
-        if (symbol != SYMBOL_NULL) {
-            return symbol;
-        }
-        StringBuilder symbolBuilder = resolveSymbolBuilder(symbolIdToPos.get(id), classSymbol);
-        if (classSymbol && !isClassIncluded(symbolBuilder)) {
-            symbol = SYMBOL_EXCLUDED;
-        } else {
-            symbol = symbolBuilder.toString();
-        }
-        symbolIdToString.put(id, symbol);
-        return symbol;
-    }
-
-    private StringBuilder resolveSymbolBuilder(int pos, boolean replaceSlashWithDot) throws IOException {
-        long currentPos = bufferedFile.position();
-        bufferedFile.position(pos);
-        try {
-            return readUtf8String(replaceSlashWithDot);
-        } finally {
-            bufferedFile.position(currentPos);
-        }
-    }
-
     private boolean isClassIncluded(CharSequence className) {
         return WildcardMatcher.isAnyMatch(includedClasses, className) && WildcardMatcher.isNoneMatch(excludedClasses, className);
     }
 
-    private StackFrame resolveStackFrame(long frameId) throws IOException {
-        StackFrame stackFrame = frameIdToFrame.get(frameId);
-        if (stackFrame != FRAME_NULL) {
-            return stackFrame;
-        }
-        String className = resolveSymbol(classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId)), true);
-        if (className == SYMBOL_EXCLUDED) {
-            stackFrame = FRAME_EXCLUDED;
-        } else {
-            String method = resolveSymbol((int) frameIdToMethodSymbol.get(frameId), false);
-            stackFrame = new StackFrame(className, Objects.requireNonNull(method));
-        }
-        frameIdToFrame.put(frameId, stackFrame);
-        return stackFrame;
-    }
-
     private StringBuilder readUtf8String() throws IOException {
-        return readUtf8String(false);
+        return readUtf8String(bufferedFile, symbolBuilder, false);
     }
 
-    private StringBuilder readUtf8String(boolean replaceSlashWithDot) throws IOException {
+    private static StringBuilder readUtf8String(BufferedFile bufferedFile, StringBuilder symbolBuilder, boolean replaceSlashWithDot) throws IOException {
         int size = bufferedFile.getUnsignedShort();
         bufferedFile.ensureRemaining(size);
-        StringBuilder symbolBuilder = this.symbolBuilder;
         symbolBuilder.setLength(0);
         for (int i = 0; i < size; i++) {
             char c = (char) bufferedFile.getUnsafe();
@@ -414,20 +365,134 @@ public class JfrParser implements Recyclable {
 
     @Override
     public void resetState() {
+        for (StackTraceResolver resolver : forkedStackTraceResolvers) {
+            resolver.resetState();
+        }
         bufferedFile.resetState();
         eventsOffset = 0;
         metadataOffset = 0;
         isJavaFrameType = null;
         classIdToClassNameSymbolId.clear();
         stackTraceIdToFilePositions.clear();
-        frameIdToFrame.clear();
         frameIdToMethodSymbol.clear();
         frameIdToClassId.clear();
+        frameCache.clear();
+        classNameCache.clear();
         symbolBuilder.setLength(0);
         excludedClasses = null;
         includedClasses = null;
         symbolIdToPos.clear();
-        symbolIdToString.clear();
+    }
+
+    /**
+     * Resolves stack traces of the JFR file which is currently {@linkplain #parse(File, List, List) parsed}.
+     * <p>
+     * An instance must only be used by one thread at a time,
+     * but different instances of the same parser can be used concurrently.
+     * </p>
+     */
+    public class StackTraceResolver implements Recyclable {
+
+        private final BufferedFile bufferedFile;
+        /**
+         * Whether the {@link #bufferedFile} has its own buffer and has to be attached to the file of the parser
+         */
+        private final boolean forked;
+        private final StringBuilder symbolBuilder = new StringBuilder();
+
+        private StackTraceResolver(BufferedFile bufferedFile, boolean forked) {
+            this.bufferedFile = bufferedFile;
+            this.forked = forked;
+        }
+
+        /**
+         * Same as {@link JfrParser#resolveStackTrace(long, boolean, List, int)}
+         */
+        public void resolveStackTrace(long stackTraceId, boolean onlyJavaFrames, List<StackFrame> stackFrames, int maxStackDepth) throws IOException {
+            if (!JfrParser.this.bufferedFile.isSet()) {
+                throw new IllegalStateException("getStackTrace was called before parse");
+            }
+            BufferedFile bufferedFile = this.bufferedFile;
+            if (forked && !bufferedFile.isSet()) {
+                bufferedFile.setFile(JfrParser.this.bufferedFile);
+            }
+            long position = bufferedFile.position();
+            bufferedFile.position(stackTraceIdToFilePositions.get((int) stackTraceId));
+            bufferedFile.ensureRemaining(13);
+            long stackTraceIdFromFile = bufferedFile.getUnsafeLong();
+            assert stackTraceId == stackTraceIdFromFile;
+            bufferedFile.getUnsafe(); // truncated
+            int numFrames = bufferedFile.getUnsafeInt();
+            for (int i = 0; i < numFrames; i++) {
+                bufferedFile.ensureRemaining(13);
+                long frameId = bufferedFile.getUnsafeLong();
+                bufferedFile.getUnsafeInt(); // bci (always set to 0 by async-profiler)
+                byte frameType = bufferedFile.getUnsafe();
+                addFrameIfIncluded(stackFrames, onlyJavaFrames, frameId, frameType);
+                if (stackFrames.size() > maxStackDepth) {
+                    stackFrames.remove(0);
+                }
+            }
+            bufferedFile.position(position);
+        }
+
+        private void addFrameIfIncluded(List<StackFrame> stackFrames, boolean onlyJavaFrames, long frameId, byte frameType) throws IOException {
+            if (!onlyJavaFrames || isJavaFrameType(frameType)) {
+                StackFrame stackFrame = resolveStackFrame(frameId);
+                if (stackFrame != FRAME_EXCLUDED) {
+                    stackFrames.add(stackFrame);
+                }
+            }
+        }
+
+        private StackFrame resolveStackFrame(long frameId) throws IOException {
+            StackFrame stackFrame = frameCache.get(frameId);
+            if (stackFrame != null) {
+                return stackFrame;
+            }
+            String className = resolveClassName(classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId)));
+            if (className == SYMBOL_EXCLUDED) {
+                stackFrame = FRAME_EXCLUDED;
+            } else {
+                String method = resolveSymbol((int) frameIdToMethodSymbol.get(frameId), false).toString();
+                stackFrame = new StackFrame(className, method);
+            }
+            frameCache.put(frameId, stackFrame);
+            return stackFrame;
+        }
+
+        private String resolveClassName(int symbolId) throws IOException {
+            String className = classNameCache.get(symbolId);
+            if (className != null) {
+                return className;
+            }
+            StringBuilder symbolBuilder = resolveSymbol(symbolId, true);
+            if (!isClassIncluded(symbolBuilder)) {
+                className = SYMBOL_EXCLUDED;
+            } else {
+                className = symbolBuilder.toString();
+            }
+            classNameCache.put(symbolId, className);
+            return className;
+        }
+
+        private StringBuilder resolveSymbol(int symbolId, boolean replaceSlashWithDot) throws IOException {
+            long currentPos = bufferedFile.position();
+            bufferedFile.position(symbolIdToPos.get(symbolId));
+            try {
+                return readUtf8String(bufferedFile, symbolBuilder, replaceSlashWithDot);
+            } finally {
+                bufferedFile.position(currentPos);
+            }
+        }
+
+        @Override
+        public void resetState() {
+            if (forked && bufferedFile.isSet()) {
+                bufferedFile.resetState();
+            }
+            symbolBuilder.setLength(0);
+        }
     }
 
     public interface StackTraceConsumer {
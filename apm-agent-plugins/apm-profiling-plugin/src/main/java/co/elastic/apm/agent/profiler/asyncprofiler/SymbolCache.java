@@ -0,0 +1,84 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler.asyncprofiler;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size cache for symbols that have been resolved from a JFR file, keyed by their id.
+ * <p>
+ * Each id maps to exactly one slot, so a newer entry simply replaces an older one with a colliding id.
+ * This bounds the memory used for symbols independently of the number of distinct frames in a JFR file,
+ * and makes the cache safe to be used by multiple threads without locking as entries are immutable.
+ * </p>
+ *
+ * @param <T> the type of the cached symbols
+ */
+class SymbolCache<T> {
+
+    private final AtomicReferenceArray<Entry<T>> entries;
+    private final int mask;
+
+    /**
+     * @param capacity the number of slots, must be a power of two
+     */
+    SymbolCache(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        entries = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    @Nullable
+    T get(long id) {
+        Entry<T> entry = entries.get(index(id));
+        if (entry != null && entry.id == id) {
+            return entry.symbol;
+        }
+        return null;
+    }
+
+    void put(long id, T symbol) {
+        entries.lazySet(index(id), new Entry<>(id, symbol));
+    }
+
+    void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.lazySet(i, null);
+        }
+    }
+
+    private int index(long id) {
+        // ids are mostly sequential, spreading them avoids clustering
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static class Entry<T> {
+        private final long id;
+        private final T symbol;
+
+        private Entry(long id, T symbol) {
+            this.id = id;
+            this.symbol = symbol;
+        }
+    }
+}
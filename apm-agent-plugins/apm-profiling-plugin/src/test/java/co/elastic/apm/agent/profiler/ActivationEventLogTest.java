@@ -0,0 +1,282 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ActivationEventLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private TraceContext traceContext;
+
+    @BeforeEach
+    void setUp() {
+        traceContext = TraceContext.with64BitId(MockTracer.create());
+    }
+
+    @Test
+    void testEventsAreReadInTimestampOrder() throws Exception {
+        ActivationEventLog log = createLog(2, 8);
+        long mainThread = Thread.currentThread().getId();
+
+        assertThat(write(log, 1)).isTrue();
+        long otherThread = writeInOtherThread(log, 2, 3, 8);
+        assertThat(write(log, 4)).isTrue();
+        assertThat(write(log, 5)).isTrue();
+        long yetAnotherThread = writeInOtherThread(log, 6, 7);
+        assertThat(write(log, 9)).isTrue();
+
+        assertThat(log.startReading()).isEqualTo(9);
+        List<Long> timestamps = new ArrayList<>();
+        List<Long> threadIds = new ArrayList<>();
+        while (log.hasNext()) {
+            long timestamp = log.peekTimestamp();
+            ByteBuffer event = log.next();
+            assertThat(event.getLong(event.position())).isEqualTo(timestamp);
+            timestamps.add(timestamp);
+            threadIds.add(event.getLong(event.position() + ActivationEventLog.THREAD_ID_OFFSET));
+        }
+        assertThat(timestamps).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L);
+        assertThat(threadIds).containsExactly(mainThread, otherThread, otherThread, mainThread, mainThread, yetAnotherThread, yetAnotherThread, otherThread, mainThread);
+    }
+
+    @Test
+    void testEventsOfTheSameThreadStayInOrderForEqualTimestamps() throws Exception {
+        ActivationEventLog log = createLog(1, 8);
+
+        assertThat(log.write(traceContext, null, true, 42)).isTrue();
+        writeInOtherThread(log, 42);
+        assertThat(log.write(traceContext, traceContext, true, 42)).isTrue();
+        assertThat(log.write(traceContext, traceContext, false, 42)).isTrue();
+
+        log.startReading();
+        List<Byte> activations = new ArrayList<>();
+        while (log.hasNext()) {
+            ByteBuffer event = log.next();
+            if (event.getLong(event.position() + ActivationEventLog.THREAD_ID_OFFSET) == Thread.currentThread().getId()) {
+                activations.add(event.get(event.position() + ActivationEventLog.EVENT_SIZE - 1));
+            }
+        }
+        assertThat(activations).containsExactly((byte) 1, (byte) 1, (byte) 0);
+    }
+
+    @Test
+    void testFull() throws Exception {
+        ActivationEventLog log = createLog(2, 2);
+        for (int i = 0; i < 4; i++) {
+            assertThat(write(log, i)).isTrue();
+        }
+        assertThat(write(log, 4)).isFalse();
+
+        assertThat(log.startReading()).isEqualTo(4);
+        assertThat(log.isFull()).isTrue();
+        // writes go to the other half while reading
+        assertThat(write(log, 5)).isTrue();
+
+        assertThat(log.startReading()).isEqualTo(1);
+        assertThat(log.isFull()).isFalse();
+    }
+
+    @Test
+    void testSegmentsGrowWithTheNumberOfEvents() throws Exception {
+        ActivationEventLog log = createLog(1, 8, 32);
+        // claims segments of 1, 2, 4 and 8 events
+        long busyThread = writeInOtherThread(log, LongStream.rangeClosed(1, 15).toArray());
+        // each thread only claims a single event
+        for (int i = 16; i <= 31; i++) {
+            writeInOtherThread(log, i);
+        }
+
+        assertThat(log.startReading()).isEqualTo(31);
+        assertThat(log.isFull()).isFalse();
+        List<Long> timestamps = new ArrayList<>();
+        while (log.hasNext()) {
+            ByteBuffer event = log.next();
+            if (event.getLong(event.position() + ActivationEventLog.THREAD_ID_OFFSET) == busyThread) {
+                timestamps.add(event.getLong(event.position()));
+            }
+        }
+        assertThat(timestamps).containsExactlyElementsOf(LongStream.rangeClosed(1, 15).boxed().collect(Collectors.toList()));
+    }
+
+    @Test
+    void testLastSegmentIsTruncated() throws Exception {
+        ActivationEventLog log = createLog(2, 4, 5);
+        // claims segments of 2 and 3 instead of 4 events
+        for (int i = 1; i <= 5; i++) {
+            assertThat(write(log, i)).isTrue();
+        }
+        assertThat(write(log, 6)).isFalse();
+
+        assertThat(log.startReading()).isEqualTo(5);
+        assertThat(log.isFull()).isTrue();
+    }
+
+    @Test
+    void testConcurrentWritesAndSwaps() throws Exception {
+        ActivationEventLog log = createLog(1, 4, 1024);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        Set<Long> threadIds = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (long timestamp = 1; !stop.get(); timestamp++) {
+                    write(log, timestamp);
+                }
+            });
+            threads.add(thread);
+            threadIds.add(thread.getId());
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < 100; i++) {
+                long events = log.startReading();
+                Map<Long, Long> lastTimestamps = new HashMap<>();
+                long eventsRead = 0;
+                while (log.hasNext()) {
+                    ByteBuffer event = log.next();
+                    long timestamp = event.getLong(event.position());
+                    long threadId = event.getLong(event.position() + ActivationEventLog.THREAD_ID_OFFSET);
+                    assertThat(threadIds).contains(threadId);
+                    Long lastTimestamp = lastTimestamps.put(threadId, timestamp);
+                    if (lastTimestamp != null) {
+                        assertThat(timestamp).isGreaterThan(lastTimestamp);
+                    }
+                    eventsRead++;
+                }
+                assertThat(eventsRead).isEqualTo(events);
+                Thread.yield();
+            }
+        } finally {
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    @Test
+    void testClear() throws Exception {
+        ActivationEventLog log = createLog(2, 2);
+        assertThat(write(log, 1)).isTrue();
+        log.clear();
+        assertThat(log.startReading()).isZero();
+        assertThat(log.hasNext()).isFalse();
+    }
+
+    @Test
+    void testWriteToAndCopyFrom() throws Exception {
+        ActivationEventLog log = createLog(2, 8);
+        assertThat(write(log, 1)).isTrue();
+        writeInOtherThread(log, 2, 3, 4);
+        assertThat(write(log, 5)).isTrue();
+        log.startReading();
+
+        Path backup = tempDir.resolve("activations.dat");
+        try (FileChannel channel = FileChannel.open(backup, CREATE, WRITE)) {
+            log.writeTo(channel);
+        }
+        assertThat(backup.toFile().length()).isEqualTo(5L * ActivationEventLog.EVENT_SIZE);
+
+        ActivationEventLog copy = createLog(2, 8);
+        try (FileChannel channel = FileChannel.open(backup, READ)) {
+            copy.copyFrom(channel);
+        }
+        assertThat(copy.startReading()).isEqualTo(5);
+        for (long timestamp = 1; timestamp <= 5; timestamp++) {
+            assertThat(copy.hasNext()).isTrue();
+            assertThat(copy.peekTimestamp()).isEqualTo(timestamp);
+            copy.next();
+        }
+        assertThat(copy.hasNext()).isFalse();
+    }
+
+    @Test
+    void testCopyFromStopsAtPreAllocatedSpace() throws Exception {
+        ActivationEventLog log = createLog(2, 8);
+        assertThat(write(log, 1)).isTrue();
+        assertThat(write(log, 2)).isTrue();
+        assertThat(write(log, 3)).isTrue();
+        log.startReading();
+
+        Path backup = tempDir.resolve("activations.dat");
+        try (FileChannel channel = FileChannel.open(backup, CREATE, WRITE)) {
+            log.writeTo(channel);
+            channel.write(ByteBuffer.allocate(4 * ActivationEventLog.EVENT_SIZE));
+        }
+
+        ActivationEventLog copy = createLog(2, 8);
+        try (FileChannel channel = FileChannel.open(backup, READ)) {
+            copy.copyFrom(channel);
+        }
+        assertThat(copy.startReading()).isEqualTo(3);
+    }
+
+    private ActivationEventLog createLog(int eventsPerSegment, int segmentsPerHalf) throws IOException {
+        return createLog(eventsPerSegment, eventsPerSegment, eventsPerSegment * segmentsPerHalf);
+    }
+
+    private ActivationEventLog createLog(int minEventsPerSegment, int maxEventsPerSegment, int eventsPerHalf) throws IOException {
+        ActivationEventLog log = new ActivationEventLog(minEventsPerSegment, maxEventsPerSegment, eventsPerHalf);
+        try (FileChannel channel = FileChannel.open(tempDir.resolve("log-" + System.nanoTime()), CREATE, READ, WRITE)) {
+            log.map(channel);
+        }
+        return log;
+    }
+
+    private boolean write(ActivationEventLog log, long timestamp) {
+        return log.write(traceContext, null, true, timestamp);
+    }
+
+    private long writeInOtherThread(ActivationEventLog log, long... timestamps) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            for (long timestamp : timestamps) {
+                assertThat(write(log, timestamp)).isTrue();
+            }
+        });
+        thread.start();
+        thread.join();
+        return thread.getId();
+    }
+}
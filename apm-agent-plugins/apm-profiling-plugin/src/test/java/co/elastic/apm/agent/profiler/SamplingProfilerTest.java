@@ -35,6 +35,8 @@ import org.junit.jupiter.api.condition.DisabledForJreRange;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.JRE;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
@@ -158,9 +160,10 @@ class SamplingProfilerTest {
         assertThat(profiler.createStartCommand()).isEqualTo("start,jfr,event=wall,cstack=n,interval=10ms,filter,file=null,safemode=14,log=none");
     }
 
-    @Test
-    void testProfileTransaction() throws Exception {
-        setupProfiler(true);
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2})
+    void testProfileTransaction(int postProcessingThreads) throws Exception {
+        setupProfiler(true, postProcessingThreads);
         awaitProfilerStarted(profiler);
 
         Transaction transaction = tracer.startRootTransaction(null).withName("transaction");
@@ -279,6 +282,10 @@ class SamplingProfilerTest {
 
 
     private void setupProfiler(boolean enabled) {
+        setupProfiler(enabled, 1);
+    }
+
+    private void setupProfiler(boolean enabled, int postProcessingThreads) {
         reporter = new MockReporter();
         ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
         profilingConfig = config.getConfig(ProfilingConfiguration.class);
@@ -288,6 +295,7 @@ class SamplingProfilerTest {
         doReturn(TimeDuration.of("500ms")).when(profilingConfig).getProfilingDuration();
         doReturn(TimeDuration.of("500ms")).when(profilingConfig).getProfilingInterval();
         doReturn(TimeDuration.of("5ms")).when(profilingConfig).getSamplingInterval();
+        doReturn(postProcessingThreads).when(profilingConfig).getPostProcessingThreads();
         tracer = MockTracer.createRealTracer(reporter, config);
         profiler = tracer.getLifecycleListener(ProfilingFactory.class).getProfiler();
     }
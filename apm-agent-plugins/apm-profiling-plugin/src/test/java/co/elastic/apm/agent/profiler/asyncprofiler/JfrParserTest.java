@@ -26,6 +26,9 @@ import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static co.elastic.apm.agent.common.util.WildcardMatcher.caseSensitiveMatcher;
@@ -58,4 +61,43 @@ class JfrParserTest {
         assertThat(stackTraces.get()).isEqualTo(97);
     }
 
+    @Test
+    void testConcurrentStackTraceResolvers() throws Exception {
+        JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        File file = Paths.get(JfrParserTest.class.getClassLoader().getResource("recording.jfr").toURI()).toFile();
+        jfrParser.parse(file, List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        List<Long> stackTraceIds = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime) -> stackTraceIds.add(stackTraceId));
+
+        List<List<StackFrame>> expected = new ArrayList<>();
+        for (long stackTraceId : stackTraceIds) {
+            List<StackFrame> stackFrames = new ArrayList<>();
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+            expected.add(stackFrames);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<List<StackFrame>>>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                JfrParser.StackTraceResolver resolver = jfrParser.createStackTraceResolver();
+                futures.add(executor.submit(() -> {
+                    List<List<StackFrame>> actual = new ArrayList<>();
+                    for (long stackTraceId : stackTraceIds) {
+                        List<StackFrame> stackFrames = new ArrayList<>();
+                        resolver.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+                        actual.add(stackFrames);
+                    }
+                    return actual;
+                }));
+            }
+            for (Future<List<List<StackFrame>>> future : futures) {
+                assertThat(future.get()).isEqualTo(expected);
+            }
+        } finally {
+            executor.shutdown();
+            jfrParser.resetState();
+        }
+    }
+
 }
@@ -26,6 +26,12 @@ import java.util.List;
 
 public interface CoreConfiguration {
 
+    /**
+     * Tags the options that are read by type matchers, class loader matchers and pre-filters, or that determine which instrumentations are applied.
+     * Changing the value of such an option invalidates the persisted instrumentation index.
+     */
+    String AFFECTS_INSTRUMENTATION_TAG = "affects_instrumentation";
+
     boolean isInstrumentationEnabled(String instrumentationGroupName);
 
     boolean isInstrumentationEnabled(Collection<String> instrumentationGroupNames);
@@ -31,4 +31,12 @@ public interface ReferenceCountedMap<K, V extends ReferenceCounted> {
 
     @Nullable
     V remove(K key);
+
+    /**
+     * A cheap check whether the map contains any entries.
+     * Entries whose keys have been garbage collected may still be counted until they are expunged.
+     *
+     * @return {@code true}, if the map contains no entries
+     */
+    boolean isEmpty();
 }